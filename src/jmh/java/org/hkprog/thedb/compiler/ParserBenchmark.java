@@ -0,0 +1,66 @@
+package org.hkprog.thedb.compiler;
+
+import org.hkprog.thedb.antlr.SQLLexer;
+import org.hkprog.thedb.antlr.SQLParser;
+import org.antlr.v4.runtime.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parser Benchmark - parse throughput over the scripts in example/
+ *
+ * {@code fullLL} parses the way SQLCompiler used to, with a new lexer and
+ * parser and full LL prediction for every text; {@code sllWithFallback} is
+ * the current {@link SQLCompiler#parseTree}. Each runs in its own fork, so
+ * neither starts with the other's warmed DFA cache.
+ *
+ * Run with: mvn -P jmh package && java -jar target/thedb-server-0.0.1-benchmarks.jar ParserBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+    
+    // select_queries.sql is left out: it does not parse (it uses the keyword count as an alias)
+    @Param({"create_tables.sql", "index_example.sql", "insert_data.sql", "join_example.sql",
+            "test.sql", "test_fk.sql", "transaction_example.sql", "update_delete.sql", "point-select"})
+    public String script;
+    
+    private String sql;
+    
+    @Setup
+    public void setup() throws IOException {
+        if (script.equals("point-select")) {
+            sql = "SELECT name, email FROM users WHERE id = 42";
+        } else {
+            sql = Files.readString(Paths.get(System.getProperty("thedb.examples", "example"), script));
+        }
+    }
+    
+    @Benchmark
+    public Object fullLL() {
+        SQLLexer lexer = new SQLLexer(CharStreams.fromString(sql));
+        SQLParser parser = new SQLParser(new CommonTokenStream(lexer));
+        parser.removeErrorListeners();
+        parser.addErrorListener(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
+                                    int line, int charPositionInLine, String msg, RecognitionException e) {
+                throw new RuntimeException("Syntax error at line " + line + ":" + charPositionInLine + " - " + msg);
+            }
+        });
+        return parser.sqlStatements();
+    }
+    
+    @Benchmark
+    public Object sllWithFallback() {
+        return SQLCompiler.parseTree(sql);
+    }
+}
@@ -120,6 +120,23 @@ COMMIT : C O M M I T;
 ROLLBACK : R O L L B A C K;
 SAVEPOINT : S A V E P O I N T;
 
+// Keywords - Bulk load
+LOAD : L O A D;
+DATA : D A T A;
+INFILE : I N F I L E;
+FIELDS : F I E L D S;
+TERMINATED : T E R M I N A T E D;
+OPTIONALLY : O P T I O N A L L Y;
+ENCLOSED : E N C L O S E D;
+ESCAPED : E S C A P E D;
+LINES : L I N E S;
+IGNORE : I G N O R E;
+
+// Keywords - Prepared statements
+PREPARE : P R E P A R E;
+EXECUTE : E X E C U T E;
+DEALLOCATE : D E A L L O C A T E;
+
 // Keywords - Other
 AS : A S;
 ASC : A S C;
@@ -180,6 +197,7 @@ MINUS : '-';
 MULTIPLY : '*';
 DIVIDE : '/';
 MODULO : '%';
+QUESTION : '?';
 
 // Delimiters
 SEMICOLON : ';';
@@ -199,8 +217,8 @@ QUOTED_IDENTIFIER : '`' (~'`')+ '`';
 // Literals
 INTEGER_LITERAL : [0-9]+;
 DECIMAL_LITERAL : [0-9]+ '.' [0-9]+;
-STRING_LITERAL : '\'' (~['\r\n] | '\'\'' | '\\' .)* '\'';
-DOUBLE_QUOTED_STRING : '"' (~["\r\n] | '""' | '\\' .)* '"';
+STRING_LITERAL : '\'' (~['\\\r\n] | '\'\'' | '\\' .)* '\'';
+DOUBLE_QUOTED_STRING : '"' (~["\\\r\n] | '""' | '\\' .)* '"';
 
 // Error handling
 UNEXPECTED_CHAR : .;
@@ -14,6 +14,7 @@ sqlStatement
     | dmlStatement
     | dqlStatement
     | transactionStatement
+    | preparedStatement
     | utilityStatement
     ;
 
@@ -109,6 +110,7 @@ dmlStatement
     : insertStatement
     | updateStatement
     | deleteStatement
+    | loadDataStatement
     ;
 
 insertStatement
@@ -131,6 +133,20 @@ deleteStatement
     : DELETE FROM tableName (WHERE expression)?
     ;
 
+loadDataStatement
+    : LOAD DATA INFILE fileName=STRING_LITERAL INTO TABLE tableName
+      ((FIELDS | COLUMNS) fieldsOption+)?
+      (LINES TERMINATED BY lineTerminator=STRING_LITERAL)?
+      (IGNORE ignoreLines=INTEGER_LITERAL LINES)?
+      (LPAREN columnName (COMMA columnName)* RPAREN)?
+    ;
+
+fieldsOption
+    : TERMINATED BY STRING_LITERAL
+    | OPTIONALLY? ENCLOSED BY STRING_LITERAL
+    | ESCAPED BY STRING_LITERAL
+    ;
+
 // DQL Statements
 dqlStatement
     : selectStatement
@@ -162,6 +178,7 @@ tableSource
 
 joinClause
     : joinType? JOIN tableSource (ON expression | USING LPAREN columnName (COMMA columnName)* RPAREN)
+    | (CROSS | NATURAL) JOIN tableSource
     ;
 
 joinType
@@ -191,6 +208,13 @@ transactionStatement
     | ROLLBACK TO SAVEPOINT? savepointName
     ;
 
+// Prepared Statements
+preparedStatement
+    : PREPARE statementName FROM (STRING_LITERAL | DOUBLE_QUOTED_STRING)
+    | EXECUTE statementName (USING expression (COMMA expression)*)?
+    | DEALLOCATE PREPARE statementName
+    ;
+
 // Utility Statements
 utilityStatement
     : SHOW TABLES
@@ -204,6 +228,7 @@ utilityStatement
 // Expressions
 expression
     : literal                                                           # LiteralExpression
+    | QUESTION                                                          # ParameterExpression
     | columnReference                                                   # ColumnExpression
     | functionCall                                                      # FunctionCallExpression
     | LPAREN expression RPAREN                                          # ParenExpression
@@ -266,6 +291,7 @@ indexName : identifier;
 constraintName : identifier;
 databaseName : identifier;
 savepointName : identifier;
+statementName : identifier;
 functionName : identifier;
 columnAlias : identifier;
 tableAlias : identifier;
@@ -281,4 +307,6 @@ identifier
 nonReservedKeyword
     : AFTER | CHANGE | FIRST | MODIFY
     | TEXT | BLOB | TIMESTAMP
+    | PREPARE | EXECUTE | DEALLOCATE
+    | LOAD | DATA | INFILE | FIELDS | TERMINATED | OPTIONALLY | ENCLOSED | ESCAPED | LINES | IGNORE
     ;
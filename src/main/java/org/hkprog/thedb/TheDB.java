@@ -1,11 +1,18 @@
 package org.hkprog.thedb;
 
+import org.hkprog.thedb.server.ServerConfig;
 import org.hkprog.thedb.server.TheDBServer;
+import org.hkprog.thedb.ast.LoadDataStatementNode;
 import org.hkprog.thedb.compiler.SQLCompiler;
 import org.hkprog.thedb.console.InteractiveConsole;
+import org.hkprog.thedb.executor.QueryExecutor;
+import org.hkprog.thedb.storage.StorageConfig;
+import org.hkprog.thedb.storage.StorageEngine;
+import org.hkprog.thedb.storage.WriteAheadLog;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 
 /**
  * Main entry point for TheDB database server
@@ -25,38 +32,166 @@ public class TheDB {
                 case "server":
                     int port = 3333;
                     String dataDir = "./data";
+                    Integer bufferPoolPages = null;
+                    String eviction = null;
+                    String walSync = null;
+                    Long walGroupDelay = null;
+                    Long checkpointInterval = null;
+                    Integer binaryPort = null;
+                    Integer mysqlPort = null;
+                    String ioMode = null;
+                    Integer maxConnections = null;
+                    Integer acceptBacklog = null;
+                    Integer workerThreads = null;
+                    Integer statementCache = null;
+                    Long workMemoryMb = null;
+                    String secureFileDir = null;
                     
                     for (int i = 1; i < args.length; i++) {
                         if (args[i].equals("--port") && i + 1 < args.length) {
                             port = Integer.parseInt(args[++i]);
                         } else if (args[i].equals("--data-dir") && i + 1 < args.length) {
                             dataDir = args[++i];
+                        } else if (args[i].equals("--buffer-pool-pages") && i + 1 < args.length) {
+                            bufferPoolPages = Integer.parseInt(args[++i]);
+                        } else if (args[i].equals("--eviction") && i + 1 < args.length) {
+                            eviction = args[++i];
+                        } else if (args[i].equals("--wal-sync") && i + 1 < args.length) {
+                            walSync = args[++i];
+                        } else if (args[i].equals("--wal-group-delay-us") && i + 1 < args.length) {
+                            walGroupDelay = Long.parseLong(args[++i]);
+                        } else if (args[i].equals("--checkpoint-interval-s") && i + 1 < args.length) {
+                            checkpointInterval = Long.parseLong(args[++i]);
+                        } else if (args[i].equals("--binary-port") && i + 1 < args.length) {
+                            binaryPort = Integer.parseInt(args[++i]);
+                        } else if (args[i].equals("--mysql-port") && i + 1 < args.length) {
+                            mysqlPort = Integer.parseInt(args[++i]);
+                        } else if (args[i].equals("--io") && i + 1 < args.length) {
+                            ioMode = args[++i];
+                        } else if (args[i].equals("--max-connections") && i + 1 < args.length) {
+                            maxConnections = Integer.parseInt(args[++i]);
+                        } else if (args[i].equals("--accept-backlog") && i + 1 < args.length) {
+                            acceptBacklog = Integer.parseInt(args[++i]);
+                        } else if (args[i].equals("--worker-threads") && i + 1 < args.length) {
+                            workerThreads = Integer.parseInt(args[++i]);
+                        } else if (args[i].equals("--statement-cache") && i + 1 < args.length) {
+                            statementCache = Integer.parseInt(args[++i]);
+                        } else if (args[i].equals("--work-mem-mb") && i + 1 < args.length) {
+                            workMemoryMb = Long.parseLong(args[++i]);
+                        } else if (args[i].equals("--secure-file-dir") && i + 1 < args.length) {
+                            secureFileDir = args[++i];
                         }
                     }
                     
+                    StorageConfig storageConfig = new StorageConfig(dataDir);
+                    if (bufferPoolPages != null) {
+                        storageConfig.setBufferPoolPages(bufferPoolPages);
+                    }
+                    if (eviction != null) {
+                        storageConfig.setEvictionPolicy(eviction);
+                    }
+                    if (walSync != null) {
+                        storageConfig.setWalSyncMode(WriteAheadLog.SyncMode.parse(walSync));
+                    }
+                    if (walGroupDelay != null) {
+                        storageConfig.setGroupCommitDelayMicros(walGroupDelay);
+                    }
+                    if (checkpointInterval != null) {
+                        storageConfig.setCheckpointIntervalSeconds(checkpointInterval);
+                    }
+                    if (workMemoryMb != null) {
+                        storageConfig.setWorkMemoryBytes(workMemoryMb * 1024 * 1024);
+                    }
+                    // Network clients may only load files from this directory; without it LOAD DATA INFILE is off
+                    storageConfig.setSecureFileDirectory(secureFileDir);
+                    
+                    ServerConfig serverConfig = new ServerConfig(port);
+                    if (binaryPort != null) {
+                        serverConfig.setBinaryPort(binaryPort);
+                    }
+                    if (mysqlPort != null) {
+                        serverConfig.setMysqlPort(mysqlPort);
+                    }
+                    if (ioMode != null) {
+                        serverConfig.setIoMode(ServerConfig.IoMode.parse(ioMode));
+                    }
+                    if (maxConnections != null) {
+                        serverConfig.setMaxConnections(maxConnections);
+                    }
+                    if (acceptBacklog != null) {
+                        serverConfig.setAcceptBacklog(acceptBacklog);
+                    }
+                    if (workerThreads != null) {
+                        serverConfig.setWorkerThreads(workerThreads);
+                    }
+                    if (statementCache != null) {
+                        serverConfig.setStatementCacheSize(statementCache);
+                    }
+                    
                     System.out.println("Starting TheDB Server on port " + port);
                     System.out.println("Data directory: " + dataDir);
-                    TheDBServer server = new TheDBServer(port, dataDir);
+                    TheDBServer server = new TheDBServer(serverConfig, storageConfig);
+                    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
                     server.start();
                     break;
-                    
+                
                 case "execute":
                     if (args.length < 2) {
-                        System.err.println("Usage: thedb execute <script.sql>");
+                        System.err.println("Usage: thedb execute <script.sql> [--data-dir ./data] [--commit-every 1000]");
                         return;
                     }
                     String sqlFile = args[1];
-                    String sqlContent = Files.readString(Paths.get(sqlFile));
-                    SQLCompiler.executeScript(sqlContent);
+                    int commitEvery = SQLCompiler.DEFAULT_COMMIT_EVERY;
+                    for (int i = 2; i < args.length - 1; i++) {
+                        if (args[i].equals("--commit-every")) {
+                            commitEvery = Integer.parseInt(args[i + 1]);
+                        }
+                    }
+                    try (StorageEngine storageEngine = new StorageEngine(dataDirectoryOption(args, 2))) {
+                        SQLCompiler.executeScript(Paths.get(sqlFile), storageEngine, commitEvery);
+                    }
                     break;
-                    
+                
+                case "load":
+                    if (args.length < 3) {
+                        System.err.println("Usage: thedb load <file> <table> [--data-dir ./data] [--format tsv|csv] [--header]");
+                        return;
+                    }
+                    boolean csv = false;
+                    int ignoreLines = 0;
+                    for (int i = 3; i < args.length; i++) {
+                        if (args[i].equals("--format") && i + 1 < args.length) {
+                            String format = args[++i];
+                            if (!format.equals("csv") && !format.equals("tsv")) {
+                                throw new IllegalArgumentException("Unknown format: " + format + " (expected tsv or csv)");
+                            }
+                            csv = format.equals("csv");
+                        } else if (args[i].equals("--header")) {
+                            ignoreLines = 1;
+                        }
+                    }
+                    LoadDataStatementNode load = new LoadDataStatementNode(args[1], args[2], new ArrayList<>(),
+                            csv ? "," : LoadDataStatementNode.DEFAULT_FIELD_TERMINATOR, csv ? "\"" : "",
+                            LoadDataStatementNode.DEFAULT_ESCAPE, LoadDataStatementNode.DEFAULT_LINE_TERMINATOR, ignoreLines);
+                    try (StorageEngine storageEngine = new StorageEngine(dataDirectoryOption(args, 3));
+                         QueryExecutor executor = new QueryExecutor(storageEngine)) {
+                        long start = System.nanoTime();
+                        long rows = executor.execute(new QueryExecutor.ExecutionPlan(load)).getUpdateCount();
+                        double seconds = (System.nanoTime() - start) / 1e9;
+                        System.out.printf("Loaded %,d rows into %s in %.2f s (%,.0f rows/s)%n",
+                                rows, args[2], seconds, rows / Math.max(seconds, 1e-9));
+                    }
+                    break;
+                
                 case "console":
                     System.out.println("TheDB Interactive Console");
                     System.out.println("Type 'exit' or 'quit' to exit");
-                    InteractiveConsole console = new InteractiveConsole();
-                    console.start();
+                    try (StorageEngine storageEngine = new StorageEngine(dataDirectoryOption(args, 1))) {
+                        InteractiveConsole console = new InteractiveConsole(storageEngine);
+                        console.start();
+                    }
                     break;
-                    
+                
                 case "validate":
                     if (args.length < 2) {
                         System.err.println("Usage: thedb validate <script.sql>");
@@ -67,16 +202,16 @@ public class TheDB {
                     SQLCompiler.validateSyntax(validateContent);
                     System.out.println("SQL syntax is valid");
                     break;
-                    
+                
                 case "version":
                     System.out.println("TheDB Server Version 0.0.1");
                     System.out.println("A MySQL-like relational database written in Java");
                     break;
-                    
+                
                 case "help":
                     printUsage();
                     break;
-                    
+                
                 default:
                     System.err.println("Unknown command: " + command);
                     printUsage();
@@ -89,28 +224,59 @@ public class TheDB {
         }
     }
     
+    private static String dataDirectoryOption(String[] args, int start) {
+        for (int i = start; i < args.length - 1; i++) {
+            if (args[i].equals("--data-dir")) {
+                return args[i + 1];
+            }
+        }
+        return "./data";
+    }
+    
     private static void printUsage() {
         System.out.println("TheDB - A MySQL-like Relational Database");
         System.out.println();
         System.out.println("Usage: thedb <command> [options]");
         System.out.println();
         System.out.println("Commands:");
-        System.out.println("  server [--port 3306] [--data-dir ./data]  Start database server");
-        System.out.println("  execute <script.sql>                       Execute SQL script file");
-        System.out.println("  console                                    Start interactive console");
+        System.out.println("  server [--port 3333] [--data-dir ./data]  Start database server");
+        System.out.println("         [--buffer-pool-pages 8192]         Buffer pool size in 4 KB pages");
+        System.out.println("         [--eviction clock|lru-k|lru-N]     Buffer pool eviction policy");
+        System.out.println("         [--wal-sync per-commit|group|async] How commits are forced to disk");
+        System.out.println("         [--wal-group-delay-us 1000]        Group commit wait / async sync interval");
+        System.out.println("         [--checkpoint-interval-s 60]       Longest time between checkpoints");
+        System.out.println("         [--work-mem-mb 64]                 Memory per join, sort or GROUP BY before it spills to disk");
+        System.out.println("         [--binary-port N]                  Also serve the binary protocol; off by default");
+        System.out.println("         [--mysql-port N]                   Also serve the MySQL protocol; off by default");
+        System.out.println("         [--io nio|virtual]                 Selector event loop, or a virtual thread per");
+        System.out.println("                                            connection (Java 21+)");
+        System.out.println("         [--max-connections 10000]          Clients beyond this are refused");
+        System.out.println("         [--accept-backlog 1024]            Queue of connections not yet accepted");
+        System.out.println("         [--worker-threads N]               Threads running statements (nio)");
+        System.out.println("         [--statement-cache 1024]           Parsed and planned statements kept; 0 = off");
+        System.out.println("         [--secure-file-dir DIR]            Directory LOAD DATA INFILE may read from; off without it");
+        System.out.println("  execute <script.sql> [--data-dir ./data]   Execute SQL script file");
+        System.out.println("          [--commit-every 1000]              Changes committed together; 1 = each statement");
+        System.out.println("  load <file> <table> [--data-dir ./data]    Bulk load a delimited file into a table");
+        System.out.println("       [--format tsv|csv] [--header]         Tab-separated (default) or CSV; skip a header line");
+        System.out.println("  console [--data-dir ./data]                Start interactive console");
         System.out.println("  validate <script.sql>                      Validate SQL syntax");
         System.out.println("  version                                    Show version information");
         System.out.println("  help                                       Show this help message");
         System.out.println();
         System.out.println("Examples:");
         System.out.println("  thedb server --port 3307 --data-dir /var/thedb");
+        System.out.println("  thedb server --buffer-pool-pages 65536 --eviction lru-2");
+        System.out.println("  thedb server --wal-sync group --wal-group-delay-us 500");
+        System.out.println("  thedb server --max-connections 50000 --accept-backlog 4096");
         System.out.println("  thedb execute example/create_tables.sql");
+        System.out.println("  thedb load users.csv users --format csv --header");
         System.out.println("  thedb console");
         System.out.println("  thedb validate queries.sql");
         System.out.println();
         System.out.println("TheDB supports standard SQL syntax including:");
         System.out.println("- DDL: CREATE TABLE, DROP TABLE, ALTER TABLE, CREATE INDEX");
-        System.out.println("- DML: INSERT, UPDATE, DELETE");
+        System.out.println("- DML: INSERT, UPDATE, DELETE, LOAD DATA INFILE");
         System.out.println("- DQL: SELECT with JOINs, GROUP BY, ORDER BY, LIMIT");
         System.out.println("- Transactions: BEGIN, COMMIT, ROLLBACK");
     }
@@ -31,6 +31,7 @@ public interface ASTNode {
         INSERT,
         UPDATE,
         DELETE,
+        LOAD_DATA,
         
         // DQL
         SELECT,
@@ -40,6 +41,11 @@ public interface ASTNode {
         COMMIT,
         ROLLBACK,
         
+        // Prepared statements
+        PREPARE,
+        EXECUTE,
+        DEALLOCATE_PREPARE,
+        
         // Expressions
         LITERAL,
         COLUMN_REFERENCE,
@@ -48,6 +54,7 @@ public interface ASTNode {
         FUNCTION_CALL,
         CASE_EXPRESSION,
         SUBQUERY,
+        PARAMETER,
         
         // Clauses
         WHERE_CLAUSE,
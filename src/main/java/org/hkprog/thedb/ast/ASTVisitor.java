@@ -18,6 +18,7 @@ public interface ASTVisitor<T> {
     T visitInsertStatement(InsertStatementNode node);
     T visitUpdateStatement(UpdateStatementNode node);
     T visitDeleteStatement(DeleteStatementNode node);
+    T visitLoadDataStatement(LoadDataStatementNode node);
     
     // DQL Statements
     T visitSelectStatement(SelectStatementNode node);
@@ -27,6 +28,11 @@ public interface ASTVisitor<T> {
     T visitCommit(CommitNode node);
     T visitRollback(RollbackNode node);
     
+    // Prepared Statements
+    T visitPrepareStatement(PrepareStatementNode node);
+    T visitExecuteStatement(ExecuteStatementNode node);
+    T visitDeallocatePrepare(DeallocatePrepareNode node);
+    
     // Expressions
     T visitLiteral(LiteralNode node);
     T visitColumnReference(ColumnReferenceNode node);
@@ -35,6 +41,7 @@ public interface ASTVisitor<T> {
     T visitFunctionCall(FunctionCallNode node);
     T visitCaseExpression(CaseExpressionNode node);
     T visitSubquery(SubqueryNode node);
+    T visitParameter(ParameterNode node);
     
     // Other
     T visitColumnDefinition(ColumnDefinitionNode node);
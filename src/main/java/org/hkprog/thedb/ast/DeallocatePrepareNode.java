@@ -0,0 +1,22 @@
+package org.hkprog.thedb.ast;
+
+/**
+ * DEALLOCATE PREPARE name
+ */
+public class DeallocatePrepareNode implements ASTNode {
+    private final String name;
+    
+    public DeallocatePrepareNode(String name) {
+        this.name = name;
+    }
+    
+    public String getName() { return name; }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visitDeallocatePrepare(this);
+    }
+    
+    @Override
+    public NodeType getNodeType() { return NodeType.DEALLOCATE_PREPARE; }
+}
@@ -0,0 +1,27 @@
+package org.hkprog.thedb.ast;
+
+import java.util.List;
+
+/**
+ * EXECUTE name [USING value, ...]
+ */
+public class ExecuteStatementNode implements ASTNode {
+    private final String name;
+    private final List<ASTNode> arguments;
+    
+    public ExecuteStatementNode(String name, List<ASTNode> arguments) {
+        this.name = name;
+        this.arguments = arguments;
+    }
+    
+    public String getName() { return name; }
+    public List<ASTNode> getArguments() { return arguments; }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visitExecuteStatement(this);
+    }
+    
+    @Override
+    public NodeType getNodeType() { return NodeType.EXECUTE; }
+}
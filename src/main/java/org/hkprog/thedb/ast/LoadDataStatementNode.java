@@ -0,0 +1,67 @@
+package org.hkprog.thedb.ast;
+
+import java.util.List;
+
+/**
+ * LOAD DATA INFILE 'file' INTO TABLE t - bulk load of a delimited text file
+ *
+ * An empty string for enclosedBy or escapedBy means fields are not enclosed
+ * or have no escape character.
+ */
+public class LoadDataStatementNode implements ASTNode {
+    
+    public static final String DEFAULT_FIELD_TERMINATOR = "\t";
+    public static final String DEFAULT_ESCAPE = "\\";
+    public static final String DEFAULT_LINE_TERMINATOR = "\n";
+    
+    private final String fileName;
+    private final String tableName;
+    private final List<String> columns;
+    private final String fieldTerminator;
+    private final String enclosedBy;
+    private final String escapedBy;
+    private final String lineTerminator;
+    private final int ignoreLines;
+    
+    public LoadDataStatementNode(String fileName, String tableName, List<String> columns, String fieldTerminator,
+                                 String enclosedBy, String escapedBy, String lineTerminator, int ignoreLines) {
+        this.fileName = fileName;
+        this.tableName = tableName;
+        this.columns = columns;
+        this.fieldTerminator = fieldTerminator;
+        this.enclosedBy = enclosedBy;
+        this.escapedBy = escapedBy;
+        this.lineTerminator = lineTerminator;
+        this.ignoreLines = ignoreLines;
+    }
+    
+    public String getFileName() { return fileName; }
+    public String getTableName() { return tableName; }
+    
+    /**
+     * Columns the fields of a line go to, in order; empty for all columns of the table
+     */
+    public List<String> getColumns() { return columns; }
+    public String getFieldTerminator() { return fieldTerminator; }
+    public String getEnclosedBy() { return enclosedBy; }
+    public String getEscapedBy() { return escapedBy; }
+    public String getLineTerminator() { return lineTerminator; }
+    
+    /**
+     * Lines skipped at the start of the file, such as a header
+     */
+    public int getIgnoreLines() { return ignoreLines; }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visitLoadDataStatement(this);
+    }
+    
+    @Override
+    public NodeType getNodeType() { return NodeType.LOAD_DATA; }
+    
+    @Override
+    public String toString() {
+        return "LoadData{file=" + fileName + ", table=" + tableName + ", columns=" + columns + "}";
+    }
+}
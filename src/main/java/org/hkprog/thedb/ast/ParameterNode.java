@@ -0,0 +1,47 @@
+package org.hkprog.thedb.ast;
+
+/**
+ * Represents a ? parameter marker of a prepared statement
+ *
+ * The value bound for the current execution is kept in the node, so plans
+ * compiled from the statement read it without being rebuilt.
+ */
+public class ParameterNode implements ASTNode {
+    
+    private final int index;
+    private Object value;
+    
+    public ParameterNode(int index) {
+        this.index = index;
+    }
+    
+    /**
+     * Position of the marker in the statement, from 0
+     */
+    public int getIndex() {
+        return index;
+    }
+    
+    public Object getValue() {
+        return value;
+    }
+    
+    public void setValue(Object value) {
+        this.value = value;
+    }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visitParameter(this);
+    }
+    
+    @Override
+    public NodeType getNodeType() {
+        return NodeType.PARAMETER;
+    }
+    
+    @Override
+    public String toString() {
+        return "Parameter{" + (index + 1) + "}";
+    }
+}
@@ -0,0 +1,34 @@
+package org.hkprog.thedb.ast;
+
+import java.util.List;
+
+/**
+ * PREPARE name FROM 'statement' - the statement is parsed when the PREPARE is
+ */
+public class PrepareStatementNode implements ASTNode {
+    private final String name;
+    private final ASTNode statement;
+    private final List<ParameterNode> parameters;
+    
+    public PrepareStatementNode(String name, ASTNode statement, List<ParameterNode> parameters) {
+        this.name = name;
+        this.statement = statement;
+        this.parameters = parameters;
+    }
+    
+    public String getName() { return name; }
+    public ASTNode getStatement() { return statement; }
+    
+    /**
+     * The ? markers of the statement, in order
+     */
+    public List<ParameterNode> getParameters() { return parameters; }
+    
+    @Override
+    public <T> T accept(ASTVisitor<T> visitor) {
+        return visitor.visitPrepareStatement(this);
+    }
+    
+    @Override
+    public NodeType getNodeType() { return NodeType.PREPARE; }
+}
@@ -0,0 +1,185 @@
+package org.hkprog.thedb.compiler;
+
+import org.hkprog.thedb.antlr.SQLLexer;
+import org.antlr.v4.runtime.*;
+
+import java.util.*;
+
+/**
+ * Normalized SQL - one statement of a request with its number and string
+ * literals replaced by ? markers
+ *
+ * Statements that differ only in their literal values have the same
+ * normalized text, so the text can key a cache of parsed and planned
+ * statements, with the literal values bound to the markers. Only the
+ * literals of SELECT, INSERT, UPDATE and DELETE are replaced, and not those
+ * whose value shapes the result: literals in a select list (they name
+ * their column), positions in ORDER BY and GROUP BY, and LIMIT and OFFSET
+ * counts. Other statements have no normalized text.
+ */
+public final class NormalizedSql {
+    
+    // Statements with more literals than this, such as bulk inserts, are not worth caching
+    private static final int MAX_PARAMETERS = 1024;
+    
+    private final String sql;
+    private final String text;
+    private final List<Object> values;
+    
+    private NormalizedSql(String sql, String text, List<Object> values) {
+        this.sql = sql;
+        this.text = text;
+        this.values = values;
+    }
+    
+    /**
+     * The statement as written
+     */
+    public String getSql() {
+        return sql;
+    }
+    
+    /**
+     * The statement with literals replaced by ? markers, or null if it cannot be cached
+     */
+    public String getText() {
+        return text;
+    }
+    
+    /**
+     * The values of the replaced literals, in order
+     */
+    public List<Object> getValues() {
+        return values;
+    }
+    
+    public boolean isCacheable() {
+        return text != null;
+    }
+    
+    /**
+     * Split a request into its statements and normalize each, or return null
+     * if the text does not tokenize cleanly
+     */
+    public static List<NormalizedSql> split(String sql) {
+        SQLLexer lexer = new SQLLexer(CharStreams.fromString(sql));
+        boolean[] failed = new boolean[1];
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
+                                    int line, int charPositionInLine, String msg, RecognitionException e) {
+                failed[0] = true;
+            }
+        });
+        List<? extends Token> tokens = lexer.getAllTokens();
+        if (failed[0]) {
+            return null;
+        }
+        List<NormalizedSql> statements = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= tokens.size(); i++) {
+            if (i == tokens.size() || tokens.get(i).getType() == SQLLexer.SEMICOLON) {
+                if (i > start) {
+                    statements.add(normalize(sql, tokens.subList(start, i)));
+                }
+                start = i + 1;
+            }
+        }
+        return statements;
+    }
+    
+    private static NormalizedSql normalize(String sql, List<? extends Token> tokens) {
+        String statement = sql.substring(tokens.get(0).getStartIndex(), tokens.get(tokens.size() - 1).getStopIndex() + 1);
+        switch (tokens.get(0).getType()) {
+            case SQLLexer.SELECT:
+            case SQLLexer.INSERT:
+            case SQLLexer.UPDATE:
+            case SQLLexer.DELETE:
+                break;
+            default:
+                return new NormalizedSql(statement, null, Collections.emptyList());
+        }
+        StringBuilder text = new StringBuilder(statement.length());
+        List<Object> values = new ArrayList<>();
+        Deque<Integer> selectLists = new ArrayDeque<>();
+        int depth = 0;
+        int positionList = -1;
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            int previous = i > 0 ? tokens.get(i - 1).getType() : Token.INVALID_TYPE;
+            int next = i + 1 < tokens.size() ? tokens.get(i + 1).getType() : Token.EOF;
+            switch (token.getType()) {
+                case SQLLexer.QUESTION:
+                    // Markers are only allowed in prepared statements; leave the error to the parser
+                    return new NormalizedSql(statement, null, Collections.emptyList());
+                case SQLLexer.LPAREN:
+                    depth++;
+                    break;
+                case SQLLexer.RPAREN:
+                    depth--;
+                    if (depth < positionList) {
+                        positionList = -1;
+                    }
+                    break;
+                case SQLLexer.BY:
+                    if (previous == SQLLexer.ORDER || previous == SQLLexer.GROUP) {
+                        positionList = depth;
+                    }
+                    break;
+                case SQLLexer.SELECT:
+                    selectLists.push(depth);
+                    break;
+                case SQLLexer.FROM:
+                    if (!selectLists.isEmpty() && selectLists.peek() == depth) {
+                        selectLists.pop();
+                    }
+                    break;
+                case SQLLexer.INTEGER_LITERAL:
+                case SQLLexer.DECIMAL_LITERAL:
+                case SQLLexer.STRING_LITERAL:
+                case SQLLexer.DOUBLE_QUOTED_STRING:
+                    if (selectLists.isEmpty() && !(depth == positionList && isPosition(previous, next))
+                            && previous != SQLLexer.LIMIT && previous != SQLLexer.OFFSET) {
+                        values.add(SQLASTBuilder.literalValue(token));
+                        text.append(text.length() > 0 ? " ?" : "?");
+                        continue;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(token.getText());
+        }
+        if (values.size() > MAX_PARAMETERS) {
+            return new NormalizedSql(statement, null, Collections.emptyList());
+        }
+        return new NormalizedSql(statement, text.toString(), values);
+    }
+    
+    /**
+     * Whether a literal between these tokens may be a column position of
+     * ORDER BY or GROUP BY, such as the 2 of ORDER BY 2 DESC
+     */
+    private static boolean isPosition(int previous, int next) {
+        if (previous != SQLLexer.BY && previous != SQLLexer.COMMA) {
+            return false;
+        }
+        switch (next) {
+            case Token.EOF:
+            case SQLLexer.COMMA:
+            case SQLLexer.ASC:
+            case SQLLexer.DESC:
+            case SQLLexer.RPAREN:
+            case SQLLexer.HAVING:
+            case SQLLexer.ORDER:
+            case SQLLexer.LIMIT:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
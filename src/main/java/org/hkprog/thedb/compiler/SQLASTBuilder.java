@@ -9,6 +9,13 @@ import java.util.*;
  */
 public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
     
+    // The ? markers seen so far, numbered in the order they appear
+    private final List<ParameterNode> parameters = new ArrayList<>();
+    
+    public List<ParameterNode> getParameters() {
+        return parameters;
+    }
+    
     @Override
     public ASTNode visitSqlStatements(SQLParser.SqlStatementsContext ctx) {
         if (ctx.sqlStatement() != null && !ctx.sqlStatement().isEmpty()) {
@@ -40,17 +47,14 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
         if (ctx.createTableStatement() != null) {
             return visit(ctx.createTableStatement());
         } else if (ctx.dropTableStatement() != null) {
-            // TODO: Implement DROP TABLE
-            return new PlaceholderNode("DROP TABLE: " + ctx.getText());
+            return visit(ctx.dropTableStatement());
         } else if (ctx.alterTableStatement() != null) {
             // TODO: Implement ALTER TABLE
             return new PlaceholderNode("ALTER TABLE: " + ctx.getText());
         } else if (ctx.createIndexStatement() != null) {
-            // TODO: Implement CREATE INDEX
-            return new PlaceholderNode("CREATE INDEX: " + ctx.getText());
+            return visit(ctx.createIndexStatement());
         } else if (ctx.dropIndexStatement() != null) {
-            // TODO: Implement DROP INDEX
-            return new PlaceholderNode("DROP INDEX: " + ctx.getText());
+            return visit(ctx.dropIndexStatement());
         } else if (ctx.createDatabaseStatement() != null) {
             // TODO: Implement CREATE DATABASE
             return new PlaceholderNode("CREATE DATABASE: " + ctx.getText());
@@ -81,6 +85,30 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
         return new CreateTableStatementNode(tableName, columns, constraints, ifNotExists);
     }
     
+    @Override
+    public ASTNode visitCreateIndexStatement(SQLParser.CreateIndexStatementContext ctx) {
+        List<String> columns = new ArrayList<>();
+        for (SQLParser.ColumnNameContext col : ctx.columnName()) {
+            columns.add(col.getText());
+        }
+        return new CreateIndexStatementNode(ctx.indexName().getText(), ctx.tableName().getText(),
+                                            columns, ctx.UNIQUE() != null);
+    }
+    
+    @Override
+    public ASTNode visitDropTableStatement(SQLParser.DropTableStatementContext ctx) {
+        List<String> tableNames = new ArrayList<>();
+        for (SQLParser.TableNameContext table : ctx.tableName()) {
+            tableNames.add(table.getText());
+        }
+        return new DropTableStatementNode(tableNames, ctx.EXISTS() != null);
+    }
+    
+    @Override
+    public ASTNode visitDropIndexStatement(SQLParser.DropIndexStatementContext ctx) {
+        return new DropIndexStatementNode(ctx.indexName().getText(), ctx.tableName().getText());
+    }
+    
     private ColumnDefinitionNode visitColumnDefinitionNode(SQLParser.ColumnDefinitionContext ctx) {
         String columnName = ctx.columnName().getText();
         ColumnDefinitionNode.DataType dataType = visitDataTypeNode(ctx.dataType());
@@ -99,7 +127,7 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
         // Handle types with length parameter: VARCHAR(50), CHAR(10)
         if (ctx.VARCHAR() != null || ctx.CHAR() != null) {
             if (ctx.INTEGER_LITERAL() != null && !ctx.INTEGER_LITERAL().isEmpty()) {
-                return new ColumnDefinitionNode.DataType(typeName, 
+                return new ColumnDefinitionNode.DataType(typeName,
                     Integer.parseInt(ctx.INTEGER_LITERAL(0).getText()));
             }
             return new ColumnDefinitionNode.DataType(typeName);
@@ -161,7 +189,7 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
             String refTable = ctx.tableName().getText();
             String refColumn = ctx.columnName().getText();
             return new ColumnDefinitionNode.ColumnConstraint(
-                ColumnDefinitionNode.ColumnConstraint.ConstraintType.FOREIGN_KEY, 
+                ColumnDefinitionNode.ColumnConstraint.ConstraintType.FOREIGN_KEY,
                 refTable + "(" + refColumn + ")");
         }
         return null;
@@ -209,6 +237,35 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
         return null;
     }
     
+    @Override
+    public ASTNode visitTransactionStatement(SQLParser.TransactionStatementContext ctx) {
+        if (ctx.savepointName() != null) {
+            // TODO: Implement savepoints
+            return new PlaceholderNode("SAVEPOINT: " + ctx.getText());
+        } else if (ctx.BEGIN() != null || ctx.START() != null) {
+            return new BeginTransactionNode();
+        } else if (ctx.COMMIT() != null) {
+            return new CommitNode();
+        }
+        return new RollbackNode();
+    }
+    
+    @Override
+    public ASTNode visitPreparedStatement(SQLParser.PreparedStatementContext ctx) {
+        String name = ctx.statementName().getText();
+        if (ctx.PREPARE() != null && ctx.FROM() != null) {
+            String text = ctx.STRING_LITERAL() != null ? ctx.STRING_LITERAL().getText() : ctx.DOUBLE_QUOTED_STRING().getText();
+            return SQLCompiler.prepare(name, unquote(text));
+        } else if (ctx.EXECUTE() != null) {
+            List<ASTNode> arguments = new ArrayList<>();
+            for (SQLParser.ExpressionContext expression : ctx.expression()) {
+                arguments.add(visit(expression));
+            }
+            return new ExecuteStatementNode(name, arguments);
+        }
+        return new DeallocatePrepareNode(name);
+    }
+    
     @Override
     public ASTNode visitUtilityStatement(SQLParser.UtilityStatementContext ctx) {
         // For now, return a placeholder node for utility statements
@@ -233,10 +290,14 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
         }
         
         List<SelectStatementNode.TableSource> tables = new ArrayList<>();
-        if (ctx.tableSource() != null && ctx.tableSource().tableName() != null) {
-            String tableName = ctx.tableSource().tableName().getText();
-            String alias = ctx.tableSource().tableAlias() != null ? ctx.tableSource().tableAlias().getText() : null;
-            tables.add(new SelectStatementNode.TableSource(tableName, alias));
+        tables.add(visitTableSourceNode(ctx.tableSource()));
+        
+        List<SelectStatementNode.JoinClause> joins = new ArrayList<>();
+        SelectStatementNode.TableSource previous = tables.get(0);
+        for (SQLParser.JoinClauseContext joinCtx : ctx.joinClause()) {
+            SelectStatementNode.JoinClause join = visitJoinClauseNode(joinCtx, previous);
+            joins.add(join);
+            previous = join.getTableSource();
         }
         
         ASTNode whereClause = ctx.whereExpression != null ? visit(ctx.whereExpression) : null;
@@ -262,10 +323,52 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
         Integer limit = ctx.limitCount != null ? Integer.parseInt(ctx.limitCount.getText()) : null;
         Integer offset = ctx.offsetCount != null ? Integer.parseInt(ctx.offsetCount.getText()) : null;
         
-        return new SelectStatementNode(distinct, elements, tables, new ArrayList<>(), 
+        return new SelectStatementNode(distinct, elements, tables, joins,
                                       whereClause, groupBy, havingClause, orderBy, limit, offset);
     }
     
+    private SelectStatementNode.TableSource visitTableSourceNode(SQLParser.TableSourceContext ctx) {
+        String alias = ctx.tableAlias() != null ? ctx.tableAlias().getText() : null;
+        if (ctx.selectStatement() != null) {
+            return new SelectStatementNode.TableSource((SelectStatementNode) visit(ctx.selectStatement()), alias);
+        }
+        return new SelectStatementNode.TableSource(ctx.tableName().getText(), alias);
+    }
+    
+    private SelectStatementNode.JoinClause visitJoinClauseNode(SQLParser.JoinClauseContext ctx,
+                                                               SelectStatementNode.TableSource previous) {
+        SelectStatementNode.JoinClause.JoinType joinType = SelectStatementNode.JoinClause.JoinType.INNER;
+        if (ctx.joinType() != null) {
+            joinType = SelectStatementNode.JoinClause.JoinType.valueOf(
+                ctx.joinType().getChild(0).getText().toUpperCase());
+        } else if (ctx.CROSS() != null) {
+            joinType = SelectStatementNode.JoinClause.JoinType.CROSS;
+        } else if (ctx.NATURAL() != null) {
+            // The planner joins on the columns both sides have
+            joinType = SelectStatementNode.JoinClause.JoinType.NATURAL;
+        }
+        SelectStatementNode.TableSource tableSource = visitTableSourceNode(ctx.tableSource());
+        ASTNode condition = null;
+        if (ctx.expression() != null) {
+            condition = visit(ctx.expression());
+        } else if (ctx.USING() != null) {
+            // USING (a, b) is previous.a = joined.a AND previous.b = joined.b
+            String left = qualifierOf(previous);
+            String right = qualifierOf(tableSource);
+            for (SQLParser.ColumnNameContext col : ctx.columnName()) {
+                ASTNode equal = new BinaryOperationNode(new ColumnReferenceNode(left, col.getText()),
+                    BinaryOperationNode.Operator.EQUAL, new ColumnReferenceNode(right, col.getText()));
+                condition = condition == null ? equal
+                    : new BinaryOperationNode(condition, BinaryOperationNode.Operator.AND, equal);
+            }
+        }
+        return new SelectStatementNode.JoinClause(joinType, tableSource, condition);
+    }
+    
+    private static String qualifierOf(SelectStatementNode.TableSource tableSource) {
+        return tableSource.getAlias() != null ? tableSource.getAlias() : tableSource.getTableName();
+    }
+    
     @Override
     public ASTNode visitInsertStatement(SQLParser.InsertStatementContext ctx) {
         String tableName = ctx.tableName().getText();
@@ -307,15 +410,42 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
         return new DeleteStatementNode(tableName, whereClause);
     }
     
+    @Override
+    public ASTNode visitLoadDataStatement(SQLParser.LoadDataStatementContext ctx) {
+        String fieldTerminator = LoadDataStatementNode.DEFAULT_FIELD_TERMINATOR;
+        String enclosedBy = "";
+        String escapedBy = LoadDataStatementNode.DEFAULT_ESCAPE;
+        for (SQLParser.FieldsOptionContext option : ctx.fieldsOption()) {
+            String value = unquote(option.STRING_LITERAL().getText());
+            if (option.TERMINATED() != null) {
+                fieldTerminator = value;
+            } else if (option.ENCLOSED() != null) {
+                enclosedBy = value;
+            } else {
+                escapedBy = value;
+            }
+        }
+        String lineTerminator = ctx.lineTerminator != null ? unquote(ctx.lineTerminator.getText())
+                : LoadDataStatementNode.DEFAULT_LINE_TERMINATOR;
+        List<String> columns = new ArrayList<>();
+        for (SQLParser.ColumnNameContext column : ctx.columnName()) {
+            columns.add(column.getText());
+        }
+        return new LoadDataStatementNode(unquote(ctx.fileName.getText()), ctx.tableName().getText(), columns,
+                fieldTerminator, enclosedBy, escapedBy, lineTerminator,
+                ctx.ignoreLines != null ? Integer.parseInt(ctx.ignoreLines.getText()) : 0);
+    }
+    
     @Override
     public ASTNode visitLiteral(SQLParser.LiteralContext ctx) {
         if (ctx.INTEGER_LITERAL() != null) {
-            return new LiteralNode(Integer.parseInt(ctx.INTEGER_LITERAL().getText()), LiteralNode.LiteralType.INTEGER);
+            return new LiteralNode(literalValue(ctx.INTEGER_LITERAL().getSymbol()), LiteralNode.LiteralType.INTEGER);
         } else if (ctx.DECIMAL_LITERAL() != null) {
-            return new LiteralNode(Double.parseDouble(ctx.DECIMAL_LITERAL().getText()), LiteralNode.LiteralType.DECIMAL);
+            return new LiteralNode(literalValue(ctx.DECIMAL_LITERAL().getSymbol()), LiteralNode.LiteralType.DECIMAL);
         } else if (ctx.STRING_LITERAL() != null) {
-            String text = ctx.STRING_LITERAL().getText();
-            return new LiteralNode(text.substring(1, text.length() - 1), LiteralNode.LiteralType.STRING);
+            return new LiteralNode(literalValue(ctx.STRING_LITERAL().getSymbol()), LiteralNode.LiteralType.STRING);
+        } else if (ctx.DOUBLE_QUOTED_STRING() != null) {
+            return new LiteralNode(literalValue(ctx.DOUBLE_QUOTED_STRING().getSymbol()), LiteralNode.LiteralType.STRING);
         } else if (ctx.TRUE() != null) {
             return new LiteralNode(true, LiteralNode.LiteralType.BOOLEAN);
         } else if (ctx.FALSE() != null) {
@@ -326,6 +456,64 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
         return null;
     }
     
+    /**
+     * Value of a number or string literal token
+     */
+    static Object literalValue(org.antlr.v4.runtime.Token token) {
+        return literalValue(token.getType(), token.getText());
+    }
+    
+    /**
+     * Value of a number or string literal of the given token type
+     */
+    static Object literalValue(int type, String text) {
+        switch (type) {
+            case SQLLexer.INTEGER_LITERAL:
+                try {
+                    return Integer.parseInt(text);
+                } catch (NumberFormatException e) {
+                    return text.length() < 19 || text.compareTo("9223372036854775807") <= 0 && text.length() == 19
+                        ? (Object) Long.parseLong(text) : new java.math.BigDecimal(text);
+                }
+            case SQLLexer.DECIMAL_LITERAL:
+                return new java.math.BigDecimal(text);
+            default:
+                return unquote(text);
+        }
+    }
+    
+    /**
+     * Strip the quotes of a string literal and resolve doubled quotes and backslash escapes
+     */
+    private static String unquote(String text) {
+        char quote = text.charAt(0);
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 1; i < text.length() - 1; i++) {
+            char c = text.charAt(i);
+            if (c == quote) {
+                i++;
+            } else if (c == '\\') {
+                c = text.charAt(++i);
+                switch (c) {
+                    case 'n': c = '\n'; break;
+                    case 't': c = '\t'; break;
+                    case 'r': c = '\r'; break;
+                    case '0': c = '\0'; break;
+                    default: break;
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+    
+    @Override
+    public ASTNode visitParameterExpression(SQLParser.ParameterExpressionContext ctx) {
+        ParameterNode parameter = new ParameterNode(parameters.size());
+        parameters.add(parameter);
+        return parameter;
+    }
+    
     @Override
     public ASTNode visitColumnReference(SQLParser.ColumnReferenceContext ctx) {
         String tableName = ctx.tableName() != null ? ctx.tableName().getText() : null;
@@ -373,11 +561,81 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
         return new BinaryOperationNode(visit(ctx.expression(0)), BinaryOperationNode.Operator.DIVIDE, visit(ctx.expression(1)));
     }
     
+    @Override
+    public ASTNode visitModuloExpression(SQLParser.ModuloExpressionContext ctx) {
+        return new BinaryOperationNode(visit(ctx.expression(0)), BinaryOperationNode.Operator.MODULO, visit(ctx.expression(1)));
+    }
+    
     @Override
     public ASTNode visitComparisonExpression(SQLParser.ComparisonExpressionContext ctx) {
         return new BinaryOperationNode(visit(ctx.expression(0)), parseOperator(ctx.comparisonOperator().getText()), visit(ctx.expression(1)));
     }
     
+    @Override
+    public ASTNode visitBetweenExpression(SQLParser.BetweenExpressionContext ctx) {
+        // a BETWEEN x AND y is a >= x AND a <= y
+        ASTNode value = visit(ctx.expression(0));
+        ASTNode between = new BinaryOperationNode(
+            new BinaryOperationNode(value, BinaryOperationNode.Operator.GREATER_EQUAL, visit(ctx.expression(1))),
+            BinaryOperationNode.Operator.AND,
+            new BinaryOperationNode(value, BinaryOperationNode.Operator.LESS_EQUAL, visit(ctx.expression(2))));
+        return ctx.NOT() != null ? new UnaryOperationNode(UnaryOperationNode.Operator.NOT, between) : between;
+    }
+    
+    @Override
+    public ASTNode visitInExpression(SQLParser.InExpressionContext ctx) {
+        ASTNode value = visit(ctx.expression(0));
+        ASTNode in;
+        if (ctx.selectStatement() != null) {
+            in = new BinaryOperationNode(value, BinaryOperationNode.Operator.IN,
+                new SubqueryNode((SelectStatementNode) visit(ctx.selectStatement())));
+        } else {
+            // a IN (x, y) is a = x OR a = y
+            in = null;
+            for (int i = 1; i < ctx.expression().size(); i++) {
+                ASTNode equal = new BinaryOperationNode(value, BinaryOperationNode.Operator.EQUAL, visit(ctx.expression(i)));
+                in = in == null ? equal : new BinaryOperationNode(in, BinaryOperationNode.Operator.OR, equal);
+            }
+        }
+        return ctx.NOT() != null ? new UnaryOperationNode(UnaryOperationNode.Operator.NOT, in) : in;
+    }
+    
+    @Override
+    public ASTNode visitLikeExpression(SQLParser.LikeExpressionContext ctx) {
+        ASTNode like = new BinaryOperationNode(visit(ctx.expression(0)), BinaryOperationNode.Operator.LIKE, visit(ctx.expression(1)));
+        return ctx.NOT() != null ? new UnaryOperationNode(UnaryOperationNode.Operator.NOT, like) : like;
+    }
+    
+    @Override
+    public ASTNode visitCaseExpression(SQLParser.CaseExpressionContext ctx) {
+        List<SQLParser.ExpressionContext> expressions = ctx.expression();
+        int whenCount = ctx.WHEN().size();
+        boolean hasElse = ctx.ELSE() != null;
+        int next = 0;
+        ASTNode caseValue = null;
+        if (expressions.size() - 2 * whenCount - (hasElse ? 1 : 0) == 1) {
+            caseValue = visit(expressions.get(next++));
+        }
+        List<CaseExpressionNode.WhenClause> whenClauses = new ArrayList<>();
+        for (int i = 0; i < whenCount; i++) {
+            ASTNode condition = visit(expressions.get(next++));
+            whenClauses.add(new CaseExpressionNode.WhenClause(condition, visit(expressions.get(next++))));
+        }
+        ASTNode elseValue = hasElse ? visit(expressions.get(next)) : null;
+        return new CaseExpressionNode(caseValue, whenClauses, elseValue);
+    }
+    
+    @Override
+    public ASTNode visitExistsExpression(SQLParser.ExistsExpressionContext ctx) {
+        return new FunctionCallNode("EXISTS",
+            Collections.singletonList(new SubqueryNode((SelectStatementNode) visit(ctx.selectStatement()))));
+    }
+    
+    @Override
+    public ASTNode visitSubqueryExpression(SQLParser.SubqueryExpressionContext ctx) {
+        return new SubqueryNode((SelectStatementNode) visit(ctx.selectStatement()));
+    }
+    
     @Override
     public ASTNode visitAndExpression(SQLParser.AndExpressionContext ctx) {
         return new BinaryOperationNode(visit(ctx.expression(0)), BinaryOperationNode.Operator.AND, visit(ctx.expression(1)));
@@ -410,7 +668,7 @@ public class SQLASTBuilder extends SQLParserBaseVisitor<ASTNode> {
                 arguments.add(visit(exprCtx));
             }
         }
-        return new FunctionCallNode(functionName, arguments);
+        return new FunctionCallNode(functionName, arguments, ctx.DISTINCT() != null);
     }
     
     @Override
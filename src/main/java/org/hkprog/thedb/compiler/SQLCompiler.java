@@ -2,12 +2,33 @@ package org.hkprog.thedb.compiler;
 
 import org.hkprog.thedb.ast.*;
 import org.hkprog.thedb.antlr.*;
+import org.hkprog.thedb.executor.QueryExecutor;
+import org.hkprog.thedb.executor.ResultPrinter;
+import org.hkprog.thedb.planner.QueryPlanner;
+import org.hkprog.thedb.storage.StorageEngine;
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
 
 /**
  * SQL Compiler - parses SQL and creates AST
+ *
+ * Single-row style INSERTs and point SELECTs are read by a hand-written
+ * parser; everything else goes through the ANTLR parser.
  */
 public class SQLCompiler {
 
@@ -15,30 +36,124 @@ public class SQLCompiler {
 	 * Parse SQL and create AST
 	 */
 	public static ASTNode parse(String sql) throws IOException {
-		CharStream input = CharStreams.fromString(sql);
-
-		// Lexer - tokenize
-		SQLLexer lexer = new SQLLexer(input);
-		CommonTokenStream tokens = new CommonTokenStream(lexer);
-
-		// Parser - parse
-		SQLParser parser = new SQLParser(tokens);
-
-		// Error handling
-		parser.removeErrorListeners();
-		parser.addErrorListener(new BaseErrorListener() {
-			@Override
-			public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
-					int line, int charPositionInLine, String msg, RecognitionException e) {
-				throw new RuntimeException("Syntax error at line " + line + ":" + charPositionInLine + " - " + msg);
+		List<ParameterNode> parameters = new ArrayList<>();
+		ASTNode ast = SimpleStatementParser.parse(sql, parameters);
+		if (ast == null) {
+			SQLASTBuilder astBuilder = new SQLASTBuilder();
+			ast = astBuilder.visit(parseTree(sql));
+			parameters = astBuilder.getParameters();
+		}
+		if (!parameters.isEmpty()) {
+			throw new RuntimeException("Parameter markers (?) are only allowed in prepared statements");
+		}
+		return ast;
+	}
+
+	/**
+	 * Parse one statement with ? parameter markers, to be planned once and
+	 * executed with different values
+	 */
+	public static PrepareStatementNode prepare(String name, String sql) {
+		List<ParameterNode> parameters = new ArrayList<>();
+		ASTNode ast = SimpleStatementParser.parse(sql, parameters);
+		if (ast == null) {
+			SQLASTBuilder astBuilder = new SQLASTBuilder();
+			ast = astBuilder.visit(parseTree(sql));
+			parameters = astBuilder.getParameters();
+		}
+		if (ast == null || ast instanceof StatementListNode) {
+			throw new RuntimeException("A prepared statement must be a single statement");
+		}
+		if (ast instanceof PrepareStatementNode || ast instanceof ExecuteStatementNode
+				|| ast instanceof DeallocatePrepareNode) {
+			throw new RuntimeException("This command is not supported in the prepared statement protocol yet");
+		}
+		return new PrepareStatementNode(name, ast, parameters);
+	}
+
+	// Idle lexer/parser pairs; the ATN simulators' DFA caches are static and shared by all of them
+	private static final int MAX_IDLE_PARSERS = 64;
+	private static final ArrayDeque<PooledParser> idleParsers = new ArrayDeque<>();
+
+	private static final BaseErrorListener THROWING_LISTENER = new BaseErrorListener() {
+		@Override
+		public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
+				int line, int charPositionInLine, String msg, RecognitionException e) {
+			throw new RuntimeException("Syntax error at line " + line + ":" + charPositionInLine + " - " + msg);
+		}
+	};
+
+	/**
+	 * A lexer and parser kept for reuse; ANTLR recognizers are not thread-safe,
+	 * so each is used by one thread at a time
+	 */
+	private static final class PooledParser {
+		final SQLLexer lexer = new SQLLexer(null);
+		final CommonTokenStream tokens = new CommonTokenStream(lexer);
+		final SQLParser parser = new SQLParser(tokens);
+	}
+
+	/**
+	 * Parse SQL into its parse tree. The parser first runs with SLL prediction,
+	 * which is much cheaper and enough for nearly all input; only if that fails
+	 * is the text parsed again with full LL prediction, which also reports the
+	 * syntax error if there really is one.
+	 */
+	static SQLParser.SqlStatementsContext parseTree(String sql) {
+		PooledParser p;
+		synchronized (idleParsers) {
+			p = idleParsers.poll();
+		}
+		if (p == null) {
+			p = new PooledParser();
+		}
+		try {
+			p.lexer.setInputStream(CharStreams.fromString(sql));
+			p.tokens.setTokenSource(p.lexer);
+			p.parser.setTokenStream(p.tokens);
+
+			// Stage 1 - SLL prediction, giving up at the first error
+			p.parser.removeErrorListeners();
+			p.parser.setErrorHandler(new BailErrorStrategy());
+			p.parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+			try {
+				return p.parser.sqlStatements();
+			} catch (ParseCancellationException e) {
+				// Fall through to full LL
 			}
-		});
 
-		SQLParser.SqlStatementsContext tree = parser.sqlStatements();
+			// Stage 2 - full LL prediction with error reporting
+			p.tokens.seek(0);
+			p.parser.reset();
+			p.parser.addErrorListener(THROWING_LISTENER);
+			p.parser.setErrorHandler(new DefaultErrorStrategy());
+			p.parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+			return p.parser.sqlStatements();
+		} finally {
+			// Drop the references to this text before pooling
+			p.lexer.setInputStream(CharStreams.fromString(""));
+			p.tokens.setTokenSource(p.lexer);
+			p.parser.setTokenStream(p.tokens);
+			synchronized (idleParsers) {
+				if (idleParsers.size() < MAX_IDLE_PARSERS) {
+					idleParsers.push(p);
+				}
+			}
+		}
+	}
 
-		// Build AST
-		SQLASTBuilder astBuilder = new SQLASTBuilder();
-		return astBuilder.visit(tree);
+	/**
+	 * Parse SQL into its statements, in order
+	 */
+	public static List<ASTNode> parseStatements(String sql) throws IOException {
+		ASTNode ast = parse(sql);
+		if (ast == null) {
+			return Collections.emptyList();
+		}
+		if (ast instanceof StatementListNode) {
+			return new ArrayList<>(((StatementListNode) ast).getStatements());
+		}
+		return Collections.singletonList(ast);
 	}
 
 	/**
@@ -46,13 +161,8 @@ public class SQLCompiler {
 	 */
 	public static void parseAndPrintTree(String sql) {
 		try {
-			CharStream input = CharStreams.fromString(sql);
-			SQLLexer lexer = new SQLLexer(input);
-			CommonTokenStream tokens = new CommonTokenStream(lexer);
-			SQLParser parser = new SQLParser(tokens);
-
 			// Parse
-			SQLParser.SqlStatementsContext tree = parser.sqlStatements();
+			SQLParser.SqlStatementsContext tree = parseTree(sql);
 
 			// Print parse tree
 			// System.out.println("=== PARSE TREE ===");
@@ -71,12 +181,121 @@ public class SQLCompiler {
 		}
 	}
 
+	// Statements run in one transaction between periodic commits when executing a script
+	public static final int DEFAULT_COMMIT_EVERY = 1000;
+
+	private static final long PROGRESS_INTERVAL_NANOS = 10_000_000_000L;
+
 	/**
-	 * Execute a SQL script
+	 * Execute a SQL script against a storage engine, printing the result of each
+	 * statement. Each change commits on its own; stops at the first failing
+	 * statement.
 	 */
-	public static void executeScript(String sql) {
-		parseAndPrintTree(sql);
-		System.out.println("\n[Execution not yet implemented - storage engine required]");
+	public static void executeScript(String sql, StorageEngine storageEngine) throws IOException {
+		try (ScriptReader script = new ScriptReader(new StringReader(sql))) {
+			executeScript(script, storageEngine, 1, () -> -1, -1);
+		}
+	}
+
+	/**
+	 * Execute a SQL script file, reading, parsing and running one statement at
+	 * a time so that scripts of any size start at once and need little memory.
+	 *
+	 * INSERT, UPDATE and DELETE statements outside the script's own
+	 * transactions are committed together every {@code commitEvery} statements
+	 * (1 commits each one). Other statements commit such a batch first. If a
+	 * statement fails, only its own changes are undone: the statements of the
+	 * batch before it are committed and the script stops. Progress is reported on standard error every ten
+	 * seconds.
+	 */
+	public static void executeScript(Path file, StorageEngine storageEngine, int commitEvery) throws IOException {
+		try (SeekableByteChannel channel = Files.newByteChannel(file);
+				ScriptReader script = new ScriptReader(Channels.newReader(channel, StandardCharsets.UTF_8))) {
+			long size = channel.size();
+			executeScript(script, storageEngine, commitEvery, () -> {
+				try {
+					return channel.position();
+				} catch (IOException e) {
+					return -1;
+				}
+			}, size);
+		}
+	}
+
+	private static void executeScript(ScriptReader script, StorageEngine storageEngine, int commitEvery,
+			LongSupplier bytesRead, long size) throws IOException {
+		QueryPlanner planner = new QueryPlanner(storageEngine);
+		PrintWriter out = new PrintWriter(System.out);
+		long started = System.nanoTime();
+		long lastProgress = started;
+		long executed = 0;
+		int batched = 0;
+		int batchLine = 0;
+		boolean batchOpen = false;
+		try (QueryExecutor executor = new QueryExecutor(storageEngine)) {
+			String sql;
+			while ((sql = script.next()) != null) {
+				int line = script.getLine();
+				try {
+					for (ASTNode statement : parseStatements(sql)) {
+						boolean change = statement instanceof InsertStatementNode
+								|| statement instanceof UpdateStatementNode || statement instanceof DeleteStatementNode;
+						if (batchOpen && !change && !(statement instanceof SelectStatementNode)) {
+							executor.execute(new QueryExecutor.ExecutionPlan(new CommitNode())).close();
+							batchOpen = false;
+						}
+						if (change && commitEvery > 1 && !batchOpen && !executor.isInTransaction()) {
+							executor.execute(new QueryExecutor.ExecutionPlan(new BeginTransactionNode())).close();
+							batchOpen = true;
+							batched = 0;
+							batchLine = line;
+						}
+						long start = System.nanoTime();
+						try (QueryExecutor.ResultSet result = executor.execute(planner.createPlan(statement))) {
+							ResultPrinter.print(result, out, start);
+						} finally {
+							out.flush();
+						}
+						executed++;
+						if (batchOpen && ++batched >= commitEvery) {
+							executor.execute(new QueryExecutor.ExecutionPlan(new CommitNode())).close();
+							batchOpen = false;
+						}
+					}
+				} catch (RuntimeException e) {
+					if (batchOpen) {
+						// The failed statement undid its own changes; the ones reported before it are kept
+						executor.execute(new QueryExecutor.ExecutionPlan(new CommitNode())).close();
+						if (batched > 0) {
+							System.err.println("Committed the statements from line " + batchLine + " before the failed one");
+						}
+					}
+					throw new RuntimeException("Line " + line + ": " + e.getMessage(), e);
+				}
+				long now = System.nanoTime();
+				if (now - lastProgress >= PROGRESS_INTERVAL_NANOS) {
+					lastProgress = now;
+					System.err.println(progress(executed, bytesRead.getAsLong(), size, now - started));
+				}
+			}
+			if (batchOpen) {
+				executor.execute(new QueryExecutor.ExecutionPlan(new CommitNode())).close();
+			}
+		}
+		if (System.nanoTime() - started >= PROGRESS_INTERVAL_NANOS) {
+			System.err.println(progress(executed, bytesRead.getAsLong(), size, System.nanoTime() - started));
+		}
+	}
+
+	private static String progress(long executed, long bytesRead, long size, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		StringBuilder progress = new StringBuilder(String.format("Executed %,d statements in %.0f s (%,.0f/s)",
+				executed, seconds, executed / seconds));
+		if (bytesRead >= 0 && size > 0) {
+			progress.append(String.format(", read %,d of %,d MB (%d%%)", bytesRead >> 20, size >> 20,
+					Math.min(100, bytesRead * 100 / size)));
+		}
+		return progress.toString();
 	}
 
 	/**
@@ -84,7 +303,7 @@ public class SQLCompiler {
 	 */
 	public static void validateSyntax(String sql) throws IOException {
 		System.out.println("Validating SQL syntax...");
-		// parse(sql);
+		parseTree(sql);
 		System.out.println("SQL syntax validation complete");
 	}
 }
@@ -0,0 +1,120 @@
+package org.hkprog.thedb.compiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Script Reader - reads a SQL script one statement at a time
+ *
+ * The text is split at semicolons outside string literals, quoted names and
+ * comments, so a script of any size is read with a fixed-size buffer plus
+ * the text of one statement. A piece may still hold several statements if
+ * the script leaves out the semicolons between them; the parser splits
+ * those.
+ */
+public final class ScriptReader implements Closeable {
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private int line = 1;
+    private int statementLine;
+    private final StringBuilder statement = new StringBuilder();
+    
+    public ScriptReader(Reader reader) {
+        this.reader = reader;
+    }
+    
+    /**
+     * The text of the next statement, without its semicolon, or null at the
+     * end of the script. Text that is only whitespace is skipped; text that is
+     * only comments is not.
+     */
+    public String next() throws IOException {
+        statement.setLength(0);
+        statementLine = 0;
+        char quote = 0;
+        boolean lineComment = false;
+        boolean blockComment = false;
+        char previous = 0;
+        int c;
+        while ((c = read()) >= 0) {
+            char ch = (char) c;
+            if (statementLine == 0) {
+                if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n') {
+                    if (ch == '\n') {
+                        line++;
+                    }
+                    continue;
+                }
+                statementLine = line;
+            }
+            if (ch == '\n') {
+                line++;
+            }
+            if (lineComment) {
+                lineComment = ch != '\n' && ch != '\r';
+            } else if (blockComment) {
+                if (ch == '/' && previous == '*') {
+                    blockComment = false;
+                    ch = 0;
+                }
+            } else if (quote != 0) {
+                if (ch == '\\' && quote != '`') {
+                    // The escaped character can't end the literal
+                    statement.append(ch);
+                    c = read();
+                    if (c < 0) {
+                        break;
+                    }
+                    ch = (char) c;
+                    if (ch == '\n') {
+                        line++;
+                    }
+                } else if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == ';') {
+                return statement.toString();
+            } else if (ch == '\'' || ch == '"' || ch == '`') {
+                quote = ch;
+            } else if (ch == '#' || ch == '-' && previous == '-') {
+                lineComment = true;
+            } else if (ch == '*' && previous == '/') {
+                blockComment = true;
+                ch = 0;
+            }
+            statement.append((char) c);
+            previous = ch;
+        }
+        return statementLine != 0 ? statement.toString() : null;
+    }
+    
+    /**
+     * Line of the script, from 1, that the last statement returned by {@link #next} starts on
+     */
+    public int getLine() {
+        return statementLine;
+    }
+    
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+    
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,308 @@
+package org.hkprog.thedb.compiler;
+
+import org.hkprog.thedb.ast.*;
+import org.hkprog.thedb.antlr.SQLLexer;
+import org.antlr.v4.runtime.Vocabulary;
+
+import java.util.*;
+
+/**
+ * Simple Statement Parser - a hand-written parser for the two most frequent
+ * statement shapes, used before the ANTLR parser
+ *
+ * Recognizes only
+ * <pre>
+ * INSERT INTO t [(c1, c2, ...)] VALUES (v1, v2, ...) [, (...)]
+ * SELECT * | c1, c2, ... FROM t WHERE c = v
+ * </pre>
+ * where names are plain identifiers and values are literals or ? markers,
+ * and builds the same AST as {@link SQLASTBuilder}. Anything else, including
+ * comments, quoted names and keywords used as names, makes it give up so the
+ * text goes to the general parser, which also reports syntax errors.
+ */
+final class SimpleStatementParser {
+    
+    // Words the lexer reads as keywords rather than identifiers
+    private static final Set<String> KEYWORDS = keywords();
+    
+    private final String sql;
+    private final List<ParameterNode> parameters;
+    private int pos;
+    
+    private SimpleStatementParser(String sql, List<ParameterNode> parameters) {
+        this.sql = sql;
+        this.parameters = parameters;
+    }
+    
+    /**
+     * Parse text made only of simple statements, adding its ? markers to the
+     * list, or return null if it has anything else
+     */
+    static ASTNode parse(String sql, List<ParameterNode> parameters) {
+        SimpleStatementParser parser = new SimpleStatementParser(sql, parameters);
+        List<ASTNode> statements = new ArrayList<>();
+        parser.skipSpace();
+        while (parser.pos < sql.length()) {
+            ASTNode statement = parser.statement();
+            if (statement == null) {
+                return null;
+            }
+            statements.add(statement);
+            parser.skipSpace();
+            if (parser.accept(';')) {
+                parser.skipSpace();
+            }
+        }
+        if (statements.isEmpty()) {
+            return null;
+        }
+        return statements.size() == 1 ? statements.get(0) : new StatementListNode(statements);
+    }
+    
+    private ASTNode statement() {
+        String keyword = word();
+        if ("INSERT".equalsIgnoreCase(keyword)) {
+            return insert();
+        } else if ("SELECT".equalsIgnoreCase(keyword)) {
+            return select();
+        }
+        return null;
+    }
+    
+    private ASTNode insert() {
+        if (!keyword("INTO")) {
+            return null;
+        }
+        String tableName = identifier();
+        if (tableName == null) {
+            return null;
+        }
+        List<String> columns = new ArrayList<>();
+        skipSpace();
+        if (accept('(')) {
+            do {
+                String column = identifier();
+                if (column == null) {
+                    return null;
+                }
+                columns.add(column);
+                skipSpace();
+            } while (accept(','));
+            if (!accept(')')) {
+                return null;
+            }
+        }
+        if (!keyword("VALUES")) {
+            return null;
+        }
+        List<List<ASTNode>> valuesList = new ArrayList<>();
+        do {
+            skipSpace();
+            if (!accept('(')) {
+                return null;
+            }
+            List<ASTNode> values = new ArrayList<>();
+            do {
+                ASTNode value = value();
+                if (value == null) {
+                    return null;
+                }
+                values.add(value);
+                skipSpace();
+            } while (accept(','));
+            if (!accept(')')) {
+                return null;
+            }
+            valuesList.add(values);
+            skipSpace();
+        } while (accept(','));
+        return new InsertStatementNode(tableName, columns, valuesList);
+    }
+    
+    private ASTNode select() {
+        List<SelectStatementNode.SelectElement> elements = new ArrayList<>();
+        skipSpace();
+        if (accept('*')) {
+            elements.add(new SelectStatementNode.SelectElement(new ColumnReferenceNode(null, "*"), null));
+        } else {
+            do {
+                String column = identifier();
+                if (column == null) {
+                    return null;
+                }
+                elements.add(new SelectStatementNode.SelectElement(new ColumnReferenceNode(null, column), null));
+                skipSpace();
+            } while (accept(','));
+        }
+        if (!keyword("FROM")) {
+            return null;
+        }
+        String tableName = identifier();
+        if (tableName == null || !keyword("WHERE")) {
+            return null;
+        }
+        String column = identifier();
+        skipSpace();
+        if (column == null || !accept('=')) {
+            return null;
+        }
+        ASTNode value = value();
+        if (value == null) {
+            return null;
+        }
+        ASTNode where = new BinaryOperationNode(new ColumnReferenceNode(null, column),
+                BinaryOperationNode.Operator.EQUAL, value);
+        return new SelectStatementNode(false, elements,
+                Collections.singletonList(new SelectStatementNode.TableSource(tableName, null)),
+                new ArrayList<>(), where, new ArrayList<>(), null, new ArrayList<>(), null, null);
+    }
+    
+    /**
+     * A literal or ? marker, or null
+     */
+    private ASTNode value() {
+        skipSpace();
+        if (pos >= sql.length()) {
+            return null;
+        }
+        char c = sql.charAt(pos);
+        if (c == '?') {
+            pos++;
+            ParameterNode parameter = new ParameterNode(parameters.size());
+            parameters.add(parameter);
+            return parameter;
+        } else if (c >= '0' && c <= '9') {
+            return number();
+        } else if (c == '\'' || c == '"') {
+            return string(c);
+        }
+        String word = word();
+        if ("NULL".equalsIgnoreCase(word)) {
+            return new LiteralNode(null, LiteralNode.LiteralType.NULL);
+        } else if ("TRUE".equalsIgnoreCase(word)) {
+            return new LiteralNode(true, LiteralNode.LiteralType.BOOLEAN);
+        } else if ("FALSE".equalsIgnoreCase(word)) {
+            return new LiteralNode(false, LiteralNode.LiteralType.BOOLEAN);
+        }
+        return null;
+    }
+    
+    private ASTNode number() {
+        int start = pos;
+        skipDigits();
+        int type = SQLLexer.INTEGER_LITERAL;
+        if (pos + 1 < sql.length() && sql.charAt(pos) == '.' && isDigit(sql.charAt(pos + 1))) {
+            pos++;
+            skipDigits();
+            type = SQLLexer.DECIMAL_LITERAL;
+        }
+        // 1abc, 1.x and the like are not one number token
+        if (pos < sql.length() && (isWordChar(sql.charAt(pos)) || sql.charAt(pos) == '.')) {
+            return null;
+        }
+        String text = sql.substring(start, pos);
+        return type == SQLLexer.INTEGER_LITERAL
+                ? new LiteralNode(SQLASTBuilder.literalValue(type, text), LiteralNode.LiteralType.INTEGER)
+                : new LiteralNode(SQLASTBuilder.literalValue(type, text), LiteralNode.LiteralType.DECIMAL);
+    }
+    
+    private ASTNode string(char quote) {
+        int start = pos;
+        pos++;
+        while (pos < sql.length()) {
+            char c = sql.charAt(pos);
+            if (c == '\\') {
+                pos += 2;
+            } else if (c == quote) {
+                if (pos + 1 < sql.length() && sql.charAt(pos + 1) == quote) {
+                    pos += 2;
+                } else {
+                    pos++;
+                    int type = quote == '\'' ? SQLLexer.STRING_LITERAL : SQLLexer.DOUBLE_QUOTED_STRING;
+                    return new LiteralNode(SQLASTBuilder.literalValue(type, sql.substring(start, pos)),
+                            LiteralNode.LiteralType.STRING);
+                }
+            } else if (c == '\r' || c == '\n') {
+                return null;
+            } else {
+                pos++;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * A name that the lexer reads as an IDENTIFIER, or null
+     */
+    private String identifier() {
+        String word = word();
+        if (word == null || KEYWORDS.contains(word.toUpperCase(Locale.ROOT))) {
+            return null;
+        }
+        return word;
+    }
+    
+    private boolean keyword(String keyword) {
+        return keyword.equalsIgnoreCase(word());
+    }
+    
+    /**
+     * The next word, [a-zA-Z_][a-zA-Z0-9_]*, or null
+     */
+    private String word() {
+        skipSpace();
+        int start = pos;
+        if (pos < sql.length() && isWordChar(sql.charAt(pos)) && !isDigit(sql.charAt(pos))) {
+            pos++;
+            while (pos < sql.length() && isWordChar(sql.charAt(pos))) {
+                pos++;
+            }
+            return sql.substring(start, pos);
+        }
+        return null;
+    }
+    
+    private boolean accept(char c) {
+        if (pos < sql.length() && sql.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+    
+    private void skipSpace() {
+        while (pos < sql.length()) {
+            char c = sql.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            pos++;
+        }
+    }
+    
+    private void skipDigits() {
+        while (pos < sql.length() && isDigit(sql.charAt(pos))) {
+            pos++;
+        }
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+    
+    private static boolean isWordChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+    
+    private static Set<String> keywords() {
+        Set<String> keywords = new HashSet<>();
+        Vocabulary vocabulary = SQLLexer.VOCABULARY;
+        for (int type = 1; type <= vocabulary.getMaxTokenType(); type++) {
+            String name = vocabulary.getSymbolicName(type);
+            if (name != null) {
+                keywords.add(name);
+            }
+        }
+        return keywords;
+    }
+}
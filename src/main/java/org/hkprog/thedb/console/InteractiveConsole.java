@@ -1,18 +1,33 @@
 package org.hkprog.thedb.console;
 
+import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.compiler.SQLCompiler;
+import org.hkprog.thedb.executor.QueryExecutor;
+import org.hkprog.thedb.executor.ResultPrinter;
+import org.hkprog.thedb.planner.QueryPlanner;
+import org.hkprog.thedb.storage.StorageEngine;
+
 import java.io.*;
 
 /**
  * Interactive SQL Console
+ *
+ * Statements may span several lines and end with a semicolon.
  */
 public class InteractiveConsole {
     
     private BufferedReader reader;
     private boolean running;
+    private final QueryPlanner planner;
+    private final QueryExecutor executor;
+    private final PrintWriter out;
     
-    public InteractiveConsole() {
+    public InteractiveConsole(StorageEngine storageEngine) {
         this.reader = new BufferedReader(new InputStreamReader(System.in));
         this.running = false;
+        this.planner = new QueryPlanner(storageEngine);
+        this.executor = new QueryExecutor(storageEngine);
+        this.out = new PrintWriter(System.out);
     }
     
     /**
@@ -20,12 +35,16 @@ public class InteractiveConsole {
      */
     public void start() throws IOException {
         running = true;
+        StringBuilder statement = new StringBuilder();
         
         while (running) {
-            System.out.print("thedb> ");
+            System.out.print(statement.length() == 0 ? "thedb> " : "    -> ");
             String line = reader.readLine();
             
-            if (line == null || line.trim().equalsIgnoreCase("exit") || line.trim().equalsIgnoreCase("quit")) {
+            if (line == null) {
+                break;
+            }
+            if (statement.length() == 0 && (line.trim().equalsIgnoreCase("exit") || line.trim().equalsIgnoreCase("quit"))) {
                 break;
             }
             
@@ -33,21 +52,35 @@ public class InteractiveConsole {
                 continue;
             }
             
+            statement.append(line).append('\n');
+            if (!line.trim().endsWith(";")) {
+                continue;
+            }
+            
             try {
-                executeCommand(line);
+                executeCommand(statement.toString());
             } catch (Exception e) {
                 System.err.println("Error: " + e.getMessage());
+            } finally {
+                statement.setLength(0);
             }
         }
         
+        executor.close();
         System.out.println("Goodbye!");
     }
     
     /**
      * Execute a SQL command
      */
-    private void executeCommand(String sql) {
-        System.out.println("Executing: " + sql);
-        System.out.println("[This is a stub - full implementation requires parser and executor]");
+    private void executeCommand(String sql) throws IOException {
+        for (ASTNode ast : SQLCompiler.parseStatements(sql)) {
+            long start = System.nanoTime();
+            try (QueryExecutor.ResultSet result = executor.execute(planner.createPlan(ast))) {
+                ResultPrinter.print(result, out, start);
+            } finally {
+                out.flush();
+            }
+        }
     }
 }
@@ -0,0 +1,535 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.ast.ColumnReferenceNode;
+import org.hkprog.thedb.ast.FunctionCallNode;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Aggregate - groups its input by the GROUP BY expressions and computes
+ * COUNT, SUM, AVG, MIN and MAX (optionally DISTINCT) for each group
+ *
+ * Groups are numbered in a hash table ({@link GroupTable}) when the operator
+ * is opened. Each output tuple holds the group values, then the aggregate
+ * results, then the first input tuple of the group, so that the select list
+ * can also refer to columns that are functionally dependent on the group.
+ * Without GROUP BY there is exactly one group, even for empty input.
+ *
+ * Each aggregate keeps its running state in arrays indexed by group number,
+ * as longs or doubles while its input is integral or floating-point, rather
+ * than in objects per group. The values a DISTINCT aggregate has already
+ * counted are kept in one table for all groups, tagged with the group number.
+ *
+ * Once the groups exceed the memory budget, the groups in memory go on
+ * accumulating, and the input tuples of any other group are written to
+ * partitions in temporary files by group key hash. Each partition is then
+ * aggregated on its own, and split again with another hash if it is still
+ * too large, up to MAX_DEPTH levels.
+ */
+public class AggregateOperator implements Operator {
+    
+    private static final int PARTITIONS = 16;
+    private static final int MAX_DEPTH = 3;
+    
+    /**
+     * Estimated bytes of hash table and accumulator overhead per group, and per aggregate of a group
+     */
+    private static final long GROUP_OVERHEAD = 48;
+    private static final long AGGREGATE_OVERHEAD = 24;
+    
+    /**
+     * Estimated bytes of hash table overhead per DISTINCT value
+     */
+    private static final long DISTINCT_OVERHEAD = 40;
+    
+    private final Operator child;
+    private final List<ASTNode> groupBy;
+    private final List<FunctionCallNode> aggregates;
+    private final List<ColumnInfo> columns;
+    private final CompiledExpression[] groupKeys;
+    private final Accumulator[] accumulators;
+    private final Path tempDirectory;
+    private final long memoryBudget;
+    private final int depth;
+    
+    private GroupTable table;
+    private List<Object[]> groupValues;
+    private List<Tuple> firstTuples;
+    private long bytes;
+    private int position;
+    private Partitions partitions;
+    
+    /**
+     * @param tempDirectory where partitions are written when the groups do not fit in memory
+     * @param memoryBudget bytes the groups may take before further groups are partitioned
+     */
+    public AggregateOperator(Operator child, List<ASTNode> groupBy, List<FunctionCallNode> aggregates,
+                             Path tempDirectory, long memoryBudget) {
+        this(child, groupBy, aggregates, tempDirectory, memoryBudget, 0);
+    }
+    
+    private AggregateOperator(Operator child, List<ASTNode> groupBy, List<FunctionCallNode> aggregates,
+                              Path tempDirectory, long memoryBudget, int depth) {
+        this.child = child;
+        this.groupBy = groupBy;
+        this.aggregates = aggregates;
+        this.columns = new ArrayList<>();
+        for (int i = 0; i < groupBy.size(); i++) {
+            columns.add(new ColumnInfo(null, "#group" + i));
+        }
+        for (int i = 0; i < aggregates.size(); i++) {
+            columns.add(new ColumnInfo(null, "#aggregate" + i));
+        }
+        columns.addAll(child.getColumns());
+        this.groupKeys = new CompiledExpression[groupBy.size()];
+        for (int i = 0; i < groupKeys.length; i++) {
+            groupKeys[i] = ExpressionCompiler.compile(groupBy.get(i), child.getColumns());
+        }
+        this.accumulators = new Accumulator[aggregates.size()];
+        for (int i = 0; i < accumulators.length; i++) {
+            accumulators[i] = new Accumulator(aggregates.get(i));
+        }
+        this.tempDirectory = tempDirectory;
+        this.memoryBudget = memoryBudget;
+        this.depth = depth;
+    }
+    
+    /**
+     * Slots of the group and aggregate values in the output, for evaluating
+     * expressions above this operator
+     */
+    public Map<String, Integer> getComputed() {
+        return computedSlots(groupBy, aggregates);
+    }
+    
+    /**
+     * Slots of the group and aggregate values in the output of an aggregation
+     * with the given GROUP BY expressions and aggregates
+     */
+    static Map<String, Integer> computedSlots(List<ASTNode> groupBy, List<FunctionCallNode> aggregates) {
+        Map<String, Integer> computed = new HashMap<>();
+        for (int i = 0; i < aggregates.size(); i++) {
+            computed.put(ExpressionEvaluator.key(aggregates.get(i)), groupBy.size() + i);
+        }
+        for (int i = 0; i < groupBy.size(); i++) {
+            computed.put(ExpressionEvaluator.key(groupBy.get(i)), i);
+        }
+        return computed;
+    }
+    
+    /**
+     * The argument of an aggregate, or null for COUNT(*)
+     */
+    static ASTNode argumentOf(FunctionCallNode call) {
+        ASTNode argument = call.getArguments().isEmpty() ? null : call.getArguments().get(0);
+        boolean star = argument instanceof ColumnReferenceNode
+                && "*".equals(((ColumnReferenceNode) argument).getColumnName());
+        return star ? null : argument;
+    }
+    
+    /**
+     * Estimated bytes of a new group with the given key values and first input row
+     */
+    static long groupSize(Object[] values, long firstRowSize, int aggregates) {
+        long size = GROUP_OVERHEAD + AGGREGATE_OVERHEAD * aggregates + 8L * values.length + firstRowSize;
+        for (Object value : values) {
+            size += Tuple.estimatedSize(value);
+        }
+        return size;
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+    
+    @Override
+    public void open() {
+        closePartitions();
+        table = new GroupTable();
+        groupValues = new ArrayList<>();
+        firstTuples = new ArrayList<>();
+        for (Accumulator accumulator : accumulators) {
+            accumulator.clear();
+        }
+        bytes = 0;
+        position = 0;
+        child.open();
+        try {
+            for (Tuple tuple = child.next(); tuple != null; tuple = child.next()) {
+                int group = groupOf(tuple);
+                if (group < 0) {
+                    continue;
+                }
+                for (Accumulator accumulator : accumulators) {
+                    accumulator.add(group, tuple);
+                }
+            }
+        } catch (RuntimeException e) {
+            closePartitions();
+            throw e;
+        } finally {
+            child.close();
+        }
+        if (groupValues.isEmpty() && groupBy.isEmpty()) {
+            addGroup(new Object[0], null);
+        }
+    }
+    
+    /**
+     * Group number of a tuple, adding its group while there is room; -1 once
+     * the tuple has been written to a partition instead
+     */
+    private int groupOf(Tuple tuple) {
+        if (groupKeys.length == 0) {
+            return groupValues.isEmpty() ? addGroup(new Object[0], tuple) : 0;
+        }
+        Object[] values = new Object[groupKeys.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = groupKeys[i].evaluate(tuple);
+        }
+        Object key = values.length == 1 ? Values.hashKey(values[0]) : Values.hashKey(values);
+        int group = table.get(key);
+        if (group >= 0) {
+            return group;
+        }
+        if (partitions != null) {
+            partitions.write(key, tuple);
+            return -1;
+        }
+        table.add(key);
+        bytes += groupSize(values, tuple.estimatedSize(), accumulators.length);
+        group = addGroup(values, tuple);
+        checkMemory();
+        return group;
+    }
+    
+    private int addGroup(Object[] values, Tuple first) {
+        groupValues.add(values);
+        firstTuples.add(first);
+        for (Accumulator accumulator : accumulators) {
+            accumulator.ensureCapacity(groupValues.size());
+        }
+        return groupValues.size() - 1;
+    }
+    
+    /**
+     * Start partitioning new groups if the groups in memory have reached the budget
+     */
+    private void checkMemory() {
+        if (partitions == null && bytes > memoryBudget && !groupBy.isEmpty() && depth < MAX_DEPTH) {
+            partitions = new Partitions(child.getColumns(), groupBy, aggregates, tempDirectory, memoryBudget, depth);
+        }
+    }
+    
+    @Override
+    public Tuple next() {
+        if (position < groupValues.size()) {
+            int group = position++;
+            Object[] keyValues = groupValues.get(group);
+            Tuple first = firstTuples.get(group);
+            // Let the first tuple be garbage collected once its group has been returned
+            firstTuples.set(group, null);
+            Object[] values = new Object[columns.size()];
+            System.arraycopy(keyValues, 0, values, 0, keyValues.length);
+            for (int i = 0; i < accumulators.length; i++) {
+                values[keyValues.length + i] = accumulators[i].result(group);
+            }
+            if (first != null) {
+                System.arraycopy(first.getValues(), 0, values, keyValues.length + accumulators.length, first.size());
+            }
+            return new Tuple(values);
+        }
+        return partitions != null ? partitions.next() : null;
+    }
+    
+    @Override
+    public void close() {
+        closePartitions();
+        table = null;
+        groupValues = null;
+        firstTuples = null;
+    }
+    
+    private void closePartitions() {
+        if (partitions != null) {
+            partitions.close();
+            partitions = null;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        StringJoiner text = new StringJoiner(", ");
+        for (FunctionCallNode aggregate : aggregates) {
+            text.add(ExpressionEvaluator.describe(aggregate));
+        }
+        StringJoiner keys = new StringJoiner(", ");
+        for (ASTNode key : groupBy) {
+            keys.add(ExpressionEvaluator.describe(key));
+        }
+        return "Aggregate(" + text + (groupBy.isEmpty() ? "" : " GROUP BY " + keys) + ") <- " + child;
+    }
+    
+    /**
+     * Input tuples of the groups that did not fit in memory, split by group key
+     * hash into temporary files and aggregated one partition at a time
+     */
+    static final class Partitions {
+        private final List<ColumnInfo> inputColumns;
+        private final List<ASTNode> groupBy;
+        private final List<FunctionCallNode> aggregates;
+        private final Path tempDirectory;
+        private final long memoryBudget;
+        private final int depth;
+        private final SpillFile[] files = new SpillFile[PARTITIONS];
+        private int partition = -1;
+        private AggregateOperator aggregate;
+        
+        /**
+         * @param depth partitioning level of the aggregation writing the tuples, 0 at the top
+         */
+        Partitions(List<ColumnInfo> inputColumns, List<ASTNode> groupBy, List<FunctionCallNode> aggregates,
+                   Path tempDirectory, long memoryBudget, int depth) {
+            this.inputColumns = inputColumns;
+            this.groupBy = groupBy;
+            this.aggregates = aggregates;
+            this.tempDirectory = tempDirectory;
+            this.memoryBudget = memoryBudget;
+            this.depth = depth;
+        }
+        
+        /**
+         * Write an input tuple to the partition of its normalized group key
+         */
+        void write(Object key, Tuple tuple) {
+            int p = SpillFile.partitionOf(key, depth, PARTITIONS);
+            if (files[p] == null) {
+                files[p] = new SpillFile(tempDirectory);
+            }
+            files[p].write(tuple);
+        }
+        
+        /**
+         * Next group of the partitions, aggregating each partition once the previous one is done
+         */
+        Tuple next() {
+            while (true) {
+                if (aggregate != null) {
+                    Tuple tuple = aggregate.next();
+                    if (tuple != null) {
+                        return tuple;
+                    }
+                    aggregate.close();
+                    aggregate = null;
+                    files[partition].close();
+                    files[partition] = null;
+                }
+                do {
+                    partition++;
+                } while (partition < PARTITIONS && files[partition] == null);
+                if (partition >= PARTITIONS) {
+                    return null;
+                }
+                aggregate = new AggregateOperator(files[partition].reader(inputColumns), groupBy, aggregates,
+                        tempDirectory, memoryBudget, depth + 1);
+                aggregate.open();
+            }
+        }
+        
+        void close() {
+            if (aggregate != null) {
+                aggregate.close();
+                aggregate = null;
+            }
+            for (int p = 0; p < files.length; p++) {
+                if (files[p] != null) {
+                    files[p].close();
+                    files[p] = null;
+                }
+            }
+        }
+    }
+    
+    private enum Mode {
+        LONG, DOUBLE, OBJECT
+    }
+    
+    /**
+     * Running state of one aggregate function for all groups
+     */
+    private final class Accumulator {
+        private final String function;
+        private final CompiledExpression argument;
+        private final boolean distinct;
+        private GroupTable seen;
+        private Mode mode;
+        private boolean intInput;
+        private long[] counts;
+        private long[] longs;
+        private double[] doubles;
+        private Object[] objects;
+        
+        Accumulator(FunctionCallNode call) {
+            this.function = call.getFunctionName().toUpperCase(Locale.ROOT);
+            ASTNode arg = argumentOf(call);
+            this.argument = arg == null ? null : ExpressionCompiler.compile(arg, child.getColumns());
+            this.distinct = call.isDistinct();
+        }
+        
+        void clear() {
+            seen = distinct ? new GroupTable() : null;
+            mode = null;
+            intInput = true;
+            counts = new long[0];
+            longs = new long[0];
+            doubles = new double[0];
+            objects = null;
+        }
+        
+        void ensureCapacity(int groups) {
+            if (groups <= counts.length) {
+                return;
+            }
+            int capacity = Math.max(groups, counts.length * 2);
+            counts = Arrays.copyOf(counts, capacity);
+            if (mode == Mode.OBJECT) {
+                objects = Arrays.copyOf(objects, capacity);
+            } else {
+                longs = Arrays.copyOf(longs, capacity);
+                doubles = Arrays.copyOf(doubles, capacity);
+            }
+        }
+        
+        void add(int g, Tuple tuple) {
+            if (argument == null) {
+                counts[g]++;
+                return;
+            }
+            Object v = argument.evaluate(tuple);
+            if (v == null) {
+                return;
+            }
+            if (seen != null) {
+                Object key = Values.hashKey(v);
+                if (seen.get(g, key) >= 0) {
+                    return;
+                }
+                seen.add(g, key);
+                bytes += DISTINCT_OVERHEAD + Tuple.estimatedSize(key);
+                checkMemory();
+            }
+            if (!function.equals("COUNT")) {
+                accumulate(g, v);
+            }
+            counts[g]++;
+        }
+        
+        private void accumulate(int g, Object v) {
+            Mode input = v instanceof Integer || v instanceof Long ? Mode.LONG
+                    : v instanceof Double ? Mode.DOUBLE : Mode.OBJECT;
+            if (mode == null) {
+                mode = input;
+                if (mode == Mode.OBJECT) {
+                    objects = new Object[counts.length];
+                }
+            } else if (mode != input && mode != Mode.OBJECT) {
+                toObjects();
+            }
+            intInput &= v instanceof Integer;
+            boolean first = counts[g] == 0;
+            switch (mode) {
+                case LONG: {
+                    long l = ((Number) v).longValue();
+                    if (first) {
+                        longs[g] = l;
+                    } else if (function.equals("MIN")) {
+                        longs[g] = Math.min(longs[g], l);
+                    } else if (function.equals("MAX")) {
+                        longs[g] = Math.max(longs[g], l);
+                    } else {
+                        try {
+                            longs[g] = Math.addExact(longs[g], l);
+                        } catch (ArithmeticException e) {
+                            throw new RuntimeException("BIGINT value is out of range in " + longs[g] + " + " + l);
+                        }
+                    }
+                    break;
+                }
+                case DOUBLE: {
+                    double d = (Double) v;
+                    if (first) {
+                        doubles[g] = d;
+                    } else if (function.equals("MIN")) {
+                        if (Double.compare(d, doubles[g]) < 0) {
+                            doubles[g] = d;
+                        }
+                    } else if (function.equals("MAX")) {
+                        if (Double.compare(d, doubles[g]) > 0) {
+                            doubles[g] = d;
+                        }
+                    } else {
+                        doubles[g] += d;
+                    }
+                    break;
+                }
+                default: {
+                    Object value = objects[g];
+                    if (first) {
+                        objects[g] = v;
+                    } else if (function.equals("MIN")) {
+                        if (Values.compare(v, value) < 0) {
+                            objects[g] = v;
+                        }
+                    } else if (function.equals("MAX")) {
+                        if (Values.compare(v, value) > 0) {
+                            objects[g] = v;
+                        }
+                    } else {
+                        objects[g] = Values.arithmetic('+', value, v);
+                    }
+                    break;
+                }
+            }
+        }
+        
+        /**
+         * Switch to keeping boxed values, when the input changes kind
+         */
+        private void toObjects() {
+            Object[] boxed = new Object[counts.length];
+            for (int g = 0; g < boxed.length; g++) {
+                boxed[g] = counts[g] == 0 ? null : value(g);
+            }
+            objects = boxed;
+            longs = null;
+            doubles = null;
+            mode = Mode.OBJECT;
+        }
+        
+        private Object value(int g) {
+            switch (mode) {
+                case LONG:
+                    boolean minMax = function.equals("MIN") || function.equals("MAX");
+                    return minMax && intInput ? (Object) (int) longs[g] : (Object) longs[g];
+                case DOUBLE:
+                    return doubles[g];
+                default:
+                    return objects[g];
+            }
+        }
+        
+        Object result(int g) {
+            if (function.equals("COUNT")) {
+                return counts[g];
+            }
+            if (counts[g] == 0) {
+                return null;
+            }
+            Object value = value(g);
+            return function.equals("AVG") ? Values.arithmetic('/', value, counts[g]) : value;
+        }
+    }
+}
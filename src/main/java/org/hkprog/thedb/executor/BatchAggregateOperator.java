@@ -0,0 +1,536 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.ast.FunctionCallNode;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Batch Aggregate - the vectorized counterpart of {@link AggregateOperator}
+ *
+ * Consumes batches and produces the same tuples as AggregateOperator: the
+ * group values, the aggregate results and the first input row of each group.
+ * Groups are numbered in order of first appearance and each aggregate keeps
+ * its running state in arrays indexed by group number, as longs or doubles
+ * while its input is integral or floating-point, so that COUNT, SUM, AVG,
+ * MIN and MAX are tight loops over each batch. A single string GROUP BY key
+ * is looked up once per dictionary entry rather than once per row.
+ *
+ * Group keys are numbered in a {@link GroupTable}. Past the memory budget,
+ * the rows of groups not yet in the table are taken out of each batch and
+ * written to partitions in temporary files by group key hash, and each
+ * partition is then aggregated by an {@link AggregateOperator}.
+ *
+ * DISTINCT aggregates are not vectorized; see {@link #isSupported}.
+ */
+public class BatchAggregateOperator implements Operator {
+    
+    private final BatchOperator child;
+    private final List<ASTNode> groupBy;
+    private final List<FunctionCallNode> aggregates;
+    private final List<ColumnInfo> columns;
+    private final VectorExpression[] keys;
+    private final Accumulator[] accumulators;
+    private final int[] groupOf = new int[RowBatch.CAPACITY];
+    private final int[] kept = new int[RowBatch.CAPACITY];
+    private final Path tempDirectory;
+    private final long memoryBudget;
+    private final List<Object[]> groupValues = new ArrayList<>();
+    private final List<Object[]> firstRows = new ArrayList<>();
+    private GroupTable table = new GroupTable();
+    private int position;
+    private long bytes;
+    private AggregateOperator.Partitions partitions;
+    
+    /**
+     * @param tempDirectory where partitions are written when the groups do not fit in memory
+     * @param memoryBudget bytes the groups may take before further groups are partitioned
+     */
+    public BatchAggregateOperator(BatchOperator child, List<ASTNode> groupBy, List<FunctionCallNode> aggregates,
+                                  Path tempDirectory, long memoryBudget) {
+        if (!isSupported(groupBy, aggregates, child.getColumns())) {
+            throw new IllegalArgumentException("Aggregation cannot be vectorized");
+        }
+        this.child = child;
+        this.groupBy = groupBy;
+        this.aggregates = aggregates;
+        this.columns = new ArrayList<>();
+        for (int i = 0; i < groupBy.size(); i++) {
+            columns.add(new ColumnInfo(null, "#group" + i));
+        }
+        for (int i = 0; i < aggregates.size(); i++) {
+            columns.add(new ColumnInfo(null, "#aggregate" + i));
+        }
+        columns.addAll(child.getColumns());
+        this.keys = new VectorExpression[groupBy.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = VectorExpression.compile(groupBy.get(i), child.getColumns());
+        }
+        this.accumulators = new Accumulator[aggregates.size()];
+        for (int i = 0; i < accumulators.length; i++) {
+            accumulators[i] = new Accumulator(aggregates.get(i), child.getColumns());
+        }
+        this.tempDirectory = tempDirectory;
+        this.memoryBudget = memoryBudget;
+    }
+    
+    /**
+     * Whether the GROUP BY expressions and the arguments of the aggregates can
+     * be vectorized and no aggregate is DISTINCT
+     */
+    public static boolean isSupported(List<ASTNode> groupBy, List<FunctionCallNode> aggregates, List<ColumnInfo> columns) {
+        for (ASTNode key : groupBy) {
+            if (!VectorExpression.isSupported(key, columns)) {
+                return false;
+            }
+        }
+        for (FunctionCallNode aggregate : aggregates) {
+            if (aggregate.isDistinct()) {
+                return false;
+            }
+            ASTNode argument = AggregateOperator.argumentOf(aggregate);
+            if (argument != null && !VectorExpression.isSupported(argument, columns)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Slots of the group and aggregate values in the output, for evaluating
+     * expressions above this operator
+     */
+    public Map<String, Integer> getComputed() {
+        return AggregateOperator.computedSlots(groupBy, aggregates);
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+    
+    @Override
+    public void open() {
+        closePartitions();
+        table = new GroupTable();
+        groupValues.clear();
+        firstRows.clear();
+        for (Accumulator accumulator : accumulators) {
+            accumulator.clear();
+        }
+        bytes = 0;
+        child.open();
+        try {
+            for (RowBatch batch = child.nextBatch(); batch != null; batch = child.nextBatch()) {
+                batch = assignGroups(batch);
+                for (Accumulator accumulator : accumulators) {
+                    accumulator.add(batch);
+                }
+            }
+        } catch (RuntimeException e) {
+            closePartitions();
+            throw e;
+        } finally {
+            child.close();
+        }
+        if (groupValues.isEmpty() && groupBy.isEmpty()) {
+            addGroup(new Object[0], null);
+        }
+        position = 0;
+    }
+    
+    /**
+     * Fill {@link #groupOf} with the group number of each selected row, and
+     * return the batch without the rows written to partitions
+     */
+    private RowBatch assignGroups(RowBatch batch) {
+        int[] sel = batch.getSelection();
+        int n = batch.size();
+        if (keys.length == 0) {
+            if (groupValues.isEmpty()) {
+                addGroup(new Object[0], firstRow(batch, sel[0]));
+            }
+            Arrays.fill(groupOf, 0, n, 0);
+            return batch;
+        }
+        ColumnVector[] vectors = new ColumnVector[keys.length];
+        for (int j = 0; j < keys.length; j++) {
+            vectors[j] = keys[j].evaluate(batch);
+        }
+        if (vectors.length == 1 && vectors[0].getKind() == ColumnVector.Kind.STRING) {
+            // Look up each distinct string of the batch once
+            ColumnVector vector = vectors[0];
+            int[] codeGroups = new int[vector.getDictionary().size()];
+            Arrays.fill(codeGroups, -1);
+            int[] codes = vector.getCodes();
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                if (vector.isNull(i)) {
+                    groupOf[k] = group(null, new Object[] {null}, batch, i);
+                    continue;
+                }
+                int group = codeGroups[codes[i]];
+                if (group < 0) {
+                    String value = vector.getDictionary().get(codes[i]);
+                    group = group(value, new Object[] {value}, batch, i);
+                    if (group >= 0) {
+                        codeGroups[codes[i]] = group;
+                    }
+                }
+                groupOf[k] = group;
+            }
+            return withoutPartitioned(batch);
+        }
+        for (int k = 0; k < n; k++) {
+            int i = sel[k];
+            if (vectors.length == 1) {
+                Object value = vectors[0].get(i);
+                groupOf[k] = group(Values.hashKey(value), new Object[] {value}, batch, i);
+            } else {
+                Object[] values = new Object[vectors.length];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = vectors[j].get(i);
+                }
+                groupOf[k] = group(Values.hashKey(values), values, batch, i);
+            }
+        }
+        return withoutPartitioned(batch);
+    }
+    
+    /**
+     * Group number of a row with the given normalized key, adding its group
+     * while there is room; -1 once the row has been written to a partition instead
+     */
+    private int group(Object key, Object[] values, RowBatch batch, int i) {
+        int group = table.get(key);
+        if (group >= 0) {
+            return group;
+        }
+        Object[] firstRow = firstRow(batch, i);
+        if (partitions != null) {
+            partitions.write(key, new Tuple(firstRow));
+            return -1;
+        }
+        table.add(key);
+        bytes += AggregateOperator.groupSize(values, new Tuple(firstRow).estimatedSize(), accumulators.length);
+        group = addGroup(values, firstRow);
+        if (bytes > memoryBudget) {
+            partitions = new AggregateOperator.Partitions(child.getColumns(), groupBy, aggregates, tempDirectory,
+                    memoryBudget, 0);
+        }
+        return group;
+    }
+    
+    /**
+     * Narrow the selection to the rows that have a group number, moving their
+     * numbers to the front of {@link #groupOf}
+     */
+    private RowBatch withoutPartitioned(RowBatch batch) {
+        if (partitions == null) {
+            return batch;
+        }
+        int[] sel = batch.getSelection();
+        int n = batch.size();
+        int size = 0;
+        for (int k = 0; k < n; k++) {
+            if (groupOf[k] >= 0) {
+                groupOf[size] = groupOf[k];
+                kept[size++] = sel[k];
+            }
+        }
+        if (size == n) {
+            return batch;
+        }
+        // The narrowed batch is only used before the next one is assigned, so the array can be reused
+        return batch.select(kept, size);
+    }
+    
+    private int addGroup(Object[] values, Object[] firstRow) {
+        groupValues.add(values);
+        firstRows.add(firstRow);
+        for (Accumulator accumulator : accumulators) {
+            accumulator.ensureCapacity(groupValues.size());
+        }
+        return groupValues.size() - 1;
+    }
+    
+    private static Object[] firstRow(RowBatch batch, int i) {
+        ColumnVector[] vectors = batch.getVectors();
+        Object[] values = new Object[vectors.length];
+        for (int c = 0; c < values.length; c++) {
+            values[c] = vectors[c].get(i);
+        }
+        return values;
+    }
+    
+    @Override
+    public Tuple next() {
+        if (position >= groupValues.size()) {
+            return partitions != null ? partitions.next() : null;
+        }
+        int group = position++;
+        Object[] keyValues = groupValues.get(group);
+        Object[] first = firstRows.get(group);
+        Object[] values = new Object[columns.size()];
+        System.arraycopy(keyValues, 0, values, 0, keyValues.length);
+        for (int i = 0; i < accumulators.length; i++) {
+            values[keyValues.length + i] = accumulators[i].result(group);
+        }
+        if (first != null) {
+            System.arraycopy(first, 0, values, keyValues.length + accumulators.length, first.length);
+        }
+        return new Tuple(values);
+    }
+    
+    @Override
+    public void close() {
+        closePartitions();
+        table = new GroupTable();
+        groupValues.clear();
+        firstRows.clear();
+    }
+    
+    private void closePartitions() {
+        if (partitions != null) {
+            partitions.close();
+            partitions = null;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        StringJoiner text = new StringJoiner(", ");
+        for (FunctionCallNode aggregate : aggregates) {
+            text.add(ExpressionEvaluator.describe(aggregate));
+        }
+        StringJoiner keyText = new StringJoiner(", ");
+        for (ASTNode key : groupBy) {
+            keyText.add(ExpressionEvaluator.describe(key));
+        }
+        return "BatchAggregate(" + text + (groupBy.isEmpty() ? "" : " GROUP BY " + keyText) + ") <- " + child;
+    }
+    
+    private enum Mode {
+        LONG, DOUBLE, OBJECT
+    }
+    
+    /**
+     * Running state of one aggregate function for all groups
+     */
+    private final class Accumulator {
+        private final String function;
+        private final VectorExpression argument;
+        private Mode mode;
+        private boolean intInput;
+        private long[] counts = new long[0];
+        private long[] longs = new long[0];
+        private double[] doubles = new double[0];
+        private Object[] objects = new Object[0];
+        
+        Accumulator(FunctionCallNode call, List<ColumnInfo> inputColumns) {
+            this.function = call.getFunctionName().toUpperCase(Locale.ROOT);
+            ASTNode arg = AggregateOperator.argumentOf(call);
+            this.argument = arg == null ? null : VectorExpression.compile(arg, inputColumns);
+        }
+        
+        void clear() {
+            mode = null;
+            intInput = true;
+            counts = new long[0];
+        }
+        
+        void ensureCapacity(int groups) {
+            if (groups <= counts.length) {
+                return;
+            }
+            int capacity = Math.max(groups, counts.length * 2);
+            counts = Arrays.copyOf(counts, capacity);
+            if (mode == Mode.OBJECT) {
+                objects = Arrays.copyOf(objects, capacity);
+            } else {
+                longs = Arrays.copyOf(longs, capacity);
+                doubles = Arrays.copyOf(doubles, capacity);
+            }
+        }
+        
+        void add(RowBatch batch) {
+            int[] sel = batch.getSelection();
+            int n = batch.size();
+            if (argument == null) {
+                for (int k = 0; k < n; k++) {
+                    counts[groupOf[k]]++;
+                }
+                return;
+            }
+            ColumnVector vector = argument.evaluate(batch);
+            Mode input;
+            switch (vector.getKind()) {
+                case INT:
+                case LONG:
+                    input = Mode.LONG;
+                    break;
+                case DOUBLE:
+                    input = Mode.DOUBLE;
+                    break;
+                default:
+                    input = Mode.OBJECT;
+                    break;
+            }
+            intInput &= vector.getKind() == ColumnVector.Kind.INT;
+            if (mode == null) {
+                mode = input;
+                if (mode == Mode.OBJECT) {
+                    objects = new Object[counts.length];
+                }
+            } else if (mode != input && mode != Mode.OBJECT) {
+                toObjects();
+            }
+            if (function.equals("COUNT")) {
+                for (int k = 0; k < n; k++) {
+                    if (!vector.isNull(sel[k])) {
+                        counts[groupOf[k]]++;
+                    }
+                }
+            } else if (mode == Mode.LONG) {
+                addLongs(vector, sel, n);
+            } else if (mode == Mode.DOUBLE) {
+                addDoubles(vector, sel, n);
+            } else {
+                addObjects(vector, sel, n);
+            }
+        }
+        
+        private void addLongs(ColumnVector vector, int[] sel, int n) {
+            long[] values = vector.getLongs();
+            boolean nulls = vector.mayHaveNulls();
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                if (nulls && vector.isNull(i)) {
+                    continue;
+                }
+                int g = groupOf[k];
+                long v = values[i];
+                if (counts[g] == 0) {
+                    longs[g] = v;
+                } else {
+                    switch (function) {
+                        case "MIN":
+                            longs[g] = Math.min(longs[g], v);
+                            break;
+                        case "MAX":
+                            longs[g] = Math.max(longs[g], v);
+                            break;
+                        default:
+                            try {
+                                longs[g] = Math.addExact(longs[g], v);
+                            } catch (ArithmeticException e) {
+                                throw new RuntimeException("BIGINT value is out of range in " + longs[g] + " + " + v);
+                            }
+                            break;
+                    }
+                }
+                counts[g]++;
+            }
+        }
+        
+        private void addDoubles(ColumnVector vector, int[] sel, int n) {
+            double[] values = vector.getDoubles();
+            boolean nulls = vector.mayHaveNulls();
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                if (nulls && vector.isNull(i)) {
+                    continue;
+                }
+                int g = groupOf[k];
+                double v = values[i];
+                if (counts[g] == 0) {
+                    doubles[g] = v;
+                } else {
+                    switch (function) {
+                        case "MIN":
+                            if (Double.compare(v, doubles[g]) < 0) {
+                                doubles[g] = v;
+                            }
+                            break;
+                        case "MAX":
+                            if (Double.compare(v, doubles[g]) > 0) {
+                                doubles[g] = v;
+                            }
+                            break;
+                        default:
+                            doubles[g] += v;
+                            break;
+                    }
+                }
+                counts[g]++;
+            }
+        }
+        
+        private void addObjects(ColumnVector vector, int[] sel, int n) {
+            for (int k = 0; k < n; k++) {
+                Object v = vector.get(sel[k]);
+                if (v == null) {
+                    continue;
+                }
+                int g = groupOf[k];
+                Object value = objects[g];
+                if (counts[g] == 0) {
+                    objects[g] = v;
+                } else {
+                    switch (function) {
+                        case "MIN":
+                            if (Values.compare(v, value) < 0) {
+                                objects[g] = v;
+                            }
+                            break;
+                        case "MAX":
+                            if (Values.compare(v, value) > 0) {
+                                objects[g] = v;
+                            }
+                            break;
+                        default:
+                            objects[g] = Values.arithmetic('+', value, v);
+                            break;
+                    }
+                }
+                counts[g]++;
+            }
+        }
+        
+        /**
+         * Switch to keeping boxed values, when the input changes kind
+         */
+        private void toObjects() {
+            Object[] boxed = new Object[counts.length];
+            for (int g = 0; g < boxed.length; g++) {
+                boxed[g] = counts[g] == 0 ? null : value(g);
+            }
+            objects = boxed;
+            mode = Mode.OBJECT;
+        }
+        
+        private Object value(int g) {
+            switch (mode) {
+                case LONG:
+                    boolean minMax = function.equals("MIN") || function.equals("MAX");
+                    return minMax && intInput ? (Object) (int) longs[g] : (Object) longs[g];
+                case DOUBLE:
+                    return doubles[g];
+                default:
+                    return objects[g];
+            }
+        }
+        
+        Object result(int g) {
+            if (function.equals("COUNT")) {
+                return g < counts.length ? counts[g] : 0L;
+            }
+            if (g >= counts.length || counts[g] == 0) {
+                return null;
+            }
+            Object value = value(g);
+            return function.equals("AVG") ? Values.arithmetic('/', value, counts[g]) : value;
+        }
+    }
+}
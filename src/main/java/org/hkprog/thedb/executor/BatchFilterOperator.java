@@ -0,0 +1,66 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+
+import java.util.*;
+
+/**
+ * Batch Filter - narrows the selection of each batch to the rows for which
+ * a condition is true
+ */
+public class BatchFilterOperator implements BatchOperator {
+    
+    private final BatchOperator child;
+    private final ASTNode condition;
+    private final VectorExpression expression;
+    private final int[] selection = new int[RowBatch.CAPACITY];
+    
+    public BatchFilterOperator(BatchOperator child, ASTNode condition) {
+        this.child = child;
+        this.condition = condition;
+        this.expression = VectorExpression.compile(condition, child.getColumns());
+        if (expression == null) {
+            throw new IllegalArgumentException("Condition cannot be vectorized: " + ExpressionEvaluator.describe(condition));
+        }
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return child.getColumns();
+    }
+    
+    @Override
+    public void open() {
+        child.open();
+    }
+    
+    @Override
+    public RowBatch nextBatch() {
+        for (RowBatch batch = child.nextBatch(); batch != null; batch = child.nextBatch()) {
+            ColumnVector result = expression.evaluate(batch);
+            int[] sel = batch.getSelection();
+            int n = batch.size();
+            int m = 0;
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                if (!result.isNull(i) && VectorExpression.isTrue(result, i)) {
+                    selection[m++] = i;
+                }
+            }
+            if (m > 0) {
+                return batch.select(selection, m);
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public void close() {
+        child.close();
+    }
+    
+    @Override
+    public String toString() {
+        return "BatchFilter(" + ExpressionEvaluator.describe(condition) + ") <- " + child;
+    }
+}
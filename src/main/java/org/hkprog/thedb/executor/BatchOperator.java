@@ -0,0 +1,29 @@
+package org.hkprog.thedb.executor;
+
+import java.util.List;
+
+/**
+ * Batch Operator - a node of a vectorized plan
+ *
+ * Works like {@link Operator}, but each call to {@link #nextBatch()} returns
+ * up to {@link RowBatch#CAPACITY} rows as column vectors, so that filters,
+ * arithmetic and aggregates run as loops over primitive arrays instead of
+ * interpreting the expression tree once per row. {@link BatchToRowOperator}
+ * connects a vectorized plan to row-at-a-time operators above it.
+ */
+public interface BatchOperator {
+    
+    /**
+     * Columns of the batches this operator produces
+     */
+    List<ColumnInfo> getColumns();
+    
+    void open();
+    
+    /**
+     * Next non-empty batch, or null when there are no more rows
+     */
+    RowBatch nextBatch();
+    
+    void close();
+}
@@ -0,0 +1,64 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+
+import java.util.*;
+
+/**
+ * Batch Project - computes the select list as one vector per expression
+ */
+public class BatchProjectOperator implements BatchOperator {
+    
+    private final BatchOperator child;
+    private final List<ColumnInfo> columns;
+    private final VectorExpression[] expressions;
+    
+    /**
+     * @param columns names of the output columns, one per expression
+     */
+    public BatchProjectOperator(BatchOperator child, List<ASTNode> expressions, List<ColumnInfo> columns) {
+        this.child = child;
+        this.columns = columns;
+        this.expressions = new VectorExpression[expressions.size()];
+        for (int i = 0; i < this.expressions.length; i++) {
+            this.expressions[i] = VectorExpression.compile(expressions.get(i), child.getColumns());
+            if (this.expressions[i] == null) {
+                throw new IllegalArgumentException("Expression cannot be vectorized: "
+                        + ExpressionEvaluator.describe(expressions.get(i)));
+            }
+        }
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+    
+    @Override
+    public void open() {
+        child.open();
+    }
+    
+    @Override
+    public RowBatch nextBatch() {
+        RowBatch batch = child.nextBatch();
+        if (batch == null) {
+            return null;
+        }
+        ColumnVector[] vectors = new ColumnVector[expressions.length];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = expressions[i].evaluate(batch);
+        }
+        return batch.withVectors(vectors);
+    }
+    
+    @Override
+    public void close() {
+        child.close();
+    }
+    
+    @Override
+    public String toString() {
+        return "BatchProject(" + columns + ") <- " + child;
+    }
+}
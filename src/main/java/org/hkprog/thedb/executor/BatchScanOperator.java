@@ -0,0 +1,125 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.storage.RowSerializer;
+import org.hkprog.thedb.storage.StorageEngine;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Batch Scan - reads all rows of a table into column vectors
+ *
+ * Records are decoded straight into the vectors, without building a row
+ * map or boxing numbers.
+ */
+public class BatchScanOperator implements BatchOperator, RowSerializer.ValueConsumer {
+    
+    private final StorageEngine.Table table;
+    private final List<ColumnInfo> columns;
+    private final ColumnVector.Kind[] kinds;
+    private final ColumnVector[] vectors;
+    private Iterator<byte[]> records;
+    private int row;
+    
+    public BatchScanOperator(StorageEngine.Table table, String qualifier) {
+        this.table = table;
+        this.columns = TableScanOperator.tableColumns(table, qualifier);
+        List<StorageEngine.TableSchema.Column> schemaColumns = table.getSchema().getColumns();
+        this.kinds = new ColumnVector.Kind[schemaColumns.size()];
+        this.vectors = new ColumnVector[kinds.length];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = ColumnVector.kindOf(schemaColumns.get(i).getType());
+            vectors[i] = new ColumnVector(kinds[i], RowBatch.CAPACITY);
+        }
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+    
+    @Override
+    public void open() {
+        records = table.scanRecords();
+    }
+    
+    @Override
+    public RowBatch nextBatch() {
+        if (records == null || !records.hasNext()) {
+            return null;
+        }
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i].reset(kinds[i]);
+        }
+        for (row = 0; row < RowBatch.CAPACITY && records.hasNext(); row++) {
+            table.decode(records.next(), this);
+        }
+        return new RowBatch(vectors, row);
+    }
+    
+    @Override
+    public void close() {
+        records = null;
+    }
+    
+    @Override
+    public void putNull(int column) {
+        vectors[column].setNull(row);
+    }
+    
+    @Override
+    public void putInt(int column, int value) {
+        ColumnVector vector = vectors[column];
+        if (vector.getKind() == ColumnVector.Kind.INT || vector.getKind() == ColumnVector.Kind.LONG) {
+            vector.setLong(row, value);
+        } else {
+            vector.set(row, value);
+        }
+    }
+    
+    @Override
+    public void putLong(int column, long value) {
+        ColumnVector vector = vectors[column];
+        if (vector.getKind() == ColumnVector.Kind.LONG) {
+            vector.setLong(row, value);
+        } else {
+            vector.set(row, value);
+        }
+    }
+    
+    @Override
+    public void putDouble(int column, double value) {
+        ColumnVector vector = vectors[column];
+        if (vector.getKind() == ColumnVector.Kind.DOUBLE) {
+            vector.setDouble(row, value);
+        } else {
+            vector.set(row, value);
+        }
+    }
+    
+    @Override
+    public void putBoolean(int column, boolean value) {
+        vectors[column].set(row, value);
+    }
+    
+    @Override
+    public void putDecimal(int column, BigDecimal value) {
+        vectors[column].set(row, value);
+    }
+    
+    @Override
+    public void putString(int column, String value) {
+        ColumnVector vector = vectors[column];
+        if (vector.getKind() == ColumnVector.Kind.STRING) {
+            vector.setString(row, value);
+        } else {
+            vector.set(row, value);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "BatchScan(" + table.getName() + ")";
+    }
+}
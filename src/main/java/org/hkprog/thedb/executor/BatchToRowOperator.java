@@ -0,0 +1,66 @@
+package org.hkprog.thedb.executor;
+
+import java.util.*;
+
+/**
+ * Batch To Row - hands the rows of a vectorized plan one at a time to the
+ * row-at-a-time operators above it
+ */
+public class BatchToRowOperator implements Operator {
+    
+    private final BatchOperator child;
+    private RowBatch batch;
+    private int position;
+    
+    public BatchToRowOperator(BatchOperator child) {
+        this.child = child;
+    }
+    
+    /**
+     * The vectorized plan, for operators that can consume batches directly
+     */
+    public BatchOperator getChild() {
+        return child;
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return child.getColumns();
+    }
+    
+    @Override
+    public void open() {
+        child.open();
+        batch = null;
+        position = 0;
+    }
+    
+    @Override
+    public Tuple next() {
+        while (batch == null || position >= batch.size()) {
+            batch = child.nextBatch();
+            position = 0;
+            if (batch == null) {
+                return null;
+            }
+        }
+        int i = batch.getSelection()[position++];
+        ColumnVector[] vectors = batch.getVectors();
+        Object[] values = new Object[vectors.length];
+        for (int c = 0; c < values.length; c++) {
+            values[c] = vectors[c].get(i);
+        }
+        return new Tuple(values);
+    }
+    
+    @Override
+    public void close() {
+        batch = null;
+        child.close();
+    }
+    
+    @Override
+    public String toString() {
+        return "BatchToRow <- " + child;
+    }
+}
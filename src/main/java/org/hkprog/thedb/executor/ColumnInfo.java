@@ -0,0 +1,45 @@
+package org.hkprog.thedb.executor;
+
+/**
+ * Column Info - name of one column of an operator's output
+ *
+ * The qualifier is the table name or alias the column can be referenced by,
+ * or null for computed columns. The type is the SQL type of the column's
+ * values when the planner knows it, such as "INT" or "DECIMAL(10,2)" for a
+ * table column, and null otherwise.
+ */
+public final class ColumnInfo {
+    
+    private final String qualifier;
+    private final String name;
+    private final String type;
+    
+    public ColumnInfo(String qualifier, String name) {
+        this(qualifier, name, null);
+    }
+    
+    public ColumnInfo(String qualifier, String name, String type) {
+        this.qualifier = qualifier;
+        this.name = name;
+        this.type = type;
+    }
+    
+    public String getQualifier() { return qualifier; }
+    public String getName() { return name; }
+    public String getType() { return type; }
+    
+    /**
+     * Check whether a column reference, with or without a qualifier, names this column
+     */
+    public boolean matches(String qualifier, String name) {
+        if (!this.name.equalsIgnoreCase(name)) {
+            return false;
+        }
+        return qualifier == null || (this.qualifier != null && this.qualifier.equalsIgnoreCase(qualifier));
+    }
+    
+    @Override
+    public String toString() {
+        return qualifier != null ? qualifier + "." + name : name;
+    }
+}
@@ -0,0 +1,322 @@
+package org.hkprog.thedb.executor;
+
+import java.util.*;
+
+/**
+ * Column Vector - the values of one column for the rows of a batch
+ *
+ * Integers and booleans are kept in a {@code long[]}, approximate numbers in
+ * a {@code double[]} and strings as codes into a dictionary of the distinct
+ * strings of the batch, so that kernels can loop over primitive arrays.
+ * Anything else (such as DECIMAL values) is kept as objects. NULLs are
+ * marked in a bitmap; the primitive slot of a NULL holds zero.
+ *
+ * A vector that is given a value of another kind than it holds switches to
+ * holding objects, so that scans cope with any stored value.
+ */
+public final class ColumnVector {
+    
+    public enum Kind {
+        INT, LONG, BOOLEAN, DOUBLE, STRING, OBJECT
+    }
+    
+    private final int capacity;
+    private Kind kind;
+    private long[] longs;
+    private double[] doubles;
+    private int[] codes;
+    private Object[] objects;
+    private final long[] nulls;
+    private boolean mayHaveNulls;
+    private final List<String> dictionary;
+    private final Map<String, Integer> dictionaryCodes;
+    private boolean constant;
+    
+    public ColumnVector(Kind kind, int capacity) {
+        this.capacity = capacity;
+        this.nulls = new long[(capacity + 63) >>> 6];
+        this.dictionary = new ArrayList<>();
+        this.dictionaryCodes = new HashMap<>();
+        reset(kind);
+    }
+    
+    /**
+     * Vector kind for a column of the given SQL type
+     */
+    public static Kind kindOf(String sqlType) {
+        String type = sqlType.toUpperCase(Locale.ROOT);
+        String baseType = type.contains("(") ? type.substring(0, type.indexOf('(')).trim() : type.trim();
+        switch (baseType) {
+            case "INT":
+            case "INTEGER":
+            case "SMALLINT":
+            case "TINYINT":
+                return Kind.INT;
+            case "BIGINT":
+                return Kind.LONG;
+            case "FLOAT":
+            case "DOUBLE":
+            case "REAL":
+                return Kind.DOUBLE;
+            case "BOOLEAN":
+            case "BOOL":
+                return Kind.BOOLEAN;
+            case "DECIMAL":
+            case "NUMERIC":
+                return Kind.OBJECT;
+            default:
+                return Kind.STRING;
+        }
+    }
+    
+    /**
+     * A vector holding the same value in every slot
+     */
+    public static ColumnVector constant(Object value, int capacity) {
+        ColumnVector vector = new ColumnVector(kindOfValue(value), capacity);
+        for (int i = 0; i < capacity; i++) {
+            vector.set(i, value);
+        }
+        vector.constant = true;
+        return vector;
+    }
+    
+    private static Kind kindOfValue(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return Kind.INT;
+        } else if (value instanceof Long) {
+            return Kind.LONG;
+        } else if (value instanceof Double || value instanceof Float) {
+            return Kind.DOUBLE;
+        } else if (value instanceof Boolean) {
+            return Kind.BOOLEAN;
+        } else if (value instanceof String) {
+            return Kind.STRING;
+        }
+        return Kind.OBJECT;
+    }
+    
+    /**
+     * Clear the vector for a new batch and make it hold values of the given kind
+     */
+    public void reset(Kind kind) {
+        this.kind = kind;
+        switch (kind) {
+            case INT:
+            case LONG:
+            case BOOLEAN:
+                if (longs == null) {
+                    longs = new long[capacity];
+                }
+                break;
+            case DOUBLE:
+                if (doubles == null) {
+                    doubles = new double[capacity];
+                }
+                break;
+            case STRING:
+                if (codes == null) {
+                    codes = new int[capacity];
+                }
+                dictionary.clear();
+                dictionaryCodes.clear();
+                break;
+            default:
+                if (objects == null) {
+                    objects = new Object[capacity];
+                }
+                break;
+        }
+        if (mayHaveNulls) {
+            Arrays.fill(nulls, 0);
+            mayHaveNulls = false;
+        }
+    }
+    
+    public Kind getKind() { return kind; }
+    public int getCapacity() { return capacity; }
+    
+    /**
+     * Whether every slot holds the same value
+     */
+    public boolean isConstant() { return constant; }
+    
+    /**
+     * Whether the kind is INT, LONG or BOOLEAN, all kept in {@link #getLongs()}
+     */
+    public boolean isIntegral() {
+        return kind == Kind.INT || kind == Kind.LONG || kind == Kind.BOOLEAN;
+    }
+    
+    /**
+     * Whether the values are kept in {@link #getLongs()} or {@link #getDoubles()}
+     */
+    public boolean isNumeric() {
+        return isIntegral() || kind == Kind.DOUBLE;
+    }
+    
+    public long[] getLongs() { return longs; }
+    public double[] getDoubles() { return doubles; }
+    public int[] getCodes() { return codes; }
+    public Object[] getObjects() { return objects; }
+    
+    /**
+     * The distinct strings of a STRING vector, indexed by code
+     */
+    public List<String> getDictionary() { return dictionary; }
+    
+    /**
+     * The null bitmap: bit {@code i & 63} of word {@code i >>> 6} is set if slot i is NULL
+     */
+    public long[] getNulls() { return nulls; }
+    
+    /**
+     * Whether any slot may be NULL; if not, the bitmap need not be checked
+     */
+    public boolean mayHaveNulls() { return mayHaveNulls; }
+    
+    public boolean isNull(int i) {
+        return mayHaveNulls && (nulls[i >>> 6] & (1L << i)) != 0;
+    }
+    
+    public void setNull(int i) {
+        nulls[i >>> 6] |= 1L << i;
+        mayHaveNulls = true;
+        switch (kind) {
+            case INT:
+            case LONG:
+            case BOOLEAN:
+                longs[i] = 0;
+                break;
+            case DOUBLE:
+                doubles[i] = 0;
+                break;
+            case STRING:
+                codes[i] = 0;
+                break;
+            default:
+                objects[i] = null;
+                break;
+        }
+    }
+    
+    /**
+     * Mark the slots that are NULL in either of two vectors as NULL in this one
+     */
+    void unionNulls(ColumnVector a, ColumnVector b) {
+        if (a.mayHaveNulls || b.mayHaveNulls) {
+            for (int w = 0; w < nulls.length; w++) {
+                nulls[w] = a.nulls[w] | b.nulls[w];
+            }
+            mayHaveNulls = true;
+        }
+    }
+    
+    void copyNulls(ColumnVector a) {
+        if (a.mayHaveNulls) {
+            System.arraycopy(a.nulls, 0, nulls, 0, nulls.length);
+            mayHaveNulls = true;
+        }
+    }
+    
+    public void setLong(int i, long value) {
+        longs[i] = value;
+    }
+    
+    public void setDouble(int i, double value) {
+        doubles[i] = value;
+    }
+    
+    public void setString(int i, String value) {
+        Integer code = dictionaryCodes.get(value);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.add(value);
+            dictionaryCodes.put(value, code);
+        }
+        codes[i] = code;
+    }
+    
+    /**
+     * Store any value, switching to holding objects if it does not fit the kind
+     */
+    public void set(int i, Object value) {
+        if (value == null) {
+            setNull(i);
+            return;
+        }
+        switch (kind) {
+            case INT:
+                if (value instanceof Integer) {
+                    longs[i] = (Integer) value;
+                    return;
+                }
+                break;
+            case LONG:
+                if (value instanceof Long || value instanceof Integer) {
+                    longs[i] = ((Number) value).longValue();
+                    return;
+                }
+                break;
+            case BOOLEAN:
+                if (value instanceof Boolean) {
+                    longs[i] = (Boolean) value ? 1 : 0;
+                    return;
+                }
+                break;
+            case DOUBLE:
+                if (value instanceof Double) {
+                    doubles[i] = (Double) value;
+                    return;
+                }
+                break;
+            case STRING:
+                if (value instanceof String) {
+                    setString(i, (String) value);
+                    return;
+                }
+                break;
+            default:
+                objects[i] = value;
+                return;
+        }
+        toObjects(i);
+        objects[i] = value;
+    }
+    
+    /**
+     * Switch to holding objects, boxing the values of the first {@code count} slots
+     */
+    private void toObjects(int count) {
+        Object[] boxed = objects != null ? objects : new Object[capacity];
+        for (int i = 0; i < count; i++) {
+            boxed[i] = get(i);
+        }
+        objects = boxed;
+        kind = Kind.OBJECT;
+    }
+    
+    /**
+     * The value of a slot as the object the row-at-a-time operators use
+     */
+    public Object get(int i) {
+        if (isNull(i)) {
+            return null;
+        }
+        switch (kind) {
+            case INT: return (int) longs[i];
+            case LONG: return longs[i];
+            case BOOLEAN: return longs[i] != 0;
+            case DOUBLE: return doubles[i];
+            case STRING: return dictionary.get(codes[i]);
+            default: return objects[i];
+        }
+    }
+    
+    /**
+     * Numeric value of a slot of an INT, LONG, BOOLEAN or DOUBLE vector
+     */
+    public double getAsDouble(int i) {
+        return kind == Kind.DOUBLE ? doubles[i] : longs[i];
+    }
+}
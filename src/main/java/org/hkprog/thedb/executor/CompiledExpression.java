@@ -0,0 +1,21 @@
+package org.hkprog.thedb.executor;
+
+/**
+ * Compiled Expression - an expression turned into a tree of closures by
+ * {@link ExpressionCompiler}, evaluated against one tuple at a time
+ */
+@FunctionalInterface
+public interface CompiledExpression {
+    
+    /**
+     * Value of the expression for a tuple; null is SQL NULL
+     */
+    Object evaluate(Tuple tuple);
+    
+    /**
+     * Evaluate as a condition; NULL counts as false
+     */
+    default boolean test(Tuple tuple) {
+        return Values.isTrue(evaluate(tuple));
+    }
+}
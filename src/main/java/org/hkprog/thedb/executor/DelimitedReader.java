@@ -0,0 +1,195 @@
+package org.hkprog.thedb.executor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * Delimited Reader - reads a tab-separated or CSV file line by line as lists
+ * of fields, following the FIELDS and LINES options of LOAD DATA
+ *
+ * A field may be enclosed in the enclosing character, inside which field
+ * and line terminators are data and a doubled enclosing character stands
+ * for itself. The escape character makes the next character data, except
+ * that \0, \b, \n, \r, \t and \Z stand for control characters, and a field
+ * that is exactly \N is NULL, as is an unenclosed NULL when fields may be
+ * enclosed. A line terminated by \n may end in \r\n. Empty lines are skipped.
+ */
+final class DelimitedReader implements Closeable {
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final Reader reader;
+    private final char fieldTerminator;
+    private final char lineTerminator;
+    private final int enclosure;
+    private final int escape;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private int line = 1;
+    private int recordLine;
+    private final List<String> fields = new ArrayList<>();
+    private final StringBuilder field = new StringBuilder();
+    
+    /**
+     * @param enclosure enclosing character, or -1 if fields are not enclosed
+     * @param escape escape character, or -1 if there is none
+     */
+    DelimitedReader(Reader reader, char fieldTerminator, char lineTerminator, int enclosure, int escape) {
+        this.reader = reader;
+        this.fieldTerminator = fieldTerminator;
+        this.lineTerminator = lineTerminator;
+        this.enclosure = enclosure;
+        this.escape = escape;
+    }
+    
+    /**
+     * Fields of the next line, null for NULL, or null at the end of the file.
+     * The list is reused by the next call.
+     */
+    List<String> next() throws IOException {
+        fields.clear();
+        field.setLength(0);
+        recordLine = line;
+        boolean enclosed = false;
+        boolean inEnclosure = false;
+        boolean nullMarker = false;
+        int c;
+        while ((c = read()) >= 0) {
+            if (c == '\n') {
+                line++;
+            }
+            if (inEnclosure) {
+                if (c == escape) {
+                    appendEscaped();
+                } else if (c == enclosure) {
+                    if (peek() == enclosure) {
+                        field.append((char) read());
+                    } else {
+                        inEnclosure = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+                continue;
+            }
+            boolean endOfLine = c == lineTerminator || c == '\r' && lineTerminator == '\n' && peek() == '\n';
+            if (c == fieldTerminator || endOfLine) {
+                if (endOfLine && fields.isEmpty() && field.length() == 0 && !enclosed && !nullMarker) {
+                    // Empty line
+                    if (c == '\r') {
+                        read();
+                        line++;
+                    }
+                    recordLine = line;
+                    continue;
+                }
+                fields.add(value(enclosed, nullMarker));
+                field.setLength(0);
+                enclosed = false;
+                nullMarker = false;
+                if (endOfLine) {
+                    if (c == '\r') {
+                        read();
+                        line++;
+                    }
+                    return fields;
+                }
+                continue;
+            }
+            if (nullMarker) {
+                // \N followed by more text is just an N
+                field.append('N');
+                nullMarker = false;
+            }
+            if (c == escape) {
+                if (field.length() == 0 && !enclosed && peek() == 'N') {
+                    read();
+                    nullMarker = true;
+                } else {
+                    appendEscaped();
+                }
+            } else if (c == enclosure && field.length() == 0 && !enclosed) {
+                enclosed = true;
+                inEnclosure = true;
+            } else {
+                field.append((char) c);
+            }
+        }
+        if (fields.isEmpty() && field.length() == 0 && !enclosed && !nullMarker) {
+            return null;
+        }
+        fields.add(value(enclosed, nullMarker));
+        return fields;
+    }
+    
+    /**
+     * Line of the file, from 1, that the last line returned by {@link #next} starts on
+     */
+    int getLine() {
+        return recordLine;
+    }
+    
+    private String value(boolean enclosed, boolean nullMarker) {
+        if (nullMarker) {
+            return null;
+        }
+        String value = field.toString();
+        if (!enclosed && enclosure >= 0 && value.equals("NULL")) {
+            return null;
+        }
+        return value;
+    }
+    
+    private void appendEscaped() throws IOException {
+        int c = read();
+        if (c < 0) {
+            field.append((char) escape);
+            return;
+        }
+        switch (c) {
+            case '0': field.append('\0'); break;
+            case 'b': field.append('\b'); break;
+            case 'n': field.append('\n'); break;
+            case 'r': field.append('\r'); break;
+            case 't': field.append('\t'); break;
+            case 'Z': field.append((char) 26); break;
+            case '\n':
+                line++;
+                field.append('\n');
+                break;
+            default: field.append((char) c); break;
+        }
+    }
+    
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+    
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+    
+    private boolean fill() throws IOException {
+        limit = reader.read(buffer, 0, buffer.length);
+        position = 0;
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,48 @@
+package org.hkprog.thedb.executor;
+
+import java.util.*;
+
+/**
+ * Distinct - drops tuples equal to one already returned (SELECT DISTINCT)
+ */
+public class DistinctOperator implements Operator {
+    
+    private final Operator child;
+    private Set<List<Object>> seen;
+    
+    public DistinctOperator(Operator child) {
+        this.child = child;
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return child.getColumns();
+    }
+    
+    @Override
+    public void open() {
+        seen = new HashSet<>();
+        child.open();
+    }
+    
+    @Override
+    public Tuple next() {
+        for (Tuple tuple = child.next(); tuple != null; tuple = child.next()) {
+            if (seen.add(Values.hashKey(tuple.getValues()))) {
+                return tuple;
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public void close() {
+        seen = null;
+        child.close();
+    }
+    
+    @Override
+    public String toString() {
+        return "Distinct <- " + child;
+    }
+}
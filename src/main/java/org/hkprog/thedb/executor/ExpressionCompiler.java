@@ -0,0 +1,637 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.*;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * Expression Compiler - turns an expression tree into a tree of closures
+ *
+ * Each operator compiles its expressions once, when it is created, so the
+ * work of walking the tree is not repeated for every row: column references
+ * are resolved to tuple slots, operators and functions are picked, LIKE
+ * patterns that are literals are translated once, and subexpressions whose
+ * operands are all constants are folded into constants. Comparisons and
+ * arithmetic on integers take a fast path without going through
+ * {@link Values}.
+ *
+ * Above an aggregation, expressions that were computed by it (aggregate
+ * calls and GROUP BY expressions) are read from their slot in the tuple.
+ *
+ * Unknown and ambiguous column references fail when the expression is
+ * compiled, so a statement is rejected before it returns any rows. Errors
+ * that depend on the data are raised when the expression is evaluated.
+ * NULL handling follows SQL three-valued logic.
+ */
+public final class ExpressionCompiler implements ASTVisitor<CompiledExpression> {
+    
+    private static final Set<String> VOLATILE_FUNCTIONS = Set.of("NOW", "CURRENT_TIMESTAMP", "CURRENT_DATE", "CURRENT_TIME");
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    
+    private final List<ColumnInfo> columns;
+    private final Map<String, Integer> computed;
+    
+    private ExpressionCompiler(List<ColumnInfo> columns, Map<String, Integer> computed) {
+        this.columns = columns;
+        this.computed = computed;
+    }
+    
+    /**
+     * Compile an expression over tuples with the given columns
+     */
+    public static CompiledExpression compile(ASTNode expression, List<ColumnInfo> columns) {
+        return compile(expression, columns, Collections.emptyMap());
+    }
+    
+    /**
+     * @param computed slots of precomputed expressions, keyed by {@link ExpressionEvaluator#key(ASTNode)}
+     */
+    public static CompiledExpression compile(ASTNode expression, List<ColumnInfo> columns, Map<String, Integer> computed) {
+        return new ExpressionCompiler(columns, computed).compile(expression);
+    }
+    
+    private CompiledExpression compile(ASTNode node) {
+        if (!computed.isEmpty()) {
+            Integer slot = computed.get(ExpressionEvaluator.key(node));
+            if (slot != null) {
+                return new Column(slot);
+            }
+        }
+        return node.accept(this);
+    }
+    
+    /**
+     * An expression with the same value for every tuple
+     */
+    private static final class Constant implements CompiledExpression {
+        private final Object value;
+        private final boolean truth;
+        
+        Constant(Object value) {
+            this.value = value;
+            this.truth = Values.isTrue(value);
+        }
+        
+        @Override
+        public Object evaluate(Tuple tuple) {
+            return value;
+        }
+        
+        @Override
+        public boolean test(Tuple tuple) {
+            return truth;
+        }
+    }
+    
+    /**
+     * The value at one position of the tuple; comparisons read it through the
+     * tuple's typed accessors, so a stored integral value is never boxed
+     */
+    private static final class Column implements CompiledExpression {
+        private final int index;
+        
+        Column(int index) {
+            this.index = index;
+        }
+        
+        @Override
+        public Object evaluate(Tuple tuple) {
+            return tuple.get(index);
+        }
+    }
+    
+    private static boolean isConstant(CompiledExpression expression) {
+        return expression instanceof Constant;
+    }
+    
+    /**
+     * Replace an expression whose operands are all constants by its value.
+     * Expressions that fail are kept, so that the error is raised if they are evaluated.
+     */
+    private static CompiledExpression fold(CompiledExpression expression, CompiledExpression... operands) {
+        for (CompiledExpression operand : operands) {
+            if (!isConstant(operand)) {
+                return expression;
+            }
+        }
+        try {
+            return new Constant(expression.evaluate(null));
+        } catch (RuntimeException e) {
+            return expression;
+        }
+    }
+    
+    /**
+     * An expression that fails with the given message when evaluated
+     */
+    private static CompiledExpression error(String message) {
+        return tuple -> {
+            throw new RuntimeException(message);
+        };
+    }
+    
+    private static boolean isInteger(Object value) {
+        return value instanceof Long || value instanceof Integer;
+    }
+    
+    // ---- column references and literals ----
+    
+    @Override
+    public CompiledExpression visitColumnReference(ColumnReferenceNode node) {
+        int slot = ExpressionEvaluator.resolve(columns, node.getTableName(), node.getColumnName());
+        if (slot < 0) {
+            throw new RuntimeException("Unknown column '" + ExpressionEvaluator.describe(node) + "'");
+        }
+        return new Column(slot);
+    }
+    
+    @Override
+    public CompiledExpression visitLiteral(LiteralNode node) {
+        return new Constant(node.getValue());
+    }
+    
+    @Override
+    public CompiledExpression visitParameter(ParameterNode node) {
+        // Never folded: the value is bound again for every execution
+        return tuple -> node.getValue();
+    }
+    
+    // ---- operators ----
+    
+    @Override
+    public CompiledExpression visitBinaryOperation(BinaryOperationNode node) {
+        BinaryOperationNode.Operator operator = node.getOperator();
+        if (operator == BinaryOperationNode.Operator.IN || operator == BinaryOperationNode.Operator.BETWEEN) {
+            return error("Unsupported expression: " + ExpressionEvaluator.describe(node));
+        }
+        CompiledExpression left = compile(node.getLeft());
+        CompiledExpression right = compile(node.getRight());
+        switch (operator) {
+            case AND: return and(left, right);
+            case OR: return or(left, right);
+            case ADD: return arithmetic('+', left, right);
+            case SUBTRACT: return arithmetic('-', left, right);
+            case MULTIPLY: return arithmetic('*', left, right);
+            case DIVIDE: return arithmetic('/', left, right);
+            case MODULO: return arithmetic('%', left, right);
+            case LIKE: return like(left, right);
+            case EQUAL: return comparison(c -> c == 0, left, right);
+            case NOT_EQUAL: return comparison(c -> c != 0, left, right);
+            case LESS_THAN: return comparison(c -> c < 0, left, right);
+            case LESS_EQUAL: return comparison(c -> c <= 0, left, right);
+            case GREATER_THAN: return comparison(c -> c > 0, left, right);
+            case GREATER_EQUAL: return comparison(c -> c >= 0, left, right);
+            default: return error("Unsupported operator: " + operator);
+        }
+    }
+    
+    private static CompiledExpression and(CompiledExpression left, CompiledExpression right) {
+        if (isConstant(left) && left.evaluate(null) != null && !left.test(null)) {
+            return new Constant(Boolean.FALSE);
+        }
+        return fold(tuple -> {
+            Object a = left.evaluate(tuple);
+            if (a != null && !Values.isTrue(a)) {
+                return Boolean.FALSE;
+            }
+            Object b = right.evaluate(tuple);
+            if (b != null && !Values.isTrue(b)) {
+                return Boolean.FALSE;
+            }
+            return a == null || b == null ? null : Boolean.TRUE;
+        }, left, right);
+    }
+    
+    private static CompiledExpression or(CompiledExpression left, CompiledExpression right) {
+        if (isConstant(left) && left.test(null)) {
+            return new Constant(Boolean.TRUE);
+        }
+        return fold(tuple -> {
+            Object a = left.evaluate(tuple);
+            if (a != null && Values.isTrue(a)) {
+                return Boolean.TRUE;
+            }
+            Object b = right.evaluate(tuple);
+            if (b != null && Values.isTrue(b)) {
+                return Boolean.TRUE;
+            }
+            return a == null || b == null ? null : Boolean.FALSE;
+        }, left, right);
+    }
+    
+    private static CompiledExpression arithmetic(char operator, CompiledExpression left, CompiledExpression right) {
+        CompiledExpression expression;
+        switch (operator) {
+            case '+':
+                expression = tuple -> {
+                    Object a = left.evaluate(tuple);
+                    Object b = right.evaluate(tuple);
+                    if (isInteger(a) && isInteger(b)) {
+                        long x = ((Number) a).longValue();
+                        long y = ((Number) b).longValue();
+                        long r = x + y;
+                        // Overflow if both operands have the sign opposite to the result
+                        if (((x ^ r) & (y ^ r)) >= 0) {
+                            return r;
+                        }
+                    }
+                    return Values.arithmetic('+', a, b);
+                };
+                break;
+            case '-':
+                expression = tuple -> {
+                    Object a = left.evaluate(tuple);
+                    Object b = right.evaluate(tuple);
+                    if (isInteger(a) && isInteger(b)) {
+                        long x = ((Number) a).longValue();
+                        long y = ((Number) b).longValue();
+                        long r = x - y;
+                        if (((x ^ y) & (x ^ r)) >= 0) {
+                            return r;
+                        }
+                    }
+                    return Values.arithmetic('-', a, b);
+                };
+                break;
+            default:
+                expression = tuple -> Values.arithmetic(operator, left.evaluate(tuple), right.evaluate(tuple));
+                break;
+        }
+        return fold(expression, left, right);
+    }
+    
+    private static CompiledExpression comparison(IntPredicate test, CompiledExpression left, CompiledExpression right) {
+        if (isConstant(right) && isInteger(right.evaluate(null))) {
+            // Column compared with an integer literal
+            Object constant = right.evaluate(null);
+            long y = ((Number) constant).longValue();
+            if (left instanceof Column) {
+                int i = ((Column) left).index;
+                return tuple -> {
+                    if (tuple.isNull(i)) {
+                        return null;
+                    }
+                    return test.test(tuple.isIntegral(i) ? Long.compare(tuple.getLong(i), y) : Values.compare(tuple.get(i), constant));
+                };
+            }
+            return fold(tuple -> {
+                Object a = left.evaluate(tuple);
+                if (a == null) {
+                    return null;
+                }
+                return test.test(isInteger(a) ? Long.compare(((Number) a).longValue(), y) : Values.compare(a, constant));
+            }, left, right);
+        }
+        if (left instanceof Column && right instanceof Column) {
+            // Two columns, as in a join condition
+            int i = ((Column) left).index;
+            int j = ((Column) right).index;
+            return tuple -> {
+                if (tuple.isNull(i) || tuple.isNull(j)) {
+                    return null;
+                }
+                if (tuple.isIntegral(i) && tuple.isIntegral(j)) {
+                    return test.test(Long.compare(tuple.getLong(i), tuple.getLong(j)));
+                }
+                if (tuple.isDouble(i) && tuple.isDouble(j)) {
+                    return test.test(Double.compare(tuple.getDouble(i), tuple.getDouble(j)));
+                }
+                return test.test(Values.compare(tuple.get(i), tuple.get(j)));
+            };
+        }
+        return fold(tuple -> {
+            Object a = left.evaluate(tuple);
+            Object b = right.evaluate(tuple);
+            if (a == null || b == null) {
+                return null;
+            }
+            if (isInteger(a) && isInteger(b)) {
+                return test.test(Long.compare(((Number) a).longValue(), ((Number) b).longValue()));
+            }
+            if (a instanceof String && b instanceof String) {
+                return test.test(((String) a).compareTo((String) b));
+            }
+            return test.test(Values.compare(a, b));
+        }, left, right);
+    }
+    
+    private static CompiledExpression like(CompiledExpression left, CompiledExpression right) {
+        if (isConstant(right) && right.evaluate(null) != null) {
+            Pattern pattern = ExpressionEvaluator.compileLike(right.evaluate(null).toString());
+            return fold(tuple -> {
+                Object a = left.evaluate(tuple);
+                return a == null ? null : (Object) pattern.matcher(a.toString()).matches();
+            }, left, right);
+        }
+        Map<String, Pattern> patterns = new HashMap<>();
+        return fold(tuple -> {
+            Object a = left.evaluate(tuple);
+            Object b = right.evaluate(tuple);
+            if (a == null || b == null) {
+                return null;
+            }
+            return patterns.computeIfAbsent(b.toString(), ExpressionEvaluator::compileLike).matcher(a.toString()).matches();
+        }, left, right);
+    }
+    
+    @Override
+    public CompiledExpression visitUnaryOperation(UnaryOperationNode node) {
+        CompiledExpression operand = compile(node.getOperand());
+        CompiledExpression expression;
+        switch (node.getOperator()) {
+            case NOT:
+                expression = tuple -> {
+                    Object value = operand.evaluate(tuple);
+                    return value == null ? null : (Object) !Values.isTrue(value);
+                };
+                break;
+            case NEGATE:
+                expression = tuple -> Values.negate(operand.evaluate(tuple));
+                break;
+            case IS_NULL:
+                if (operand instanceof Column) {
+                    int i = ((Column) operand).index;
+                    return tuple -> tuple.isNull(i);
+                }
+                expression = tuple -> operand.evaluate(tuple) == null;
+                break;
+            case IS_NOT_NULL:
+                if (operand instanceof Column) {
+                    int i = ((Column) operand).index;
+                    return tuple -> !tuple.isNull(i);
+                }
+                expression = tuple -> operand.evaluate(tuple) != null;
+                break;
+            default:
+                return error("Unsupported operator: " + node.getOperator());
+        }
+        return fold(expression, operand);
+    }
+    
+    // ---- functions ----
+    
+    @Override
+    public CompiledExpression visitFunctionCall(FunctionCallNode node) {
+        String name = node.getFunctionName().toUpperCase(Locale.ROOT);
+        if (ExpressionEvaluator.isAggregate(node)) {
+            return error("Invalid use of group function " + ExpressionEvaluator.describe(node));
+        }
+        List<ASTNode> arguments = node.getArguments();
+        CompiledExpression[] args = new CompiledExpression[arguments.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = compile(arguments.get(i));
+        }
+        CompiledExpression expression = args.length == 1 ? unaryFunction(name, args[0]) : null;
+        if (expression == null) {
+            String functionName = node.getFunctionName();
+            expression = tuple -> {
+                Object[] values = new Object[args.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = args[i].evaluate(tuple);
+                }
+                return call(name, functionName, values);
+            };
+        }
+        return VOLATILE_FUNCTIONS.contains(name) ? expression : fold(expression, args);
+    }
+    
+    /**
+     * Functions of one argument that are common in conditions, without an argument array
+     */
+    private static CompiledExpression unaryFunction(String name, CompiledExpression arg) {
+        switch (name) {
+            case "UPPER":
+                return tuple -> {
+                    Object value = arg.evaluate(tuple);
+                    return value == null ? null : value.toString().toUpperCase(Locale.ROOT);
+                };
+            case "LOWER":
+                return tuple -> {
+                    Object value = arg.evaluate(tuple);
+                    return value == null ? null : value.toString().toLowerCase(Locale.ROOT);
+                };
+            case "TRIM":
+                return tuple -> {
+                    Object value = arg.evaluate(tuple);
+                    return value == null ? null : value.toString().trim();
+                };
+            case "LENGTH":
+                return tuple -> {
+                    Object value = arg.evaluate(tuple);
+                    return value == null ? null : (Object) (long) Values.byteLength(value.toString());
+                };
+            default:
+                return null;
+        }
+    }
+    
+    private static Object call(String name, String functionName, Object[] args) {
+        switch (name) {
+            case "NOW":
+            case "CURRENT_TIMESTAMP":
+                return Values.now();
+            case "CURRENT_DATE":
+                return LocalDate.now().toString();
+            case "CURRENT_TIME":
+                return LocalTime.now().format(TIME_FORMAT);
+            case "COALESCE":
+            case "IFNULL":
+                for (Object arg : args) {
+                    if (arg != null) {
+                        return arg;
+                    }
+                }
+                return null;
+            default:
+                break;
+        }
+        for (Object arg : args) {
+            if (arg == null) {
+                return null;
+            }
+        }
+        switch (name) {
+            case "UPPER":
+                return argument(args, 0, name).toString().toUpperCase(Locale.ROOT);
+            case "LOWER":
+                return argument(args, 0, name).toString().toLowerCase(Locale.ROOT);
+            case "TRIM":
+                return argument(args, 0, name).toString().trim();
+            case "LENGTH":
+                return (long) Values.byteLength(argument(args, 0, name).toString());
+            case "CHAR_LENGTH": {
+                String s = argument(args, 0, name).toString();
+                return (long) s.codePointCount(0, s.length());
+            }
+            case "CONCAT": {
+                StringBuilder result = new StringBuilder();
+                for (Object arg : args) {
+                    result.append(Values.toString(arg));
+                }
+                return result.toString();
+            }
+            case "SUBSTRING":
+                return substring(argument(args, 0, name).toString(), argument(args, 1, name),
+                        args.length > 2 ? args[2] : null);
+            case "ABS": {
+                Object value = argument(args, 0, name);
+                return Values.compare(value, 0L) < 0 ? Values.negate(value) : value;
+            }
+            case "ROUND": {
+                int digits = args.length > 1 ? ((Number) Values.coerce(args[1], "BIGINT", name)).intValue() : 0;
+                BigDecimal value = (BigDecimal) Values.coerce(argument(args, 0, name), "DECIMAL(65,30)", name);
+                return value.setScale(digits, RoundingMode.HALF_UP);
+            }
+            default:
+                throw new RuntimeException("Unknown function: " + functionName);
+        }
+    }
+    
+    private static Object argument(Object[] args, int index, String function) {
+        if (index >= args.length) {
+            throw new RuntimeException("Incorrect parameter count in the call to " + function);
+        }
+        return args[index];
+    }
+    
+    private static String substring(String s, Object position, Object length) {
+        int start = ((Number) Values.coerce(position, "BIGINT", "SUBSTRING")).intValue();
+        int[] codePoints = s.codePoints().toArray();
+        // 1-based; a negative position counts from the end
+        int from = start > 0 ? start - 1 : codePoints.length + start;
+        if (start == 0 || from < 0 || from >= codePoints.length) {
+            return "";
+        }
+        int count = length == null ? codePoints.length - from
+                : ((Number) Values.coerce(length, "BIGINT", "SUBSTRING")).intValue();
+        int to = Math.min(codePoints.length, from + Math.max(count, 0));
+        return new String(codePoints, from, to - from);
+    }
+    
+    // ---- CASE ----
+    
+    @Override
+    public CompiledExpression visitCaseExpression(CaseExpressionNode node) {
+        List<CaseExpressionNode.WhenClause> whens = node.getWhenClauses();
+        CompiledExpression[] conditions = new CompiledExpression[whens.size()];
+        CompiledExpression[] results = new CompiledExpression[whens.size()];
+        List<CompiledExpression> operands = new ArrayList<>();
+        for (int i = 0; i < conditions.length; i++) {
+            conditions[i] = compile(whens.get(i).getCondition());
+            results[i] = compile(whens.get(i).getResult());
+            operands.add(conditions[i]);
+            operands.add(results[i]);
+        }
+        CompiledExpression elseValue = node.getElseValue() != null ? compile(node.getElseValue()) : new Constant(null);
+        operands.add(elseValue);
+        CompiledExpression expression;
+        if (node.getCaseValue() != null) {
+            CompiledExpression caseValue = compile(node.getCaseValue());
+            operands.add(caseValue);
+            expression = tuple -> {
+                Object value = caseValue.evaluate(tuple);
+                for (int i = 0; i < conditions.length; i++) {
+                    Object when = conditions[i].evaluate(tuple);
+                    if (value != null && when != null && Values.compare(value, when) == 0) {
+                        return results[i].evaluate(tuple);
+                    }
+                }
+                return elseValue.evaluate(tuple);
+            };
+        } else {
+            expression = tuple -> {
+                for (int i = 0; i < conditions.length; i++) {
+                    if (conditions[i].test(tuple)) {
+                        return results[i].evaluate(tuple);
+                    }
+                }
+                return elseValue.evaluate(tuple);
+            };
+        }
+        return fold(expression, operands.toArray(new CompiledExpression[0]));
+    }
+    
+    @Override
+    public CompiledExpression visitSubquery(SubqueryNode node) {
+        return error("Subqueries in expressions are not supported");
+    }
+    
+    // ---- statements are not expressions ----
+    
+    private static RuntimeException notAnExpression(ASTNode node) {
+        return new IllegalArgumentException("Not an expression: " + node.getNodeType());
+    }
+    
+    @Override
+    public CompiledExpression visitCreateTableStatement(CreateTableStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitDropTableStatement(DropTableStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitAlterTableStatement(AlterTableStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitCreateIndexStatement(CreateIndexStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitDropIndexStatement(DropIndexStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitCreateDatabaseStatement(CreateDatabaseStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitDropDatabaseStatement(DropDatabaseStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitInsertStatement(InsertStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitUpdateStatement(UpdateStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitDeleteStatement(DeleteStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitLoadDataStatement(LoadDataStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitSelectStatement(SelectStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitBeginTransaction(BeginTransactionNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitCommit(CommitNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitRollback(RollbackNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitColumnDefinition(ColumnDefinitionNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitTableConstraint(TableConstraintNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitPlaceholder(PlaceholderNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitStatementList(StatementListNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitPrepareStatement(PrepareStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitExecuteStatement(ExecuteStatementNode node) { throw notAnExpression(node); }
+    
+    @Override
+    public CompiledExpression visitDeallocatePrepare(DeallocatePrepareNode node) { throw notAnExpression(node); }
+}
@@ -0,0 +1,227 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.*;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Expression Evaluator - helpers for working with expression trees
+ *
+ * Resolves column references, detects aggregate calls and renders
+ * expressions as text. Expressions are evaluated by compiling them with
+ * {@link ExpressionCompiler}; {@link #evaluate} does so for a one-off value.
+ */
+public final class ExpressionEvaluator {
+    
+    private static final Set<String> AGGREGATE_FUNCTIONS = Set.of("COUNT", "SUM", "AVG", "MIN", "MAX");
+    
+    private ExpressionEvaluator() {
+    }
+    
+    /**
+     * Evaluate an expression that does not refer to any column
+     */
+    public static Object evaluate(ASTNode expression) {
+        return ExpressionCompiler.compile(expression, Collections.emptyList()).evaluate(null);
+    }
+    
+    // ---- column resolution ----
+    
+    /**
+     * Position of the column a reference names, or -1 if there is none
+     */
+    public static int resolve(List<ColumnInfo> columns, String qualifier, String name) {
+        int found = -1;
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).matches(qualifier, name)) {
+                if (found >= 0) {
+                    throw new RuntimeException("Column '" + name + "' is ambiguous");
+                }
+                found = i;
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * Translate a LIKE pattern (% and _ wildcards, backslash escapes) to a regular expression
+     */
+    static Pattern compileLike(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length()) {
+                regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+            } else if (c == '%') {
+                regex.append(".*");
+            } else if (c == '_') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+    
+    // ---- aggregate detection ----
+    
+    /**
+     * Check whether a function call is an aggregate (COUNT, SUM, AVG, MIN, MAX)
+     */
+    public static boolean isAggregate(FunctionCallNode node) {
+        return AGGREGATE_FUNCTIONS.contains(node.getFunctionName().toUpperCase(Locale.ROOT));
+    }
+    
+    /**
+     * Add the aggregate calls of an expression to the list, outermost first
+     */
+    public static void collectAggregates(ASTNode node, List<FunctionCallNode> aggregates) {
+        if (node instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            if (isAggregate(call)) {
+                aggregates.add(call);
+                return;
+            }
+            for (ASTNode argument : call.getArguments()) {
+                collectAggregates(argument, aggregates);
+            }
+        } else if (node instanceof BinaryOperationNode) {
+            collectAggregates(((BinaryOperationNode) node).getLeft(), aggregates);
+            collectAggregates(((BinaryOperationNode) node).getRight(), aggregates);
+        } else if (node instanceof UnaryOperationNode) {
+            collectAggregates(((UnaryOperationNode) node).getOperand(), aggregates);
+        } else if (node instanceof CaseExpressionNode) {
+            CaseExpressionNode caseNode = (CaseExpressionNode) node;
+            if (caseNode.getCaseValue() != null) {
+                collectAggregates(caseNode.getCaseValue(), aggregates);
+            }
+            for (CaseExpressionNode.WhenClause when : caseNode.getWhenClauses()) {
+                collectAggregates(when.getCondition(), aggregates);
+                collectAggregates(when.getResult(), aggregates);
+            }
+            if (caseNode.getElseValue() != null) {
+                collectAggregates(caseNode.getElseValue(), aggregates);
+            }
+        }
+    }
+    
+    // ---- expression text ----
+    
+    /**
+     * SQL text of an expression, used as the label of a computed column
+     */
+    public static String describe(ASTNode node) {
+        StringBuilder text = new StringBuilder();
+        describe(node, text, false);
+        return text.toString();
+    }
+    
+    /**
+     * Text that is equal for two expressions exactly when they compute the
+     * same value; identifiers are compared case-insensitively
+     */
+    public static String key(ASTNode node) {
+        StringBuilder text = new StringBuilder();
+        describe(node, text, true);
+        return text.toString();
+    }
+    
+    private static void describe(ASTNode node, StringBuilder text, boolean canonical) {
+        if (node instanceof LiteralNode) {
+            Object value = ((LiteralNode) node).getValue();
+            if (value instanceof String) {
+                text.append('\'').append(((String) value).replace("'", "''")).append('\'');
+            } else {
+                text.append(Values.toString(value));
+            }
+        } else if (node instanceof ParameterNode) {
+            // Two markers are different expressions even when bound to the same value
+            text.append('?');
+            if (canonical) {
+                text.append(((ParameterNode) node).getIndex() + 1);
+            }
+        } else if (node instanceof ColumnReferenceNode) {
+            ColumnReferenceNode column = (ColumnReferenceNode) node;
+            String name = column.hasTableQualifier()
+                    ? column.getTableName() + "." + column.getColumnName() : column.getColumnName();
+            text.append(canonical ? name.toLowerCase(Locale.ROOT) : name);
+        } else if (node instanceof BinaryOperationNode) {
+            BinaryOperationNode binary = (BinaryOperationNode) node;
+            describe(binary.getLeft(), text, canonical);
+            text.append(' ').append(operatorText(binary.getOperator())).append(' ');
+            describe(binary.getRight(), text, canonical);
+        } else if (node instanceof UnaryOperationNode) {
+            UnaryOperationNode unary = (UnaryOperationNode) node;
+            switch (unary.getOperator()) {
+                case NOT:
+                    text.append("NOT ");
+                    describe(unary.getOperand(), text, canonical);
+                    break;
+                case NEGATE:
+                    text.append('-');
+                    describe(unary.getOperand(), text, canonical);
+                    break;
+                case IS_NULL:
+                    describe(unary.getOperand(), text, canonical);
+                    text.append(" IS NULL");
+                    break;
+                default:
+                    describe(unary.getOperand(), text, canonical);
+                    text.append(" IS NOT NULL");
+            }
+        } else if (node instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            text.append(canonical ? call.getFunctionName().toUpperCase(Locale.ROOT) : call.getFunctionName()).append('(');
+            if (call.isDistinct()) {
+                text.append("DISTINCT ");
+            }
+            for (int i = 0; i < call.getArguments().size(); i++) {
+                if (i > 0) {
+                    text.append(", ");
+                }
+                describe(call.getArguments().get(i), text, canonical);
+            }
+            text.append(')');
+        } else if (node instanceof CaseExpressionNode) {
+            CaseExpressionNode caseNode = (CaseExpressionNode) node;
+            text.append("CASE");
+            if (caseNode.getCaseValue() != null) {
+                text.append(' ');
+                describe(caseNode.getCaseValue(), text, canonical);
+            }
+            for (CaseExpressionNode.WhenClause when : caseNode.getWhenClauses()) {
+                text.append(" WHEN ");
+                describe(when.getCondition(), text, canonical);
+                text.append(" THEN ");
+                describe(when.getResult(), text, canonical);
+            }
+            if (caseNode.getElseValue() != null) {
+                text.append(" ELSE ");
+                describe(caseNode.getElseValue(), text, canonical);
+            }
+            text.append(" END");
+        } else if (node instanceof SubqueryNode) {
+            text.append("(subquery@").append(System.identityHashCode(node)).append(')');
+        } else {
+            text.append(node.getNodeType());
+        }
+    }
+    
+    private static String operatorText(BinaryOperationNode.Operator operator) {
+        switch (operator) {
+            case ADD: return "+";
+            case SUBTRACT: return "-";
+            case MULTIPLY: return "*";
+            case DIVIDE: return "/";
+            case MODULO: return "%";
+            case EQUAL: return "=";
+            case NOT_EQUAL: return "<>";
+            case LESS_THAN: return "<";
+            case LESS_EQUAL: return "<=";
+            case GREATER_THAN: return ">";
+            case GREATER_EQUAL: return ">=";
+            default: return operator.name();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+
+import java.util.*;
+
+/**
+ * Filter - passes on the tuples for which a condition is true
+ */
+public class FilterOperator implements Operator {
+    
+    private final Operator child;
+    private final ASTNode condition;
+    private final CompiledExpression predicate;
+    
+    public FilterOperator(Operator child, ASTNode condition) {
+        this(child, condition, Collections.emptyMap());
+    }
+    
+    /**
+     * @param computed slots of expressions computed by an aggregation below, for HAVING
+     */
+    public FilterOperator(Operator child, ASTNode condition, Map<String, Integer> computed) {
+        this.child = child;
+        this.condition = condition;
+        this.predicate = ExpressionCompiler.compile(condition, child.getColumns(), computed);
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return child.getColumns();
+    }
+    
+    public Operator getChild() {
+        return child;
+    }
+    
+    public ASTNode getCondition() {
+        return condition;
+    }
+    
+    @Override
+    public void open() {
+        child.open();
+    }
+    
+    @Override
+    public Tuple next() {
+        for (Tuple tuple = child.next(); tuple != null; tuple = child.next()) {
+            if (predicate.test(tuple)) {
+                return tuple;
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public void close() {
+        child.close();
+    }
+    
+    @Override
+    public String toString() {
+        return "Filter(" + ExpressionEvaluator.describe(condition) + ") <- " + child;
+    }
+}
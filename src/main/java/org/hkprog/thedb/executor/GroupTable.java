@@ -0,0 +1,103 @@
+package org.hkprog.thedb.executor;
+
+import java.util.Arrays;
+
+/**
+ * Group Table - numbers the keys added to it 0, 1, 2... in order of first
+ * appearance, for hash aggregation
+ *
+ * An open-addressing hash table with linear probing. The slots hold group
+ * numbers plus one (zero for an empty slot) and the keys and their hash codes
+ * are kept in arrays indexed by group number, so a lookup probes an int array
+ * and allocates nothing. Keys are compared with equals, so they should be
+ * normalized by {@link Values#hashKey} first.
+ *
+ * Each key is qualified by an int tag, which lets one table hold the DISTINCT
+ * values of every group of an aggregate, tagged with the group number;
+ * tables of plain keys use tag 0.
+ */
+final class GroupTable {
+
+    private int[] slots = new int[16];
+    private int[] hashes = new int[8];
+    private int[] tags = new int[8];
+    private Object[] keys = new Object[8];
+    private int size;
+
+    /**
+     * Number of keys in the table
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Group number of a key, or -1 if it has not been added
+     */
+    int get(Object key) {
+        return get(0, key);
+    }
+
+    int get(int tag, Object key) {
+        int hash = hash(tag, key);
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int group = slots[slot] - 1;
+            if (hashes[group] == hash && tags[group] == tag && equal(keys[group], key)) {
+                return group;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a key that is not in the table and return its group number
+     */
+    int add(Object key) {
+        return add(0, key);
+    }
+
+    int add(int tag, Object key) {
+        if (size == keys.length) {
+            int capacity = keys.length * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            tags = Arrays.copyOf(tags, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+        }
+        int group = size++;
+        hashes[group] = hash(tag, key);
+        tags[group] = tag;
+        keys[group] = key;
+        // Keep the table at most half full so probe sequences stay short
+        if (size * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            for (int g = 0; g < size; g++) {
+                insert(g);
+            }
+        } else {
+            insert(group);
+        }
+        return group;
+    }
+
+    private void insert(int group) {
+        int mask = slots.length - 1;
+        int slot = hashes[group] & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = group + 1;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static int hash(int tag, Object key) {
+        int h = (key == null ? 0 : key.hashCode()) + tag * 0x9E3779B9;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ h >>> 16;
+    }
+}
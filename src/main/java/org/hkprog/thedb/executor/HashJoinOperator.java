@@ -0,0 +1,373 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.ast.SelectStatementNode.JoinClause.JoinType;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Hash Join - joins on equal key expressions by building a hash table of the
+ * right input and probing it with each left tuple
+ *
+ * Keys are compared by their hash keys ({@link Values#hashKey}), so the
+ * planner only uses this operator when both sides of every key hold the same
+ * kind of values (numbers, strings or booleans). A NULL key matches nothing.
+ * The rest of the join condition is checked on each pair with equal keys.
+ * Outer joins are padded with NULLs as by {@link NestedLoopJoinOperator},
+ * and output tuples are likewise the left columns followed by the right.
+ *
+ * When the right input exceeds the memory budget, both inputs are split by
+ * key hash into partitions in temporary files and each pair of partitions is
+ * joined on its own (a grace hash join). A partition that is still too large
+ * is split again with another hash, up to MAX_DEPTH levels; below that it is
+ * joined in memory whatever its size, as happens when one key is very common.
+ */
+public class HashJoinOperator implements Operator {
+
+    private static final int PARTITIONS = 16;
+    private static final int MAX_DEPTH = 3;
+
+    /**
+     * Estimated bytes of hash table overhead per right tuple
+     */
+    private static final long ENTRY_OVERHEAD = 64;
+
+    private final Operator left;
+    private final Operator right;
+    private final JoinType joinType;
+    private final List<ASTNode> leftKeys;
+    private final List<ASTNode> rightKeys;
+    private final ASTNode residual;
+    private final Path tempDirectory;
+    private final long memoryBudget;
+    private final int depth;
+    private final List<ColumnInfo> columns;
+    private final CompiledExpression[] leftKeyExpressions;
+    private final CompiledExpression[] rightKeyExpressions;
+    private final CompiledExpression residualPredicate;
+    private final int leftWidth;
+    private final int rightWidth;
+
+    // In-memory join
+    private Map<Object, List<BuildEntry>> table;
+    private List<BuildEntry> buildEntries;
+    private long buildBytes;
+    private boolean leftOpen;
+    private Tuple currentLeft;
+    private boolean currentLeftMatched;
+    private List<BuildEntry> candidates;
+    private int candidatePosition;
+    private int unmatchedPosition;
+
+    // Partitioned join
+    private SpillFile[] leftPartitions;
+    private SpillFile[] rightPartitions;
+    private int partition;
+    private Operator partitionJoin;
+
+    private static final class BuildEntry {
+        final Tuple tuple;
+        boolean matched;
+
+        BuildEntry(Tuple tuple) {
+            this.tuple = tuple;
+        }
+    }
+
+    /**
+     * @param leftKeys key expressions over the left columns, equal to rightKeys over the right ones
+     * @param residual rest of the join condition, or null
+     * @param tempDirectory where partitions are written when the right input is too large
+     * @param memoryBudget bytes the hash table may take before the join is partitioned
+     */
+    public HashJoinOperator(Operator left, Operator right, JoinType joinType, List<ASTNode> leftKeys,
+                            List<ASTNode> rightKeys, ASTNode residual, Path tempDirectory, long memoryBudget) {
+        this(left, right, joinType, leftKeys, rightKeys, residual, tempDirectory, memoryBudget, 0);
+    }
+
+    private HashJoinOperator(Operator left, Operator right, JoinType joinType, List<ASTNode> leftKeys,
+                             List<ASTNode> rightKeys, ASTNode residual, Path tempDirectory, long memoryBudget, int depth) {
+        this.left = left;
+        this.right = right;
+        this.joinType = joinType;
+        this.leftKeys = leftKeys;
+        this.rightKeys = rightKeys;
+        this.residual = residual;
+        this.tempDirectory = tempDirectory;
+        this.memoryBudget = memoryBudget;
+        this.depth = depth;
+        this.columns = new ArrayList<>(left.getColumns());
+        this.columns.addAll(right.getColumns());
+        this.leftKeyExpressions = compile(leftKeys, left.getColumns());
+        this.rightKeyExpressions = compile(rightKeys, right.getColumns());
+        this.residualPredicate = residual != null ? ExpressionCompiler.compile(residual, columns) : null;
+        this.leftWidth = left.getColumns().size();
+        this.rightWidth = right.getColumns().size();
+    }
+
+    private static CompiledExpression[] compile(List<ASTNode> keys, List<ColumnInfo> columns) {
+        CompiledExpression[] compiled = new CompiledExpression[keys.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = ExpressionCompiler.compile(keys.get(i), columns);
+        }
+        return compiled;
+    }
+
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+
+    private boolean padsLeft() {
+        return joinType == JoinType.LEFT || joinType == JoinType.FULL;
+    }
+
+    private boolean padsRight() {
+        return joinType == JoinType.RIGHT || joinType == JoinType.FULL;
+    }
+
+    /**
+     * Hash key of a tuple's key values, or null if one of them is NULL
+     */
+    private static Object key(CompiledExpression[] expressions, Tuple tuple) {
+        if (expressions.length == 1) {
+            return Values.hashKey(expressions[0].evaluate(tuple));
+        }
+        List<Object> key = new ArrayList<>(expressions.length);
+        for (CompiledExpression expression : expressions) {
+            Object value = Values.hashKey(expression.evaluate(tuple));
+            if (value == null) {
+                return null;
+            }
+            key.add(value);
+        }
+        return key;
+    }
+
+    private int partitionOf(Object key) {
+        return SpillFile.partitionOf(key, depth, PARTITIONS);
+    }
+
+    @Override
+    public void open() {
+        table = new HashMap<>();
+        buildEntries = padsRight() ? new ArrayList<>() : null;
+        buildBytes = 0;
+        partition = -1;
+        try {
+            build();
+            if (rightPartitions != null) {
+                partitionLeft();
+                return;
+            }
+        } catch (RuntimeException e) {
+            closePartitions();
+            throw e;
+        }
+        currentLeft = null;
+        candidates = null;
+        unmatchedPosition = 0;
+        left.open();
+        leftOpen = true;
+    }
+
+    /**
+     * Read the right input into the hash table, or into partitions once it
+     * outgrows the memory budget
+     */
+    private void build() {
+        right.open();
+        try {
+            for (Tuple tuple = right.next(); tuple != null; tuple = right.next()) {
+                Object key = key(rightKeyExpressions, tuple);
+                if (key == null && !padsRight()) {
+                    continue;
+                }
+                if (rightPartitions != null) {
+                    rightPartitions[partitionOf(key)].write(tuple);
+                    continue;
+                }
+                BuildEntry entry = new BuildEntry(tuple);
+                if (key != null) {
+                    table.computeIfAbsent(key, k -> new ArrayList<>(1)).add(entry);
+                }
+                if (buildEntries != null) {
+                    buildEntries.add(entry);
+                }
+                buildBytes += tuple.estimatedSize() + ENTRY_OVERHEAD;
+                if (buildBytes > memoryBudget && depth < MAX_DEPTH) {
+                    spillBuild();
+                }
+            }
+        } finally {
+            right.close();
+        }
+    }
+
+    private void spillBuild() {
+        rightPartitions = createPartitions();
+        if (buildEntries != null) {
+            for (BuildEntry entry : buildEntries) {
+                rightPartitions[partitionOf(key(rightKeyExpressions, entry.tuple))].write(entry.tuple);
+            }
+        } else {
+            for (List<BuildEntry> entries : table.values()) {
+                for (BuildEntry entry : entries) {
+                    rightPartitions[partitionOf(key(rightKeyExpressions, entry.tuple))].write(entry.tuple);
+                }
+            }
+        }
+        table = null;
+        buildEntries = null;
+    }
+
+    private void partitionLeft() {
+        leftPartitions = createPartitions();
+        left.open();
+        try {
+            for (Tuple tuple = left.next(); tuple != null; tuple = left.next()) {
+                Object key = key(leftKeyExpressions, tuple);
+                if (key == null && !padsLeft()) {
+                    continue;
+                }
+                leftPartitions[partitionOf(key)].write(tuple);
+            }
+        } finally {
+            left.close();
+        }
+    }
+
+    private SpillFile[] createPartitions() {
+        SpillFile[] partitions = new SpillFile[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions[i] = new SpillFile(tempDirectory);
+        }
+        return partitions;
+    }
+
+    @Override
+    public Tuple next() {
+        if (leftPartitions != null) {
+            return nextPartitioned();
+        }
+        while (currentLeft != null || leftOpen) {
+            if (currentLeft != null) {
+                while (candidatePosition < candidates.size()) {
+                    BuildEntry entry = candidates.get(candidatePosition++);
+                    Tuple joined = Tuple.concat(currentLeft, leftWidth, entry.tuple, rightWidth);
+                    if (residualPredicate == null || residualPredicate.test(joined)) {
+                        currentLeftMatched = true;
+                        entry.matched = true;
+                        return joined;
+                    }
+                }
+                Tuple unmatched = currentLeft;
+                currentLeft = null;
+                if (!currentLeftMatched && padsLeft()) {
+                    return Tuple.concat(unmatched, leftWidth, null, rightWidth);
+                }
+            }
+            Tuple tuple = left.next();
+            if (tuple == null) {
+                left.close();
+                leftOpen = false;
+                break;
+            }
+            Object key = key(leftKeyExpressions, tuple);
+            List<BuildEntry> matches = key == null ? null : table.get(key);
+            if (matches == null && !padsLeft()) {
+                continue;
+            }
+            currentLeft = tuple;
+            currentLeftMatched = false;
+            candidates = matches != null ? matches : Collections.emptyList();
+            candidatePosition = 0;
+        }
+        if (buildEntries != null) {
+            while (unmatchedPosition < buildEntries.size()) {
+                BuildEntry entry = buildEntries.get(unmatchedPosition++);
+                if (!entry.matched) {
+                    return Tuple.concat(null, leftWidth, entry.tuple, rightWidth);
+                }
+            }
+        }
+        return null;
+    }
+
+    private Tuple nextPartitioned() {
+        while (true) {
+            if (partitionJoin != null) {
+                Tuple tuple = partitionJoin.next();
+                if (tuple != null) {
+                    return tuple;
+                }
+                partitionJoin.close();
+                partitionJoin = null;
+                leftPartitions[partition].close();
+                rightPartitions[partition].close();
+            }
+            if (partition + 1 >= PARTITIONS) {
+                return null;
+            }
+            partition++;
+            SpillFile leftPartition = leftPartitions[partition];
+            SpillFile rightPartition = rightPartitions[partition];
+            boolean hasLeft = leftPartition.getCount() > 0;
+            boolean hasRight = rightPartition.getCount() > 0;
+            if (hasLeft && hasRight || hasLeft && padsLeft() || hasRight && padsRight()) {
+                partitionJoin = new HashJoinOperator(leftPartition.reader(left.getColumns()),
+                        rightPartition.reader(right.getColumns()), joinType, leftKeys, rightKeys, residual,
+                        tempDirectory, memoryBudget, depth + 1);
+                partitionJoin.open();
+            } else {
+                leftPartition.close();
+                rightPartition.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (leftOpen) {
+            left.close();
+            leftOpen = false;
+        }
+        closePartitions();
+        table = null;
+        buildEntries = null;
+        candidates = null;
+        currentLeft = null;
+    }
+
+    private void closePartitions() {
+        if (partitionJoin != null) {
+            partitionJoin.close();
+            partitionJoin = null;
+        }
+        for (SpillFile[] partitions : Arrays.asList(leftPartitions, rightPartitions)) {
+            if (partitions != null) {
+                for (SpillFile file : partitions) {
+                    if (file != null) {
+                        file.close();
+                    }
+                }
+            }
+        }
+        leftPartitions = null;
+        rightPartitions = null;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner condition = new StringJoiner(" AND ");
+        for (int i = 0; i < leftKeys.size(); i++) {
+            condition.add(ExpressionEvaluator.describe(leftKeys.get(i)) + " = "
+                    + ExpressionEvaluator.describe(rightKeys.get(i)));
+        }
+        if (residual != null) {
+            condition.add(ExpressionEvaluator.describe(residual));
+        }
+        return "HashJoin(" + joinType + " ON " + condition + ") <- [" + left + ", " + right + "]";
+    }
+}
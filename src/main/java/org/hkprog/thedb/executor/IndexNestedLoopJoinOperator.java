@@ -0,0 +1,164 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.ast.SelectStatementNode.JoinClause.JoinType;
+import org.hkprog.thedb.storage.Index;
+import org.hkprog.thedb.storage.RowId;
+import org.hkprog.thedb.storage.StorageEngine;
+
+import java.util.*;
+
+/**
+ * Index Nested Loop Join - for each left tuple, looks up the matching rows
+ * of the right table in an index on its join columns
+ *
+ * Only the rows with the left tuple's key are read, so a join from a few
+ * left tuples costs a few index lookups whatever the size of the right
+ * table. The key values are converted to the types of the index columns; a
+ * NULL key, or one that no value of the column can equal, matches nothing.
+ * The rest of the join condition, and any conditions on the right table, are
+ * checked on each joined tuple. INNER and LEFT joins only: the right table is
+ * never read as a whole, so its unmatched rows are not known.
+ */
+public class IndexNestedLoopJoinOperator implements Operator {
+
+    private final Operator left;
+    private final StorageEngine.Table table;
+    private final Index index;
+    private final JoinType joinType;
+    private final List<ASTNode> leftKeys;
+    private final ASTNode residual;
+    private final List<ColumnInfo> columns;
+    private final CompiledExpression[] leftKeyExpressions;
+    private final StorageEngine.TableSchema.Column[] keyColumns;
+    private final CompiledExpression residualPredicate;
+    private final int leftWidth;
+    private final int rightWidth;
+
+    private Tuple currentLeft;
+    private boolean currentLeftMatched;
+    private Iterator<RowId> rowIds;
+
+    /**
+     * @param qualifier name the right table's columns can be qualified with
+     * @param leftKeys expressions over the left columns giving the leading key columns of the index
+     * @param residual rest of the join condition and conditions on the right table, or null
+     */
+    public IndexNestedLoopJoinOperator(Operator left, StorageEngine.Table table, String qualifier, Index index,
+                                       JoinType joinType, List<ASTNode> leftKeys, ASTNode residual) {
+        if (joinType != JoinType.INNER && joinType != JoinType.LEFT) {
+            throw new IllegalArgumentException("Index nested loop join cannot do a " + joinType + " join");
+        }
+        this.left = left;
+        this.table = table;
+        this.index = index;
+        this.joinType = joinType;
+        this.leftKeys = leftKeys;
+        this.residual = residual;
+        List<ColumnInfo> rightColumns = TableScanOperator.tableColumns(table, qualifier);
+        this.columns = new ArrayList<>(left.getColumns());
+        this.columns.addAll(rightColumns);
+        this.leftKeyExpressions = new CompiledExpression[leftKeys.size()];
+        this.keyColumns = new StorageEngine.TableSchema.Column[leftKeys.size()];
+        for (int i = 0; i < leftKeys.size(); i++) {
+            leftKeyExpressions[i] = ExpressionCompiler.compile(leftKeys.get(i), left.getColumns());
+            keyColumns[i] = table.getSchema().getColumns().get(table.getSchema().indexOf(index.getColumns().get(i)));
+        }
+        this.residualPredicate = residual != null ? ExpressionCompiler.compile(residual, columns) : null;
+        this.leftWidth = left.getColumns().size();
+        this.rightWidth = rightColumns.size();
+    }
+
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+
+    public Operator getLeft() {
+        return left;
+    }
+
+    @Override
+    public void open() {
+        currentLeft = null;
+        rowIds = null;
+        left.open();
+    }
+
+    /**
+     * Index key for a left tuple, or null if it can match no row
+     */
+    private List<Object> key(Tuple tuple) {
+        List<Object> key = new ArrayList<>(keyColumns.length);
+        for (int i = 0; i < keyColumns.length; i++) {
+            Object value = leftKeyExpressions[i].evaluate(tuple);
+            if (value == null) {
+                return null;
+            }
+            try {
+                Object coerced = Values.coerce(value, keyColumns[i].getType(), keyColumns[i].getName());
+                if (Values.compare(coerced, value) != 0) {
+                    return null;
+                }
+                key.add(coerced);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+        return key;
+    }
+
+    @Override
+    public Tuple next() {
+        while (true) {
+            if (currentLeft != null) {
+                while (rowIds.hasNext()) {
+                    StorageEngine.Row row = table.getRow(rowIds.next());
+                    // The row may have been deleted since the index entry was read
+                    if (row == null) {
+                        continue;
+                    }
+                    Tuple joined = Tuple.concat(currentLeft, leftWidth, TableScanOperator.toTuple(table, row), rightWidth);
+                    if (residualPredicate == null || residualPredicate.test(joined)) {
+                        currentLeftMatched = true;
+                        return joined;
+                    }
+                }
+                Tuple unmatched = currentLeft;
+                currentLeft = null;
+                if (!currentLeftMatched && joinType == JoinType.LEFT) {
+                    return Tuple.concat(unmatched, leftWidth, null, rightWidth);
+                }
+            }
+            Tuple tuple = left.next();
+            if (tuple == null) {
+                return null;
+            }
+            List<Object> key = key(tuple);
+            currentLeft = tuple;
+            currentLeftMatched = false;
+            rowIds = key != null ? index.lookup(key).iterator() : Collections.emptyIterator();
+        }
+    }
+
+    @Override
+    public void close() {
+        currentLeft = null;
+        rowIds = null;
+        left.close();
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner condition = new StringJoiner(" AND ");
+        for (int i = 0; i < leftKeys.size(); i++) {
+            condition.add(ExpressionEvaluator.describe(leftKeys.get(i)) + " = " + table.getName() + "."
+                    + index.getColumns().get(i));
+        }
+        if (residual != null) {
+            condition.add(ExpressionEvaluator.describe(residual));
+        }
+        return "IndexNestedLoopJoin(" + joinType + " ON " + condition + ") <- [" + left + ", IndexLookup("
+                + table.getName() + "." + index.getName() + ")]";
+    }
+}
@@ -0,0 +1,168 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ParameterNode;
+import org.hkprog.thedb.storage.Index;
+import org.hkprog.thedb.storage.RowId;
+import org.hkprog.thedb.storage.StorageEngine;
+
+import java.util.*;
+
+/**
+ * Index Scan - reads the rows of a table whose leading index columns lie
+ * between two bounds, in index order
+ *
+ * An equality lookup is a scan with the same inclusive bound on both sides.
+ * A descending scan returns the rows in reverse index order, for ORDER BY
+ * ... DESC.
+ *
+ * Key values may be {@link ParameterNode}s of a prepared statement; they are
+ * read when the scan is opened. If a bound value does not fit the column the
+ * whole index is scanned, which is correct because the conditions are
+ * applied again above the scan.
+ */
+public class IndexScanOperator implements Operator {
+    
+    private final StorageEngine.Table table;
+    private final Index index;
+    private final List<Object> low;
+    private final boolean lowInclusive;
+    private final List<Object> high;
+    private final boolean highInclusive;
+    private final boolean descending;
+    private final List<ColumnInfo> columns;
+    private Iterator<RowId> rowIds;
+    
+    /**
+     * @param low lower bound on the leading key columns, or null for none
+     * @param high upper bound on the leading key columns, or null for none
+     */
+    public IndexScanOperator(StorageEngine.Table table, String qualifier, Index index,
+                             List<Object> low, boolean lowInclusive, List<Object> high, boolean highInclusive) {
+        this(table, qualifier, index, low, lowInclusive, high, highInclusive, false);
+    }
+    
+    public IndexScanOperator(StorageEngine.Table table, String qualifier, Index index, List<Object> low,
+                             boolean lowInclusive, List<Object> high, boolean highInclusive, boolean descending) {
+        this.table = table;
+        this.index = index;
+        this.low = low;
+        this.lowInclusive = lowInclusive;
+        this.high = high;
+        this.highInclusive = highInclusive;
+        this.descending = descending;
+        this.columns = TableScanOperator.tableColumns(table, qualifier);
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+    
+    /**
+     * Column the rows come out ordered by: the leading column of the index,
+     * or null for a descending scan
+     */
+    public ColumnInfo getOrderColumn() {
+        return descending ? null : columns.get(table.getSchema().indexOf(index.getColumns().get(0)));
+    }
+    
+    public StorageEngine.Table getTable() {
+        return table;
+    }
+    
+    public Index getIndex() {
+        return index;
+    }
+    
+    public boolean isDescending() {
+        return descending;
+    }
+    
+    /**
+     * Number of leading index columns the scan holds at one value each; the
+     * rows are in order of the index columns after them
+     */
+    public int getEqualityPrefix() {
+        return low != null && low == high && lowInclusive && highInclusive ? low.size() : 0;
+    }
+    
+    /**
+     * The same scan in the opposite order
+     */
+    public IndexScanOperator reversed() {
+        return new IndexScanOperator(table, columns.get(0).getQualifier(), index, low, lowInclusive, high,
+                highInclusive, !descending);
+    }
+    
+    @Override
+    public void open() {
+        List<Object> lowKey = bind(low);
+        List<Object> highKey = bind(high);
+        if (lowKey == UNUSABLE || highKey == UNUSABLE) {
+            lowKey = null;
+            highKey = null;
+        }
+        rowIds = descending ? index.rangeDescending(lowKey, lowInclusive, highKey, highInclusive)
+                : index.range(lowKey, lowInclusive, highKey, highInclusive);
+    }
+    
+    private static final List<Object> UNUSABLE = Collections.emptyList();
+    
+    /**
+     * A bound with the values of its parameters, coerced to the column types,
+     * or UNUSABLE if one of them is NULL or does not fit its column
+     */
+    private List<Object> bind(List<Object> bound) {
+        if (bound == null) {
+            return null;
+        }
+        List<Object> key = bound;
+        for (int i = 0; i < bound.size(); i++) {
+            if (!(bound.get(i) instanceof ParameterNode)) {
+                continue;
+            }
+            Object value = ((ParameterNode) bound.get(i)).getValue();
+            if (value == null) {
+                return UNUSABLE;
+            }
+            String columnName = index.getColumns().get(i);
+            StorageEngine.TableSchema.Column column = table.getSchema().getColumns().get(table.getSchema().indexOf(columnName));
+            try {
+                Object coerced = Values.coerce(value, column.getType(), column.getName());
+                if (Values.compare(coerced, value) != 0) {
+                    return UNUSABLE;
+                }
+                if (key == bound) {
+                    key = new ArrayList<>(bound);
+                }
+                key.set(i, coerced);
+            } catch (RuntimeException e) {
+                return UNUSABLE;
+            }
+        }
+        return key;
+    }
+    
+    @Override
+    public Tuple next() {
+        while (rowIds.hasNext()) {
+            StorageEngine.Row row = table.getRow(rowIds.next());
+            // The row may have been deleted since the index entry was read
+            if (row != null) {
+                return TableScanOperator.toTuple(table, row);
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public void close() {
+        rowIds = null;
+    }
+    
+    @Override
+    public String toString() {
+        return "IndexScan(" + table.getName() + "." + index.getName() + ", " + low + (lowInclusive ? "<=" : "<")
+                + " key " + (highInclusive ? "<=" : "<") + high + (descending ? ", DESC" : "") + ")";
+    }
+}
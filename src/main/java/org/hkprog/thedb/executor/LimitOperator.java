@@ -0,0 +1,61 @@
+package org.hkprog.thedb.executor;
+
+import java.util.List;
+
+/**
+ * Limit - skips the first offset tuples and stops after limit more
+ */
+public class LimitOperator implements Operator {
+    
+    private final Operator child;
+    private final long limit;
+    private final long offset;
+    private long returned;
+    
+    /**
+     * @param limit maximum number of tuples, or -1 for no limit
+     */
+    public LimitOperator(Operator child, long limit, long offset) {
+        this.child = child;
+        this.limit = limit;
+        this.offset = offset;
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return child.getColumns();
+    }
+    
+    @Override
+    public void open() {
+        child.open();
+        returned = 0;
+        for (long skipped = 0; skipped < offset; skipped++) {
+            if (child.next() == null) {
+                break;
+            }
+        }
+    }
+    
+    @Override
+    public Tuple next() {
+        if (limit >= 0 && returned >= limit) {
+            return null;
+        }
+        Tuple tuple = child.next();
+        if (tuple != null) {
+            returned++;
+        }
+        return tuple;
+    }
+    
+    @Override
+    public void close() {
+        child.close();
+    }
+    
+    @Override
+    public String toString() {
+        return "Limit(" + limit + " offset " + offset + ") <- " + child;
+    }
+}
@@ -0,0 +1,264 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.ast.SelectStatementNode.JoinClause.JoinType;
+
+import java.util.*;
+
+/**
+ * Merge Join - joins two inputs that are both in ascending order of their
+ * join key by reading them side by side
+ *
+ * Only the right tuples with the key of the current left tuple are kept in
+ * memory. NULL keys, which index scans return first, match nothing. The rest
+ * of the join condition is checked on each pair with equal keys, and outer
+ * joins are padded with NULLs as by {@link NestedLoopJoinOperator}; unmatched
+ * right tuples are returned in key order among the joined ones. Output tuples
+ * are the left columns followed by the right, and INNER and LEFT joins keep
+ * the order of the left input.
+ *
+ * Keys compare as {@link Values#compare} does, except that strings compare
+ * by code point, which is the order of their UTF-8 index keys.
+ */
+public class MergeJoinOperator implements Operator {
+
+    private final Operator left;
+    private final Operator right;
+    private final JoinType joinType;
+    private final ASTNode leftKey;
+    private final ASTNode rightKey;
+    private final ASTNode residual;
+    private final List<ColumnInfo> columns;
+    private final CompiledExpression leftKeyExpression;
+    private final CompiledExpression rightKeyExpression;
+    private final CompiledExpression residualPredicate;
+    private final int leftWidth;
+    private final int rightWidth;
+
+    // Next unread tuple of each input and its key
+    private Tuple nextLeft;
+    private Object nextLeftKey;
+    private Tuple nextRight;
+    private Object nextRightKey;
+
+    // Right tuples with the key of the current left tuple
+    private List<Tuple> group;
+    private Object groupKey;
+    private BitSet groupMatched;
+    private int unmatchedPosition;
+    private boolean draining;
+
+    private Tuple current;
+    private boolean currentMatched;
+    private int groupPosition;
+
+    /**
+     * @param leftKey key expression over the left columns, equal to rightKey over the right ones
+     * @param residual rest of the join condition, or null
+     */
+    public MergeJoinOperator(Operator left, Operator right, JoinType joinType, ASTNode leftKey, ASTNode rightKey,
+                             ASTNode residual) {
+        this.left = left;
+        this.right = right;
+        this.joinType = joinType;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.residual = residual;
+        this.columns = new ArrayList<>(left.getColumns());
+        this.columns.addAll(right.getColumns());
+        this.leftKeyExpression = ExpressionCompiler.compile(leftKey, left.getColumns());
+        this.rightKeyExpression = ExpressionCompiler.compile(rightKey, right.getColumns());
+        this.residualPredicate = residual != null ? ExpressionCompiler.compile(residual, columns) : null;
+        this.leftWidth = left.getColumns().size();
+        this.rightWidth = right.getColumns().size();
+    }
+
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+
+    public Operator getLeft() {
+        return left;
+    }
+
+    public JoinType getJoinType() {
+        return joinType;
+    }
+
+    private boolean padsLeft() {
+        return joinType == JoinType.LEFT || joinType == JoinType.FULL;
+    }
+
+    private boolean padsRight() {
+        return joinType == JoinType.RIGHT || joinType == JoinType.FULL;
+    }
+
+    @Override
+    public void open() {
+        group = null;
+        draining = false;
+        current = null;
+        right.open();
+        try {
+            left.open();
+        } catch (RuntimeException e) {
+            right.close();
+            throw e;
+        }
+        advanceLeft();
+        advanceRight();
+    }
+
+    private void advanceLeft() {
+        nextLeft = left.next();
+        nextLeftKey = nextLeft != null ? leftKeyExpression.evaluate(nextLeft) : null;
+    }
+
+    private void advanceRight() {
+        nextRight = right.next();
+        nextRightKey = nextRight != null ? rightKeyExpression.evaluate(nextRight) : null;
+    }
+
+    private static int compareKeys(Object a, Object b) {
+        if (a instanceof String && b instanceof String) {
+            String x = (String) a;
+            String y = (String) b;
+            int i = 0;
+            int j = 0;
+            while (i < x.length() && j < y.length()) {
+                int cx = x.codePointAt(i);
+                int cy = y.codePointAt(j);
+                if (cx != cy) {
+                    return Integer.compare(cx, cy);
+                }
+                i += Character.charCount(cx);
+                j += Character.charCount(cy);
+            }
+            return Boolean.compare(i < x.length(), j < y.length());
+        }
+        return Values.compare(a, b);
+    }
+
+    @Override
+    public Tuple next() {
+        while (true) {
+            if (current != null) {
+                while (groupPosition < group.size()) {
+                    int index = groupPosition++;
+                    Tuple joined = Tuple.concat(current, leftWidth, group.get(index), rightWidth);
+                    if (residualPredicate == null || residualPredicate.test(joined)) {
+                        currentMatched = true;
+                        groupMatched.set(index);
+                        return joined;
+                    }
+                }
+                Tuple unmatched = current;
+                current = null;
+                if (!currentMatched && padsLeft()) {
+                    return Tuple.concat(unmatched, leftWidth, null, rightWidth);
+                }
+            }
+            if (draining) {
+                int index = groupMatched.nextClearBit(unmatchedPosition);
+                if (index < group.size()) {
+                    unmatchedPosition = index + 1;
+                    return Tuple.concat(null, leftWidth, group.get(index), rightWidth);
+                }
+                draining = false;
+                group = null;
+            }
+            if (nextLeft == null) {
+                if (discardGroup()) {
+                    continue;
+                }
+                if (padsRight() && nextRight != null) {
+                    Tuple unmatched = nextRight;
+                    advanceRight();
+                    return Tuple.concat(null, leftWidth, unmatched, rightWidth);
+                }
+                return null;
+            }
+            if (nextLeftKey == null) {
+                Tuple unmatched = nextLeft;
+                advanceLeft();
+                if (padsLeft()) {
+                    return Tuple.concat(unmatched, leftWidth, null, rightWidth);
+                }
+                continue;
+            }
+            if (group != null && compareKeys(nextLeftKey, groupKey) == 0) {
+                startLeft();
+                continue;
+            }
+            if (discardGroup()) {
+                continue;
+            }
+            // Skip the right tuples with smaller keys; they have no match
+            while (nextRight != null && (nextRightKey == null || compareKeys(nextRightKey, nextLeftKey) < 0)) {
+                Tuple unmatched = nextRight;
+                advanceRight();
+                if (padsRight()) {
+                    return Tuple.concat(null, leftWidth, unmatched, rightWidth);
+                }
+            }
+            if (nextRight != null && compareKeys(nextRightKey, nextLeftKey) == 0) {
+                group = new ArrayList<>();
+                groupKey = nextRightKey;
+                groupMatched = new BitSet();
+                while (nextRight != null && nextRightKey != null && compareKeys(nextRightKey, groupKey) == 0) {
+                    group.add(nextRight);
+                    advanceRight();
+                }
+                startLeft();
+                continue;
+            }
+            Tuple unmatched = nextLeft;
+            advanceLeft();
+            if (padsLeft()) {
+                return Tuple.concat(unmatched, leftWidth, null, rightWidth);
+            }
+        }
+    }
+
+    private void startLeft() {
+        current = nextLeft;
+        currentMatched = false;
+        groupPosition = 0;
+        advanceLeft();
+    }
+
+    /**
+     * Drop the current group; true if its unmatched tuples are to be returned first
+     */
+    private boolean discardGroup() {
+        if (group == null) {
+            return false;
+        }
+        if (padsRight()) {
+            draining = true;
+            unmatchedPosition = 0;
+            return true;
+        }
+        group = null;
+        return false;
+    }
+
+    @Override
+    public void close() {
+        group = null;
+        current = null;
+        nextLeft = null;
+        nextRight = null;
+        left.close();
+        right.close();
+    }
+
+    @Override
+    public String toString() {
+        return "MergeJoin(" + joinType + " ON " + ExpressionEvaluator.describe(leftKey) + " = "
+                + ExpressionEvaluator.describe(rightKey)
+                + (residual != null ? " AND " + ExpressionEvaluator.describe(residual) : "")
+                + ") <- [" + left + ", " + right + "]";
+    }
+}
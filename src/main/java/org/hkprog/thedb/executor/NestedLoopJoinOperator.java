@@ -0,0 +1,124 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.ast.SelectStatementNode.JoinClause.JoinType;
+
+import java.util.*;
+
+/**
+ * Nested Loop Join - joins every left tuple with every buffered right tuple
+ * that satisfies the join condition
+ *
+ * The right input is read into memory once; the left input streams. LEFT
+ * and FULL joins pad unmatched left tuples with NULLs, RIGHT and FULL joins
+ * return the unmatched right tuples, padded, after the left input is done.
+ * Output tuples are the left columns followed by the right columns.
+ */
+public class NestedLoopJoinOperator implements Operator {
+    
+    private final Operator left;
+    private final Operator right;
+    private final JoinType joinType;
+    private final ASTNode condition;
+    private final List<ColumnInfo> columns;
+    private final CompiledExpression predicate;
+    private final int leftWidth;
+    private final int rightWidth;
+    
+    private List<Tuple> rightTuples;
+    private BitSet rightMatched;
+    private Tuple currentLeft;
+    private boolean currentLeftMatched;
+    private int rightPosition;
+    private boolean leftDone;
+    
+    /**
+     * @param condition join condition, or null to join every pair
+     */
+    public NestedLoopJoinOperator(Operator left, Operator right, JoinType joinType, ASTNode condition) {
+        this.left = left;
+        this.right = right;
+        this.joinType = joinType;
+        this.condition = condition;
+        this.columns = new ArrayList<>(left.getColumns());
+        this.columns.addAll(right.getColumns());
+        this.predicate = condition != null ? ExpressionCompiler.compile(condition, columns) : null;
+        this.leftWidth = left.getColumns().size();
+        this.rightWidth = right.getColumns().size();
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+    
+    @Override
+    public void open() {
+        rightTuples = new ArrayList<>();
+        right.open();
+        try {
+            for (Tuple tuple = right.next(); tuple != null; tuple = right.next()) {
+                rightTuples.add(tuple);
+            }
+        } finally {
+            right.close();
+        }
+        rightMatched = new BitSet(rightTuples.size());
+        currentLeft = null;
+        leftDone = false;
+        rightPosition = 0;
+        left.open();
+    }
+    
+    @Override
+    public Tuple next() {
+        while (!leftDone) {
+            if (currentLeft == null) {
+                currentLeft = left.next();
+                if (currentLeft == null) {
+                    leftDone = true;
+                    rightPosition = 0;
+                    break;
+                }
+                currentLeftMatched = false;
+                rightPosition = 0;
+            }
+            while (rightPosition < rightTuples.size()) {
+                int index = rightPosition++;
+                Tuple joined = Tuple.concat(currentLeft, leftWidth, rightTuples.get(index), rightWidth);
+                if (predicate == null || predicate.test(joined)) {
+                    currentLeftMatched = true;
+                    rightMatched.set(index);
+                    return joined;
+                }
+            }
+            Tuple unmatched = currentLeft;
+            currentLeft = null;
+            if (!currentLeftMatched && (joinType == JoinType.LEFT || joinType == JoinType.FULL)) {
+                return Tuple.concat(unmatched, leftWidth, null, rightWidth);
+            }
+        }
+        if (joinType == JoinType.RIGHT || joinType == JoinType.FULL) {
+            int index = rightMatched.nextClearBit(rightPosition);
+            if (index < rightTuples.size()) {
+                rightPosition = index + 1;
+                return Tuple.concat(null, leftWidth, rightTuples.get(index), rightWidth);
+            }
+            rightPosition = rightTuples.size();
+        }
+        return null;
+    }
+    
+    @Override
+    public void close() {
+        rightTuples = null;
+        rightMatched = null;
+        left.close();
+    }
+    
+    @Override
+    public String toString() {
+        return "NestedLoopJoin(" + joinType + (condition != null ? " ON " + ExpressionEvaluator.describe(condition) : "")
+                + ") <- [" + left + ", " + right + "]";
+    }
+}
@@ -0,0 +1,29 @@
+package org.hkprog.thedb.executor;
+
+import java.util.List;
+
+/**
+ * Operator - a node of a physical query plan
+ *
+ * Operators follow the iterator (Volcano) model: {@link #open()} prepares the
+ * operator and its inputs, each {@link #next()} call pulls one tuple through
+ * the pipeline, and {@link #close()} releases resources. Only operators that
+ * must see all their input before producing output (sort, aggregate, the
+ * inner side of a join) buffer tuples; everything else streams.
+ */
+public interface Operator {
+    
+    /**
+     * Columns of the tuples this operator produces
+     */
+    List<ColumnInfo> getColumns();
+    
+    void open();
+    
+    /**
+     * Next tuple, or null when the operator is exhausted
+     */
+    Tuple next();
+    
+    void close();
+}
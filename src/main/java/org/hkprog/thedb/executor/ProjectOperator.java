@@ -0,0 +1,62 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+
+import java.util.*;
+
+/**
+ * Project - computes the select list for each input tuple
+ */
+public class ProjectOperator implements Operator {
+    
+    private final Operator child;
+    private final List<ColumnInfo> columns;
+    private final CompiledExpression[] compiled;
+    
+    /**
+     * @param columns names of the output columns, one per expression
+     * @param computed slots of expressions computed by an aggregation below
+     */
+    public ProjectOperator(Operator child, List<ASTNode> expressions, List<ColumnInfo> columns,
+                           Map<String, Integer> computed) {
+        this.child = child;
+        this.columns = columns;
+        this.compiled = new CompiledExpression[expressions.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = ExpressionCompiler.compile(expressions.get(i), child.getColumns(), computed);
+        }
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+    
+    @Override
+    public void open() {
+        child.open();
+    }
+    
+    @Override
+    public Tuple next() {
+        Tuple input = child.next();
+        if (input == null) {
+            return null;
+        }
+        Object[] values = new Object[compiled.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = compiled[i].evaluate(input);
+        }
+        return new Tuple(values, input.getRowId());
+    }
+    
+    @Override
+    public void close() {
+        child.close();
+    }
+    
+    @Override
+    public String toString() {
+        return "Project(" + columns + ") <- " + child;
+    }
+}
@@ -1,30 +1,626 @@
 package org.hkprog.thedb.executor;
 
-import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.ast.*;
+import org.hkprog.thedb.storage.StorageEngine;
+import org.hkprog.thedb.storage.Transaction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
 
 /**
  * Query Executor - executes query plans and returns results
+ *
+ * One executor serves one session. Statements run in their own transaction
+ * (autocommit) unless BEGIN has started an explicit transaction, which lasts
+ * until COMMIT or ROLLBACK. DDL statements commit an open transaction first.
+ *
+ * SELECT results are streamed: the returned result set pulls rows from the
+ * plan's operator tree one at a time and must be closed when done.
  */
-public class QueryExecutor {
+public class QueryExecutor implements Closeable {
+    
+    
+    private final StorageEngine storageEngine;
+    private Transaction transaction;
+    private long lastInsertId;
+    
+    public QueryExecutor(StorageEngine storageEngine) {
+        this.storageEngine = storageEngine;
+    }
+    
+    /**
+     * Whether an explicit transaction is open
+     */
+    public boolean isInTransaction() {
+        return transaction != null;
+    }
     
-    public QueryExecutor() {
-        // Constructor
+    /**
+     * First AUTO_INCREMENT value generated by the last INSERT that generated one, or 0
+     */
+    public long getLastInsertId() {
+        return lastInsertId;
     }
     
     /**
      * Execute a query plan and return results
      */
     public ResultSet execute(ExecutionPlan plan) {
-        // Execute the plan
-        System.out.println("Executing query plan...");
-        return new ResultSet();
+        ASTNode node = plan.getRootNode();
+        if (node instanceof SelectStatementNode) {
+            return executeSelect(plan);
+        } else if (node instanceof InsertStatementNode) {
+            return executeInsert((InsertStatementNode) node);
+        } else if (node instanceof UpdateStatementNode) {
+            return executeUpdate((UpdateStatementNode) node, plan.getOperator());
+        } else if (node instanceof DeleteStatementNode) {
+            return executeDelete((DeleteStatementNode) node, plan.getOperator());
+        } else if (node instanceof LoadDataStatementNode) {
+            return executeLoadData((LoadDataStatementNode) node);
+        } else if (node instanceof CreateTableStatementNode) {
+            return executeCreateTable((CreateTableStatementNode) node);
+        } else if (node instanceof DropTableStatementNode) {
+            return executeDropTable((DropTableStatementNode) node);
+        } else if (node instanceof CreateIndexStatementNode) {
+            CreateIndexStatementNode create = (CreateIndexStatementNode) node;
+            commitImplicitly();
+            storageEngine.createIndex(create.getIndexName(), create.getTableName(), create.getColumns(), create.isUnique());
+            return new ResultSet(0);
+        } else if (node instanceof DropIndexStatementNode) {
+            DropIndexStatementNode drop = (DropIndexStatementNode) node;
+            commitImplicitly();
+            storageEngine.dropIndex(drop.getIndexName(), drop.getTableName());
+            return new ResultSet(0);
+        } else if (node instanceof BeginTransactionNode) {
+            commitImplicitly();
+            transaction = storageEngine.beginTransaction();
+            return new ResultSet(0);
+        } else if (node instanceof CommitNode) {
+            commitImplicitly();
+            return new ResultSet(0);
+        } else if (node instanceof RollbackNode) {
+            if (transaction != null) {
+                Transaction txn = transaction;
+                transaction = null;
+                storageEngine.rollback(txn);
+            }
+            return new ResultSet(0);
+        } else if (node instanceof PrepareStatementNode || node instanceof DeallocatePrepareNode) {
+            // Done by the planner, which keeps the session's prepared statements
+            return new ResultSet(0);
+        } else if (node instanceof PlaceholderNode) {
+            throw new RuntimeException("Unsupported statement: " + ((PlaceholderNode) node).getDescription());
+        }
+        throw new RuntimeException("Unsupported statement: " + node.getNodeType());
+    }
+    
+    private void commitImplicitly() {
+        if (transaction != null) {
+            Transaction txn = transaction;
+            transaction = null;
+            storageEngine.commit(txn);
+        }
+    }
+    
+    /**
+     * Run a change in the open transaction, or in its own if there is none.
+     * A change that fails in the open transaction is undone on its own and the
+     * transaction stays open, as in MySQL.
+     */
+    private <T> T inTransaction(Function<Transaction, T> change) {
+        if (transaction != null) {
+            int savepoint = storageEngine.savepoint(transaction);
+            try {
+                return change.apply(transaction);
+            } catch (RuntimeException e) {
+                try {
+                    storageEngine.rollbackTo(transaction, savepoint);
+                } catch (RuntimeException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+                throw e;
+            }
+        }
+        Transaction txn = storageEngine.beginTransaction();
+        T result;
+        try {
+            result = change.apply(txn);
+        } catch (RuntimeException e) {
+            try {
+                storageEngine.rollback(txn);
+            } catch (RuntimeException rollbackError) {
+                e.addSuppressed(rollbackError);
+            }
+            throw e;
+        }
+        storageEngine.commit(txn);
+        return result;
+    }
+    
+    private StorageEngine.Table getTable(String tableName) {
+        StorageEngine.Table table = storageEngine.getTable(tableName);
+        if (table == null) {
+            throw new RuntimeException("Table '" + tableName + "' doesn't exist");
+        }
+        return table;
+    }
+    
+    // ---- DML ----
+    
+    private ResultSet executeSelect(ExecutionPlan plan) {
+        // A prepared statement's plan is reused; a result still reading from it is ended
+        if (plan.openResult != null) {
+            plan.openResult.close();
+        }
+        Operator operator = plan.getOperator();
+        List<String> columnNames = new ArrayList<>();
+        List<String> columnTypes = new ArrayList<>();
+        for (ColumnInfo column : operator.getColumns()) {
+            columnNames.add(column.getName());
+            columnTypes.add(column.getType());
+        }
+        operator.open();
+        plan.openResult = new ResultSet(columnNames, columnTypes, operator);
+        return plan.openResult;
+    }
+    
+    private ResultSet executeInsert(InsertStatementNode insert) {
+        StorageEngine.Table table = getTable(insert.getTableName());
+        int[] columns = columnPositions(table, insert.getColumns());
+        int columnCount = table.getSchema().getColumns().size();
+        List<StorageEngine.Row> rows = new ArrayList<>();
+        long firstGenerated = 0;
+        for (List<ASTNode> valueList : insert.getValuesList()) {
+            if (valueList.size() != columns.length) {
+                throw new RuntimeException("Column count doesn't match value count at row " + (rows.size() + 1));
+            }
+            Object[] values = new Object[columnCount];
+            boolean[] given = new boolean[columnCount];
+            for (int i = 0; i < columns.length; i++) {
+                values[columns[i]] = ExpressionEvaluator.evaluate(valueList.get(i));
+                given[columns[i]] = true;
+            }
+            long generated = completeRow(table, values, given);
+            if (firstGenerated == 0) {
+                firstGenerated = generated;
+            }
+            rows.add(new StorageEngine.Row(table.getSchema(), values));
+        }
+        inTransaction(txn -> table.insertRows(txn, rows));
+        if (firstGenerated != 0) {
+            lastInsertId = firstGenerated;
+        }
+        return new ResultSet(rows.size());
+    }
+    
+    /**
+     * Schema positions of the named columns, or of all columns if none are named
+     */
+    private static int[] columnPositions(StorageEngine.Table table, List<String> names) {
+        StorageEngine.TableSchema schema = table.getSchema();
+        if (names.isEmpty()) {
+            int[] positions = new int[schema.getColumns().size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = i;
+            }
+            return positions;
+        }
+        int[] positions = new int[names.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = schema.indexOf(schema.resolveColumn(names.get(i)));
+        }
+        return positions;
+    }
+    
+    /**
+     * Fill in the defaults of the columns not given, convert every value to
+     * its column type and check NOT NULL, in place. Returns the AUTO_INCREMENT
+     * value generated for the row, or 0 if none was.
+     */
+    private static long completeRow(StorageEngine.Table table, Object[] values, boolean[] given) {
+        List<StorageEngine.TableSchema.Column> schemaColumns = table.getSchema().getColumns();
+        long generated = 0;
+        for (int c = 0; c < values.length; c++) {
+            StorageEngine.TableSchema.Column column = schemaColumns.get(c);
+            Object value = given[c] ? values[c] : defaultValue(column);
+            value = Values.coerce(value, column.getType(), column.getName());
+            if (column.isAutoIncrement()) {
+                if (value == null || Values.compare(value, 0) == 0) {
+                    generated = table.nextAutoIncrement();
+                    value = Values.coerce(generated, column.getType(), column.getName());
+                } else {
+                    table.observeAutoIncrement(((Number) value).longValue());
+                }
+            }
+            values[c] = checkNotNull(column, value);
+        }
+        return generated;
+    }
+    
+    /**
+     * Bulk load a delimited file. The load commits an open transaction first
+     * and runs in its own, so a failed load leaves the table as it was.
+     */
+    private ResultSet executeLoadData(LoadDataStatementNode load) {
+        StorageEngine.Table table = getTable(load.getTableName());
+        int[] columns = columnPositions(table, load.getColumns());
+        List<StorageEngine.TableSchema.Column> schemaColumns = table.getSchema().getColumns();
+        // An empty field is NULL, except in a string column
+        boolean[] emptyIsNull = new boolean[schemaColumns.size()];
+        for (int c = 0; c < emptyIsNull.length; c++) {
+            String type = schemaColumns.get(c).getType().toUpperCase(Locale.ROOT);
+            emptyIsNull[c] = !(type.startsWith("VARCHAR") || type.startsWith("CHAR") || type.equals("TEXT"));
+        }
+        char fieldTerminator = singleCharacter(load.getFieldTerminator(), "FIELDS TERMINATED BY");
+        String lineOption = load.getLineTerminator();
+        char lineTerminator = lineOption.equals("\r\n") ? '\n' : singleCharacter(lineOption, "LINES TERMINATED BY");
+        int enclosure = load.getEnclosedBy().isEmpty() ? -1 : singleCharacter(load.getEnclosedBy(), "ENCLOSED BY");
+        int escape = load.getEscapedBy().isEmpty() ? -1 : singleCharacter(load.getEscapedBy(), "ESCAPED BY");
+        Path file = resolveLoadFile(load.getFileName());
+        commitImplicitly();
+        try (DelimitedReader reader = new DelimitedReader(Files.newBufferedReader(file, StandardCharsets.UTF_8),
+                fieldTerminator, lineTerminator, enclosure, escape)) {
+            for (int i = 0; i < load.getIgnoreLines() && reader.next() != null; i++) {
+                // Skipped
+            }
+            Iterator<StorageEngine.Row> rows = new Iterator<StorageEngine.Row>() {
+                private List<String> fields = read();
+                
+                private List<String> read() {
+                    try {
+                        return reader.next();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Failed to read " + file, e);
+                    }
+                }
+                
+                @Override
+                public boolean hasNext() {
+                    return fields != null;
+                }
+                
+                @Override
+                public StorageEngine.Row next() {
+                    if (fields == null) {
+                        throw new NoSuchElementException();
+                    }
+                    try {
+                        if (fields.size() != columns.length) {
+                            throw new RuntimeException("Expected " + columns.length + " fields, found " + fields.size());
+                        }
+                        Object[] values = new Object[emptyIsNull.length];
+                        boolean[] given = new boolean[emptyIsNull.length];
+                        for (int i = 0; i < columns.length; i++) {
+                            String field = fields.get(i);
+                            values[columns[i]] = field != null && field.isEmpty() && emptyIsNull[columns[i]] ? null : field;
+                            given[columns[i]] = true;
+                        }
+                        completeRow(table, values, given);
+                        fields = read();
+                        return new StorageEngine.Row(table.getSchema(), values);
+                    } catch (UncheckedIOException e) {
+                        throw e;
+                    } catch (RuntimeException e) {
+                        throw new RuntimeException("Line " + reader.getLine() + " of " + file + ": " + e.getMessage(), e);
+                    }
+                }
+            };
+            return new ResultSet(inTransaction(txn -> table.load(txn, rows)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + file + ": " + e.getMessage(), e);
+        }
+    }
+    
+    private Path resolveLoadFile(String fileName) {
+        try {
+            return storageEngine.resolveLoadFile(fileName);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + fileName + ": " + e.getMessage(), e);
+        }
+    }
+    
+    private static char singleCharacter(String option, String clause) {
+        if (option.length() != 1) {
+            throw new RuntimeException("Unsupported " + clause + " '" + option + "': a single character is required");
+        }
+        return option.charAt(0);
+    }
+    
+    private static Object defaultValue(StorageEngine.TableSchema.Column column) {
+        String defaultValue = column.getDefaultValue();
+        if ("CURRENT_TIMESTAMP".equalsIgnoreCase(defaultValue)) {
+            return Values.now();
+        }
+        return defaultValue;
+    }
+    
+    private static Object checkNotNull(StorageEngine.TableSchema.Column column, Object value) {
+        if (value == null && !column.isNullable()) {
+            throw new RuntimeException("Column '" + column.getName() + "' cannot be null");
+        }
+        return value;
+    }
+    
+    /**
+     * Read all tuples of an access path before anything is changed, so that
+     * rows moved by an update are not seen again
+     */
+    private static List<Tuple> collect(Operator operator) {
+        List<Tuple> tuples = new ArrayList<>();
+        operator.open();
+        try {
+            for (Tuple tuple = operator.next(); tuple != null; tuple = operator.next()) {
+                tuples.add(tuple);
+            }
+        } finally {
+            operator.close();
+        }
+        return tuples;
+    }
+    
+    private ResultSet executeUpdate(UpdateStatementNode update, Operator operator) {
+        StorageEngine.Table table = getTable(update.getTableName());
+        List<StorageEngine.TableSchema.Column> schemaColumns = table.getSchema().getColumns();
+        Map<Integer, CompiledExpression> assignments = new LinkedHashMap<>();
+        for (Map.Entry<String, ASTNode> assignment : update.getAssignments().entrySet()) {
+            String column = table.getSchema().resolveColumn(assignment.getKey());
+            for (int i = 0; i < schemaColumns.size(); i++) {
+                if (schemaColumns.get(i).getName().equals(column)) {
+                    assignments.put(i, ExpressionCompiler.compile(assignment.getValue(), operator.getColumns()));
+                }
+            }
+        }
+        List<Tuple> tuples = collect(operator);
+        long changed = inTransaction(txn -> {
+            long count = 0;
+            for (Tuple tuple : tuples) {
+                Object[] values = tuple.getValues().clone();
+                for (Map.Entry<Integer, CompiledExpression> assignment : assignments.entrySet()) {
+                    StorageEngine.TableSchema.Column column = schemaColumns.get(assignment.getKey());
+                    Object value = Values.coerce(assignment.getValue().evaluate(tuple),
+                            column.getType(), column.getName());
+                    values[assignment.getKey()] = checkNotNull(column, value);
+                    if (column.isAutoIncrement() && value != null) {
+                        table.observeAutoIncrement(((Number) value).longValue());
+                    }
+                }
+                if (Values.hashKey(values).equals(Values.hashKey(tuple.getValues()))) {
+                    continue;
+                }
+                table.updateRow(txn, tuple.getRowId(), new StorageEngine.Row(table.getSchema(), values));
+                count++;
+            }
+            return count;
+        });
+        return new ResultSet(changed);
+    }
+    
+    private ResultSet executeDelete(DeleteStatementNode delete, Operator operator) {
+        StorageEngine.Table table = getTable(delete.getTableName());
+        List<Tuple> tuples = collect(operator);
+        inTransaction(txn -> {
+            for (Tuple tuple : tuples) {
+                table.deleteRow(txn, tuple.getRowId());
+            }
+            return null;
+        });
+        return new ResultSet(tuples.size());
+    }
+    
+    // ---- DDL ----
+    
+    private ResultSet executeCreateTable(CreateTableStatementNode create) {
+        commitImplicitly();
+        if (storageEngine.getTable(create.getTableName()) != null) {
+            if (create.isIfNotExists()) {
+                return new ResultSet(0);
+            }
+            throw new RuntimeException("Table '" + create.getTableName() + "' already exists");
+        }
+        Set<String> primaryKey = new LinkedHashSet<>();
+        List<List<String>> uniqueKeys = new ArrayList<>();
+        List<String> uniqueNames = new ArrayList<>();
+        for (ColumnDefinitionNode column : create.getColumns()) {
+            for (ColumnDefinitionNode.ColumnConstraint constraint : column.getConstraints()) {
+                if (constraint == null) {
+                    continue;
+                }
+                if (constraint.getType() == ColumnDefinitionNode.ColumnConstraint.ConstraintType.PRIMARY_KEY) {
+                    primaryKey.add(column.getColumnName());
+                } else if (constraint.getType() == ColumnDefinitionNode.ColumnConstraint.ConstraintType.UNIQUE) {
+                    uniqueKeys.add(Collections.singletonList(column.getColumnName()));
+                    uniqueNames.add(column.getColumnName());
+                }
+            }
+        }
+        for (TableConstraintNode constraint : create.getConstraints()) {
+            if (constraint == null) {
+                continue;
+            }
+            // FOREIGN KEY and CHECK constraints are accepted but not enforced
+            if (constraint.getType() == TableConstraintNode.ConstraintType.PRIMARY_KEY) {
+                if (!primaryKey.isEmpty()) {
+                    throw new RuntimeException("Multiple primary key defined");
+                }
+                primaryKey.addAll(constraint.getColumns());
+            } else if (constraint.getType() == TableConstraintNode.ConstraintType.UNIQUE) {
+                uniqueKeys.add(constraint.getColumns());
+                uniqueNames.add(constraint.getName() != null ? constraint.getName() : constraint.getColumns().get(0));
+            }
+        }
+        
+        List<StorageEngine.TableSchema.Column> columns = new ArrayList<>();
+        for (ColumnDefinitionNode definition : create.getColumns()) {
+            boolean nullable = !containsIgnoreCase(primaryKey, definition.getColumnName());
+            String defaultValue = null;
+            boolean autoIncrement = false;
+            for (ColumnDefinitionNode.ColumnConstraint constraint : definition.getConstraints()) {
+                if (constraint == null) {
+                    continue;
+                }
+                switch (constraint.getType()) {
+                    case NOT_NULL:
+                        nullable = false;
+                        break;
+                    case AUTO_INCREMENT:
+                        autoIncrement = true;
+                        break;
+                    case DEFAULT:
+                        defaultValue = constraint.getValue() == null ? null : Values.toString(constraint.getValue());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            String type = typeName(definition.getDataType());
+            if (defaultValue != null && !"CURRENT_TIMESTAMP".equals(defaultValue)) {
+                // Reject defaults that do not fit the column
+                Values.coerce(defaultValue, type, definition.getColumnName());
+            }
+            columns.add(new StorageEngine.TableSchema.Column(definition.getColumnName(), type, nullable,
+                    defaultValue, autoIncrement));
+        }
+        storageEngine.createTable(create.getTableName(), new StorageEngine.TableSchema(columns));
+        if (!primaryKey.isEmpty()) {
+            storageEngine.createIndex("PRIMARY", create.getTableName(), new ArrayList<>(primaryKey), true);
+        }
+        for (int i = 0; i < uniqueKeys.size(); i++) {
+            storageEngine.createIndex(uniqueNames.get(i), create.getTableName(), uniqueKeys.get(i), true);
+        }
+        return new ResultSet(0);
+    }
+    
+    private static boolean containsIgnoreCase(Collection<String> names, String name) {
+        for (String candidate : names) {
+            if (candidate.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Type as stored in the catalog, such as "INT", "VARCHAR(50)" or "DECIMAL(10,2)"
+     */
+    private static String typeName(ColumnDefinitionNode.DataType dataType) {
+        String name = dataType.getTypeName().toUpperCase(Locale.ROOT);
+        if (dataType.getLength() != null) {
+            return name + "(" + dataType.getLength() + ")";
+        }
+        if (dataType.getPrecision() != null) {
+            return name + "(" + dataType.getPrecision() + "," + (dataType.getScale() != null ? dataType.getScale() : 0) + ")";
+        }
+        return name;
+    }
+    
+    private ResultSet executeDropTable(DropTableStatementNode drop) {
+        commitImplicitly();
+        List<String> missing = new ArrayList<>();
+        for (String tableName : drop.getTableNames()) {
+            if (storageEngine.getTable(tableName) == null) {
+                missing.add(tableName);
+            }
+        }
+        if (!missing.isEmpty() && !drop.isIfExists()) {
+            throw new RuntimeException("Unknown table '" + String.join(",", missing) + "'");
+        }
+        for (String tableName : drop.getTableNames()) {
+            storageEngine.dropTable(tableName);
+        }
+        return new ResultSet(0);
+    }
+    
+    /**
+     * Roll back the open transaction, if any
+     */
+    @Override
+    public void close() {
+        if (transaction != null) {
+            Transaction txn = transaction;
+            transaction = null;
+            storageEngine.rollback(txn);
+        }
     }
     
     /**
      * Result set from query execution
      */
-    public static class ResultSet {
-        // Results data
+    public static class ResultSet implements Closeable {
+        private final List<String> columnNames;
+        private final List<String> columnTypes;
+        private final Operator operator;
+        private final long updateCount;
+        private boolean open;
+        
+        ResultSet(List<String> columnNames, List<String> columnTypes, Operator operator) {
+            this.columnNames = columnNames;
+            this.columnTypes = columnTypes;
+            this.operator = operator;
+            this.updateCount = -1;
+            this.open = true;
+        }
+        
+        ResultSet(long updateCount) {
+            this.columnNames = Collections.emptyList();
+            this.columnTypes = Collections.emptyList();
+            this.operator = null;
+            this.updateCount = updateCount;
+        }
+        
+        /**
+         * Whether the statement returns rows (SELECT) rather than an update count
+         */
+        public boolean hasRows() {
+            return operator != null;
+        }
+        
+        public List<String> getColumnNames() {
+            return columnNames;
+        }
+        
+        /**
+         * SQL types of the columns, such as "INT" or "DECIMAL(10,2)"; null
+         * for a column whose type the plan does not know
+         */
+        public List<String> getColumnTypes() {
+            return columnTypes;
+        }
+        
+        /**
+         * Next row of the result, or null when there are no more rows
+         */
+        public Object[] next() {
+            if (!open) {
+                return null;
+            }
+            Tuple tuple = operator.next();
+            if (tuple == null) {
+                close();
+                return null;
+            }
+            return tuple.getValues();
+        }
+        
+        /**
+         * Number of rows inserted, changed or deleted; -1 for a SELECT
+         */
+        public long getUpdateCount() {
+            return updateCount;
+        }
+        
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                operator.close();
+            }
+        }
     }
     
     /**
@@ -32,13 +628,33 @@ public class QueryExecutor {
      */
     public static class ExecutionPlan {
         private final ASTNode rootNode;
+        private final Operator operator;
+        private ResultSet openResult;
         
         public ExecutionPlan(ASTNode rootNode) {
+            this(rootNode, null);
+        }
+        
+        public ExecutionPlan(ASTNode rootNode, Operator operator) {
             this.rootNode = rootNode;
+            this.operator = operator;
         }
         
         public ASTNode getRootNode() {
             return rootNode;
         }
+        
+        /**
+         * Root of the operator tree producing the rows of a SELECT, or the rows
+         * to change for UPDATE and DELETE; null for other statements
+         */
+        public Operator getOperator() {
+            return operator;
+        }
+        
+        @Override
+        public String toString() {
+            return operator != null ? operator.toString() : String.valueOf(rootNode.getNodeType());
+        }
     }
 }
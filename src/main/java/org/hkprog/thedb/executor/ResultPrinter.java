@@ -0,0 +1,46 @@
+package org.hkprog.thedb.executor;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Result Printer - writes a result set as text, one tab-separated line per row
+ */
+public final class ResultPrinter {
+    
+    private ResultPrinter() {
+    }
+    
+    /**
+     * Print all rows of a result set (or its update count) followed by a
+     * summary line with the time since the statement started
+     */
+    public static void print(QueryExecutor.ResultSet result, PrintWriter out, long startNanos) {
+        if (!result.hasRows()) {
+            out.println("Query OK, " + result.getUpdateCount() + " row" + (result.getUpdateCount() == 1 ? "" : "s")
+                    + " affected (" + elapsed(startNanos) + " sec)");
+            return;
+        }
+        List<String> columnNames = result.getColumnNames();
+        out.println(String.join("\t", columnNames));
+        long count = 0;
+        StringBuilder line = new StringBuilder();
+        for (Object[] row = result.next(); row != null; row = result.next()) {
+            line.setLength(0);
+            for (int i = 0; i < columnNames.size(); i++) {
+                if (i > 0) {
+                    line.append('\t');
+                }
+                line.append(Values.toString(row[i]));
+            }
+            out.println(line);
+            count++;
+        }
+        out.println(count == 0 ? "Empty set (" + elapsed(startNanos) + " sec)"
+                : count + " row" + (count == 1 ? "" : "s") + " in set (" + elapsed(startNanos) + " sec)");
+    }
+    
+    private static String elapsed(long startNanos) {
+        return String.format("%.2f", (System.nanoTime() - startNanos) / 1e9);
+    }
+}
@@ -0,0 +1,75 @@
+package org.hkprog.thedb.executor;
+
+/**
+ * Row Batch - up to {@link #CAPACITY} rows held as one vector per column
+ *
+ * The selection lists the positions of the rows that are part of the batch,
+ * in order; filters narrow it instead of copying the vectors. A batch and its
+ * vectors are only valid until the next batch is requested from the operator
+ * that produced it.
+ */
+public final class RowBatch {
+    
+    public static final int CAPACITY = 1024;
+    
+    private static final int[] ALL = new int[CAPACITY];
+    
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ALL[i] = i;
+        }
+    }
+    
+    private final ColumnVector[] vectors;
+    private final int[] selection;
+    private final int size;
+    
+    /**
+     * A batch of the first {@code size} rows of the vectors
+     */
+    public RowBatch(ColumnVector[] vectors, int size) {
+        this(vectors, ALL, size);
+    }
+    
+    public RowBatch(ColumnVector[] vectors, int[] selection, int size) {
+        this.vectors = vectors;
+        this.selection = selection;
+        this.size = size;
+    }
+    
+    public ColumnVector getVector(int column) {
+        return vectors[column];
+    }
+    
+    public ColumnVector[] getVectors() {
+        return vectors;
+    }
+    
+    /**
+     * Positions of the rows in the vectors; only the first {@link #size()} entries are used
+     */
+    public int[] getSelection() {
+        return selection;
+    }
+    
+    /**
+     * Number of rows in the batch
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * The same vectors with a narrower selection
+     */
+    public RowBatch select(int[] selection, int size) {
+        return new RowBatch(vectors, selection, size);
+    }
+    
+    /**
+     * Other vectors for the same rows
+     */
+    public RowBatch withVectors(ColumnVector[] vectors) {
+        return new RowBatch(vectors, selection, size);
+    }
+}
@@ -0,0 +1,187 @@
+package org.hkprog.thedb.executor;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Sort Key Encoder - encodes ORDER BY key values into byte strings whose
+ * unsigned byte order is the sort order
+ *
+ * Sorting then compares keys with {@link Arrays#compareUnsigned}, without
+ * looking at the values again. Each value is encoded on its own and the
+ * encodings are concatenated; no encoding is a prefix of another, so a
+ * descending key is encoded like an ascending one with every byte inverted.
+ *
+ * Values order as {@link Values#compareNullsFirst} orders them: NULL first,
+ * numbers (and booleans, as 0 and 1) by exact numeric value, and strings by
+ * UTF-16 code units, as {@link String#compareTo} does. A column that mixes
+ * numbers and strings puts all numbers first.
+ *
+ * A number is encoded as a class byte (negative, zero, positive, or an
+ * infinity or NaN) followed, for a nonzero finite value 0.d1d2... x 10^E,
+ * by E and the digits d1d2... without trailing zeros; the whole is inverted
+ * for a negative number. A string is encoded one UTF-16 unit at a time in
+ * one to three bytes, smaller units in fewer bytes, and ends with 0x00.
+ */
+final class SortKeyEncoder {
+
+    private static final int TAG_NULL = 0x00;
+    private static final int TAG_NUMBER = 0x10;
+    private static final int TAG_STRING = 0x20;
+
+    private static final int NEGATIVE_INFINITY = 0x00;
+    private static final int NEGATIVE = 0x01;
+    private static final int ZERO = 0x02;
+    private static final int POSITIVE = 0x03;
+    private static final int POSITIVE_INFINITY = 0x04;
+    private static final int NAN = 0x05;
+
+    private final boolean[] ascending;
+    private byte[] buffer = new byte[64];
+    private int length;
+
+    SortKeyEncoder(boolean[] ascending) {
+        this.ascending = ascending;
+    }
+
+    /**
+     * Encode the key values of one row
+     */
+    byte[] encode(Object[] values) {
+        length = 0;
+        for (int i = 0; i < values.length; i++) {
+            int start = length;
+            encodeValue(values[i]);
+            if (!ascending[i]) {
+                invert(start, length);
+            }
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void encodeValue(Object value) {
+        if (value == null) {
+            write(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            write(TAG_NUMBER);
+            if ((Boolean) value) {
+                writeDigits(POSITIVE, 1, "1");
+            } else {
+                write(ZERO);
+            }
+        } else if (value instanceof Number) {
+            write(TAG_NUMBER);
+            encodeNumber((Number) value);
+        } else {
+            write(TAG_STRING);
+            encodeString(value.toString());
+        }
+    }
+
+    private void encodeNumber(Number number) {
+        if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+            long l = number.longValue();
+            if (l == 0) {
+                write(ZERO);
+                return;
+            }
+            if (l != Long.MIN_VALUE) {
+                String digits = Long.toString(Math.abs(l));
+                writeDigits(l < 0 ? NEGATIVE : POSITIVE, digits.length(), stripTrailingZeros(digits));
+                return;
+            }
+        }
+        BigDecimal decimal;
+        if (number instanceof Double || number instanceof Float) {
+            double d = number.doubleValue();
+            if (Double.isNaN(d)) {
+                write(NAN);
+                return;
+            }
+            if (Double.isInfinite(d)) {
+                write(d > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY);
+                return;
+            }
+            decimal = BigDecimal.valueOf(d);
+        } else if (number instanceof BigDecimal) {
+            decimal = (BigDecimal) number;
+        } else if (number instanceof BigInteger) {
+            decimal = new BigDecimal((BigInteger) number);
+        } else {
+            decimal = new BigDecimal(number.toString());
+        }
+        if (decimal.signum() == 0) {
+            write(ZERO);
+            return;
+        }
+        String digits = decimal.unscaledValue().abs().toString();
+        // unscaled x 10^-scale = 0.digits x 10^(digits - scale)
+        int exponent = digits.length() - decimal.scale();
+        writeDigits(decimal.signum() < 0 ? NEGATIVE : POSITIVE, exponent, stripTrailingZeros(digits));
+    }
+
+    private static String stripTrailingZeros(String digits) {
+        int end = digits.length();
+        while (end > 1 && digits.charAt(end - 1) == '0') {
+            end--;
+        }
+        return digits.substring(0, end);
+    }
+
+    /**
+     * Write a nonzero number: class, exponent with the sign bit flipped,
+     * ASCII digits and a 0x00 terminator, all inverted when negative
+     */
+    private void writeDigits(int signClass, int exponent, String digits) {
+        write(signClass);
+        int start = length;
+        int e = exponent ^ Integer.MIN_VALUE;
+        write(e >>> 24);
+        write(e >>> 16);
+        write(e >>> 8);
+        write(e);
+        for (int i = 0; i < digits.length(); i++) {
+            write(digits.charAt(i));
+        }
+        write(0x00);
+        if (signClass == NEGATIVE) {
+            invert(start, length);
+        }
+    }
+
+    /**
+     * Units 0x0000-0x007E take one byte (unit + 1), units up to 0x407E two
+     * bytes starting 0x80-0xBF, and the rest three bytes starting 0xC0
+     */
+    private void encodeString(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x7F) {
+                write(c + 1);
+            } else if (c < 0x7F + 0x4000) {
+                int offset = c - 0x7F;
+                write(0x80 | offset >>> 8);
+                write(offset);
+            } else {
+                write(0xC0);
+                write(c >>> 8);
+                write(c);
+            }
+        }
+        write(0x00);
+    }
+
+    private void write(int b) {
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[length++] = (byte) b;
+    }
+
+    private void invert(int start, int end) {
+        for (int i = start; i < end; i++) {
+            buffer[i] = (byte) ~buffer[i];
+        }
+    }
+}
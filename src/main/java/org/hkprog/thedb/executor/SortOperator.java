@@ -0,0 +1,290 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Sort - orders its input by a list of expressions (ORDER BY)
+ *
+ * The whole input is read when the operator is opened. The key values of each
+ * tuple are encoded into one byte string ({@link SortKeyEncoder}), so tuples
+ * are ordered by plain unsigned byte comparison of their keys. NULL sorts
+ * before every value in ascending order and after it in descending order, as
+ * in MySQL. The sort is stable.
+ *
+ * Tuples are sorted in memory until they exceed the memory budget; each full
+ * buffer is then sorted and written to a temporary file as a run, and the
+ * runs are merged, at most MERGE_FAN_IN at a time, into the sorted output (an
+ * external merge sort).
+ */
+public class SortOperator implements Operator {
+
+    private static final int MERGE_FAN_IN = 64;
+
+    /**
+     * Estimated bytes of overhead per buffered tuple, beyond the tuple and its key
+     */
+    private static final long ENTRY_OVERHEAD = 48;
+
+    private static final Comparator<Entry> ENTRY_ORDER = (a, b) -> Arrays.compareUnsigned(a.key, b.key);
+
+    private final Operator child;
+    private final List<ASTNode> keys;
+    private final boolean[] ascending;
+    private final CompiledExpression[] compiled;
+    private final Path tempDirectory;
+    private final long memoryBudget;
+
+    private List<Entry> sorted;
+    private int position;
+    private List<SpillFile> runs;
+    private Merge merge;
+
+    private static final class Entry {
+        final byte[] key;
+        final Tuple tuple;
+
+        Entry(byte[] key, Tuple tuple) {
+            this.key = key;
+            this.tuple = tuple;
+        }
+    }
+
+    /**
+     * @param computed slots of expressions computed by an aggregation below
+     * @param tempDirectory where sorted runs are written when the input is too large
+     * @param memoryBudget bytes of tuples to sort in memory before writing a run
+     */
+    public SortOperator(Operator child, List<ASTNode> keys, boolean[] ascending, Map<String, Integer> computed,
+                        Path tempDirectory, long memoryBudget) {
+        this.child = child;
+        this.keys = keys;
+        this.ascending = ascending;
+        this.compiled = new CompiledExpression[keys.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = ExpressionCompiler.compile(keys.get(i), child.getColumns(), computed);
+        }
+        this.tempDirectory = tempDirectory;
+        this.memoryBudget = memoryBudget;
+    }
+
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return child.getColumns();
+    }
+
+    @Override
+    public void open() {
+        sorted = new ArrayList<>();
+        runs = new ArrayList<>();
+        position = 0;
+        try {
+            readInput();
+            if (runs.isEmpty()) {
+                sorted.sort(ENTRY_ORDER);
+            } else {
+                if (!sorted.isEmpty()) {
+                    runs.add(writeRun(sorted));
+                }
+                sorted = null;
+                mergeRuns();
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void readInput() {
+        SortKeyEncoder encoder = new SortKeyEncoder(ascending);
+        Object[] keyValues = new Object[keys.size()];
+        long bytes = 0;
+        child.open();
+        try {
+            for (Tuple tuple = child.next(); tuple != null; tuple = child.next()) {
+                for (int i = 0; i < keyValues.length; i++) {
+                    keyValues[i] = compiled[i].evaluate(tuple);
+                }
+                byte[] key = encoder.encode(keyValues);
+                sorted.add(new Entry(key, tuple));
+                bytes += tuple.estimatedSize() + key.length + ENTRY_OVERHEAD;
+                if (bytes > memoryBudget) {
+                    runs.add(writeRun(sorted));
+                    sorted = new ArrayList<>();
+                    bytes = 0;
+                }
+            }
+        } finally {
+            child.close();
+        }
+    }
+
+    /**
+     * Sort the entries and write them to a run; each run tuple is the key followed by the tuple's values
+     */
+    private SpillFile writeRun(List<Entry> entries) {
+        entries.sort(ENTRY_ORDER);
+        SpillFile run = new SpillFile(tempDirectory);
+        try {
+            for (Entry entry : entries) {
+                run.write(runTuple(entry));
+            }
+        } catch (RuntimeException e) {
+            run.close();
+            throw e;
+        }
+        return run;
+    }
+
+    private static Tuple runTuple(Entry entry) {
+        Object[] values = entry.tuple.getValues();
+        Object[] runValues = new Object[values.length + 1];
+        runValues[0] = entry.key;
+        System.arraycopy(values, 0, runValues, 1, values.length);
+        return new Tuple(runValues);
+    }
+
+    /**
+     * Merge runs in consecutive groups, keeping them in input order so the
+     * sort stays stable, until one merge can produce the output
+     */
+    private void mergeRuns() {
+        while (runs.size() > MERGE_FAN_IN) {
+            List<SpillFile> merged = new ArrayList<>();
+            try {
+                mergeGroups(merged);
+            } catch (RuntimeException e) {
+                for (SpillFile run : merged) {
+                    run.close();
+                }
+                throw e;
+            }
+            runs = merged;
+        }
+        merge = new Merge(runs);
+    }
+
+    /**
+     * One merge pass: each group of MERGE_FAN_IN runs becomes one run
+     */
+    private void mergeGroups(List<SpillFile> merged) {
+        for (int start = 0; start < runs.size(); start += MERGE_FAN_IN) {
+            List<SpillFile> group = runs.subList(start, Math.min(start + MERGE_FAN_IN, runs.size()));
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+                continue;
+            }
+            SpillFile output = new SpillFile(tempDirectory);
+            merged.add(output);
+            Merge groupMerge = new Merge(group);
+            try {
+                for (Entry entry = groupMerge.next(); entry != null; entry = groupMerge.next()) {
+                    output.write(runTuple(entry));
+                }
+            } finally {
+                groupMerge.close();
+            }
+            for (SpillFile run : group) {
+                run.close();
+            }
+        }
+    }
+
+    /**
+     * K-way merge of sorted runs; of equal keys the one from the earlier run comes first
+     */
+    private final class Merge {
+        private final Operator[] readers;
+        private final PriorityQueue<int[]> heap;
+        private final Entry[] heads;
+
+        Merge(List<SpillFile> runs) {
+            List<ColumnInfo> columns = child.getColumns();
+            readers = new Operator[runs.size()];
+            heads = new Entry[runs.size()];
+            heap = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> {
+                int c = ENTRY_ORDER.compare(heads[a[0]], heads[b[0]]);
+                return c != 0 ? c : Integer.compare(a[0], b[0]);
+            });
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = runs.get(i).reader(columns);
+                readers[i].open();
+                if (advance(i)) {
+                    heap.add(new int[] {i});
+                }
+            }
+        }
+
+        private boolean advance(int run) {
+            Tuple runTuple = readers[run].next();
+            if (runTuple == null) {
+                heads[run] = null;
+                return false;
+            }
+            Object[] values = runTuple.getValues();
+            heads[run] = new Entry((byte[]) values[0], new Tuple(Arrays.copyOfRange(values, 1, values.length)));
+            return true;
+        }
+
+        Entry next() {
+            int[] top = heap.poll();
+            if (top == null) {
+                return null;
+            }
+            Entry entry = heads[top[0]];
+            if (advance(top[0])) {
+                heap.add(top);
+            }
+            return entry;
+        }
+
+        void close() {
+            for (Operator reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Tuple next() {
+        if (merge != null) {
+            Entry entry = merge.next();
+            return entry != null ? entry.tuple : null;
+        }
+        if (position >= sorted.size()) {
+            return null;
+        }
+        Entry entry = sorted.get(position);
+        // Let the tuple be garbage collected once it has been returned
+        sorted.set(position++, null);
+        return entry.tuple;
+    }
+
+    @Override
+    public void close() {
+        sorted = null;
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        if (runs != null) {
+            for (SpillFile run : runs) {
+                run.close();
+            }
+            runs = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner order = new StringJoiner(", ");
+        for (int i = 0; i < keys.size(); i++) {
+            order.add(ExpressionEvaluator.describe(keys.get(i)) + (ascending[i] ? "" : " DESC"));
+        }
+        return "Sort(" + order + ") <- " + child;
+    }
+}
@@ -0,0 +1,249 @@
+package org.hkprog.thedb.executor;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Spill File - tuples written to a temporary file and read back in the same
+ * order, for operators whose input does not fit in their memory budget
+ *
+ * Each value is written with a type tag (NULL, Integer, Long, Double,
+ * BigDecimal, Boolean, String or byte[], as for sort keys); any other value
+ * is written as its string.
+ * The file is deleted when the spill file is closed.
+ */
+final class SpillFile implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte NULL = 0;
+    private static final byte INTEGER = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte DECIMAL = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte STRING = 6;
+    private static final byte BYTES = 7;
+
+    private final Path path;
+    private DataOutputStream out;
+    private long count;
+    private long bytes;
+
+    SpillFile(Path directory) {
+        try {
+            path = Files.createTempFile(directory, "spill", ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create spill file in " + directory, e);
+        }
+    }
+
+    void write(Tuple tuple) {
+        try {
+            out.writeShort(tuple.size());
+            for (Object value : tuple.getValues()) {
+                writeValue(value);
+            }
+            count++;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write spill file " + path, e);
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            byte[] unscaled = decimal.unscaledValue().toByteArray();
+            out.writeByte(DECIMAL);
+            out.writeInt(decimal.scale());
+            out.writeShort(unscaled.length);
+            out.write(unscaled);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            byte[] utf8 = value.toString().getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+    }
+
+    /**
+     * Number of tuples written
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Size of the file in bytes, once writing is finished
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Finish writing and return an operator that reads the tuples back; it
+     * can be opened more than once
+     */
+    Operator reader(List<ColumnInfo> columns) {
+        finish();
+        return new Operator() {
+            private DataInputStream in;
+            private long remaining;
+
+            @Override
+            public List<ColumnInfo> getColumns() {
+                return columns;
+            }
+
+            @Override
+            public void open() {
+                try {
+                    in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to read spill file " + path, e);
+                }
+                remaining = count;
+            }
+
+            @Override
+            public Tuple next() {
+                if (remaining == 0) {
+                    return null;
+                }
+                try {
+                    Object[] values = new Object[in.readUnsignedShort()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = readValue(in);
+                    }
+                    remaining--;
+                    return new Tuple(values);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to read spill file " + path, e);
+                }
+            }
+
+            @Override
+            public void close() {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Nothing left to read
+                    }
+                    in = null;
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "SpillScan(" + count + " rows)";
+            }
+        };
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case DECIMAL: {
+                int scale = in.readInt();
+                byte[] unscaled = new byte[in.readUnsignedShort()];
+                in.readFully(unscaled);
+                return new BigDecimal(new BigInteger(unscaled), scale);
+            }
+            case BOOLEAN:
+                return in.readBoolean();
+            case STRING: {
+                byte[] utf8 = new byte[in.readInt()];
+                in.readFully(utf8);
+                return new String(utf8, StandardCharsets.UTF_8);
+            }
+            case BYTES: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            default:
+                throw new IOException("Corrupt spill file: value type " + type);
+        }
+    }
+
+    private void finish() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+            bytes = Files.size(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write spill file " + path, e);
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * Partition of a hash key, for operators that split their input across
+     * spill files; each level of partitioning mixes in its own seed, so a
+     * partition split again spreads over all the new partitions
+     */
+    static int partitionOf(Object key, int depth, int partitions) {
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode() ^ (depth + 1) * 0x9E3779B9;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, partitions);
+    }
+
+    /**
+     * Delete the file
+     */
+    @Override
+    public void close() {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("Failed to delete spill file " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.storage.StorageEngine;
+
+import java.util.*;
+
+/**
+ * Table Scan - reads every row of a table, one page at a time
+ */
+public class TableScanOperator implements Operator {
+    
+    private final StorageEngine.Table table;
+    private final List<ColumnInfo> columns;
+    private Iterator<StorageEngine.Row> rows;
+    
+    /**
+     * @param qualifier name the columns can be qualified with: the table alias or name
+     */
+    public TableScanOperator(StorageEngine.Table table, String qualifier) {
+        this.table = table;
+        this.columns = tableColumns(table, qualifier);
+    }
+    
+    static List<ColumnInfo> tableColumns(StorageEngine.Table table, String qualifier) {
+        List<ColumnInfo> columns = new ArrayList<>();
+        for (StorageEngine.TableSchema.Column column : table.getSchema().getColumns()) {
+            columns.add(new ColumnInfo(qualifier, column.getName(), column.getType()));
+        }
+        return columns;
+    }
+    
+    /**
+     * A tuple over a stored row, in schema column order; values are boxed only when read
+     */
+    static Tuple toTuple(StorageEngine.Table table, StorageEngine.Row row) {
+        return new Tuple(row);
+    }
+    
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return columns;
+    }
+    
+    @Override
+    public void open() {
+        rows = table.scan();
+    }
+    
+    @Override
+    public Tuple next() {
+        return rows.hasNext() ? toTuple(table, rows.next()) : null;
+    }
+    
+    @Override
+    public void close() {
+        rows = null;
+    }
+    
+    @Override
+    public String toString() {
+        return "TableScan(" + table.getName() + ")";
+    }
+}
@@ -0,0 +1,121 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.ASTNode;
+
+import java.util.*;
+
+/**
+ * Top-N - the first N tuples of its input in ORDER BY order, for ORDER BY
+ * with LIMIT and OFFSET
+ *
+ * The input streams through a heap that keeps the N smallest tuples seen so
+ * far, with the largest of them on top, so memory holds N tuples whatever
+ * the size of the input. Tuples are ordered as by {@link SortOperator}, by
+ * their encoded sort keys and then by input order, and come out sorted. A
+ * {@link LimitOperator} above skips the OFFSET tuples.
+ */
+public class TopNOperator implements Operator {
+
+    private final Operator child;
+    private final List<ASTNode> keys;
+    private final boolean[] ascending;
+    private final CompiledExpression[] compiled;
+    private final long n;
+
+    private Entry[] sorted;
+    private int position;
+
+    private static final class Entry {
+        final byte[] key;
+        final long sequence;
+        final Tuple tuple;
+
+        Entry(byte[] key, long sequence, Tuple tuple) {
+            this.key = key;
+            this.sequence = sequence;
+            this.tuple = tuple;
+        }
+    }
+
+    private static final Comparator<Entry> ENTRY_ORDER = (a, b) -> {
+        int c = Arrays.compareUnsigned(a.key, b.key);
+        return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+    };
+
+    /**
+     * @param computed slots of expressions computed by an aggregation below
+     * @param n number of tuples to return: LIMIT plus OFFSET
+     */
+    public TopNOperator(Operator child, List<ASTNode> keys, boolean[] ascending, Map<String, Integer> computed, long n) {
+        this.child = child;
+        this.keys = keys;
+        this.ascending = ascending;
+        this.compiled = new CompiledExpression[keys.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = ExpressionCompiler.compile(keys.get(i), child.getColumns(), computed);
+        }
+        this.n = n;
+    }
+
+    @Override
+    public List<ColumnInfo> getColumns() {
+        return child.getColumns();
+    }
+
+    @Override
+    public void open() {
+        position = 0;
+        if (n <= 0) {
+            sorted = new Entry[0];
+            return;
+        }
+        PriorityQueue<Entry> heap = new PriorityQueue<>((int) Math.min(n, 1024), ENTRY_ORDER.reversed());
+        SortKeyEncoder encoder = new SortKeyEncoder(ascending);
+        Object[] keyValues = new Object[keys.size()];
+        long sequence = 0;
+        child.open();
+        try {
+            for (Tuple tuple = child.next(); tuple != null; tuple = child.next()) {
+                for (int i = 0; i < keyValues.length; i++) {
+                    keyValues[i] = compiled[i].evaluate(tuple);
+                }
+                byte[] key = encoder.encode(keyValues);
+                if (heap.size() < n) {
+                    heap.add(new Entry(key, sequence++, tuple));
+                } else if (Arrays.compareUnsigned(key, heap.peek().key) < 0) {
+                    // A later tuple with an equal key comes after the top one, so it only replaces a greater key
+                    heap.poll();
+                    heap.add(new Entry(key, sequence++, tuple));
+                }
+            }
+        } finally {
+            child.close();
+        }
+        sorted = heap.toArray(new Entry[0]);
+        Arrays.sort(sorted, ENTRY_ORDER);
+    }
+
+    @Override
+    public Tuple next() {
+        if (position >= sorted.length) {
+            return null;
+        }
+        Entry entry = sorted[position];
+        sorted[position++] = null;
+        return entry.tuple;
+    }
+
+    @Override
+    public void close() {
+        sorted = null;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner order = new StringJoiner(", ");
+        for (int i = 0; i < keys.size(); i++) {
+            order.add(ExpressionEvaluator.describe(keys.get(i)) + (ascending[i] ? "" : " DESC"));
+        }
+        return "TopN(" + n + ", " + order + ") <- " + child;
+    }
+}
@@ -0,0 +1,143 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.storage.RowId;
+import org.hkprog.thedb.storage.StorageEngine;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Tuple - one row flowing between operators, with values by column position
+ *
+ * A tuple read from a table wraps the stored row's typed slots and boxes a
+ * value only when it is asked for, so a scan allocates nothing for columns
+ * no expression looks at. Compiled expressions read integral and DOUBLE
+ * columns through {@link #isIntegral}/{@link #getLong} and
+ * {@link #isDouble}/{@link #getDouble} without boxing at all. All values
+ * are boxed at once by {@link #getValues}, for operators that copy or keep
+ * whole tuples.
+ */
+public final class Tuple {
+    
+    private Object[] values;
+    private final StorageEngine.Row row;
+    private final RowId rowId;
+    
+    public Tuple(Object[] values) {
+        this(values, null);
+    }
+    
+    public Tuple(Object[] values, RowId rowId) {
+        this.values = values;
+        this.row = null;
+        this.rowId = rowId;
+    }
+    
+    /**
+     * A tuple over a stored row, in schema column order
+     */
+    public Tuple(StorageEngine.Row row) {
+        this.values = null;
+        this.row = row;
+        this.rowId = row.getRowId();
+    }
+    
+    public Object get(int index) {
+        return values != null ? values[index] : row.getValue(index);
+    }
+    
+    public boolean isNull(int index) {
+        return values != null ? values[index] == null : row.isNull(index);
+    }
+    
+    /**
+     * Whether the value is an Integer or Long, readable with {@link #getLong}
+     */
+    public boolean isIntegral(int index) {
+        if (values != null) {
+            return values[index] instanceof Long || values[index] instanceof Integer;
+        }
+        return row.isIntegral(index);
+    }
+    
+    public long getLong(int index) {
+        return values != null ? ((Number) values[index]).longValue() : row.getLong(index);
+    }
+    
+    /**
+     * Whether the value is a Double, readable with {@link #getDouble}
+     */
+    public boolean isDouble(int index) {
+        return values != null ? values[index] instanceof Double : row.isDouble(index);
+    }
+    
+    public double getDouble(int index) {
+        return values != null ? (Double) values[index] : row.getDouble(index);
+    }
+    
+    public int size() {
+        return values != null ? values.length : row.size();
+    }
+    
+    /**
+     * All values, boxed; a tuple over a stored row boxes them on the first call
+     */
+    public Object[] getValues() {
+        if (values == null) {
+            values = row.getValues();
+        }
+        return values;
+    }
+    
+    /**
+     * Row id of the stored row this tuple was read from, or null for derived tuples
+     */
+    public RowId getRowId() {
+        return rowId;
+    }
+    
+    /**
+     * Rough heap footprint in bytes, for operators that keep tuples within a memory budget
+     */
+    public long estimatedSize() {
+        Object[] values = getValues();
+        long size = 32 + 8L * values.length;
+        for (Object value : values) {
+            size += estimatedSize(value);
+        }
+        return size;
+    }
+    
+    /**
+     * Rough heap footprint in bytes of one value, not counting the reference to it
+     */
+    public static long estimatedSize(Object value) {
+        if (value instanceof String) {
+            return 40 + ((String) value).length();
+        } else if (value instanceof BigDecimal) {
+            return 64;
+        } else if (value != null) {
+            return 16;
+        }
+        return 0;
+    }
+    
+    /**
+     * Concatenate two tuples, as a join does; either side may be null for NULL padding
+     */
+    public static Tuple concat(Tuple left, int leftWidth, Tuple right, int rightWidth) {
+        Object[] values = new Object[leftWidth + rightWidth];
+        if (left != null) {
+            System.arraycopy(left.getValues(), 0, values, 0, leftWidth);
+        }
+        if (right != null) {
+            System.arraycopy(right.getValues(), 0, values, leftWidth, rightWidth);
+        }
+        return new Tuple(values);
+    }
+    
+    @Override
+    public String toString() {
+        return Arrays.toString(getValues());
+    }
+}
@@ -0,0 +1,397 @@
+package org.hkprog.thedb.executor;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Values - SQL semantics for the Java objects that hold column values
+ *
+ * Integers are Integer or Long, exact decimals BigDecimal, approximate
+ * numbers Double, strings String and booleans Boolean; NULL is null.
+ * Arithmetic follows MySQL: integer operands give an integer result, an
+ * exact decimal operand gives a decimal and a double operand gives a double.
+ */
+public final class Values {
+    
+    private static final DateTimeFormatter DATETIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    
+    /**
+     * Digits added to the scale of a decimal division
+     */
+    private static final int DIVISION_SCALE_INCREMENT = 4;
+    
+    private Values() {
+    }
+    
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+    
+    /**
+     * Check whether a condition value counts as true (TRUE or a non-zero number)
+     */
+    public static boolean isTrue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof Number) {
+            return toDecimal(value).signum() != 0;
+        }
+        return false;
+    }
+    
+    private static BigDecimal toDecimal(Object value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (isIntegral(value)) {
+            return BigDecimal.valueOf(((Number) value).longValue());
+        }
+        if (value instanceof Number) {
+            return BigDecimal.valueOf(((Number) value).doubleValue());
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? BigDecimal.ONE : BigDecimal.ZERO;
+        }
+        return new BigDecimal(value.toString().trim());
+    }
+    
+    /**
+     * Convert a value to a number for arithmetic or comparison with a number
+     */
+    private static Object toNumber(Object value) {
+        if (value instanceof Number) {
+            return value;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1L : 0L;
+        }
+        String text = value.toString().trim();
+        if (isPlainInteger(text)) {
+            return Long.parseLong(text);
+        }
+        try {
+            BigDecimal decimal = new BigDecimal(text);
+            return decimal.scale() <= 0 && decimal.toBigInteger().bitLength() < 64 ? (Object) decimal.longValueExact() : decimal;
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new RuntimeException("Incorrect number value: '" + value + "'");
+        }
+    }
+    
+    /**
+     * Whether text is an optionally signed integer of at most 18 digits,
+     * which always fits in a long
+     */
+    private static boolean isPlainInteger(String text) {
+        int start = !text.isEmpty() && (text.charAt(0) == '-' || text.charAt(0) == '+') ? 1 : 0;
+        if (text.length() == start || text.length() - start > 18) {
+            return false;
+        }
+        for (int i = start; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Compare two non-null values
+     */
+    public static int compare(Object a, Object b) {
+        if (a instanceof Number || b instanceof Number) {
+            if (!(a instanceof Number) && !isNumeric(a) || !(b instanceof Number) && !isNumeric(b)) {
+                return a.toString().compareTo(b.toString());
+            }
+            return compareNumbers(toNumber(a), toNumber(b));
+        }
+        if (a instanceof Boolean && b instanceof Boolean) {
+            return Boolean.compare((Boolean) a, (Boolean) b);
+        }
+        return a.toString().compareTo(b.toString());
+    }
+    
+    private static boolean isNumeric(Object value) {
+        if (value instanceof Boolean) {
+            return true;
+        }
+        try {
+            new BigDecimal(value.toString().trim());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    
+    private static int compareNumbers(Object a, Object b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+        }
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        return toDecimal(a).compareTo(toDecimal(b));
+    }
+    
+    /**
+     * Compare two values that may be NULL; NULL sorts first
+     */
+    public static int compareNullsFirst(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return compare(a, b);
+    }
+    
+    /**
+     * Apply an arithmetic operator; NULL if either operand is NULL or on division by zero
+     */
+    public static Object arithmetic(char operator, Object a, Object b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        Object x = toNumber(a);
+        Object y = toNumber(b);
+        if (isIntegral(x) && isIntegral(y) && operator != '/') {
+            long l = ((Number) x).longValue();
+            long r = ((Number) y).longValue();
+            try {
+                switch (operator) {
+                    case '+': return Math.addExact(l, r);
+                    case '-': return Math.subtractExact(l, r);
+                    case '*': return Math.multiplyExact(l, r);
+                    default: return r == 0 ? null : l % r;
+                }
+            } catch (ArithmeticException e) {
+                throw new RuntimeException("BIGINT value is out of range in " + l + " " + operator + " " + r);
+            }
+        }
+        if (x instanceof Double || x instanceof Float || y instanceof Double || y instanceof Float) {
+            double l = ((Number) x).doubleValue();
+            double r = ((Number) y).doubleValue();
+            switch (operator) {
+                case '+': return l + r;
+                case '-': return l - r;
+                case '*': return l * r;
+                case '/': return r == 0 ? null : l / r;
+                default: return r == 0 ? null : l % r;
+            }
+        }
+        BigDecimal l = toDecimal(x);
+        BigDecimal r = toDecimal(y);
+        switch (operator) {
+            case '+': return l.add(r);
+            case '-': return l.subtract(r);
+            case '*': return l.multiply(r);
+            case '/':
+                if (r.signum() == 0) {
+                    return null;
+                }
+                return l.divide(r, Math.max(l.scale(), 0) + DIVISION_SCALE_INCREMENT, RoundingMode.HALF_UP);
+            default: return r.signum() == 0 ? null : l.remainder(r);
+        }
+    }
+    
+    /**
+     * Negate a number
+     */
+    public static Object negate(Object value) {
+        if (value == null) {
+            return null;
+        }
+        Object number = toNumber(value);
+        if (isIntegral(number)) {
+            return Math.negateExact(((Number) number).longValue());
+        }
+        if (number instanceof BigDecimal) {
+            return ((BigDecimal) number).negate();
+        }
+        return -((Number) number).doubleValue();
+    }
+    
+    /**
+     * Normalize a value for hashing, so that values that compare equal
+     * (such as 1, 1L and 1.0) have equal keys
+     */
+    public static Object hashKey(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean) {
+            return value;
+        }
+        if (isIntegral(value)) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Number) {
+            if (value instanceof Double && !Double.isFinite((Double) value)) {
+                return value;
+            }
+            BigDecimal decimal = toDecimal(value).stripTrailingZeros();
+            if (decimal.scale() <= 0 && decimal.toBigInteger().bitLength() < 64) {
+                return decimal.longValueExact();
+            }
+            return decimal;
+        }
+        return value;
+    }
+    
+    /**
+     * Normalize a list of values for hashing
+     */
+    public static List<Object> hashKey(Object[] values) {
+        List<Object> key = new ArrayList<>(values.length);
+        for (Object value : values) {
+            key.add(hashKey(value));
+        }
+        return key;
+    }
+    
+    /**
+     * Current date and time in MySQL DATETIME format
+     */
+    public static String now() {
+        return LocalDateTime.now().format(DATETIME_FORMAT);
+    }
+    
+    /**
+     * Convert a value to the Java type that stores a column of the given SQL type,
+     * such as "INT", "DECIMAL(10,2)" or "VARCHAR(50)"
+     */
+    public static Object coerce(Object value, String sqlType, String columnName) {
+        if (value == null) {
+            return null;
+        }
+        SqlType parsed = SqlType.of(sqlType);
+        String baseType = parsed.baseType;
+        try {
+            switch (baseType) {
+                case "INT":
+                case "INTEGER":
+                case "SMALLINT":
+                case "TINYINT": {
+                    long l = toIntegral(value);
+                    if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+                        throw new RuntimeException("Out of range value for column '" + columnName + "'");
+                    }
+                    return (int) l;
+                }
+                case "BIGINT":
+                    return toIntegral(value);
+                case "DECIMAL":
+                case "NUMERIC": {
+                    BigDecimal decimal = toDecimal(toNumber(value));
+                    int[] args = parsed.arguments;
+                    return args.length == 2 ? decimal.setScale(args[1], RoundingMode.HALF_UP)
+                            : decimal.setScale(0, RoundingMode.HALF_UP);
+                }
+                case "FLOAT":
+                case "DOUBLE":
+                case "REAL":
+                    return ((Number) toNumber(value)).doubleValue();
+                case "BOOLEAN":
+                case "BOOL":
+                    if (value instanceof Boolean) {
+                        return value;
+                    }
+                    return isTrue(toNumber(value));
+                case "VARCHAR":
+                case "CHAR": {
+                    String s = value instanceof Boolean ? ((Boolean) value ? "1" : "0") : value.toString();
+                    int[] args = parsed.arguments;
+                    if (args.length == 1 && s.codePointCount(0, s.length()) > args[0]) {
+                        throw new RuntimeException("Data too long for column '" + columnName + "'");
+                    }
+                    return s;
+                }
+                default:
+                    return value instanceof Boolean ? ((Boolean) value ? "1" : "0") : value.toString();
+            }
+        } catch (NumberFormatException | ClassCastException e) {
+            throw new RuntimeException("Incorrect " + baseType + " value: '" + value + "' for column '" + columnName + "'");
+        }
+    }
+    
+    private static long toIntegral(Object value) {
+        Object number = toNumber(value);
+        if (isIntegral(number)) {
+            return ((Number) number).longValue();
+        }
+        BigDecimal rounded = toDecimal(number).setScale(0, RoundingMode.HALF_UP);
+        if (rounded.toBigInteger().bitLength() >= 64) {
+            throw new RuntimeException("Out of range value: " + value);
+        }
+        return rounded.longValueExact();
+    }
+    
+    /**
+     * Base type of a column type in upper case, such as DECIMAL for "decimal(10,2)"
+     */
+    public static String baseType(String sqlType) {
+        return SqlType.of(sqlType).baseType;
+    }
+    
+    /**
+     * An argument of a column type, such as 2 for the scale of
+     * "DECIMAL(10,2)", or missing if the type has no such argument
+     */
+    public static int typeArgument(String sqlType, int index, int missing) {
+        int[] arguments = SqlType.of(sqlType).arguments;
+        return index < arguments.length ? arguments[index] : missing;
+    }
+    
+    /**
+     * A column type split into its base type and arguments, such as DECIMAL
+     * and {10, 2} for "decimal(10,2)". Parsed once per distinct type text.
+     */
+    private static final class SqlType {
+        private static final Map<String, SqlType> PARSED = new ConcurrentHashMap<>();
+        
+        final String baseType;
+        final int[] arguments;
+        
+        private SqlType(String sqlType) {
+            String type = sqlType.toUpperCase(Locale.ROOT);
+            int open = type.indexOf('(');
+            baseType = open < 0 ? type.trim() : type.substring(0, open).trim();
+            if (open < 0) {
+                arguments = new int[0];
+                return;
+            }
+            String[] parts = type.substring(open + 1, type.indexOf(')')).split(",");
+            arguments = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                arguments[i] = Integer.parseInt(parts[i].trim());
+            }
+        }
+        
+        static SqlType of(String sqlType) {
+            return PARSED.computeIfAbsent(sqlType, SqlType::new);
+        }
+    }
+    
+    /**
+     * Length of a string in bytes, as LENGTH() reports it
+     */
+    public static int byteLength(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+    
+    /**
+     * Text form of a value for display; NULL is shown as NULL
+     */
+    public static String toString(Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "1" : "0";
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,629 @@
+package org.hkprog.thedb.executor;
+
+import org.hkprog.thedb.ast.*;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Vector Expression - an expression compiled to loops over column vectors
+ *
+ * Column references, literals, parameters, arithmetic, comparisons, LIKE, AND, OR, NOT,
+ * unary minus and IS [NOT] NULL can be vectorized; {@link #compile} returns
+ * null for anything else, and the query is then run row at a time.
+ *
+ * Each kernel looks at the kinds of its input vectors once per batch. Integer
+ * and floating-point inputs run as loops over primitive arrays, comparisons
+ * of a string vector with a constant are decided once per dictionary entry,
+ * and other combinations (such as DECIMAL values) fall back to {@link Values}
+ * for each row, so results are the same as row-at-a-time evaluation.
+ * Only the selected rows of a batch are computed.
+ */
+public abstract class VectorExpression {
+    
+    /**
+     * Compile an expression over batches with the given columns, or return
+     * null if it cannot be vectorized
+     */
+    public static VectorExpression compile(ASTNode node, List<ColumnInfo> columns) {
+        if (node instanceof ColumnReferenceNode) {
+            ColumnReferenceNode reference = (ColumnReferenceNode) node;
+            if ("*".equals(reference.getColumnName())) {
+                return null;
+            }
+            int index = ExpressionEvaluator.resolve(columns, reference.getTableName(), reference.getColumnName());
+            return index < 0 ? null : new ColumnReference(index);
+        } else if (node instanceof LiteralNode) {
+            return new Constant(((LiteralNode) node).getValue());
+        } else if (node instanceof ParameterNode) {
+            return new Parameter((ParameterNode) node);
+        } else if (node instanceof BinaryOperationNode) {
+            BinaryOperationNode binary = (BinaryOperationNode) node;
+            if (binary.getOperator() == BinaryOperationNode.Operator.IN
+                    || binary.getOperator() == BinaryOperationNode.Operator.BETWEEN) {
+                return null;
+            }
+            VectorExpression left = compile(binary.getLeft(), columns);
+            VectorExpression right = compile(binary.getRight(), columns);
+            if (left == null || right == null) {
+                return null;
+            }
+            switch (binary.getOperator()) {
+                case AND: return new And(left, right);
+                case OR: return new Or(left, right);
+                case ADD: return new Arithmetic('+', left, right);
+                case SUBTRACT: return new Arithmetic('-', left, right);
+                case MULTIPLY: return new Arithmetic('*', left, right);
+                case DIVIDE: return new Arithmetic('/', left, right);
+                case MODULO: return new Arithmetic('%', left, right);
+                case LIKE: return new Like(left, right);
+                default: return new Comparison(binary.getOperator(), left, right);
+            }
+        } else if (node instanceof UnaryOperationNode) {
+            UnaryOperationNode unary = (UnaryOperationNode) node;
+            VectorExpression operand = compile(unary.getOperand(), columns);
+            if (operand == null) {
+                return null;
+            }
+            switch (unary.getOperator()) {
+                case NOT: return new Not(operand);
+                case NEGATE: return new Negate(operand);
+                case IS_NULL: return new IsNull(operand, false);
+                case IS_NOT_NULL: return new IsNull(operand, true);
+                default: return null;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Whether an expression can be vectorized over batches with the given columns
+     */
+    public static boolean isSupported(ASTNode node, List<ColumnInfo> columns) {
+        return compile(node, columns) != null;
+    }
+    
+    /**
+     * Compute the expression for the selected rows of a batch. The result is
+     * only valid until the next call.
+     */
+    public abstract ColumnVector evaluate(RowBatch batch);
+    
+    /**
+     * Whether a non-NULL slot counts as true
+     */
+    static boolean isTrue(ColumnVector vector, int i) {
+        switch (vector.getKind()) {
+            case INT:
+            case LONG:
+            case BOOLEAN:
+                return vector.getLongs()[i] != 0;
+            case DOUBLE:
+                return vector.getDoubles()[i] != 0;
+            default:
+                return Values.isTrue(vector.get(i));
+        }
+    }
+    
+    private static ColumnVector newVector() {
+        return new ColumnVector(ColumnVector.Kind.BOOLEAN, RowBatch.CAPACITY);
+    }
+    
+    private static final class ColumnReference extends VectorExpression {
+        private final int index;
+        
+        ColumnReference(int index) {
+            this.index = index;
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            return batch.getVector(index);
+        }
+    }
+    
+    private static final class Constant extends VectorExpression {
+        private final ColumnVector vector;
+        
+        Constant(Object value) {
+            this.vector = ColumnVector.constant(value, RowBatch.CAPACITY);
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            return vector;
+        }
+    }
+    
+    /**
+     * A constant vector of the value bound to a parameter, rebuilt when the value changes
+     */
+    private static final class Parameter extends VectorExpression {
+        private final ParameterNode parameter;
+        private Object value;
+        private ColumnVector vector;
+        
+        Parameter(ParameterNode parameter) {
+            this.parameter = parameter;
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            Object bound = parameter.getValue();
+            if (vector == null || !Objects.equals(bound, value)) {
+                value = bound;
+                vector = ColumnVector.constant(bound, RowBatch.CAPACITY);
+            }
+            return vector;
+        }
+    }
+    
+    private static final class Arithmetic extends VectorExpression {
+        private final char operator;
+        private final VectorExpression left;
+        private final VectorExpression right;
+        private final ColumnVector out = newVector();
+        
+        Arithmetic(char operator, VectorExpression left, VectorExpression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            ColumnVector a = left.evaluate(batch);
+            ColumnVector b = right.evaluate(batch);
+            int[] sel = batch.getSelection();
+            int n = batch.size();
+            if (a.isIntegral() && b.isIntegral() && operator != '/') {
+                out.reset(ColumnVector.Kind.LONG);
+                out.unionNulls(a, b);
+                longs(a.getLongs(), b.getLongs(), out.getLongs(), sel, n);
+            } else if (a.isNumeric() && b.isNumeric()
+                    && (a.getKind() == ColumnVector.Kind.DOUBLE || b.getKind() == ColumnVector.Kind.DOUBLE)) {
+                out.reset(ColumnVector.Kind.DOUBLE);
+                out.unionNulls(a, b);
+                doubles(a, b, out.getDoubles(), sel, n);
+            } else {
+                out.reset(ColumnVector.Kind.OBJECT);
+                Object[] r = out.getObjects();
+                for (int k = 0; k < n; k++) {
+                    int i = sel[k];
+                    Object value = Values.arithmetic(operator, a.get(i), b.get(i));
+                    if (value == null) {
+                        out.setNull(i);
+                    } else {
+                        r[i] = value;
+                    }
+                }
+            }
+            return out;
+        }
+        
+        private void longs(long[] x, long[] y, long[] r, int[] sel, int n) {
+            int i = 0;
+            try {
+                switch (operator) {
+                    case '+':
+                        for (int k = 0; k < n; k++) {
+                            i = sel[k];
+                            r[i] = Math.addExact(x[i], y[i]);
+                        }
+                        break;
+                    case '-':
+                        for (int k = 0; k < n; k++) {
+                            i = sel[k];
+                            r[i] = Math.subtractExact(x[i], y[i]);
+                        }
+                        break;
+                    case '*':
+                        for (int k = 0; k < n; k++) {
+                            i = sel[k];
+                            r[i] = Math.multiplyExact(x[i], y[i]);
+                        }
+                        break;
+                    default:
+                        for (int k = 0; k < n; k++) {
+                            i = sel[k];
+                            if (y[i] == 0) {
+                                out.setNull(i);
+                            } else {
+                                r[i] = x[i] % y[i];
+                            }
+                        }
+                        break;
+                }
+            } catch (ArithmeticException e) {
+                throw new RuntimeException("BIGINT value is out of range in " + x[i] + " " + operator + " " + y[i]);
+            }
+        }
+        
+        private void doubles(ColumnVector a, ColumnVector b, double[] r, int[] sel, int n) {
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                double x = a.getAsDouble(i);
+                double y = b.getAsDouble(i);
+                switch (operator) {
+                    case '+': r[i] = x + y; break;
+                    case '-': r[i] = x - y; break;
+                    case '*': r[i] = x * y; break;
+                    case '/':
+                        if (y == 0) {
+                            out.setNull(i);
+                        } else {
+                            r[i] = x / y;
+                        }
+                        break;
+                    default:
+                        if (y == 0) {
+                            out.setNull(i);
+                        } else {
+                            r[i] = x % y;
+                        }
+                        break;
+                }
+            }
+        }
+    }
+    
+    private static final class Comparison extends VectorExpression {
+        private final BinaryOperationNode.Operator operator;
+        private final VectorExpression left;
+        private final VectorExpression right;
+        private final ColumnVector out = newVector();
+        
+        Comparison(BinaryOperationNode.Operator operator, VectorExpression left, VectorExpression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+        
+        private boolean test(int comparison) {
+            switch (operator) {
+                case EQUAL: return comparison == 0;
+                case NOT_EQUAL: return comparison != 0;
+                case LESS_THAN: return comparison < 0;
+                case LESS_EQUAL: return comparison <= 0;
+                case GREATER_THAN: return comparison > 0;
+                default: return comparison >= 0;
+            }
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            ColumnVector a = left.evaluate(batch);
+            ColumnVector b = right.evaluate(batch);
+            int[] sel = batch.getSelection();
+            int n = batch.size();
+            out.reset(ColumnVector.Kind.BOOLEAN);
+            out.unionNulls(a, b);
+            long[] r = out.getLongs();
+            if (a.isIntegral() && b.isIntegral()) {
+                longs(a.getLongs(), b.getLongs(), r, sel, n);
+            } else if (a.isNumeric() && b.isNumeric()) {
+                for (int k = 0; k < n; k++) {
+                    int i = sel[k];
+                    r[i] = test(Double.compare(a.getAsDouble(i), b.getAsDouble(i))) ? 1 : 0;
+                }
+            } else if (a.getKind() == ColumnVector.Kind.STRING && b.getKind() == ColumnVector.Kind.STRING) {
+                strings(a, b, r, sel, n);
+            } else {
+                for (int k = 0; k < n; k++) {
+                    int i = sel[k];
+                    if (!out.isNull(i)) {
+                        r[i] = test(Values.compare(a.get(i), b.get(i))) ? 1 : 0;
+                    }
+                }
+            }
+            return out;
+        }
+        
+        private void longs(long[] x, long[] y, long[] r, int[] sel, int n) {
+            switch (operator) {
+                case EQUAL:
+                    for (int k = 0; k < n; k++) {
+                        int i = sel[k];
+                        r[i] = x[i] == y[i] ? 1 : 0;
+                    }
+                    break;
+                case NOT_EQUAL:
+                    for (int k = 0; k < n; k++) {
+                        int i = sel[k];
+                        r[i] = x[i] != y[i] ? 1 : 0;
+                    }
+                    break;
+                case LESS_THAN:
+                    for (int k = 0; k < n; k++) {
+                        int i = sel[k];
+                        r[i] = x[i] < y[i] ? 1 : 0;
+                    }
+                    break;
+                case LESS_EQUAL:
+                    for (int k = 0; k < n; k++) {
+                        int i = sel[k];
+                        r[i] = x[i] <= y[i] ? 1 : 0;
+                    }
+                    break;
+                case GREATER_THAN:
+                    for (int k = 0; k < n; k++) {
+                        int i = sel[k];
+                        r[i] = x[i] > y[i] ? 1 : 0;
+                    }
+                    break;
+                default:
+                    for (int k = 0; k < n; k++) {
+                        int i = sel[k];
+                        r[i] = x[i] >= y[i] ? 1 : 0;
+                    }
+                    break;
+            }
+        }
+        
+        private void strings(ColumnVector a, ColumnVector b, long[] r, int[] sel, int n) {
+            int[] x = a.getCodes();
+            int[] y = b.getCodes();
+            boolean constantRight = b.isConstant() && !b.isNull(0);
+            if (constantRight || (a.isConstant() && !a.isNull(0))) {
+                // Decide once per dictionary entry of the non-constant side
+                ColumnVector varying = constantRight ? a : b;
+                String constant = (constantRight ? b : a).getDictionary().get(0);
+                List<String> dictionary = varying.getDictionary();
+                long[] result = new long[Math.max(1, dictionary.size())];
+                for (int c = 0; c < dictionary.size(); c++) {
+                    int comparison = constantRight ? dictionary.get(c).compareTo(constant)
+                            : constant.compareTo(dictionary.get(c));
+                    result[c] = test(comparison) ? 1 : 0;
+                }
+                int[] codes = constantRight ? x : y;
+                for (int k = 0; k < n; k++) {
+                    int i = sel[k];
+                    r[i] = result[codes[i]];
+                }
+                return;
+            }
+            List<String> left = a.getDictionary();
+            List<String> right = b.getDictionary();
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                if (!out.isNull(i)) {
+                    r[i] = test(left.get(x[i]).compareTo(right.get(y[i]))) ? 1 : 0;
+                }
+            }
+        }
+    }
+    
+    private static final class Like extends VectorExpression {
+        private final VectorExpression left;
+        private final VectorExpression right;
+        private final ColumnVector out = newVector();
+        private final Map<String, Pattern> patterns = new HashMap<>();
+        
+        Like(VectorExpression left, VectorExpression right) {
+            this.left = left;
+            this.right = right;
+        }
+        
+        private Pattern pattern(String pattern) {
+            return patterns.computeIfAbsent(pattern, ExpressionEvaluator::compileLike);
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            ColumnVector a = left.evaluate(batch);
+            ColumnVector b = right.evaluate(batch);
+            int[] sel = batch.getSelection();
+            int n = batch.size();
+            out.reset(ColumnVector.Kind.BOOLEAN);
+            out.unionNulls(a, b);
+            long[] r = out.getLongs();
+            if (a.getKind() == ColumnVector.Kind.STRING && b.isConstant() && !b.isNull(0)) {
+                // Match each distinct string once
+                Pattern pattern = pattern(b.get(0).toString());
+                List<String> dictionary = a.getDictionary();
+                long[] result = new long[Math.max(1, dictionary.size())];
+                for (int c = 0; c < dictionary.size(); c++) {
+                    result[c] = pattern.matcher(dictionary.get(c)).matches() ? 1 : 0;
+                }
+                int[] codes = a.getCodes();
+                for (int k = 0; k < n; k++) {
+                    int i = sel[k];
+                    r[i] = result[codes[i]];
+                }
+            } else {
+                for (int k = 0; k < n; k++) {
+                    int i = sel[k];
+                    if (!out.isNull(i)) {
+                        r[i] = pattern(b.get(i).toString()).matcher(a.get(i).toString()).matches() ? 1 : 0;
+                    }
+                }
+            }
+            return out;
+        }
+    }
+    
+    private static final class And extends VectorExpression {
+        private final VectorExpression left;
+        private final VectorExpression right;
+        private final ColumnVector out = newVector();
+        private final int[] remaining = new int[RowBatch.CAPACITY];
+        
+        And(VectorExpression left, VectorExpression right) {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            ColumnVector a = left.evaluate(batch);
+            int[] sel = batch.getSelection();
+            int n = batch.size();
+            // The right side is only computed where the left side is not false
+            int m = 0;
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                if (a.isNull(i) || isTrue(a, i)) {
+                    remaining[m++] = i;
+                }
+            }
+            ColumnVector b = m > 0 ? right.evaluate(batch.select(remaining, m)) : null;
+            out.reset(ColumnVector.Kind.BOOLEAN);
+            long[] r = out.getLongs();
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                boolean aNull = a.isNull(i);
+                if (!aNull && !isTrue(a, i)) {
+                    r[i] = 0;
+                    continue;
+                }
+                boolean bNull = b.isNull(i);
+                if (!bNull && !isTrue(b, i)) {
+                    r[i] = 0;
+                } else if (aNull || bNull) {
+                    out.setNull(i);
+                } else {
+                    r[i] = 1;
+                }
+            }
+            return out;
+        }
+    }
+    
+    private static final class Or extends VectorExpression {
+        private final VectorExpression left;
+        private final VectorExpression right;
+        private final ColumnVector out = newVector();
+        private final int[] remaining = new int[RowBatch.CAPACITY];
+        
+        Or(VectorExpression left, VectorExpression right) {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            ColumnVector a = left.evaluate(batch);
+            int[] sel = batch.getSelection();
+            int n = batch.size();
+            // The right side is only computed where the left side is not true
+            int m = 0;
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                if (a.isNull(i) || !isTrue(a, i)) {
+                    remaining[m++] = i;
+                }
+            }
+            ColumnVector b = m > 0 ? right.evaluate(batch.select(remaining, m)) : null;
+            out.reset(ColumnVector.Kind.BOOLEAN);
+            long[] r = out.getLongs();
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                boolean aNull = a.isNull(i);
+                if (!aNull && isTrue(a, i)) {
+                    r[i] = 1;
+                    continue;
+                }
+                boolean bNull = b.isNull(i);
+                if (!bNull && isTrue(b, i)) {
+                    r[i] = 1;
+                } else if (aNull || bNull) {
+                    out.setNull(i);
+                } else {
+                    r[i] = 0;
+                }
+            }
+            return out;
+        }
+    }
+    
+    private static final class Not extends VectorExpression {
+        private final VectorExpression operand;
+        private final ColumnVector out = newVector();
+        
+        Not(VectorExpression operand) {
+            this.operand = operand;
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            ColumnVector a = operand.evaluate(batch);
+            int[] sel = batch.getSelection();
+            int n = batch.size();
+            out.reset(ColumnVector.Kind.BOOLEAN);
+            out.copyNulls(a);
+            long[] r = out.getLongs();
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                r[i] = !a.isNull(i) && isTrue(a, i) ? 0 : 1;
+            }
+            return out;
+        }
+    }
+    
+    private static final class Negate extends VectorExpression {
+        private final VectorExpression operand;
+        private final ColumnVector out = newVector();
+        
+        Negate(VectorExpression operand) {
+            this.operand = operand;
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            ColumnVector a = operand.evaluate(batch);
+            int[] sel = batch.getSelection();
+            int n = batch.size();
+            if (a.isIntegral()) {
+                out.reset(ColumnVector.Kind.LONG);
+                out.copyNulls(a);
+                long[] x = a.getLongs();
+                long[] r = out.getLongs();
+                for (int k = 0; k < n; k++) {
+                    int i = sel[k];
+                    r[i] = Math.negateExact(x[i]);
+                }
+            } else if (a.getKind() == ColumnVector.Kind.DOUBLE) {
+                out.reset(ColumnVector.Kind.DOUBLE);
+                out.copyNulls(a);
+                double[] x = a.getDoubles();
+                double[] r = out.getDoubles();
+                for (int k = 0; k < n; k++) {
+                    int i = sel[k];
+                    r[i] = -x[i];
+                }
+            } else {
+                out.reset(ColumnVector.Kind.OBJECT);
+                for (int k = 0; k < n; k++) {
+                    int i = sel[k];
+                    out.set(i, Values.negate(a.get(i)));
+                }
+            }
+            return out;
+        }
+    }
+    
+    private static final class IsNull extends VectorExpression {
+        private final VectorExpression operand;
+        private final boolean negated;
+        private final ColumnVector out = newVector();
+        
+        IsNull(VectorExpression operand, boolean negated) {
+            this.operand = operand;
+            this.negated = negated;
+        }
+        
+        @Override
+        public ColumnVector evaluate(RowBatch batch) {
+            ColumnVector a = operand.evaluate(batch);
+            int[] sel = batch.getSelection();
+            int n = batch.size();
+            out.reset(ColumnVector.Kind.BOOLEAN);
+            long[] r = out.getLongs();
+            for (int k = 0; k < n; k++) {
+                int i = sel[k];
+                r[i] = a.isNull(i) != negated ? 1 : 0;
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.hkprog.thedb.planner;
+
+import org.hkprog.thedb.ast.*;
+import org.hkprog.thedb.executor.ColumnInfo;
+import org.hkprog.thedb.executor.QueryExecutor.ExecutionPlan;
+
+import java.util.*;
+
+/**
+ * Prepared Statement - a statement with ? parameter markers that is parsed
+ * and planned once and then executed with different values
+ *
+ * The plan's expressions read the values from the statement's
+ * {@link ParameterNode}s, so binding new values does not rebuild it. The plan
+ * is made on first use and only rebuilt when a table the statement reads or
+ * changes, or an index on one, has been created or dropped since.
+ *
+ * A statement is planned by the planner of the session using it; a
+ * statement taken from the {@link StatementCache} is handed to the planner
+ * of the session that checked it out.
+ */
+public class PreparedStatement {
+    
+    private QueryPlanner planner;
+    private final PrepareStatementNode prepared;
+    private final List<String> tables;
+    private final long[] tableVersions;
+    private ExecutionPlan plan;
+    
+    PreparedStatement(QueryPlanner planner, PrepareStatementNode prepared) {
+        this.planner = planner;
+        this.prepared = prepared;
+        this.tables = referencedTables(prepared.getStatement());
+        this.tableVersions = new long[tables.size()];
+    }
+    
+    void setPlanner(QueryPlanner planner) {
+        this.planner = planner;
+    }
+    
+    public String getName() {
+        return prepared.getName();
+    }
+    
+    public ASTNode getStatement() {
+        return prepared.getStatement();
+    }
+    
+    public int getParameterCount() {
+        return prepared.getParameters().size();
+    }
+    
+    /**
+     * Names of the columns the statement returns, empty if it returns no rows
+     */
+    public List<String> getColumnNames() {
+        ExecutionPlan current = plan();
+        if (!(current.getRootNode() instanceof SelectStatementNode)) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        for (ColumnInfo column : current.getOperator().getColumns()) {
+            names.add(column.getName());
+        }
+        return names;
+    }
+    
+    /**
+     * Bind values to the parameters, in order, and return the plan to execute
+     */
+    public ExecutionPlan bind(List<?> values) {
+        List<ParameterNode> parameters = prepared.getParameters();
+        if (values.size() != parameters.size()) {
+            throw new RuntimeException("Incorrect arguments to EXECUTE: the statement has "
+                    + parameters.size() + " parameters but " + values.size() + " values were given");
+        }
+        for (int i = 0; i < values.size(); i++) {
+            parameters.get(i).setValue(values.get(i));
+        }
+        return plan();
+    }
+    
+    /**
+     * Whether the plan must be rebuilt before the statement runs again
+     */
+    public boolean isStale() {
+        if (plan == null) {
+            return true;
+        }
+        for (int i = 0; i < tables.size(); i++) {
+            if (planner.getTableVersion(tables.get(i)) != tableVersions[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    ExecutionPlan plan() {
+        if (isStale()) {
+            // Versions are read first, so a change made while planning is noticed next time
+            for (int i = 0; i < tables.size(); i++) {
+                tableVersions[i] = planner.getTableVersion(tables.get(i));
+            }
+            plan = null;
+            plan = planner.createPlan(prepared.getStatement());
+        }
+        return plan;
+    }
+    
+    private static List<String> referencedTables(ASTNode statement) {
+        List<String> tables = new ArrayList<>();
+        if (statement instanceof SelectStatementNode) {
+            SelectStatementNode select = (SelectStatementNode) statement;
+            for (SelectStatementNode.TableSource source : select.getFromTables()) {
+                tables.add(source.getTableName());
+            }
+            for (SelectStatementNode.JoinClause join : select.getJoins()) {
+                tables.add(join.getTableSource().getTableName());
+            }
+        } else if (statement instanceof InsertStatementNode) {
+            tables.add(((InsertStatementNode) statement).getTableName());
+        } else if (statement instanceof UpdateStatementNode) {
+            tables.add(((UpdateStatementNode) statement).getTableName());
+        } else if (statement instanceof DeleteStatementNode) {
+            tables.add(((DeleteStatementNode) statement).getTableName());
+        }
+        tables.removeIf(Objects::isNull);
+        return tables;
+    }
+}
@@ -1,26 +1,1085 @@
 package org.hkprog.thedb.planner;
 
-import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.ast.*;
+import org.hkprog.thedb.ast.SelectStatementNode.JoinClause.JoinType;
+import org.hkprog.thedb.executor.*;
 import org.hkprog.thedb.executor.QueryExecutor.ExecutionPlan;
+import org.hkprog.thedb.storage.Index;
+import org.hkprog.thedb.storage.StorageEngine;
+
+import java.util.*;
 
 /**
  * Query Planner - optimizes queries and creates execution plans
+ *
+ * A SELECT becomes a tree of operators:
+ * <pre>
+ * Limit
+ *   Project (Distinct and Sort above it for SELECT DISTINCT)
+ *     Sort / TopN
+ *       Filter (HAVING)
+ *         Aggregate
+ *           Filter (rest of WHERE)
+ *             IndexNestedLoopJoin / MergeJoin / HashJoin / NestedLoopJoin ...
+ *               TableScan / IndexScan, Filter (WHERE conditions on one table)
+ * </pre>
+ * Conditions of the WHERE clause that only refer to one table are applied
+ * directly above that table's access path, unless the table is on the
+ * NULL-padded side of an outer join. Equality conditions against constants
+ * select an index on their columns, and range conditions an index whose
+ * leading column they constrain.
+ *
+ * A join whose condition equates a column of each side merges its inputs
+ * when both are index scans in order of those columns, looks up the right
+ * table through an index on them when the left input is small compared with
+ * it, and is a hash join on them otherwise; other joins, and columns whose
+ * values would not hash alike, use a nested loop join.
+ *
+ * ORDER BY needs no sort when an index scan of the only table returns the
+ * rows in order, and with a LIMIT a full scan becomes such an index scan so
+ * that reading stops after the rows returned. Otherwise ORDER BY with a
+ * LIMIT keeps the first LIMIT + OFFSET rows in a Top-N heap, and without
+ * one sorts all rows.
+ *
+ * UPDATE and DELETE get the same access path for their table, which the
+ * executor uses to find the rows to change.
+ *
+ * A planner belongs to one session and keeps the session's named prepared
+ * statements. Conditions comparing a column with a ? parameter select an
+ * index like constants do; the key is taken from the bound value when the
+ * scan is opened.
+ *
+ * In vectorized mode (the default) a full table scan of a SELECT is read in
+ * batches of column vectors, and its filter, aggregation or plain select
+ * list run on the batches when all of their expressions can be vectorized.
+ * Anything else falls back to the row-at-a-time operators.
  */
 public class QueryPlanner {
     
-    public QueryPlanner() {
-        // Constructor
+    /**
+     * Most rows a Top-N heap keeps; ORDER BY with a larger LIMIT plus OFFSET is a full sort
+     */
+    private static final long TOP_N_MAX_ROWS = 100_000;
+    
+    private final StorageEngine storageEngine;
+    private boolean vectorized = true;
+    private final Map<String, PreparedStatement> preparedStatements = new HashMap<>();
+    
+    public QueryPlanner(StorageEngine storageEngine) {
+        this.storageEngine = storageEngine;
+    }
+    
+    /**
+     * Turn vectorized (batch at a time) execution of SELECT on or off
+     */
+    public void setVectorized(boolean vectorized) {
+        this.vectorized = vectorized;
+    }
+    
+    public boolean isVectorized() {
+        return vectorized;
+    }
+    
+    long getTableVersion(String tableName) {
+        return storageEngine.getTableVersion(tableName);
+    }
+    
+    /**
+     * Plan a statement with ? parameter markers once, for executing it many times
+     */
+    public PreparedStatement prepare(PrepareStatementNode prepare) {
+        PreparedStatement statement = new PreparedStatement(this, prepare);
+        statement.plan();
+        return statement;
     }
     
     /**
      * Create an optimized execution plan from AST
      */
     public ExecutionPlan createPlan(ASTNode ast) {
-        // Analyze AST
-        // Choose indexes
-        // Optimize joins
-        // Create execution plan
-        System.out.println("Creating query plan...");
+        if (ast instanceof PrepareStatementNode) {
+            PrepareStatementNode prepare = (PrepareStatementNode) ast;
+            preparedStatements.put(prepare.getName().toLowerCase(Locale.ROOT), prepare(prepare));
+            return new ExecutionPlan(ast);
+        } else if (ast instanceof ExecuteStatementNode) {
+            ExecuteStatementNode execute = (ExecuteStatementNode) ast;
+            List<Object> values = new ArrayList<>();
+            for (ASTNode argument : execute.getArguments()) {
+                values.add(ExpressionEvaluator.evaluate(argument));
+            }
+            return getPreparedStatement(execute.getName()).bind(values);
+        } else if (ast instanceof DeallocatePrepareNode) {
+            String name = ((DeallocatePrepareNode) ast).getName();
+            getPreparedStatement(name);
+            preparedStatements.remove(name.toLowerCase(Locale.ROOT));
+            return new ExecutionPlan(ast);
+        } else if (ast instanceof SelectStatementNode) {
+            return new ExecutionPlan(ast, planSelect((SelectStatementNode) ast));
+        } else if (ast instanceof UpdateStatementNode) {
+            UpdateStatementNode update = (UpdateStatementNode) ast;
+            return new ExecutionPlan(ast, planTableAccess(update.getTableName(), update.getWhereClause()));
+        } else if (ast instanceof DeleteStatementNode) {
+            DeleteStatementNode delete = (DeleteStatementNode) ast;
+            return new ExecutionPlan(ast, planTableAccess(delete.getTableName(), delete.getWhereClause()));
+        }
         return new ExecutionPlan(ast);
     }
+    
+    /**
+     * Forget the session's named prepared statements
+     */
+    public void deallocateAll() {
+        preparedStatements.clear();
+    }
+    
+    private PreparedStatement getPreparedStatement(String name) {
+        PreparedStatement statement = preparedStatements.get(name.toLowerCase(Locale.ROOT));
+        if (statement == null) {
+            throw new RuntimeException("Unknown prepared statement handler (" + name + ")");
+        }
+        return statement;
+    }
+    
+    private StorageEngine.Table getTable(String tableName) {
+        StorageEngine.Table table = storageEngine.getTable(tableName);
+        if (table == null) {
+            throw new RuntimeException("Table '" + tableName + "' doesn't exist");
+        }
+        return table;
+    }
+    
+    private Operator planTableAccess(String tableName, ASTNode where) {
+        List<ASTNode> conditions = new ArrayList<>();
+        splitConjunction(where, conditions);
+        return planTable(getTable(tableName), tableName, conditions, false);
+    }
+    
+    // ---- SELECT ----
+    
+    private Operator planSelect(SelectStatementNode select) {
+        Operator pointLookup = planPointLookup(select);
+        if (pointLookup != null) {
+            return pointLookup;
+        }
+        Operator input = planFrom(select);
+        List<SelectStatementNode.SelectElement> elements = select.getSelectElements();
+        
+        // Select list, with * expanded to the columns of the FROM clause
+        List<ASTNode> expressions = new ArrayList<>();
+        List<ColumnInfo> outputColumns = new ArrayList<>();
+        Map<String, ASTNode> aliases = new HashMap<>();
+        for (SelectStatementNode.SelectElement element : elements) {
+            ASTNode expression = element.getExpression();
+            if (isStar(expression)) {
+                for (ColumnInfo column : input.getColumns()) {
+                    expressions.add(new ColumnReferenceNode(column.getQualifier(), column.getName()));
+                    outputColumns.add(column);
+                }
+                continue;
+            }
+            expressions.add(expression);
+            if (element.getAlias() != null) {
+                outputColumns.add(new ColumnInfo(null, element.getAlias(), typeOf(expression, input.getColumns())));
+                aliases.putIfAbsent(element.getAlias().toLowerCase(Locale.ROOT), expression);
+            } else if (expression instanceof ColumnReferenceNode) {
+                ColumnReferenceNode column = (ColumnReferenceNode) expression;
+                int index = ExpressionEvaluator.resolve(input.getColumns(), column.getTableName(), column.getColumnName());
+                outputColumns.add(index >= 0 ? input.getColumns().get(index)
+                        : new ColumnInfo(column.getTableName(), column.getColumnName()));
+            } else {
+                outputColumns.add(new ColumnInfo(null, ExpressionEvaluator.describe(expression),
+                        typeOf(expression, input.getColumns())));
+            }
+        }
+        
+        // ORDER BY may name a select alias or position
+        List<ASTNode> orderKeys = new ArrayList<>();
+        boolean[] ascending = new boolean[select.getOrderBy().size()];
+        for (int i = 0; i < ascending.length; i++) {
+            SelectStatementNode.OrderByElement element = select.getOrderBy().get(i);
+            ASTNode key = element.getExpression();
+            if (key instanceof LiteralNode && ((LiteralNode) key).getValue() instanceof Number) {
+                int position = ((Number) ((LiteralNode) key).getValue()).intValue();
+                if (position < 1 || position > expressions.size()) {
+                    throw new RuntimeException("Unknown column '" + position + "' in 'order clause'");
+                }
+                key = expressions.get(position - 1);
+            }
+            orderKeys.add(key);
+            ascending[i] = element.isAscending();
+        }
+        ASTNode having = select.getHavingClause() != null ? substituteAliases(select.getHavingClause(), aliases) : null;
+        
+        // Aggregation
+        List<FunctionCallNode> aggregates = new ArrayList<>();
+        for (ASTNode expression : expressions) {
+            ExpressionEvaluator.collectAggregates(expression, aggregates);
+        }
+        if (having != null) {
+            ExpressionEvaluator.collectAggregates(having, aggregates);
+        }
+        if (!select.isDistinct()) {
+            for (ASTNode key : orderKeys) {
+                ExpressionEvaluator.collectAggregates(substituteAliases(key, aliases), aggregates);
+            }
+        }
+        Map<String, Integer> computed = Collections.emptyMap();
+        boolean grouped = !select.getGroupBy().isEmpty() || !aggregates.isEmpty();
+        if (grouped) {
+            List<FunctionCallNode> distinctAggregates = distinctByKey(aggregates);
+            BatchOperator batches = batchInput(input);
+            if (batches != null && BatchAggregateOperator.isSupported(select.getGroupBy(), distinctAggregates, batches.getColumns())) {
+                BatchAggregateOperator aggregate = new BatchAggregateOperator(batches, select.getGroupBy(), distinctAggregates,
+                        storageEngine.getTempDirectory(), storageEngine.getWorkMemoryBytes());
+                computed = aggregate.getComputed();
+                input = aggregate;
+            } else {
+                AggregateOperator aggregate = new AggregateOperator(input, select.getGroupBy(), distinctAggregates,
+                        storageEngine.getTempDirectory(), storageEngine.getWorkMemoryBytes());
+                computed = aggregate.getComputed();
+                input = aggregate;
+            }
+            if (having != null) {
+                input = new FilterOperator(input, having, computed);
+            }
+        } else if (having != null) {
+            input = new FilterOperator(input, having);
+        }
+        
+        if (select.isDistinct()) {
+            input = new ProjectOperator(input, expressions, outputColumns, computed);
+            input = new DistinctOperator(input);
+            if (!orderKeys.isEmpty()) {
+                // Sort the distinct rows; ORDER BY may only use what was selected
+                Map<String, Integer> selected = new HashMap<>();
+                for (int i = 0; i < expressions.size(); i++) {
+                    selected.putIfAbsent(ExpressionEvaluator.key(expressions.get(i)), i);
+                }
+                input = planSort(input, orderKeys, ascending, selected, select);
+            }
+        } else {
+            if (!orderKeys.isEmpty()) {
+                List<ASTNode> keys = new ArrayList<>();
+                for (ASTNode key : orderKeys) {
+                    keys.add(substituteAliases(key, aliases));
+                }
+                Operator ordered = grouped ? null : planIndexOrder(select, input, keys, ascending);
+                input = ordered != null ? ordered : planSort(input, keys, ascending, computed, select);
+            }
+            BatchOperator batches = batchInput(input);
+            if (batches != null && allVectorizable(expressions, batches.getColumns())) {
+                input = new BatchToRowOperator(new BatchProjectOperator(batches, expressions, outputColumns));
+            } else {
+                input = new ProjectOperator(input, expressions, outputColumns, computed);
+            }
+        }
+        
+        if (select.getLimit() != null || select.getOffset() != null) {
+            input = new LimitOperator(input, select.getLimit() != null ? select.getLimit() : -1,
+                    select.getOffset() != null ? select.getOffset() : 0);
+        }
+        return input;
+    }
+    
+    /**
+     * SQL type of the values of a select list expression, or null when the
+     * plan does not tell: a column has its own type, COUNT is a BIGINT and
+     * MIN and MAX have the type of their argument
+     */
+    private static String typeOf(ASTNode expression, List<ColumnInfo> columns) {
+        if (expression instanceof ColumnReferenceNode) {
+            ColumnReferenceNode reference = (ColumnReferenceNode) expression;
+            int index = ExpressionEvaluator.resolve(columns, reference.getTableName(), reference.getColumnName());
+            return index >= 0 ? columns.get(index).getType() : null;
+        }
+        if (expression instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) expression;
+            String name = call.getFunctionName().toUpperCase(Locale.ROOT);
+            if (name.equals("COUNT")) {
+                return "BIGINT";
+            }
+            if ((name.equals("MIN") || name.equals("MAX")) && call.getArguments().size() == 1) {
+                return typeOf(call.getArguments().get(0), columns);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Sort for ORDER BY: a Top-N heap when LIMIT plus OFFSET is small enough
+     * to keep in memory, otherwise a full sort
+     */
+    private Operator planSort(Operator input, List<ASTNode> keys, boolean[] ascending, Map<String, Integer> computed,
+                              SelectStatementNode select) {
+        if (select.getLimit() != null) {
+            long n = (long) select.getLimit() + (select.getOffset() != null ? select.getOffset() : 0);
+            if (n <= TOP_N_MAX_ROWS) {
+                return new TopNOperator(input, keys, ascending, computed, n);
+            }
+        }
+        return new SortOperator(input, keys, ascending, computed,
+                storageEngine.getTempDirectory(), storageEngine.getWorkMemoryBytes());
+    }
+    
+    /**
+     * The rows of a single-table SELECT in ORDER BY order from an index, or
+     * null. An index scan already chosen for the WHERE clause is used if the
+     * ORDER BY columns follow its equality columns in the index, read
+     * backwards for DESC. With a LIMIT, a full table scan is replaced by a
+     * scan of an index that starts with the ORDER BY columns, so the query
+     * stops after reading the rows it returns. All keys must be columns in
+     * the same direction; NULLs come first in the index, as ORDER BY puts
+     * them.
+     */
+    private Operator planIndexOrder(SelectStatementNode select, Operator input, List<ASTNode> keys, boolean[] ascending) {
+        if (select.getFromTables().size() != 1 || !select.getJoins().isEmpty()
+                || select.getFromTables().get(0).isSubquery() || select.getHavingClause() != null) {
+            return null;
+        }
+        for (boolean direction : ascending) {
+            if (direction != ascending[0]) {
+                return null;
+            }
+        }
+        Source source = source(select.getFromTables().get(0));
+        List<String> orderColumns = new ArrayList<>();
+        for (ASTNode key : keys) {
+            if (!(key instanceof ColumnReferenceNode)) {
+                return null;
+            }
+            ColumnReferenceNode reference = (ColumnReferenceNode) key;
+            int position = ExpressionEvaluator.resolve(source.columns, reference.getTableName(), reference.getColumnName());
+            if (position < 0) {
+                return null;
+            }
+            orderColumns.add(source.table.getSchema().getColumns().get(position).getName());
+        }
+        boolean descending = !ascending[0];
+        
+        FilterOperator filter = input instanceof FilterOperator ? (FilterOperator) input : null;
+        Operator access = filter != null ? filter.getChild() : input;
+        if (access instanceof IndexScanOperator) {
+            IndexScanOperator scan = (IndexScanOperator) access;
+            if (!ordersBy(scan.getIndex(), scan.getEqualityPrefix(), orderColumns)) {
+                return null;
+            }
+            if (scan.isDescending() != descending) {
+                scan = scan.reversed();
+            }
+            return filter != null ? new FilterOperator(scan, filter.getCondition()) : scan;
+        }
+        if (select.getLimit() == null) {
+            return null;
+        }
+        for (Index index : source.table.getIndexes()) {
+            if (ordersBy(index, 0, orderColumns)) {
+                Operator scan = new IndexScanOperator(source.table, source.qualifier, index, null, true, null, true,
+                        descending);
+                List<ASTNode> conditions = new ArrayList<>();
+                splitConjunction(select.getWhereClause(), conditions);
+                return conditions.isEmpty() ? scan : new FilterOperator(scan, conjunction(conditions));
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Whether an index scan holding the first fixed columns at one value
+     * returns rows in order of the columns: they are index columns that
+     * follow some of the fixed ones
+     */
+    private static boolean ordersBy(Index index, int fixed, List<String> columns) {
+        List<String> indexColumns = index.getColumns();
+        for (int start = 0; start <= fixed; start++) {
+            if (start + columns.size() > indexColumns.size()) {
+                return false;
+            }
+            boolean match = true;
+            for (int i = 0; i < columns.size() && match; i++) {
+                match = indexColumns.get(start + i).equalsIgnoreCase(columns.get(i));
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Plan SELECT columns FROM table WHERE column = value through an index on
+     * the column directly, skipping the general planning; null if the SELECT
+     * has any other shape or there is no such index. The plan is the one the
+     * general path makes.
+     */
+    private Operator planPointLookup(SelectStatementNode select) {
+        if (select.isDistinct() || select.getFromTables().size() != 1 || !select.getJoins().isEmpty()
+                || !(select.getWhereClause() instanceof BinaryOperationNode) || !select.getGroupBy().isEmpty()
+                || select.getHavingClause() != null || !select.getOrderBy().isEmpty()
+                || select.getLimit() != null || select.getOffset() != null) {
+            return null;
+        }
+        SelectStatementNode.TableSource tableSource = select.getFromTables().get(0);
+        BinaryOperationNode where = (BinaryOperationNode) select.getWhereClause();
+        if (tableSource.isSubquery() || where.getOperator() != BinaryOperationNode.Operator.EQUAL) {
+            return null;
+        }
+        StorageEngine.Table table = getTable(tableSource.getTableName());
+        String qualifier = tableSource.getAlias() != null ? tableSource.getAlias() : tableSource.getTableName();
+        List<ColumnInfo> columns = new ArrayList<>();
+        for (StorageEngine.TableSchema.Column column : table.getSchema().getColumns()) {
+            columns.add(new ColumnInfo(qualifier, column.getName(), column.getType()));
+        }
+        List<ASTNode> expressions = new ArrayList<>();
+        List<ColumnInfo> outputColumns = new ArrayList<>();
+        for (SelectStatementNode.SelectElement element : select.getSelectElements()) {
+            if (isStar(element.getExpression())) {
+                for (ColumnInfo column : columns) {
+                    expressions.add(new ColumnReferenceNode(column.getQualifier(), column.getName()));
+                    outputColumns.add(column);
+                }
+                continue;
+            }
+            if (!(element.getExpression() instanceof ColumnReferenceNode) || element.getAlias() != null) {
+                return null;
+            }
+            ColumnReferenceNode reference = (ColumnReferenceNode) element.getExpression();
+            int index = ExpressionEvaluator.resolve(columns, reference.getTableName(), reference.getColumnName());
+            if (index < 0) {
+                return null;
+            }
+            expressions.add(reference);
+            outputColumns.add(columns.get(index));
+        }
+        ColumnBound bound = columnBound(table, columns, where);
+        Operator scan = bound != null ? planIndexScan(table, qualifier, Collections.singletonList(bound)) : null;
+        if (scan == null) {
+            return null;
+        }
+        return new ProjectOperator(new FilterOperator(scan, where), expressions, outputColumns, Collections.emptyMap());
+    }
+    
+    /**
+     * The vectorized plan below an operator, or null if its rows are not produced in batches
+     */
+    private static BatchOperator batchInput(Operator input) {
+        return input instanceof BatchToRowOperator ? ((BatchToRowOperator) input).getChild() : null;
+    }
+    
+    private static boolean allVectorizable(List<ASTNode> expressions, List<ColumnInfo> columns) {
+        for (ASTNode expression : expressions) {
+            if (!VectorExpression.isSupported(expression, columns)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean isStar(ASTNode expression) {
+        return expression instanceof ColumnReferenceNode
+                && "*".equals(((ColumnReferenceNode) expression).getColumnName());
+    }
+    
+    private static List<FunctionCallNode> distinctByKey(List<FunctionCallNode> aggregates) {
+        Map<String, FunctionCallNode> unique = new LinkedHashMap<>();
+        for (FunctionCallNode aggregate : aggregates) {
+            unique.putIfAbsent(ExpressionEvaluator.key(aggregate), aggregate);
+        }
+        return new ArrayList<>(unique.values());
+    }
+    
+    /**
+     * Replace unqualified references to select aliases with the aliased expressions
+     */
+    private static ASTNode substituteAliases(ASTNode node, Map<String, ASTNode> aliases) {
+        if (aliases.isEmpty()) {
+            return node;
+        }
+        if (node instanceof ColumnReferenceNode) {
+            ColumnReferenceNode column = (ColumnReferenceNode) node;
+            ASTNode aliased = column.hasTableQualifier() ? null
+                    : aliases.get(column.getColumnName().toLowerCase(Locale.ROOT));
+            return aliased != null ? aliased : node;
+        } else if (node instanceof BinaryOperationNode) {
+            BinaryOperationNode binary = (BinaryOperationNode) node;
+            return new BinaryOperationNode(substituteAliases(binary.getLeft(), aliases), binary.getOperator(),
+                    substituteAliases(binary.getRight(), aliases));
+        } else if (node instanceof UnaryOperationNode) {
+            UnaryOperationNode unary = (UnaryOperationNode) node;
+            return new UnaryOperationNode(unary.getOperator(), substituteAliases(unary.getOperand(), aliases));
+        } else if (node instanceof FunctionCallNode && !ExpressionEvaluator.isAggregate((FunctionCallNode) node)) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            List<ASTNode> arguments = new ArrayList<>();
+            for (ASTNode argument : call.getArguments()) {
+                arguments.add(substituteAliases(argument, aliases));
+            }
+            return new FunctionCallNode(call.getFunctionName(), arguments, call.isDistinct());
+        }
+        return node;
+    }
+    
+    // ---- FROM and WHERE ----
+    
+    /**
+     * A table of the FROM clause with the WHERE conditions pushed down to it
+     */
+    private static class Source {
+        final SelectStatementNode.TableSource tableSource;
+        final StorageEngine.Table table;
+        final String qualifier;
+        final List<ColumnInfo> columns;
+        final List<ASTNode> conditions = new ArrayList<>();
+        boolean nullable;
+        
+        Source(SelectStatementNode.TableSource tableSource, StorageEngine.Table table) {
+            this.tableSource = tableSource;
+            this.table = table;
+            this.qualifier = tableSource.getAlias() != null ? tableSource.getAlias() : tableSource.getTableName();
+            this.columns = new ArrayList<>();
+            for (StorageEngine.TableSchema.Column column : table.getSchema().getColumns()) {
+                columns.add(new ColumnInfo(qualifier, column.getName(), column.getType()));
+            }
+        }
+    }
+    
+    private Operator planFrom(SelectStatementNode select) {
+        List<Source> sources = new ArrayList<>();
+        sources.add(source(select.getFromTables().get(0)));
+        for (SelectStatementNode.JoinClause join : select.getJoins()) {
+            Source right = source(join.getTableSource());
+            // Outer joins pad one side with NULLs; WHERE conditions on that side must wait for the join
+            if (join.getJoinType() == JoinType.LEFT || join.getJoinType() == JoinType.FULL) {
+                right.nullable = true;
+            }
+            if (join.getJoinType() == JoinType.RIGHT || join.getJoinType() == JoinType.FULL) {
+                for (Source left : sources) {
+                    left.nullable = true;
+                }
+            }
+            sources.add(right);
+        }
+        
+        List<ASTNode> conditions = new ArrayList<>();
+        splitConjunction(select.getWhereClause(), conditions);
+        List<ASTNode> remaining = new ArrayList<>();
+        for (ASTNode condition : conditions) {
+            Source only = soleSource(condition, sources);
+            if (only != null && !only.nullable) {
+                only.conditions.add(condition);
+            } else {
+                remaining.add(condition);
+            }
+        }
+        
+        Operator plan = planSource(sources.get(0));
+        for (int i = 0; i < select.getJoins().size(); i++) {
+            SelectStatementNode.JoinClause join = select.getJoins().get(i);
+            Operator right = planSource(sources.get(i + 1));
+            ASTNode condition = join.getOnCondition();
+            JoinType joinType = join.getJoinType();
+            if (joinType == JoinType.NATURAL) {
+                condition = naturalJoinCondition(plan.getColumns(), right.getColumns());
+                joinType = JoinType.INNER;
+            } else if (joinType == JoinType.CROSS) {
+                joinType = JoinType.INNER;
+            }
+            plan = planJoin(plan, right, joinType, condition, sources.subList(0, i + 1), sources.get(i + 1));
+        }
+        if (!remaining.isEmpty()) {
+            plan = new FilterOperator(plan, conjunction(remaining));
+        }
+        return plan;
+    }
+    
+    private Source source(SelectStatementNode.TableSource tableSource) {
+        if (tableSource.isSubquery()) {
+            throw new RuntimeException("Subqueries in FROM are not supported");
+        }
+        return new Source(tableSource, getTable(tableSource.getTableName()));
+    }
+    
+    private Operator planSource(Source source) {
+        return planTable(source.table, source.qualifier, source.conditions, vectorized);
+    }
+    
+    /**
+     * The only source a condition refers to, or null if it refers to none or several
+     */
+    private static Source soleSource(ASTNode condition, List<Source> sources) {
+        List<ColumnReferenceNode> references = new ArrayList<>();
+        collectColumnReferences(condition, references);
+        Source only = null;
+        for (ColumnReferenceNode reference : references) {
+            Source match = null;
+            for (Source source : sources) {
+                if (ExpressionEvaluator.resolve(source.columns, reference.getTableName(), reference.getColumnName()) >= 0) {
+                    if (match != null) {
+                        return null;
+                    }
+                    match = source;
+                }
+            }
+            if (match == null || (only != null && only != match)) {
+                return null;
+            }
+            only = match;
+        }
+        return only;
+    }
+    
+    private static void collectColumnReferences(ASTNode node, List<ColumnReferenceNode> references) {
+        if (node instanceof ColumnReferenceNode) {
+            references.add((ColumnReferenceNode) node);
+        } else if (node instanceof BinaryOperationNode) {
+            collectColumnReferences(((BinaryOperationNode) node).getLeft(), references);
+            collectColumnReferences(((BinaryOperationNode) node).getRight(), references);
+        } else if (node instanceof UnaryOperationNode) {
+            collectColumnReferences(((UnaryOperationNode) node).getOperand(), references);
+        } else if (node instanceof FunctionCallNode) {
+            for (ASTNode argument : ((FunctionCallNode) node).getArguments()) {
+                collectColumnReferences(argument, references);
+            }
+        } else if (node instanceof CaseExpressionNode) {
+            CaseExpressionNode caseNode = (CaseExpressionNode) node;
+            if (caseNode.getCaseValue() != null) {
+                collectColumnReferences(caseNode.getCaseValue(), references);
+            }
+            for (CaseExpressionNode.WhenClause when : caseNode.getWhenClauses()) {
+                collectColumnReferences(when.getCondition(), references);
+                collectColumnReferences(when.getResult(), references);
+            }
+            if (caseNode.getElseValue() != null) {
+                collectColumnReferences(caseNode.getElseValue(), references);
+            }
+        } else if (node instanceof SubqueryNode) {
+            // Never pushed down
+            references.add(new ColumnReferenceNode(null, "#subquery"));
+        }
+    }
+    
+    /**
+     * Join on the equalities of the condition between a column of each side,
+     * when there are any, otherwise a nested loop join. A merge join is used
+     * when both inputs already come out of index scans in order of a key; an
+     * index nested loop join when the right table has an index on its key
+     * columns and the left input is selective; a hash join otherwise.
+     */
+    private Operator planJoin(Operator left, Operator right, JoinType joinType, ASTNode condition,
+                              List<Source> leftSources, Source rightSource) {
+        List<ASTNode> conditions = new ArrayList<>();
+        splitConjunction(condition, conditions);
+        List<ASTNode> keyTerms = new ArrayList<>();
+        List<ASTNode> leftKeys = new ArrayList<>();
+        List<ASTNode> rightKeys = new ArrayList<>();
+        List<ASTNode> residual = new ArrayList<>();
+        List<Source> rightSources = Collections.singletonList(rightSource);
+        for (ASTNode term : conditions) {
+            if (term instanceof BinaryOperationNode
+                    && ((BinaryOperationNode) term).getOperator() == BinaryOperationNode.Operator.EQUAL) {
+                ASTNode a = ((BinaryOperationNode) term).getLeft();
+                ASTNode b = ((BinaryOperationNode) term).getRight();
+                if (joinKeys(a, leftSources, b, rightSources)) {
+                    keyTerms.add(term);
+                    leftKeys.add(a);
+                    rightKeys.add(b);
+                    continue;
+                }
+                if (joinKeys(b, leftSources, a, rightSources)) {
+                    keyTerms.add(term);
+                    leftKeys.add(b);
+                    rightKeys.add(a);
+                    continue;
+                }
+            }
+            residual.add(term);
+        }
+        if (leftKeys.isEmpty()) {
+            return new NestedLoopJoinOperator(left, right, joinType, condition);
+        }
+        
+        ColumnInfo leftOrder = orderColumn(left);
+        ColumnInfo rightOrder = orderColumn(right);
+        for (int i = 0; leftOrder != null && rightOrder != null && i < leftKeys.size(); i++) {
+            if (names(leftKeys.get(i), leftOrder) && names(rightKeys.get(i), rightOrder)) {
+                List<ASTNode> rest = new ArrayList<>(residual);
+                for (int j = 0; j < keyTerms.size(); j++) {
+                    if (j != i) {
+                        rest.add(keyTerms.get(j));
+                    }
+                }
+                return new MergeJoinOperator(left, right, joinType, leftKeys.get(i), rightKeys.get(i),
+                        rest.isEmpty() ? null : conjunction(rest));
+            }
+        }
+        
+        if ((joinType == JoinType.INNER || joinType == JoinType.LEFT) && selective(leftSources, rightSource)) {
+            Operator join = planIndexJoin(left, joinType, keyTerms, leftKeys, rightKeys, residual, rightSource);
+            if (join != null) {
+                return join;
+            }
+        }
+        
+        return new HashJoinOperator(left, right, joinType, leftKeys, rightKeys,
+                residual.isEmpty() ? null : conjunction(residual),
+                storageEngine.getTempDirectory(), storageEngine.getWorkMemoryBytes());
+    }
+    
+    /**
+     * Whether looking up the right table once per left row is likely cheaper
+     * than reading all of it: the tables of the left input that are read
+     * without any condition take no more pages together than the right table
+     */
+    private static boolean selective(List<Source> leftSources, Source rightSource) {
+        long unfilteredPages = 0;
+        for (Source source : leftSources) {
+            if (source.conditions.isEmpty()) {
+                unfilteredPages += source.table.getPageCount();
+            }
+        }
+        return unfilteredPages <= rightSource.table.getPageCount();
+    }
+    
+    /**
+     * Index nested loop join through the right table's index with the longest
+     * prefix of key columns, or null if it has none. The right table's own
+     * conditions are checked with the rest of the join condition.
+     */
+    private static Operator planIndexJoin(Operator left, JoinType joinType, List<ASTNode> keyTerms,
+                                          List<ASTNode> leftKeys, List<ASTNode> rightKeys, List<ASTNode> residual,
+                                          Source rightSource) {
+        StorageEngine.Table table = rightSource.table;
+        Map<String, Integer> keyPositions = new LinkedHashMap<>();
+        for (int i = 0; i < rightKeys.size(); i++) {
+            ColumnReferenceNode reference = (ColumnReferenceNode) rightKeys.get(i);
+            int position = ExpressionEvaluator.resolve(rightSource.columns, reference.getTableName(), reference.getColumnName());
+            keyPositions.putIfAbsent(table.getSchema().getColumns().get(position).getName(), i);
+        }
+        Index index = table.findIndex(keyPositions.keySet());
+        if (index == null) {
+            return null;
+        }
+        List<ASTNode> lookupKeys = new ArrayList<>();
+        Set<Integer> used = new HashSet<>();
+        for (String column : index.getColumns()) {
+            Integer key = null;
+            for (Map.Entry<String, Integer> entry : keyPositions.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(column)) {
+                    key = entry.getValue();
+                }
+            }
+            if (key == null) {
+                break;
+            }
+            lookupKeys.add(leftKeys.get(key));
+            used.add(key);
+        }
+        List<ASTNode> rest = new ArrayList<>(residual);
+        for (int i = 0; i < keyTerms.size(); i++) {
+            if (!used.contains(i)) {
+                rest.add(keyTerms.get(i));
+            }
+        }
+        rest.addAll(rightSource.conditions);
+        return new IndexNestedLoopJoinOperator(left, table, rightSource.qualifier, index, joinType, lookupKeys,
+                rest.isEmpty() ? null : conjunction(rest));
+    }
+    
+    /**
+     * Column an operator's output is in ascending order of, or null if it is
+     * in no known order: index scans are in order of the leading index column,
+     * and filters and the INNER and LEFT joins that stream their left input
+     * keep its order
+     */
+    private static ColumnInfo orderColumn(Operator operator) {
+        if (operator instanceof IndexScanOperator) {
+            return ((IndexScanOperator) operator).getOrderColumn();
+        } else if (operator instanceof FilterOperator) {
+            return orderColumn(((FilterOperator) operator).getChild());
+        } else if (operator instanceof IndexNestedLoopJoinOperator) {
+            return orderColumn(((IndexNestedLoopJoinOperator) operator).getLeft());
+        } else if (operator instanceof MergeJoinOperator) {
+            MergeJoinOperator join = (MergeJoinOperator) operator;
+            if (join.getJoinType() == JoinType.INNER || join.getJoinType() == JoinType.LEFT) {
+                return orderColumn(join.getLeft());
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Whether an expression is a reference to the given column
+     */
+    private static boolean names(ASTNode expression, ColumnInfo column) {
+        return expression instanceof ColumnReferenceNode
+                && column.matches(((ColumnReferenceNode) expression).getTableName(),
+                        ((ColumnReferenceNode) expression).getColumnName());
+    }
+    
+    /**
+     * Whether a = b can be a hash join key: a is a column of the left sources,
+     * b a column of the right source, and their values hash alike when they
+     * compare equal (both numeric, both strings or both boolean)
+     */
+    private static boolean joinKeys(ASTNode a, List<Source> leftSources, ASTNode b, List<Source> rightSources) {
+        String leftType = columnType(a, leftSources);
+        String rightType = columnType(b, rightSources);
+        return leftType != null && rightType != null && typeFamily(leftType).equals(typeFamily(rightType));
+    }
+    
+    /**
+     * SQL type of the column an expression names in exactly one of the sources, or null
+     */
+    private static String columnType(ASTNode expression, List<Source> sources) {
+        if (!(expression instanceof ColumnReferenceNode)) {
+            return null;
+        }
+        ColumnReferenceNode reference = (ColumnReferenceNode) expression;
+        String type = null;
+        for (Source source : sources) {
+            int position;
+            try {
+                position = ExpressionEvaluator.resolve(source.columns, reference.getTableName(), reference.getColumnName());
+            } catch (RuntimeException e) {
+                return null;
+            }
+            if (position >= 0) {
+                if (type != null) {
+                    return null;
+                }
+                type = source.table.getSchema().getColumns().get(position).getType();
+            }
+        }
+        return type;
+    }
+    
+    private static String typeFamily(String sqlType) {
+        String baseType = sqlType.toUpperCase();
+        int parenthesis = baseType.indexOf('(');
+        if (parenthesis >= 0) {
+            baseType = baseType.substring(0, parenthesis);
+        }
+        switch (baseType.trim()) {
+            case "INT":
+            case "INTEGER":
+            case "SMALLINT":
+            case "TINYINT":
+            case "BIGINT":
+            case "DECIMAL":
+            case "NUMERIC":
+            case "FLOAT":
+            case "DOUBLE":
+            case "REAL":
+                return "number";
+            case "BOOLEAN":
+            case "BOOL":
+                return "boolean";
+            default:
+                return "string";
+        }
+    }
+    
+    private static ASTNode naturalJoinCondition(List<ColumnInfo> left, List<ColumnInfo> right) {
+        List<ASTNode> equalities = new ArrayList<>();
+        for (ColumnInfo rightColumn : right) {
+            for (ColumnInfo leftColumn : left) {
+                if (leftColumn.getName().equalsIgnoreCase(rightColumn.getName())) {
+                    equalities.add(new BinaryOperationNode(
+                            new ColumnReferenceNode(leftColumn.getQualifier(), leftColumn.getName()),
+                            BinaryOperationNode.Operator.EQUAL,
+                            new ColumnReferenceNode(rightColumn.getQualifier(), rightColumn.getName())));
+                    break;
+                }
+            }
+        }
+        return equalities.isEmpty() ? null : conjunction(equalities);
+    }
+    
+    private static void splitConjunction(ASTNode condition, List<ASTNode> conditions) {
+        if (condition == null) {
+            return;
+        }
+        if (condition instanceof BinaryOperationNode
+                && ((BinaryOperationNode) condition).getOperator() == BinaryOperationNode.Operator.AND) {
+            splitConjunction(((BinaryOperationNode) condition).getLeft(), conditions);
+            splitConjunction(((BinaryOperationNode) condition).getRight(), conditions);
+        } else {
+            conditions.add(condition);
+        }
+    }
+    
+    private static ASTNode conjunction(List<ASTNode> conditions) {
+        ASTNode result = conditions.get(0);
+        for (int i = 1; i < conditions.size(); i++) {
+            result = new BinaryOperationNode(result, BinaryOperationNode.Operator.AND, conditions.get(i));
+        }
+        return result;
+    }
+    
+    // ---- access paths ----
+    
+    /**
+     * Comparison of a column of the table with a constant, with the column on
+     * the left. The value is a {@link ParameterNode} if it is only known when
+     * the statement is executed.
+     */
+    private static class ColumnBound {
+        final String column;
+        final BinaryOperationNode.Operator operator;
+        final Object value;
+        
+        ColumnBound(String column, BinaryOperationNode.Operator operator, Object value) {
+            this.column = column;
+            this.operator = operator;
+            this.value = value;
+        }
+    }
+    
+    /**
+     * Read a table through the best index for the conditions, or a full scan,
+     * and apply the conditions. A full scan is done in batches if allowed and
+     * the conditions can be vectorized.
+     */
+    private Operator planTable(StorageEngine.Table table, String qualifier, List<ASTNode> conditions,
+                               boolean batches) {
+        List<ColumnInfo> columns = new ArrayList<>();
+        for (StorageEngine.TableSchema.Column column : table.getSchema().getColumns()) {
+            columns.add(new ColumnInfo(qualifier, column.getName(), column.getType()));
+        }
+        List<ColumnBound> bounds = new ArrayList<>();
+        for (ASTNode condition : conditions) {
+            ColumnBound bound = columnBound(table, columns, condition);
+            if (bound != null) {
+                bounds.add(bound);
+            }
+        }
+        Operator scan = planIndexScan(table, qualifier, bounds);
+        if (scan == null && batches
+                && (conditions.isEmpty() || VectorExpression.isSupported(conjunction(conditions), columns))) {
+            BatchOperator batchScan = new BatchScanOperator(table, qualifier);
+            if (!conditions.isEmpty()) {
+                batchScan = new BatchFilterOperator(batchScan, conjunction(conditions));
+            }
+            return new BatchToRowOperator(batchScan);
+        }
+        if (scan == null) {
+            scan = new TableScanOperator(table, qualifier);
+        }
+        return conditions.isEmpty() ? scan : new FilterOperator(scan, conjunction(conditions));
+    }
+    
+    private static ColumnBound columnBound(StorageEngine.Table table, List<ColumnInfo> columns, ASTNode condition) {
+        if (!(condition instanceof BinaryOperationNode)) {
+            return null;
+        }
+        BinaryOperationNode comparison = (BinaryOperationNode) condition;
+        BinaryOperationNode.Operator operator = comparison.getOperator();
+        ASTNode columnSide = comparison.getLeft();
+        ASTNode valueSide = comparison.getRight();
+        if (columnSide instanceof LiteralNode || columnSide instanceof ParameterNode) {
+            columnSide = comparison.getRight();
+            valueSide = comparison.getLeft();
+            operator = flip(operator);
+        }
+        if (operator == null || !(columnSide instanceof ColumnReferenceNode)
+                || !(valueSide instanceof LiteralNode || valueSide instanceof ParameterNode)) {
+            return null;
+        }
+        ColumnReferenceNode reference = (ColumnReferenceNode) columnSide;
+        int index = ExpressionEvaluator.resolve(columns, reference.getTableName(), reference.getColumnName());
+        if (index < 0) {
+            return null;
+        }
+        StorageEngine.TableSchema.Column column = table.getSchema().getColumns().get(index);
+        if (valueSide instanceof ParameterNode) {
+            return new ColumnBound(column.getName(), operator, valueSide);
+        }
+        Object value = ((LiteralNode) valueSide).getValue();
+        if (value == null) {
+            return null;
+        }
+        try {
+            // Index keys hold values of the column's type
+            Object key = Values.coerce(value, column.getType(), column.getName());
+            if (Values.compare(key, value) != 0) {
+                return null;
+            }
+            return new ColumnBound(column.getName(), operator, key);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+    
+    private static BinaryOperationNode.Operator flip(BinaryOperationNode.Operator operator) {
+        switch (operator) {
+            case EQUAL: return BinaryOperationNode.Operator.EQUAL;
+            case LESS_THAN: return BinaryOperationNode.Operator.GREATER_THAN;
+            case LESS_EQUAL: return BinaryOperationNode.Operator.GREATER_EQUAL;
+            case GREATER_THAN: return BinaryOperationNode.Operator.LESS_THAN;
+            case GREATER_EQUAL: return BinaryOperationNode.Operator.LESS_EQUAL;
+            default: return null;
+        }
+    }
+    
+    private static Operator planIndexScan(StorageEngine.Table table, String qualifier, List<ColumnBound> bounds) {
+        if (table.getIndexes().isEmpty() || bounds.isEmpty()) {
+            return null;
+        }
+        Map<String, Object> equalities = new LinkedHashMap<>();
+        for (ColumnBound bound : bounds) {
+            if (bound.operator == BinaryOperationNode.Operator.EQUAL) {
+                equalities.putIfAbsent(bound.column, bound.value);
+            }
+        }
+        Index index = table.findIndex(equalities.keySet());
+        if (index != null) {
+            List<Object> key = new ArrayList<>();
+            for (String column : index.getColumns()) {
+                if (!equalities.containsKey(column)) {
+                    break;
+                }
+                key.add(equalities.get(column));
+            }
+            return new IndexScanOperator(table, qualifier, index, key, true, key, true);
+        }
+        // A range on the leading column of an index
+        for (Index candidate : table.getIndexes()) {
+            String leading = candidate.getColumns().get(0);
+            Object low = null;
+            Object high = null;
+            boolean lowInclusive = true;
+            boolean highInclusive = true;
+            for (ColumnBound bound : bounds) {
+                if (!bound.column.equals(leading)) {
+                    continue;
+                }
+                switch (bound.operator) {
+                    case GREATER_THAN:
+                    case GREATER_EQUAL:
+                        // Of several bounds the tightest is used; a parameter's value is not known yet
+                        if (low == null || !(low instanceof ParameterNode || bound.value instanceof ParameterNode)
+                                && Values.compare(bound.value, low) > 0) {
+                            low = bound.value;
+                            lowInclusive = bound.operator == BinaryOperationNode.Operator.GREATER_EQUAL;
+                        }
+                        break;
+                    case LESS_THAN:
+                    case LESS_EQUAL:
+                        if (high == null || !(high instanceof ParameterNode || bound.value instanceof ParameterNode)
+                                && Values.compare(bound.value, high) < 0) {
+                            high = bound.value;
+                            highInclusive = bound.operator == BinaryOperationNode.Operator.LESS_EQUAL;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (low != null || high != null) {
+                // NULL keys sort first; a lower bound of NULL (exclusive) skips them
+                return new IndexScanOperator(table, qualifier, candidate,
+                        Collections.singletonList(low), low != null && lowInclusive,
+                        high != null ? Collections.singletonList(high) : null, highInclusive);
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,118 @@
+package org.hkprog.thedb.planner;
+
+import org.hkprog.thedb.compiler.SQLCompiler;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statement Cache - parsed and planned statements shared by all sessions,
+ * keyed by their literal-normalized SQL text
+ *
+ * A plan carries the state of the query running on it, so a cached
+ * statement is used by one session at a time: a session checks it out for a
+ * statement, binds the statement's literal values and runs it, and checks
+ * it back in when done. Several sessions running the same statement shape
+ * at once each get their own copy. The cache holds at most a fixed number
+ * of idle statements and drops those of the least recently used shapes
+ * first.
+ *
+ * A checked-out statement whose tables or indexes were created or dropped
+ * since it was planned is planned again from its parse tree; such
+ * re-plans are counted as invalidations.
+ *
+ * The cache keeps no planner of its own: a checked-out statement is planned
+ * by the {@link QueryPlanner} of the session that checked it out, so
+ * planning never shares state between sessions.
+ */
+public class StatementCache {
+    
+    private final int capacity;
+    private final LinkedHashMap<String, ArrayDeque<PreparedStatement>> idle;
+    private int size;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    /**
+     * @param capacity most idle statements kept
+     */
+    public StatementCache(int capacity) {
+        this.capacity = capacity;
+        this.idle = new LinkedHashMap<>(16, 0.75f, true);
+    }
+    
+    /**
+     * A statement for the normalized text, parsed now if no idle one is cached.
+     * It is planned with the session's planner when first bound.
+     */
+    public PreparedStatement checkout(String text, QueryPlanner planner) {
+        PreparedStatement statement = null;
+        synchronized (this) {
+            ArrayDeque<PreparedStatement> statements = idle.get(text);
+            if (statements != null) {
+                statement = statements.poll();
+                size--;
+                if (statements.isEmpty()) {
+                    idle.remove(text);
+                }
+            }
+        }
+        if (statement != null) {
+            statement.setPlanner(planner);
+            hits.incrementAndGet();
+            if (statement.isStale()) {
+                invalidations.incrementAndGet();
+            }
+            return statement;
+        }
+        misses.incrementAndGet();
+        return new PreparedStatement(planner, SQLCompiler.prepare(null, text));
+    }
+    
+    /**
+     * Return a statement from {@link #checkout} once nothing reads from its plan any more
+     */
+    public synchronized void checkin(String text, PreparedStatement statement) {
+        if (capacity <= 0) {
+            return;
+        }
+        idle.computeIfAbsent(text, key -> new ArrayDeque<>()).push(statement);
+        size++;
+        Iterator<ArrayDeque<PreparedStatement>> eldest = idle.values().iterator();
+        while (size > capacity) {
+            ArrayDeque<PreparedStatement> statements = eldest.next();
+            while (size > capacity && !statements.isEmpty()) {
+                statements.pollLast();
+                size--;
+                evictions.incrementAndGet();
+            }
+            if (statements.isEmpty()) {
+                eldest.remove();
+            }
+        }
+    }
+    
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getInvalidations() { return invalidations.get(); }
+    public long getEvictions() { return evictions.get(); }
+    public int getCapacity() { return capacity; }
+    
+    public synchronized int size() {
+        return size;
+    }
+    
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("StatementCache{capacity=%d, size=%d, hits=%d, misses=%d, hitRatio=%.2f%%, invalidations=%d, evictions=%d}",
+                capacity, size(), getHits(), getMisses(), getHitRatio() * 100, getInvalidations(), getEvictions());
+    }
+}
@@ -0,0 +1,466 @@
+package org.hkprog.thedb.server;
+
+import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.ast.BeginTransactionNode;
+import org.hkprog.thedb.ast.CommitNode;
+import org.hkprog.thedb.ast.RollbackNode;
+import org.hkprog.thedb.executor.QueryExecutor;
+import org.hkprog.thedb.executor.Values;
+import org.hkprog.thedb.planner.PreparedStatement;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Binary Protocol Handler - length-prefixed frames with binary rows
+ *
+ * Every message is a big-endian int32 length, then that many bytes: a type
+ * byte and the body. The client sends QUERY (SQL text, one or more
+ * statements) or QUIT. For each statement the server answers COLUMNS, any
+ * number of ROWS and END for a query, or UPDATED for other statements; it
+ * stops at the first failing statement with ERROR, and ends every request
+ * with READY. ROWS messages carry about 32 KB of rows each and are sent as
+ * the executor produces them, so a client can consume a large result while
+ * the query is still running.
+ *
+ * BATCH carries statements to run as one unit: in a transaction of their
+ * own (or the client's open one), answered with the rows of any queries and
+ * a single UPDATED for the total rows affected. If a statement fails, a
+ * batch that opened its transaction rolls all of it back. Clients may also
+ * pipeline requests without waiting for READY; they are answered in order.
+ *
+ * PREPARE parses and plans one statement with ? parameter markers and is
+ * answered with PREPARED, giving the statement's id; EXECUTE runs it with a
+ * value for each marker, answered like a single-statement QUERY, and
+ * CLOSE_STATEMENT forgets it.
+ *
+ * Values are a type tag followed by: INT int32, BIGINT int64, DOUBLE
+ * float64, BOOLEAN one byte, STRING uint32 length and UTF-8, DECIMAL uint16
+ * length and the plain ASCII digits; NULL has no payload. The type of a
+ * column in COLUMNS is the tag of its first non-NULL value in the first
+ * ROWS message (NULL if there is none); every value still carries its own tag.
+ */
+final class BinaryProtocolHandler implements ProtocolHandler {
+    
+    static final int VERSION = 1;
+    
+    // Client messages
+    static final byte QUERY = 0x01;
+    static final byte QUIT = 0x02;
+    static final byte BATCH = 0x03;
+    static final byte PREPARE = 0x04;          // UTF-8 SQL of one statement
+    static final byte EXECUTE = 0x05;          // uint32 statement id, uint16 count, the values
+    static final byte CLOSE_STATEMENT = 0x06;  // uint32 statement id
+    
+    // Server messages
+    static final byte HELLO = 0x40;      // uint8 version, UTF-8 server name
+    static final byte COLUMNS = 0x41;    // uint16 count, then per column: uint16 length + UTF-8 name, type tag
+    static final byte ROWS = 0x42;       // uint32 row count, then the values of each row
+    static final byte END = 0x43;        // int64 row count, int64 elapsed microseconds
+    static final byte UPDATED = 0x44;    // int64 rows affected, int64 elapsed microseconds
+    static final byte ERROR = 0x45;      // UTF-8 message
+    static final byte READY = 0x46;      // empty; the request is complete
+    static final byte PREPARED = 0x47;   // uint32 statement id, uint16 parameter count
+    
+    // Value tags
+    static final byte TYPE_NULL = 0;
+    static final byte TYPE_INT = 1;
+    static final byte TYPE_BIGINT = 2;
+    static final byte TYPE_DOUBLE = 3;
+    static final byte TYPE_STRING = 4;
+    static final byte TYPE_BOOLEAN = 5;
+    static final byte TYPE_DECIMAL = 6;
+    
+    private static final int MAX_REQUEST_BYTES = 16 * 1024 * 1024;
+    private static final int ROWS_CHUNK_BYTES = 32 * 1024;
+    
+    private final ClientSession session;
+    private final DataOutputStream out;
+    private final MessageBuffer message;
+    private final DataOutputStream body;
+    private final Map<Integer, PreparedStatement> statements;
+    private int nextStatementId;
+    
+    // Framing state: the length prefix read so far, then the request being filled
+    private final byte[] header;
+    private int headerLength;
+    private byte[] request;
+    private int requestLength;
+    
+    BinaryProtocolHandler(ClientSession session, OutputStream out) {
+        this.session = session;
+        this.out = new DataOutputStream(out);
+        this.message = new MessageBuffer();
+        this.body = new DataOutputStream(message);
+        this.header = new byte[4];
+        this.statements = new HashMap<>();
+    }
+    
+    @Override
+    public void greet() throws IOException {
+        body.writeByte(VERSION);
+        body.write("TheDB Server v0.0.1".getBytes(StandardCharsets.UTF_8));
+        send(HELLO);
+        out.flush();
+    }
+    
+    @Override
+    public void frame(ByteBuffer input, List<byte[]> requests) throws ProtocolException {
+        while (input.hasRemaining()) {
+            if (request == null) {
+                header[headerLength++] = input.get();
+                if (headerLength < header.length) {
+                    continue;
+                }
+                headerLength = 0;
+                int length = ByteBuffer.wrap(header).getInt();
+                if (length < 1 || length > MAX_REQUEST_BYTES) {
+                    throw new ProtocolException("Bad message length " + length);
+                }
+                request = new byte[length];
+                requestLength = 0;
+            }
+            int n = Math.min(input.remaining(), request.length - requestLength);
+            input.get(request, requestLength, n);
+            requestLength += n;
+            if (requestLength == request.length) {
+                requests.add(request);
+                request = null;
+            }
+        }
+    }
+    
+    @Override
+    public boolean handle(byte[] request) throws IOException {
+        switch (request[0]) {
+            case QUIT:
+                return false;
+            case QUERY:
+                execute(new String(request, 1, request.length - 1, StandardCharsets.UTF_8));
+                break;
+            case BATCH:
+                executeBatch(new String(request, 1, request.length - 1, StandardCharsets.UTF_8));
+                break;
+            case PREPARE:
+                prepare(new String(request, 1, request.length - 1, StandardCharsets.UTF_8));
+                break;
+            case EXECUTE:
+                executePrepared(ByteBuffer.wrap(request, 1, request.length - 1));
+                break;
+            case CLOSE_STATEMENT:
+                if (request.length >= 5) {
+                    statements.remove(ByteBuffer.wrap(request, 1, 4).getInt());
+                }
+                break;
+            default:
+                error("Unknown message type " + request[0]);
+                break;
+        }
+        send(READY);
+        out.flush();
+        return true;
+    }
+    
+    /**
+     * Execute the statements of a request, stopping at the first error
+     */
+    private void execute(String sql) throws IOException {
+        try {
+            for (ASTNode ast : session.parse(sql)) {
+                long start = System.nanoTime();
+                try (QueryExecutor.ResultSet result = session.execute(ast)) {
+                    sendResult(result, start);
+                }
+            }
+        } catch (Exception e) {
+            error(e.getMessage());
+        }
+    }
+    
+    private void sendResult(QueryExecutor.ResultSet result, long start) throws IOException {
+        if (result.hasRows()) {
+            sendRows(result, start);
+        } else {
+            body.writeLong(result.getUpdateCount());
+            body.writeLong((System.nanoTime() - start) / 1000);
+            send(UPDATED);
+        }
+    }
+    
+    /**
+     * Parse and plan a statement once, for executing it with different values
+     */
+    private void prepare(String sql) throws IOException {
+        PreparedStatement statement;
+        try {
+            statement = session.prepare(sql);
+        } catch (Exception e) {
+            error(e.getMessage());
+            return;
+        }
+        int id = ++nextStatementId;
+        statements.put(id, statement);
+        body.writeInt(id);
+        body.writeShort(statement.getParameterCount());
+        send(PREPARED);
+    }
+    
+    /**
+     * Run a prepared statement with the values of the request
+     */
+    private void executePrepared(ByteBuffer request) throws IOException {
+        long start = System.nanoTime();
+        try {
+            PreparedStatement statement = statements.get(request.getInt());
+            if (statement == null) {
+                error("Unknown prepared statement");
+                return;
+            }
+            int count = request.getShort() & 0xFFFF;
+            List<Object> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(readValue(request));
+            }
+            try (QueryExecutor.ResultSet result = session.execute(statement, values)) {
+                sendResult(result, start);
+            }
+        } catch (BufferUnderflowException e) {
+            error("Malformed EXECUTE message");
+        } catch (Exception e) {
+            error(e.getMessage());
+        }
+    }
+    
+    /**
+     * Execute the statements of a batch as one unit
+     */
+    private void executeBatch(String sql) throws IOException {
+        long start = System.nanoTime();
+        List<ASTNode> statements;
+        try {
+            statements = session.parse(sql);
+        } catch (Exception e) {
+            error(e.getMessage());
+            return;
+        }
+        for (ASTNode ast : statements) {
+            if (ast instanceof BeginTransactionNode || ast instanceof CommitNode || ast instanceof RollbackNode) {
+                error("Transaction control statements are not allowed in a batch");
+                return;
+            }
+        }
+        boolean ownTransaction = !session.isInTransaction();
+        long updated = 0;
+        int index = 0;
+        try {
+            if (ownTransaction) {
+                session.begin();
+            }
+            for (; index < statements.size(); index++) {
+                long statementStart = System.nanoTime();
+                try (QueryExecutor.ResultSet result = session.execute(statements.get(index))) {
+                    if (result.hasRows()) {
+                        sendRows(result, statementStart);
+                    } else {
+                        updated += result.getUpdateCount();
+                    }
+                }
+            }
+            if (ownTransaction) {
+                session.commit();
+            }
+        } catch (Exception e) {
+            if (ownTransaction && session.isInTransaction()) {
+                session.rollback();
+            }
+            error("Statement " + (index + 1) + " of batch: " + e.getMessage());
+            return;
+        }
+        body.writeLong(updated);
+        body.writeLong((System.nanoTime() - start) / 1000);
+        send(UPDATED);
+    }
+    
+    private void error(String text) throws IOException {
+        message.reset();
+        body.write(String.valueOf(text).getBytes(StandardCharsets.UTF_8));
+        send(ERROR);
+    }
+    
+    /**
+     * Stream the rows of a result in chunks; COLUMNS goes out with the first chunk,
+     * once the column types can be told from its values
+     */
+    private void sendRows(QueryExecutor.ResultSet result, long start) throws IOException {
+        List<String> names = result.getColumnNames();
+        byte[] types = new byte[names.size()];
+        boolean columnsSent = false;
+        long count = 0;
+        int chunkRows = 0;
+        message.reset();
+        body.writeInt(0);
+        for (Object[] row = result.next(); row != null; row = result.next()) {
+            for (int i = 0; i < types.length; i++) {
+                byte type = writeValue(row[i]);
+                if (types[i] == TYPE_NULL && !columnsSent) {
+                    types[i] = type;
+                }
+            }
+            count++;
+            chunkRows++;
+            if (message.size() >= ROWS_CHUNK_BYTES) {
+                if (!columnsSent) {
+                    sendColumns(names, types);
+                    columnsSent = true;
+                }
+                sendRowsChunk(chunkRows);
+                out.flush();
+                chunkRows = 0;
+                body.writeInt(0);
+            }
+        }
+        if (!columnsSent) {
+            sendColumns(names, types);
+        }
+        if (chunkRows > 0) {
+            sendRowsChunk(chunkRows);
+        } else {
+            message.reset();
+        }
+        body.writeLong(count);
+        body.writeLong((System.nanoTime() - start) / 1000);
+        send(END);
+    }
+    
+    /**
+     * Write the COLUMNS message ahead of the rows collected so far
+     */
+    private void sendColumns(List<String> names, byte[] types) throws IOException {
+        MessageBuffer columns = new MessageBuffer();
+        DataOutputStream data = new DataOutputStream(columns);
+        data.writeShort(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+            data.writeShort(name.length);
+            data.write(name);
+            data.writeByte(types[i]);
+        }
+        writeFrame(COLUMNS, columns);
+    }
+    
+    private void sendRowsChunk(int rows) throws IOException {
+        message.putInt(0, rows);
+        send(ROWS);
+    }
+    
+    private byte writeValue(Object value) throws IOException {
+        if (value == null) {
+            body.writeByte(TYPE_NULL);
+            return TYPE_NULL;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            body.writeByte(TYPE_INT);
+            body.writeInt(((Number) value).intValue());
+            return TYPE_INT;
+        } else if (value instanceof Long) {
+            body.writeByte(TYPE_BIGINT);
+            body.writeLong((Long) value);
+            return TYPE_BIGINT;
+        } else if (value instanceof Double || value instanceof Float) {
+            body.writeByte(TYPE_DOUBLE);
+            body.writeDouble(((Number) value).doubleValue());
+            return TYPE_DOUBLE;
+        } else if (value instanceof Boolean) {
+            body.writeByte(TYPE_BOOLEAN);
+            body.writeByte((Boolean) value ? 1 : 0);
+            return TYPE_BOOLEAN;
+        } else if (value instanceof BigDecimal) {
+            byte[] digits = ((BigDecimal) value).toPlainString().getBytes(StandardCharsets.US_ASCII);
+            body.writeByte(TYPE_DECIMAL);
+            body.writeShort(digits.length);
+            body.write(digits);
+            return TYPE_DECIMAL;
+        }
+        byte[] text = Values.toString(value).getBytes(StandardCharsets.UTF_8);
+        body.writeByte(TYPE_STRING);
+        body.writeInt(text.length);
+        body.write(text);
+        return TYPE_STRING;
+    }
+    
+    private static Object readValue(ByteBuffer in) throws ProtocolException {
+        byte type = in.get();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_INT:
+                return in.getInt();
+            case TYPE_BIGINT:
+                return in.getLong();
+            case TYPE_DOUBLE:
+                return in.getDouble();
+            case TYPE_BOOLEAN:
+                return in.get() != 0;
+            case TYPE_STRING: {
+                byte[] text = new byte[in.getInt()];
+                in.get(text);
+                return new String(text, StandardCharsets.UTF_8);
+            }
+            case TYPE_DECIMAL: {
+                byte[] digits = new byte[in.getShort() & 0xFFFF];
+                in.get(digits);
+                return new BigDecimal(new String(digits, StandardCharsets.US_ASCII));
+            }
+            default:
+                throw new ProtocolException("Unknown value type " + type);
+        }
+    }
+    
+    /**
+     * Send the message built in {@link #body} and clear it
+     */
+    private void send(byte type) throws IOException {
+        writeFrame(type, message);
+        message.reset();
+    }
+    
+    private void writeFrame(byte type, MessageBuffer content) throws IOException {
+        out.writeInt(content.size() + 1);
+        out.writeByte(type);
+        content.writeTo(out);
+    }
+    
+    /**
+     * A complete ERROR message
+     */
+    static byte[] errorFrame(String text) {
+        byte[] message = String.valueOf(text).getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(5 + message.length).putInt(message.length + 1).put(ERROR).put(message).array();
+    }
+    
+    @Override
+    public void close() {
+        session.close();
+    }
+    
+    /**
+     * Growable message body that allows patching a count written up front
+     */
+    private static final class MessageBuffer extends ByteArrayOutputStream {
+        
+        MessageBuffer() {
+            super(ROWS_CHUNK_BYTES + 1024);
+        }
+        
+        void putInt(int offset, int value) {
+            buf[offset] = (byte) (value >>> 24);
+            buf[offset + 1] = (byte) (value >>> 16);
+            buf[offset + 2] = (byte) (value >>> 8);
+            buf[offset + 3] = (byte) value;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.hkprog.thedb.server;
+
+import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.ast.BeginTransactionNode;
+import org.hkprog.thedb.ast.CommitNode;
+import org.hkprog.thedb.ast.RollbackNode;
+import org.hkprog.thedb.compiler.NormalizedSql;
+import org.hkprog.thedb.compiler.SQLCompiler;
+import org.hkprog.thedb.executor.QueryExecutor;
+import org.hkprog.thedb.planner.PreparedStatement;
+import org.hkprog.thedb.planner.QueryPlanner;
+import org.hkprog.thedb.planner.StatementCache;
+import org.hkprog.thedb.storage.StorageEngine;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Client Session - the SQL session of one client connection
+ *
+ * Not thread-safe, but not tied to a thread either: the front end may run
+ * successive requests of a connection on different threads, one at a time.
+ *
+ * With a statement cache, the statements of a request that are in the cache
+ * are neither parsed nor planned: {@link #parse} returns the cached parse
+ * trees and {@link #execute(ASTNode)} runs their cached plans with the
+ * request's literal values. They go back to the cache when the next request
+ * is parsed.
+ */
+final class ClientSession {
+    
+    private final QueryPlanner planner;
+    private final QueryExecutor executor;
+    private final StatementCache cache;
+    // Statements of the current request taken from the cache, by their parse tree
+    private final Map<ASTNode, CachedStatement> checkedOut = new IdentityHashMap<>();
+    
+    /**
+     * @param cache the server's statement cache, or null for none
+     */
+    ClientSession(StorageEngine storageEngine, StatementCache cache) {
+        this.planner = new QueryPlanner(storageEngine);
+        this.executor = new QueryExecutor(storageEngine);
+        this.cache = cache;
+    }
+    
+    /**
+     * A statement checked out of the cache and the literal values to run it with
+     */
+    private static final class CachedStatement {
+        final String text;
+        final PreparedStatement statement;
+        final List<Object> values;
+        
+        CachedStatement(String text, PreparedStatement statement, List<Object> values) {
+            this.text = text;
+            this.statement = statement;
+            this.values = values;
+        }
+    }
+    
+    /**
+     * Parse the statements of a request
+     */
+    List<ASTNode> parse(String sql) throws IOException {
+        checkIn();
+        if (cache == null) {
+            return SQLCompiler.parseStatements(sql);
+        }
+        List<NormalizedSql> normalized = NormalizedSql.split(sql);
+        if (normalized == null) {
+            return SQLCompiler.parseStatements(sql);
+        }
+        List<ASTNode> statements = new ArrayList<>();
+        try {
+            for (NormalizedSql statement : normalized) {
+                if (!statement.isCacheable()) {
+                    statements.addAll(SQLCompiler.parseStatements(statement.getSql()));
+                    continue;
+                }
+                PreparedStatement cached = cache.checkout(statement.getText(), planner);
+                checkedOut.put(cached.getStatement(),
+                        new CachedStatement(statement.getText(), cached, statement.getValues()));
+                statements.add(cached.getStatement());
+            }
+        } catch (RuntimeException e) {
+            // Parse the request as a whole, for the error it would have given without the cache
+            checkIn();
+            return SQLCompiler.parseStatements(sql);
+        }
+        return statements;
+    }
+    
+    /**
+     * Return the statements of the previous request to the cache
+     */
+    private void checkIn() {
+        for (CachedStatement cached : checkedOut.values()) {
+            cache.checkin(cached.text, cached.statement);
+        }
+        checkedOut.clear();
+    }
+    
+    /**
+     * Plan and run one statement; the caller closes the result
+     */
+    QueryExecutor.ResultSet execute(ASTNode statement) {
+        CachedStatement cached = checkedOut.get(statement);
+        if (cached != null) {
+            return executor.execute(cached.statement.bind(cached.values));
+        }
+        return executor.execute(planner.createPlan(statement));
+    }
+    
+    /**
+     * Parse and plan a statement with ? parameter markers for a protocol-level
+     * prepare; the handle is the caller's to keep
+     */
+    PreparedStatement prepare(String sql) {
+        return planner.prepare(SQLCompiler.prepare(null, sql));
+    }
+    
+    /**
+     * Run a prepared statement with the given parameter values; the caller closes the result
+     */
+    QueryExecutor.ResultSet execute(PreparedStatement statement, List<?> values) {
+        return executor.execute(statement.bind(values));
+    }
+    
+    /**
+     * The server's statement cache, or null for none
+     */
+    StatementCache getStatementCache() {
+        return cache;
+    }
+    
+    /**
+     * Whether an explicit transaction is open
+     */
+    boolean isInTransaction() {
+        return executor.isInTransaction();
+    }
+    
+    /**
+     * Start an explicit transaction, as BEGIN does
+     */
+    void begin() {
+        execute(new BeginTransactionNode()).close();
+    }
+    
+    /**
+     * Commit the open transaction, as COMMIT does
+     */
+    void commit() {
+        execute(new CommitNode()).close();
+    }
+    
+    /**
+     * Roll back the open transaction, as ROLLBACK does
+     */
+    void rollback() {
+        execute(new RollbackNode()).close();
+    }
+    
+    /**
+     * First AUTO_INCREMENT value generated by the last INSERT, or 0
+     */
+    long getLastInsertId() {
+        return executor.getLastInsertId();
+    }
+    
+    /**
+     * End the session, rolling back any open transaction and dropping its
+     * prepared statements
+     */
+    void close() {
+        planner.deallocateAll();
+        if (cache != null) {
+            checkIn();
+        }
+        try {
+            executor.close();
+        } catch (RuntimeException e) {
+            System.err.println("Error rolling back client transaction: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.hkprog.thedb.server;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * MySQL Packet - builds and reads the payload of one MySQL protocol packet
+ *
+ * Integers are little-endian; "lenenc" values use MySQL's length-encoded
+ * integer format.
+ */
+final class MySqlPacket {
+    
+    private byte[] buffer;
+    private int length;
+    
+    MySqlPacket() {
+        this.buffer = new byte[256];
+    }
+    
+    byte[] getBuffer() { return buffer; }
+    int getLength() { return length; }
+    
+    MySqlPacket reset() {
+        length = 0;
+        return this;
+    }
+    
+    private void ensure(int bytes) {
+        if (length + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+        }
+    }
+    
+    MySqlPacket int1(int value) {
+        ensure(1);
+        buffer[length++] = (byte) value;
+        return this;
+    }
+    
+    MySqlPacket int2(int value) {
+        ensure(2);
+        buffer[length++] = (byte) value;
+        buffer[length++] = (byte) (value >>> 8);
+        return this;
+    }
+    
+    MySqlPacket int3(int value) {
+        ensure(3);
+        buffer[length++] = (byte) value;
+        buffer[length++] = (byte) (value >>> 8);
+        buffer[length++] = (byte) (value >>> 16);
+        return this;
+    }
+    
+    MySqlPacket int4(int value) {
+        return int2(value).int2(value >>> 16);
+    }
+    
+    MySqlPacket int8(long value) {
+        return int4((int) value).int4((int) (value >>> 32));
+    }
+    
+    MySqlPacket lenenc(long value) {
+        if (value >= 0 && value < 251) {
+            return int1((int) value);
+        } else if (value >= 0 && value < (1 << 16)) {
+            return int1(0xFC).int2((int) value);
+        } else if (value >= 0 && value < (1 << 24)) {
+            return int1(0xFD).int3((int) value);
+        }
+        return int1(0xFE).int8(value);
+    }
+    
+    MySqlPacket bytes(byte[] bytes) {
+        return bytes(bytes, 0, bytes.length);
+    }
+    
+    MySqlPacket bytes(byte[] bytes, int offset, int count) {
+        ensure(count);
+        System.arraycopy(bytes, offset, buffer, length, count);
+        length += count;
+        return this;
+    }
+    
+    MySqlPacket zeros(int count) {
+        ensure(count);
+        Arrays.fill(buffer, length, length + count, (byte) 0);
+        length += count;
+        return this;
+    }
+    
+    MySqlPacket lenencString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return lenenc(bytes.length).bytes(bytes);
+    }
+    
+    MySqlPacket nulString(String value) {
+        return bytes(value.getBytes(StandardCharsets.UTF_8)).int1(0);
+    }
+    
+    /**
+     * A string that runs to the end of the packet
+     */
+    MySqlPacket string(String value) {
+        return bytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Reads a received payload
+     */
+    static final class Reader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+        
+        Reader(byte[] data, int offset) {
+            this.data = data;
+            this.end = data.length;
+            this.position = offset;
+        }
+        
+        boolean hasRemaining() {
+            return position < end;
+        }
+        
+        int position() {
+            return position;
+        }
+        
+        private void need(int bytes) throws ProtocolException {
+            if (position + bytes > end) {
+                throw new ProtocolException("Malformed packet");
+            }
+        }
+        
+        int int1() throws ProtocolException {
+            need(1);
+            return data[position++] & 0xFF;
+        }
+        
+        int int2() throws ProtocolException {
+            need(2);
+            int value = (data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8;
+            position += 2;
+            return value;
+        }
+        
+        int int3() throws ProtocolException {
+            return int2() | int1() << 16;
+        }
+        
+        int int4() throws ProtocolException {
+            return int2() | int2() << 16;
+        }
+        
+        long int8() throws ProtocolException {
+            return (int4() & 0xFFFFFFFFL) | (long) int4() << 32;
+        }
+        
+        long lenenc() throws ProtocolException {
+            int first = int1();
+            switch (first) {
+                case 0xFC: return int2();
+                case 0xFD: return int3();
+                case 0xFE: return int8();
+                default: return first;
+            }
+        }
+        
+        byte[] bytes(int count) throws ProtocolException {
+            need(count);
+            byte[] bytes = Arrays.copyOfRange(data, position, position + count);
+            position += count;
+            return bytes;
+        }
+        
+        byte[] lenencBytes() throws ProtocolException {
+            long count = lenenc();
+            if (count < 0 || count > end - position) {
+                throw new ProtocolException("Malformed packet");
+            }
+            return bytes((int) count);
+        }
+        
+        String nulString() throws ProtocolException {
+            int start = position;
+            while (position < end && data[position] != 0) {
+                position++;
+            }
+            String value = new String(data, start, position - start, StandardCharsets.UTF_8);
+            if (position < end) {
+                position++;
+            }
+            return value;
+        }
+        
+        /**
+         * The rest of the packet
+         */
+        byte[] restBytes() {
+            byte[] bytes = Arrays.copyOfRange(data, position, end);
+            position = end;
+            return bytes;
+        }
+        
+        /**
+         * The rest of the packet as a string
+         */
+        String rest() {
+            String value = new String(data, position, end - position, StandardCharsets.UTF_8);
+            position = end;
+            return value;
+        }
+        
+        void skip(int count) throws ProtocolException {
+            need(count);
+            position += count;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.hkprog.thedb.server;
+
+import org.hkprog.thedb.planner.PreparedStatement;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * MySQL Prepared Statement - a statement prepared with COM_STMT_PREPARE
+ *
+ * Each COM_STMT_EXECUTE reads the parameter values from the packet in
+ * MySQL's binary format. Statements for the SQL engine were planned when
+ * they were prepared and get the values as they are; session statements the
+ * protocol handler answers itself have no plan, and the values are bound
+ * into their text as SQL literals.
+ */
+final class MySqlPreparedStatement {
+    
+    // Parameter types (MYSQL_TYPE_*)
+    static final int TYPE_DECIMAL = 0;
+    static final int TYPE_TINY = 1;
+    static final int TYPE_SHORT = 2;
+    static final int TYPE_LONG = 3;
+    static final int TYPE_FLOAT = 4;
+    static final int TYPE_DOUBLE = 5;
+    static final int TYPE_NULL = 6;
+    static final int TYPE_TIMESTAMP = 7;
+    static final int TYPE_LONGLONG = 8;
+    static final int TYPE_INT24 = 9;
+    static final int TYPE_DATE = 10;
+    static final int TYPE_TIME = 11;
+    static final int TYPE_DATETIME = 12;
+    static final int TYPE_YEAR = 13;
+    static final int TYPE_NEWDECIMAL = 246;
+    static final int TYPE_VAR_STRING = 253;
+    
+    private static final int UNSIGNED = 0x8000;
+    
+    private final int id;
+    private final String sql;
+    private final PreparedStatement plan;
+    private final List<String> fragments;
+    private int[] types;
+    private final ByteArrayOutputStream[] longData;
+    
+    /**
+     * @param plan the planned statement, or null for a statement answered by the protocol handler
+     */
+    MySqlPreparedStatement(int id, String sql, PreparedStatement plan) {
+        this.id = id;
+        this.sql = sql;
+        this.plan = plan;
+        this.fragments = split(sql);
+        this.longData = new ByteArrayOutputStream[getParameterCount()];
+    }
+    
+    int getId() { return id; }
+    String getSql() { return sql; }
+    PreparedStatement getPlan() { return plan; }
+    
+    int getParameterCount() {
+        return plan != null ? plan.getParameterCount() : fragments.size() - 1;
+    }
+    
+    /**
+     * Split SQL at the {@code ?} markers outside quotes and comments
+     */
+    private static List<String> split(String sql) {
+        List<String> fragments = new ArrayList<>();
+        int start = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                i++;
+                while (i < sql.length() && sql.charAt(i) != c) {
+                    i += sql.charAt(i) == '\\' ? 2 : 1;
+                }
+                i++;
+            } else if (c == '-' && sql.startsWith("--", i) || c == '#') {
+                while (i < sql.length() && sql.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '/' && sql.startsWith("/*", i)) {
+                int close = sql.indexOf("*/", i + 2);
+                i = close < 0 ? sql.length() : close + 2;
+            } else {
+                if (c == '?') {
+                    fragments.add(sql.substring(start, i));
+                    start = i + 1;
+                }
+                i++;
+            }
+        }
+        fragments.add(sql.substring(Math.min(start, sql.length())));
+        return fragments;
+    }
+    
+    /**
+     * COM_STMT_SEND_LONG_DATA: a piece of a parameter's value sent ahead of execution
+     */
+    void appendLongData(int parameter, byte[] data) {
+        if (parameter >= 0 && parameter < longData.length) {
+            if (longData[parameter] == null) {
+                longData[parameter] = new ByteArrayOutputStream();
+            }
+            longData[parameter].writeBytes(data);
+        }
+    }
+    
+    /**
+     * COM_STMT_RESET: forget long data sent so far
+     */
+    void reset() {
+        Arrays.fill(longData, null);
+    }
+    
+    /**
+     * Read the parameter values of a COM_STMT_EXECUTE packet, positioned after
+     * the iteration count
+     */
+    List<Object> readParameters(MySqlPacket.Reader in) throws ProtocolException {
+        int count = getParameterCount();
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        byte[] nulls = in.bytes((count + 7) / 8);
+        if (in.int1() == 1) {
+            types = new int[count];
+            for (int i = 0; i < count; i++) {
+                types[i] = in.int2();
+            }
+        } else if (types == null) {
+            throw new ProtocolException("Parameter types were never sent");
+        }
+        List<Object> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if ((nulls[i / 8] & (1 << (i % 8))) != 0) {
+                values.add(null);
+            } else if (longData[i] != null) {
+                values.add(new String(longData[i].toByteArray(), StandardCharsets.UTF_8));
+            } else {
+                values.add(readValue(in, types[i]));
+            }
+        }
+        reset();
+        return values;
+    }
+    
+    /**
+     * The SQL with the values bound into it as literals
+     */
+    String bind(List<Object> values) {
+        StringBuilder bound = new StringBuilder(sql.length() + 16 * values.size());
+        bound.append(fragments.get(0));
+        for (int i = 0; i < values.size() && i + 1 < fragments.size(); i++) {
+            appendLiteral(bound, values.get(i));
+            bound.append(fragments.get(i + 1));
+        }
+        return bound.toString();
+    }
+    
+    private static Object readValue(MySqlPacket.Reader in, int type) throws ProtocolException {
+        boolean unsigned = (type & UNSIGNED) != 0;
+        switch (type & 0xFF) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_TINY:
+                return unsigned ? in.int1() : (int) (byte) in.int1();
+            case TYPE_SHORT:
+            case TYPE_YEAR:
+                return unsigned ? in.int2() : (int) (short) in.int2();
+            case TYPE_LONG:
+            case TYPE_INT24:
+                return unsigned ? (Object) (in.int4() & 0xFFFFFFFFL) : (Object) in.int4();
+            case TYPE_LONGLONG: {
+                long value = in.int8();
+                return unsigned && value < 0 ? new BigDecimal(new BigInteger(Long.toUnsignedString(value))) : (Object) value;
+            }
+            case TYPE_FLOAT:
+                return (double) Float.intBitsToFloat(in.int4());
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(in.int8());
+            case TYPE_DATE:
+            case TYPE_DATETIME:
+            case TYPE_TIMESTAMP:
+                return readDateTime(in, type & 0xFF);
+            case TYPE_TIME:
+                return readTime(in);
+            case TYPE_DECIMAL:
+            case TYPE_NEWDECIMAL:
+                return new BigDecimal(new String(in.lenencBytes(), StandardCharsets.US_ASCII));
+            default:
+                return new String(in.lenencBytes(), StandardCharsets.UTF_8);
+        }
+    }
+    
+    private static String readDateTime(MySqlPacket.Reader in, int type) throws ProtocolException {
+        int length = in.int1();
+        int year = 0, month = 0, day = 0, hour = 0, minute = 0, second = 0, micros = 0;
+        if (length >= 4) {
+            year = in.int2();
+            month = in.int1();
+            day = in.int1();
+        }
+        if (length >= 7) {
+            hour = in.int1();
+            minute = in.int1();
+            second = in.int1();
+        }
+        if (length >= 11) {
+            micros = in.int4();
+        }
+        String date = String.format("%04d-%02d-%02d", year, month, day);
+        if (type == TYPE_DATE) {
+            return date;
+        }
+        return date + String.format(" %02d:%02d:%02d", hour, minute, second)
+                + (micros != 0 ? String.format(".%06d", micros) : "");
+    }
+    
+    private static String readTime(MySqlPacket.Reader in) throws ProtocolException {
+        int length = in.int1();
+        if (length == 0) {
+            return "00:00:00";
+        }
+        boolean negative = in.int1() != 0;
+        long days = in.int4() & 0xFFFFFFFFL;
+        int hour = in.int1();
+        int minute = in.int1();
+        int second = in.int1();
+        int micros = length >= 12 ? in.int4() : 0;
+        return (negative ? "-" : "") + String.format("%02d:%02d:%02d", days * 24 + hour, minute, second)
+                + (micros != 0 ? String.format(".%06d", micros) : "");
+    }
+    
+    /**
+     * Append a value as a literal TheDB's SQL parser reads back as the same value
+     */
+    static void appendLiteral(StringBuilder sql, Object value) {
+        if (value == null) {
+            sql.append("NULL");
+        } else if (value instanceof Boolean) {
+            sql.append((Boolean) value ? "TRUE" : "FALSE");
+        } else if (value instanceof Number) {
+            BigDecimal number;
+            if (value instanceof Double) {
+                double d = (Double) value;
+                if (Double.isNaN(d) || Double.isInfinite(d)) {
+                    throw new IllegalArgumentException("Cannot bind " + d + " as a parameter");
+                }
+                number = BigDecimal.valueOf(d);
+            } else if (value instanceof BigDecimal) {
+                number = (BigDecimal) value;
+            } else {
+                number = BigDecimal.valueOf(((Number) value).longValue());
+            }
+            // The grammar has no unary minus, so negative numbers are written as a subtraction
+            if (number.signum() < 0) {
+                sql.append("(0 - ").append(number.negate().toPlainString()).append(')');
+            } else {
+                sql.append(number.toPlainString());
+            }
+        } else {
+            String text = value.toString();
+            sql.append('\'');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '\'': sql.append("''"); break;
+                    case '\\': sql.append("\\\\"); break;
+                    case '\n': sql.append("\\n"); break;
+                    case '\r': sql.append("\\r"); break;
+                    case '\0': sql.append("\\0"); break;
+                    default: sql.append(c); break;
+                }
+            }
+            sql.append('\'');
+        }
+    }
+}
@@ -0,0 +1,1207 @@
+package org.hkprog.thedb.server;
+
+import org.hkprog.thedb.ast.*;
+import org.hkprog.thedb.compiler.SQLCompiler;
+import org.hkprog.thedb.executor.ExpressionCompiler;
+import org.hkprog.thedb.executor.ExpressionEvaluator;
+import org.hkprog.thedb.executor.QueryExecutor;
+import org.hkprog.thedb.executor.Tuple;
+import org.hkprog.thedb.executor.Values;
+import org.hkprog.thedb.planner.PreparedStatement;
+import org.hkprog.thedb.planner.StatementCache;
+import org.hkprog.thedb.storage.DuplicateKeyException;
+import org.hkprog.thedb.storage.StorageEngine;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * MySQL Protocol Handler - the MySQL client/server protocol, so that MySQL
+ * drivers and connection pools can use TheDB
+ *
+ * Supports the protocol 4.1 handshake (any user and password are accepted;
+ * TheDB has no accounts), COM_QUERY with text result sets (and multiple
+ * statements for clients that enable CLIENT_MULTI_STATEMENTS), server-side
+ * prepared statements (COM_STMT_PREPARE / EXECUTE /
+ * SEND_LONG_DATA / RESET / CLOSE) with binary result sets, COM_PING,
+ * COM_INIT_DB and COM_RESET_CONNECTION. Prepared statements are parsed and
+ * planned once, at COM_STMT_PREPARE, and each execution only binds the
+ * parameter values.
+ *
+ * Drivers also send session statements TheDB's SQL does not have (SET,
+ * SELECT @@variable, SHOW WARNINGS, ...); these are answered here from a
+ * per-connection table of session variables. SET autocommit = 0 makes each
+ * statement after it open a transaction if none is open.
+ *
+ * Result column types are not known before execution, so they are taken
+ * from the values of the first rows.
+ */
+final class MySqlProtocolHandler implements ProtocolHandler {
+    
+    static final String SERVER_VERSION = "8.0.0-TheDB-0.0.1";
+    
+    // Commands
+    private static final int COM_QUIT = 0x01;
+    private static final int COM_INIT_DB = 0x02;
+    private static final int COM_QUERY = 0x03;
+    private static final int COM_PING = 0x0E;
+    private static final int COM_STMT_PREPARE = 0x16;
+    private static final int COM_STMT_EXECUTE = 0x17;
+    private static final int COM_STMT_SEND_LONG_DATA = 0x18;
+    private static final int COM_STMT_CLOSE = 0x19;
+    private static final int COM_STMT_RESET = 0x1A;
+    private static final int COM_SET_OPTION = 0x1B;
+    private static final int COM_RESET_CONNECTION = 0x1F;
+    
+    // COM_SET_OPTION options
+    private static final int MYSQL_OPTION_MULTI_STATEMENTS_ON = 0;
+    private static final int MYSQL_OPTION_MULTI_STATEMENTS_OFF = 1;
+    
+    // Capability flags
+    private static final int CLIENT_LONG_PASSWORD = 1;
+    private static final int CLIENT_FOUND_ROWS = 1 << 1;
+    private static final int CLIENT_LONG_FLAG = 1 << 2;
+    private static final int CLIENT_CONNECT_WITH_DB = 1 << 3;
+    private static final int CLIENT_PROTOCOL_41 = 1 << 9;
+    private static final int CLIENT_TRANSACTIONS = 1 << 13;
+    private static final int CLIENT_SECURE_CONNECTION = 1 << 15;
+    private static final int CLIENT_MULTI_STATEMENTS = 1 << 16;
+    private static final int CLIENT_MULTI_RESULTS = 1 << 17;
+    private static final int CLIENT_PS_MULTI_RESULTS = 1 << 18;
+    private static final int CLIENT_PLUGIN_AUTH = 1 << 19;
+    private static final int CLIENT_CONNECT_ATTRS = 1 << 20;
+    private static final int CLIENT_PLUGIN_AUTH_LENENC_CLIENT_DATA = 1 << 21;
+    private static final int SERVER_CAPABILITIES = CLIENT_LONG_PASSWORD | CLIENT_FOUND_ROWS | CLIENT_LONG_FLAG
+            | CLIENT_CONNECT_WITH_DB | CLIENT_PROTOCOL_41 | CLIENT_TRANSACTIONS | CLIENT_SECURE_CONNECTION
+            | CLIENT_MULTI_STATEMENTS | CLIENT_MULTI_RESULTS | CLIENT_PS_MULTI_RESULTS | CLIENT_PLUGIN_AUTH
+            | CLIENT_CONNECT_ATTRS | CLIENT_PLUGIN_AUTH_LENENC_CLIENT_DATA;
+    
+    // Status flags
+    private static final int SERVER_STATUS_IN_TRANS = 0x0001;
+    private static final int SERVER_STATUS_AUTOCOMMIT = 0x0002;
+    private static final int SERVER_MORE_RESULTS_EXISTS = 0x0008;
+    
+    // Column types and flags
+    private static final int TYPE_TINY = MySqlPreparedStatement.TYPE_TINY;
+    private static final int TYPE_LONG = MySqlPreparedStatement.TYPE_LONG;
+    private static final int TYPE_DOUBLE = MySqlPreparedStatement.TYPE_DOUBLE;
+    private static final int TYPE_LONGLONG = MySqlPreparedStatement.TYPE_LONGLONG;
+    private static final int TYPE_NEWDECIMAL = MySqlPreparedStatement.TYPE_NEWDECIMAL;
+    private static final int TYPE_VAR_STRING = MySqlPreparedStatement.TYPE_VAR_STRING;
+    private static final int BINARY_FLAG = 0x80;
+    private static final int CHARSET_UTF8MB4 = 45;
+    private static final int CHARSET_BINARY = 63;
+    
+    private static final int MAX_PACKET_PAYLOAD = 0xFFFFFF;
+    private static final int MAX_REQUEST_BYTES = 64 * 1024 * 1024;
+    private static final String DATABASE = "thedb";
+    
+    private static final AtomicInteger CONNECTION_IDS = new AtomicInteger();
+    
+    private final ClientSession session;
+    private final StorageEngine storageEngine;
+    private final OutputStream out;
+    private final MySqlPacket packet;
+    private final byte[] header;
+    private final int connectionId;
+    private final byte[] scramble;
+    private final Map<String, Object> variables;
+    private final Map<Integer, MySqlPreparedStatement> statements;
+    private int nextStatementId;
+    private int sequence;
+    private boolean authenticated;
+    private boolean autocommit;
+    private String database;
+    
+    /**
+     * Capability flags the client asked for; CLIENT_MULTI_STATEMENTS can be
+     * switched by COM_SET_OPTION
+     */
+    private int clientCapabilities;
+    
+    // Framing state: the packet header read so far, then the payload being
+    // filled (-1 remaining while a header is read); a request longer than one
+    // packet continues in the next
+    private final byte[] inHeader;
+    private int inHeaderLength;
+    private byte[] payload;
+    private int payloadLength;
+    private int packetRemaining;
+    private boolean continued;
+    
+    MySqlProtocolHandler(ClientSession session, StorageEngine storageEngine, OutputStream out) {
+        this.session = session;
+        this.storageEngine = storageEngine;
+        this.out = out;
+        this.packet = new MySqlPacket();
+        this.header = new byte[4];
+        this.inHeader = new byte[4];
+        this.packetRemaining = -1;
+        this.connectionId = CONNECTION_IDS.incrementAndGet();
+        this.scramble = new byte[20];
+        for (int i = 0; i < scramble.length; i++) {
+            scramble[i] = (byte) ThreadLocalRandom.current().nextInt(1, 128);
+        }
+        this.variables = defaultVariables();
+        this.statements = new HashMap<>();
+        this.autocommit = true;
+        this.database = DATABASE;
+    }
+    
+    private static Map<String, Object> defaultVariables() {
+        Map<String, Object> variables = new HashMap<>();
+        variables.put("auto_increment_increment", 1L);
+        variables.put("autocommit", 1L);
+        variables.put("character_set_client", "utf8mb4");
+        variables.put("character_set_connection", "utf8mb4");
+        variables.put("character_set_database", "utf8mb4");
+        variables.put("character_set_results", "utf8mb4");
+        variables.put("character_set_server", "utf8mb4");
+        variables.put("collation_connection", "utf8mb4_general_ci");
+        variables.put("collation_database", "utf8mb4_general_ci");
+        variables.put("collation_server", "utf8mb4_general_ci");
+        variables.put("init_connect", "");
+        variables.put("interactive_timeout", 28800L);
+        variables.put("license", "TheDB");
+        variables.put("lower_case_table_names", 0L);
+        variables.put("max_allowed_packet", (long) MAX_REQUEST_BYTES);
+        variables.put("net_buffer_length", 16384L);
+        variables.put("net_write_timeout", 60L);
+        variables.put("performance_schema", 0L);
+        variables.put("query_cache_size", 0L);
+        variables.put("query_cache_type", "OFF");
+        variables.put("sql_mode", "");
+        variables.put("system_time_zone", TimeZone.getDefault().getID());
+        variables.put("time_zone", "SYSTEM");
+        variables.put("transaction_isolation", "REPEATABLE-READ");
+        variables.put("tx_isolation", "REPEATABLE-READ");
+        variables.put("transaction_read_only", 0L);
+        variables.put("tx_read_only", 0L);
+        variables.put("version", SERVER_VERSION);
+        variables.put("version_comment", "TheDB Server");
+        variables.put("wait_timeout", 28800L);
+        return variables;
+    }
+    
+    // ---- framing ----
+    
+    @Override
+    public void frame(ByteBuffer input, List<byte[]> requests) throws ProtocolException {
+        while (true) {
+            if (packetRemaining < 0) {
+                if (!input.hasRemaining()) {
+                    return;
+                }
+                inHeader[inHeaderLength++] = input.get();
+                if (inHeaderLength < inHeader.length) {
+                    continue;
+                }
+                inHeaderLength = 0;
+                int length = (inHeader[0] & 0xFF) | (inHeader[1] & 0xFF) << 8 | (inHeader[2] & 0xFF) << 16;
+                if (payload == null) {
+                    payload = new byte[length + 1];
+                    payloadLength = 1;
+                } else if (payloadLength - 1 + length > MAX_REQUEST_BYTES) {
+                    throw new ProtocolException("Packet larger than max_allowed_packet");
+                } else {
+                    payload = Arrays.copyOf(payload, payloadLength + length);
+                }
+                // The first byte of a request is the sequence id of its last packet
+                payload[0] = inHeader[3];
+                packetRemaining = length;
+                continued = length == MAX_PACKET_PAYLOAD;
+            }
+            int n = Math.min(input.remaining(), packetRemaining);
+            input.get(payload, payloadLength, n);
+            payloadLength += n;
+            packetRemaining -= n;
+            if (packetRemaining > 0) {
+                return;
+            }
+            packetRemaining = -1;
+            if (!continued) {
+                requests.add(payload);
+                payload = null;
+            }
+        }
+    }
+    
+    // ---- requests ----
+    
+    @Override
+    public void greet() throws IOException {
+        sequence = 0;
+        packet.reset()
+                .int1(10)
+                .nulString(SERVER_VERSION)
+                .int4(connectionId)
+                .bytes(scramble, 0, 8)
+                .int1(0)
+                .int2(SERVER_CAPABILITIES)
+                .int1(CHARSET_UTF8MB4)
+                .int2(SERVER_STATUS_AUTOCOMMIT)
+                .int2(SERVER_CAPABILITIES >>> 16)
+                .int1(scramble.length + 1)
+                .zeros(10)
+                .bytes(scramble, 8, 12)
+                .int1(0)
+                .nulString("mysql_native_password");
+        writePacket();
+        out.flush();
+    }
+    
+    @Override
+    public boolean handle(byte[] request) throws IOException {
+        sequence = (request[0] + 1) & 0xFF;
+        MySqlPacket.Reader in = new MySqlPacket.Reader(request, 1);
+        try {
+            if (!authenticated) {
+                authenticate(in);
+            } else if (!command(in)) {
+                return false;
+            }
+        } catch (ProtocolException e) {
+            writeError(1835, "08S01", e.getMessage());
+            out.flush();
+            return false;
+        }
+        out.flush();
+        return true;
+    }
+    
+    /**
+     * Read the handshake response; every user is let in
+     */
+    private void authenticate(MySqlPacket.Reader in) throws IOException {
+        int capabilities = in.int4();
+        if ((capabilities & CLIENT_PROTOCOL_41) == 0) {
+            throw new ProtocolException("Clients older than protocol 4.1 are not supported");
+        }
+        clientCapabilities = capabilities & SERVER_CAPABILITIES;
+        in.int4();
+        in.int1();
+        in.skip(23);
+        in.nulString();
+        if ((capabilities & CLIENT_PLUGIN_AUTH_LENENC_CLIENT_DATA) != 0) {
+            in.lenencBytes();
+        } else if ((capabilities & CLIENT_SECURE_CONNECTION) != 0) {
+            in.bytes(in.int1());
+        } else {
+            in.nulString();
+        }
+        if ((capabilities & CLIENT_CONNECT_WITH_DB) != 0 && in.hasRemaining()) {
+            String requested = in.nulString();
+            if (!requested.isEmpty()) {
+                database = requested;
+            }
+        }
+        authenticated = true;
+        writeOk(0, 0, 0);
+    }
+    
+    /**
+     * Serve one command
+     *
+     * @return false for COM_QUIT
+     */
+    private boolean command(MySqlPacket.Reader in) throws IOException {
+        int command = in.int1();
+        switch (command) {
+            case COM_QUIT:
+                return false;
+            case COM_INIT_DB:
+                database = in.rest();
+                writeOk(0, 0, 0);
+                break;
+            case COM_PING:
+                writeOk(0, 0, 0);
+                break;
+            case COM_QUERY:
+                query(in.rest());
+                break;
+            case COM_STMT_PREPARE:
+                prepare(in.rest());
+                break;
+            case COM_STMT_EXECUTE:
+                executeStatement(in);
+                break;
+            case COM_STMT_SEND_LONG_DATA: {
+                MySqlPreparedStatement statement = statements.get(in.int4());
+                int parameter = in.int2();
+                if (statement != null) {
+                    statement.appendLongData(parameter, in.restBytes());
+                }
+                break;
+            }
+            case COM_STMT_CLOSE:
+                statements.remove(in.int4());
+                break;
+            case COM_STMT_RESET: {
+                MySqlPreparedStatement statement = statements.get(in.int4());
+                if (statement == null) {
+                    writeError(1243, "HY000", "Unknown prepared statement handler given to mysqld_stmt_reset");
+                } else {
+                    statement.reset();
+                    writeOk(0, 0, 0);
+                }
+                break;
+            }
+            case COM_SET_OPTION: {
+                int option = in.int2();
+                if (option == MYSQL_OPTION_MULTI_STATEMENTS_ON) {
+                    clientCapabilities |= CLIENT_MULTI_STATEMENTS;
+                } else if (option == MYSQL_OPTION_MULTI_STATEMENTS_OFF) {
+                    clientCapabilities &= ~CLIENT_MULTI_STATEMENTS;
+                } else {
+                    writeError(1047, "08S01", "Unknown option " + option);
+                    break;
+                }
+                writeEof(0);
+                break;
+            }
+            case COM_RESET_CONNECTION:
+                session.close();
+                statements.clear();
+                variables.clear();
+                variables.putAll(defaultVariables());
+                autocommit = true;
+                writeOk(0, 0, 0);
+                break;
+            default:
+                writeError(1047, "08S01", "Unknown command " + command);
+                break;
+        }
+        return true;
+    }
+    
+    /**
+     * COM_QUERY: run the statements of the text, one result each; several
+     * statements only if the client enabled CLIENT_MULTI_STATEMENTS, as MySQL
+     * does, since drivers rely on that to stop injected statements
+     */
+    private void query(String sql) throws IOException {
+        try {
+            if (emulate(sql, false)) {
+                return;
+            }
+            List<ASTNode> statements = session.parse(sql);
+            if (statements.isEmpty()) {
+                writeOk(0, 0, 0);
+                return;
+            }
+            if (statements.size() > 1 && (clientCapabilities & CLIENT_MULTI_STATEMENTS) == 0) {
+                writeError(1064, "42000", "You have an error in your SQL syntax: multiple statements are not enabled "
+                        + "for this connection (CLIENT_MULTI_STATEMENTS)");
+                return;
+            }
+            for (int i = 0; i < statements.size(); i++) {
+                run(statements.get(i), false, i < statements.size() - 1 ? SERVER_MORE_RESULTS_EXISTS : 0);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            writeError(e);
+        }
+    }
+    
+    /**
+     * Run one statement and send its result set or OK
+     */
+    private void run(ASTNode statement, boolean binary, int moreResults) throws IOException {
+        beginIfNotAutocommit(statement);
+        try (QueryExecutor.ResultSet result = session.execute(statement)) {
+            writeResult(statement, result, binary, moreResults);
+        }
+    }
+    
+    private void beginIfNotAutocommit(ASTNode statement) {
+        if (!autocommit && !session.isInTransaction() && !(statement instanceof BeginTransactionNode
+                || statement instanceof CommitNode || statement instanceof RollbackNode)) {
+            session.begin();
+        }
+    }
+    
+    private void writeResult(ASTNode statement, QueryExecutor.ResultSet result, boolean binary, int moreResults)
+            throws IOException {
+        if (result.hasRows()) {
+            writeResultSet(result, binary, moreResults);
+        } else {
+            writeOk(result.getUpdateCount(), statement instanceof InsertStatementNode ? session.getLastInsertId() : 0,
+                    moreResults);
+        }
+    }
+    
+    /**
+     * COM_STMT_PREPARE: parse and plan the statement, and tell the client its
+     * parameters and columns
+     */
+    private void prepare(String sql) throws IOException {
+        PreparedStatement plan = null;
+        List<String> columns = Collections.emptyList();
+        if (!isEmulated(sql)) {
+            try {
+                plan = session.prepare(sql);
+                columns = plan.getColumnNames();
+            } catch (Exception e) {
+                writeError(e);
+                return;
+            }
+        }
+        MySqlPreparedStatement statement = new MySqlPreparedStatement(++nextStatementId, sql, plan);
+        statements.put(statement.getId(), statement);
+        packet.reset()
+                .int1(0)
+                .int4(statement.getId())
+                .int2(columns.size())
+                .int2(statement.getParameterCount())
+                .int1(0)
+                .int2(0);
+        writePacket();
+        if (statement.getParameterCount() > 0) {
+            for (int i = 0; i < statement.getParameterCount(); i++) {
+                writeColumnDefinition("?", TYPE_VAR_STRING, 0);
+            }
+            writeEof(0);
+        }
+        if (!columns.isEmpty()) {
+            for (String column : columns) {
+                writeColumnDefinition(column, TYPE_VAR_STRING, 0);
+            }
+            writeEof(0);
+        }
+    }
+    
+    /**
+     * COM_STMT_EXECUTE: bind the parameters and run the statement with a binary result set
+     */
+    private void executeStatement(MySqlPacket.Reader in) throws IOException {
+        int id = in.int4();
+        MySqlPreparedStatement statement = statements.get(id);
+        if (statement == null) {
+            writeError(1243, "HY000", "Unknown prepared statement handler (" + id + ") given to mysqld_stmt_execute");
+            return;
+        }
+        in.int1();
+        in.int4();
+        List<Object> values = statement.readParameters(in);
+        try {
+            PreparedStatement plan = statement.getPlan();
+            if (plan != null) {
+                beginIfNotAutocommit(plan.getStatement());
+                try (QueryExecutor.ResultSet result = session.execute(plan, values)) {
+                    writeResult(plan.getStatement(), result, true, 0);
+                }
+                return;
+            }
+            String sql = statement.bind(values);
+            if (emulate(sql, true)) {
+                return;
+            }
+            List<ASTNode> parsed = session.parse(sql);
+            if (parsed.size() != 1) {
+                throw new IllegalArgumentException("A prepared statement must be a single statement");
+            }
+            run(parsed.get(0), true, 0);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            writeError(e);
+        }
+    }
+    
+    // ---- session statements drivers send ----
+    
+    private static final Pattern LEADING_COMMENTS = Pattern.compile("^(\\s|/\\*.*?\\*/)+", Pattern.DOTALL);
+    
+    private static String normalize(String sql) {
+        String text = LEADING_COMMENTS.matcher(sql).replaceFirst("").trim();
+        while (text.endsWith(";")) {
+            text = text.substring(0, text.length() - 1).trim();
+        }
+        return text;
+    }
+    
+    private static boolean startsWithWord(String text, String word) {
+        return text.regionMatches(true, 0, word, 0, word.length())
+                && (text.length() == word.length() || !Character.isLetterOrDigit(text.charAt(word.length())));
+    }
+    
+    private boolean isEmulated(String sql) {
+        String text = normalize(sql);
+        return startsWithWord(text, "SET") || startsWithWord(text, "USE") || startsWithWord(text, "SHOW")
+                || startsWithWord(text, "SELECT") && !hasFrom(text);
+    }
+    
+    /**
+     * Answer a statement TheDB's SQL does not have, if it is one
+     *
+     * @return false if the statement is for the SQL engine
+     */
+    private boolean emulate(String sql, boolean binary) throws IOException {
+        String text = normalize(sql);
+        if (startsWithWord(text, "SET")) {
+            set(text.substring(3).trim());
+            writeOk(0, 0, 0);
+            return true;
+        } else if (startsWithWord(text, "USE")) {
+            database = unquote(text.substring(3).trim());
+            writeOk(0, 0, 0);
+            return true;
+        } else if (startsWithWord(text, "SHOW")) {
+            return show(text.substring(4).trim(), binary);
+        } else if (startsWithWord(text, "SELECT") && !hasFrom(text)) {
+            return selectConstants(text.substring(6).trim(), binary);
+        }
+        return false;
+    }
+    
+    private static boolean hasFrom(String text) {
+        List<String> words = splitTopLevel(text, ' ');
+        for (String word : words) {
+            if (word.equalsIgnoreCase("FROM")) {
+                return !(words.get(words.size() - 1).equalsIgnoreCase("DUAL")
+                        && words.get(words.size() - 2).equalsIgnoreCase("FROM"));
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * SET name = value, ...: remember session variables; autocommit takes effect
+     */
+    private void set(String assignments) {
+        for (String assignment : splitTopLevel(assignments, ',')) {
+            String item = assignment.trim();
+            if (startsWithWord(item, "NAMES") || startsWithWord(item, "CHARACTER")) {
+                String charset = unquote(splitTopLevel(item, ' ').get(startsWithWord(item, "NAMES") ? 1 : 2));
+                variables.put("character_set_client", charset);
+                variables.put("character_set_connection", charset);
+                variables.put("character_set_results", charset);
+                continue;
+            }
+            int equals = item.indexOf('=');
+            if (equals < 0) {
+                continue;
+            }
+            String name = item.substring(0, equals).replace(":", "").trim();
+            String valueText = item.substring(equals + 1).trim();
+            if (name.startsWith("@") && !name.startsWith("@@")) {
+                continue;
+            }
+            name = variableName(name.replaceFirst("(?i)^(SESSION|GLOBAL|LOCAL|PERSIST)\\s+", ""));
+            Object value = literal(valueText);
+            if (name.equals("autocommit")) {
+                boolean on = value instanceof Number ? ((Number) value).longValue() != 0
+                        : value != null && (value.toString().equalsIgnoreCase("ON") || value.toString().equalsIgnoreCase("TRUE"));
+                if (on && !autocommit && session.isInTransaction()) {
+                    session.commit();
+                }
+                autocommit = on;
+                value = on ? 1L : 0L;
+            }
+            variables.put(name, value);
+        }
+    }
+    
+    /**
+     * Name of a system variable reference such as @@session.sql_mode
+     */
+    private static String variableName(String reference) {
+        String name = reference.trim();
+        if (name.startsWith("@@")) {
+            name = name.substring(2);
+        }
+        int dot = name.indexOf('.');
+        if (dot >= 0 && name.substring(0, dot).matches("(?i)session|global|local")) {
+            name = name.substring(dot + 1);
+        }
+        return name.replace("`", "").toLowerCase(Locale.ROOT);
+    }
+    
+    private static final Pattern TRAILING_LIMIT = Pattern.compile(
+            "(?i)\\s+LIMIT\\s+([0-9]+)(?:\\s*,\\s*([0-9]+)|\\s+OFFSET\\s+([0-9]+))?$");
+    
+    /**
+     * SELECT without FROM, of literals, system variables, session functions
+     * and expressions over them, with an optional LIMIT (the mysql client
+     * starts with {@code select @@version_comment limit 1})
+     */
+    private boolean selectConstants(String selectList, boolean binary) throws IOException {
+        boolean row = true;
+        Matcher limit = TRAILING_LIMIT.matcher(selectList);
+        if (limit.find()) {
+            // LIMIT count, LIMIT offset, count or LIMIT count OFFSET offset over the one row
+            long count = Long.parseLong(limit.group(limit.group(2) != null ? 2 : 1));
+            long offset = limit.group(2) != null ? Long.parseLong(limit.group(1))
+                    : limit.group(3) != null ? Long.parseLong(limit.group(3)) : 0;
+            row = count > 0 && offset == 0;
+            selectList = selectList.substring(0, limit.start());
+        }
+        if (selectList.toUpperCase(Locale.ROOT).endsWith(" FROM DUAL")) {
+            selectList = selectList.substring(0, selectList.length() - " FROM DUAL".length());
+        }
+        List<String> names = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        for (String item : splitTopLevel(selectList, ',')) {
+            Object[] column = constantItem(item.trim());
+            if (column == null) {
+                return false;
+            }
+            names.add((String) column[0]);
+            values.add(column[1]);
+        }
+        writeRows(names, row ? Collections.singletonList(values.toArray()) : Collections.emptyList(), binary);
+        return true;
+    }
+    
+    /**
+     * Name and value of one item of a SELECT without FROM, or null if it is
+     * not a constant expression
+     */
+    private Object[] constantItem(String item) {
+        List<String> words = splitTopLevel(item, ' ');
+        String expression = words.get(0);
+        String alias = null;
+        if (words.size() == 3 && words.get(1).equalsIgnoreCase("AS")) {
+            alias = words.get(2);
+        } else if (words.size() == 2) {
+            alias = words.get(1);
+        } else if (words.size() != 1) {
+            return evaluateItem(item);
+        }
+        Object value;
+        String upper = expression.toUpperCase(Locale.ROOT).replace(" ", "");
+        if (expression.startsWith("@@")) {
+            value = variables.get(variableName(expression));
+        } else if (upper.equals("DATABASE()") || upper.equals("SCHEMA()")) {
+            value = database;
+        } else if (upper.equals("VERSION()")) {
+            value = SERVER_VERSION;
+        } else if (upper.equals("USER()") || upper.equals("CURRENT_USER()") || upper.equals("SESSION_USER()")
+                || upper.equals("SYSTEM_USER()")) {
+            value = "thedb@localhost";
+        } else if (upper.equals("CONNECTION_ID()")) {
+            value = (long) connectionId;
+        } else if (upper.equals("LAST_INSERT_ID()")) {
+            value = session.getLastInsertId();
+        } else if (upper.equals("NOW()") || upper.equals("CURRENT_TIMESTAMP()") || upper.equals("CURRENT_TIMESTAMP")) {
+            value = Values.now();
+        } else if (expression.matches("-?[0-9]+(\\.[0-9]+)?|'.*'|\".*\"|(?i)NULL|TRUE|FALSE")) {
+            value = literal(expression);
+        } else {
+            return evaluateItem(item);
+        }
+        return new Object[] {alias != null ? unquote(alias) : expression, value};
+    }
+    
+    /**
+     * Name and value of a select item that is an SQL expression without
+     * columns, such as 1+1, evaluated by the SQL engine's expression compiler;
+     * null if it does not parse or refers to a column
+     */
+    private static Object[] evaluateItem(String item) {
+        SelectStatementNode.SelectElement element;
+        try {
+            List<SelectStatementNode.SelectElement> elements =
+                    ((SelectStatementNode) SQLCompiler.parse("SELECT " + item + " FROM dual")).getSelectElements();
+            if (elements.size() != 1) {
+                return null;
+            }
+            element = elements.get(0);
+        } catch (Exception e) {
+            return null;
+        }
+        List<FunctionCallNode> aggregates = new ArrayList<>();
+        if (element.getExpression() != null) {
+            ExpressionEvaluator.collectAggregates(element.getExpression(), aggregates);
+        }
+        if (element.getExpression() == null || !aggregates.isEmpty()) {
+            return null;
+        }
+        Object value;
+        try {
+            value = ExpressionCompiler.compile(element.getExpression(), Collections.emptyList()).evaluate(new Tuple(new Object[0]));
+        } catch (RuntimeException e) {
+            return null;
+        }
+        String name = element.getAlias() != null ? element.getAlias() : item;
+        return new Object[] {name, value};
+    }
+    
+    /**
+     * SHOW TABLES / DATABASES / VARIABLES / STATUS / WARNINGS / ERRORS
+     *
+     * SHOW STATUS reports the server's statement cache counters.
+     */
+    private boolean show(String what, boolean binary) throws IOException {
+        List<String> words = splitTopLevel(what, ' ');
+        if (words.isEmpty()) {
+            return false;
+        }
+        Pattern like = null;
+        for (int i = 0; i < words.size() - 1; i++) {
+            if (words.get(i).equalsIgnoreCase("LIKE")) {
+                like = likePattern(unquote(words.get(i + 1)));
+            }
+        }
+        boolean full = words.get(0).equalsIgnoreCase("FULL");
+        String kind = words.get(full ? 1 : 0).toUpperCase(Locale.ROOT);
+        if (kind.equals("SESSION") || kind.equals("GLOBAL")) {
+            kind = words.size() > 1 ? words.get(1).toUpperCase(Locale.ROOT) : kind;
+        }
+        List<Object[]> rows = new ArrayList<>();
+        switch (kind) {
+            case "TABLES": {
+                List<String> tables = new ArrayList<>(storageEngine.getTableNames());
+                Collections.sort(tables);
+                for (String table : tables) {
+                    if (like == null || like.matcher(table).matches()) {
+                        rows.add(full ? new Object[] {table, "BASE TABLE"} : new Object[] {table});
+                    }
+                }
+                writeRows(full ? Arrays.asList("Tables_in_" + database, "Table_type")
+                        : Collections.singletonList("Tables_in_" + database), rows, binary);
+                return true;
+            }
+            case "DATABASES":
+            case "SCHEMAS":
+                rows.add(new Object[] {DATABASE});
+                writeRows(Collections.singletonList("Database"), rows, binary);
+                return true;
+            case "VARIABLES": {
+                for (String name : new TreeSet<>(variables.keySet())) {
+                    if (like == null || like.matcher(name).matches()) {
+                        Object value = variables.get(name);
+                        rows.add(new Object[] {name, value == null ? null : Values.toString(value)});
+                    }
+                }
+                writeRows(Arrays.asList("Variable_name", "Value"), rows, binary);
+                return true;
+            }
+            case "STATUS": {
+                StatementCache cache = session.getStatementCache();
+                if (cache != null) {
+                    Map<String, Object> status = new LinkedHashMap<>();
+                    status.put("Statement_cache_capacity", cache.getCapacity());
+                    status.put("Statement_cache_evictions", cache.getEvictions());
+                    status.put("Statement_cache_hits", cache.getHits());
+                    status.put("Statement_cache_invalidations", cache.getInvalidations());
+                    status.put("Statement_cache_misses", cache.getMisses());
+                    status.put("Statement_cache_size", cache.size());
+                    for (Map.Entry<String, Object> entry : status.entrySet()) {
+                        if (like == null || like.matcher(entry.getKey()).matches()) {
+                            rows.add(new Object[] {entry.getKey(), String.valueOf(entry.getValue())});
+                        }
+                    }
+                }
+                writeRows(Arrays.asList("Variable_name", "Value"), rows, binary);
+                return true;
+            }
+            case "WARNINGS":
+            case "ERRORS":
+                writeRows(Arrays.asList("Level", "Code", "Message"), rows, binary);
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    private static Pattern likePattern(String like) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : like.toCharArray()) {
+            if (c == '%') {
+                regex.append(".*");
+            } else if (c == '_') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    }
+    
+    /**
+     * Value of a literal in a session statement
+     */
+    private static Object literal(String text) {
+        String value = text.trim();
+        if (value.equalsIgnoreCase("NULL") || value.equalsIgnoreCase("DEFAULT")) {
+            return null;
+        } else if (value.equalsIgnoreCase("TRUE") || value.equalsIgnoreCase("ON")) {
+            return value.equalsIgnoreCase("ON") ? "ON" : 1L;
+        } else if (value.equalsIgnoreCase("FALSE")) {
+            return 0L;
+        } else if (value.matches("-?[0-9]+")) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return new BigDecimal(value);
+            }
+        } else if (value.matches("-?[0-9]+\\.[0-9]+")) {
+            return new BigDecimal(value);
+        }
+        return unquote(value);
+    }
+    
+    private static String unquote(String text) {
+        String value = text.trim();
+        if (value.length() >= 2 && (value.charAt(0) == '\'' || value.charAt(0) == '"' || value.charAt(0) == '`')
+                && value.charAt(value.length() - 1) == value.charAt(0)) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+    
+    /**
+     * Split at a separator outside quotes and parentheses; a space separator
+     * splits at runs of whitespace
+     */
+    private static List<String> splitTopLevel(String text, char separator) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                part.append(c);
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            }
+            boolean split = depth == 0 && (separator == ' ' ? Character.isWhitespace(c) : c == separator);
+            if (split) {
+                if (separator != ' ' || part.length() > 0) {
+                    parts.add(part.toString());
+                }
+                part.setLength(0);
+            } else {
+                part.append(c);
+            }
+        }
+        if (separator != ' ' || part.length() > 0) {
+            parts.add(part.toString());
+        }
+        return parts;
+    }
+    
+    // ---- responses ----
+    
+    private int status(int moreResults) {
+        return (autocommit ? SERVER_STATUS_AUTOCOMMIT : 0)
+                | (session.isInTransaction() ? SERVER_STATUS_IN_TRANS : 0) | moreResults;
+    }
+    
+    private void writeOk(long affectedRows, long lastInsertId, int moreResults) throws IOException {
+        packet.reset()
+                .int1(0)
+                .lenenc(affectedRows)
+                .lenenc(lastInsertId)
+                .int2(status(moreResults))
+                .int2(0);
+        writePacket();
+    }
+    
+    private void writeEof(int moreResults) throws IOException {
+        packet.reset().int1(0xFE).int2(0).int2(status(moreResults));
+        writePacket();
+    }
+    
+    private void writeError(int code, String sqlState, String message) throws IOException {
+        packet.reset().int1(0xFF).int2(code).int1('#').string(sqlState).string(String.valueOf(message));
+        writePacket();
+    }
+    
+    /**
+     * Error packet for a failed statement, with the closest MySQL error code
+     */
+    private void writeError(Exception e) throws IOException {
+        String message = String.valueOf(e.getMessage());
+        if (e instanceof DuplicateKeyException) {
+            writeError(1062, "23000", message);
+        } else if (message.startsWith("Syntax error")) {
+            writeError(1064, "42000", message);
+        } else if (message.startsWith("Table '") && message.endsWith("doesn't exist")) {
+            writeError(1146, "42S02", message);
+        } else if (message.startsWith("Table '") && message.endsWith("already exists")) {
+            writeError(1050, "42S01", message);
+        } else if (message.startsWith("Unknown column")) {
+            writeError(1054, "42S22", message);
+        } else if (message.endsWith("cannot be null")) {
+            writeError(1048, "23000", message);
+        } else if (message.startsWith("LOAD DATA INFILE is disabled") || message.endsWith("outside the secure file directory")) {
+            writeError(1290, "HY000", message);
+        } else {
+            writeError(1105, "HY000", message);
+        }
+    }
+    
+    /**
+     * An error packet with sequence id 0, for a client that is refused before the handshake
+     */
+    static byte[] errorPacket(int code, String sqlState, String message) {
+        byte[] text = ("#" + sqlState + message).getBytes(StandardCharsets.UTF_8);
+        int length = 3 + text.length;
+        return ByteBuffer.allocate(4 + length)
+                .put((byte) length).put((byte) (length >>> 8)).put((byte) (length >>> 16)).put((byte) 0)
+                .put((byte) 0xFF).put((byte) code).put((byte) (code >>> 8)).put(text)
+                .array();
+    }
+    
+    private void writeColumnDefinition(String name, int type, int decimals) throws IOException {
+        boolean text = type == TYPE_VAR_STRING;
+        packet.reset()
+                .lenencString("def")
+                .lenencString(database)
+                .lenencString("")
+                .lenencString("")
+                .lenencString(name)
+                .lenencString(name)
+                .lenenc(0x0C)
+                .int2(text ? CHARSET_UTF8MB4 : CHARSET_BINARY)
+                .int4(columnLength(type))
+                .int1(type)
+                .int2(text ? 0 : BINARY_FLAG)
+                .int1(decimals)
+                .int2(0);
+        writePacket();
+    }
+    
+    private static int columnLength(int type) {
+        switch (type) {
+            case TYPE_TINY: return 1;
+            case TYPE_LONG: return 11;
+            case TYPE_LONGLONG: return 20;
+            case TYPE_DOUBLE: return 22;
+            case TYPE_NEWDECIMAL: return 67;
+            default: return 262140;
+        }
+    }
+    
+    private static int typeOf(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return TYPE_LONG;
+        } else if (value instanceof Long) {
+            return TYPE_LONGLONG;
+        } else if (value instanceof Double || value instanceof Float) {
+            return TYPE_DOUBLE;
+        } else if (value instanceof BigDecimal) {
+            return TYPE_NEWDECIMAL;
+        } else if (value instanceof Boolean) {
+            return TYPE_TINY;
+        }
+        return TYPE_VAR_STRING;
+    }
+    
+    /**
+     * Protocol type of a column of the given SQL type; columns whose type is
+     * unknown are sent as strings
+     */
+    private static int typeOfColumn(String sqlType) {
+        if (sqlType == null) {
+            return TYPE_VAR_STRING;
+        }
+        switch (Values.baseType(sqlType)) {
+            case "INT":
+            case "INTEGER":
+            case "SMALLINT":
+            case "TINYINT":
+                return TYPE_LONG;
+            case "BIGINT":
+                return TYPE_LONGLONG;
+            case "FLOAT":
+            case "DOUBLE":
+            case "REAL":
+                return TYPE_DOUBLE;
+            case "DECIMAL":
+            case "NUMERIC":
+                return TYPE_NEWDECIMAL;
+            case "BOOLEAN":
+            case "BOOL":
+                return TYPE_TINY;
+            default:
+                return TYPE_VAR_STRING;
+        }
+    }
+    
+    /**
+     * Type of a column given the type so far and one more value: integers
+     * widen to BIGINT, other mixes become strings
+     */
+    private static int merge(int type, Object value) {
+        if (value == null) {
+            return type;
+        }
+        int valueType = typeOf(value);
+        if (type < 0 || type == valueType) {
+            return valueType;
+        }
+        if ((type == TYPE_LONG || type == TYPE_LONGLONG) && (valueType == TYPE_LONG || valueType == TYPE_LONGLONG)) {
+            return TYPE_LONGLONG;
+        }
+        return TYPE_VAR_STRING;
+    }
+    
+    /**
+     * Send rows answered here rather than by a query, typed from all of their values
+     */
+    private void writeRows(List<String> names, List<Object[]> rows, boolean binary) throws IOException {
+        int[] types = new int[names.size()];
+        int[] decimals = new int[names.size()];
+        Arrays.fill(types, -1);
+        for (Object[] row : rows) {
+            for (int i = 0; i < types.length; i++) {
+                types[i] = merge(types[i], row[i]);
+                if (row[i] instanceof BigDecimal) {
+                    decimals[i] = Math.min(30, Math.max(decimals[i], ((BigDecimal) row[i]).scale()));
+                }
+            }
+        }
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] < 0) {
+                types[i] = TYPE_VAR_STRING;
+            } else if (types[i] == TYPE_DOUBLE) {
+                decimals[i] = 31;
+            }
+        }
+        Iterator<Object[]> iterator = rows.iterator();
+        writeResultSet(names, types, decimals, () -> iterator.hasNext() ? iterator.next() : null, binary, 0);
+    }
+    
+    /**
+     * Send the rows of a query, with the column types its plan gives them
+     */
+    private void writeResultSet(QueryExecutor.ResultSet result, boolean binary, int moreResults) throws IOException {
+        List<String> sqlTypes = result.getColumnTypes();
+        int[] types = new int[sqlTypes.size()];
+        int[] decimals = new int[sqlTypes.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = typeOfColumn(sqlTypes.get(i));
+            if (types[i] == TYPE_DOUBLE) {
+                decimals[i] = 31;
+            } else if (types[i] == TYPE_NEWDECIMAL) {
+                decimals[i] = Math.min(30, Values.typeArgument(sqlTypes.get(i), 1, 0));
+            }
+        }
+        writeResultSet(result.getColumnNames(), types, decimals, result::next, binary, moreResults);
+    }
+    
+    /**
+     * Send a result set: the column definitions, then every row as it is produced
+     */
+    private void writeResultSet(List<String> names, int[] types, int[] decimals, Supplier<Object[]> rows,
+                                boolean binary, int moreResults) throws IOException {
+        packet.reset().lenenc(names.size());
+        writePacket();
+        for (int i = 0; i < names.size(); i++) {
+            writeColumnDefinition(names.get(i), types[i], decimals[i]);
+        }
+        writeEof(0);
+        Object[] row;
+        while ((row = rows.get()) != null) {
+            writeRow(row, types, binary);
+        }
+        writeEof(moreResults);
+    }
+    
+    private void writeRow(Object[] row, int[] types, boolean binary) throws IOException {
+        packet.reset();
+        if (!binary) {
+            for (Object value : row) {
+                if (value == null) {
+                    packet.int1(0xFB);
+                } else {
+                    packet.lenencString(Values.toString(value));
+                }
+            }
+            writePacket();
+            return;
+        }
+        packet.int1(0);
+        int nullBytes = (row.length + 7 + 2) / 8;
+        int nullsAt = packet.getLength();
+        packet.zeros(nullBytes);
+        for (int i = 0; i < row.length; i++) {
+            Object value = row[i];
+            if (value == null) {
+                packet.getBuffer()[nullsAt + (i + 2) / 8] |= (byte) (1 << ((i + 2) % 8));
+                continue;
+            }
+            switch (types[i]) {
+                case TYPE_TINY:
+                    packet.int1(value instanceof Boolean ? ((Boolean) value ? 1 : 0) : number(value).intValue());
+                    break;
+                case TYPE_LONG: {
+                    long n = number(value).longValue();
+                    if (n != (int) n) {
+                        throw new IllegalStateException("Value " + n + " out of range for INT column");
+                    }
+                    packet.int4((int) n);
+                    break;
+                }
+                case TYPE_LONGLONG:
+                    packet.int8(number(value).longValue());
+                    break;
+                case TYPE_DOUBLE:
+                    packet.int8(Double.doubleToLongBits(number(value).doubleValue()));
+                    break;
+                default:
+                    packet.lenencString(Values.toString(value));
+                    break;
+            }
+        }
+        writePacket();
+    }
+    
+    private static Number number(Object value) {
+        if (value instanceof Number) {
+            return (Number) value;
+        }
+        throw new IllegalStateException("Value '" + value + "' does not match its column's type");
+    }
+    
+    /**
+     * Write the packet built in {@link #packet}, split if it is too long for one
+     */
+    private void writePacket() throws IOException {
+        byte[] buffer = packet.getBuffer();
+        int length = packet.getLength();
+        int offset = 0;
+        while (true) {
+            int chunk = Math.min(length - offset, MAX_PACKET_PAYLOAD);
+            header[0] = (byte) chunk;
+            header[1] = (byte) (chunk >>> 8);
+            header[2] = (byte) (chunk >>> 16);
+            header[3] = (byte) sequence;
+            sequence = (sequence + 1) & 0xFF;
+            out.write(header);
+            out.write(buffer, offset, chunk);
+            offset += chunk;
+            if (chunk < MAX_PACKET_PAYLOAD) {
+                break;
+            }
+        }
+    }
+    
+    @Override
+    public void close() {
+        session.close();
+    }
+}
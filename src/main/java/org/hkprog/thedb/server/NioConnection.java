@@ -0,0 +1,346 @@
+package org.hkprog.thedb.server;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * NIO Connection - one client connection of the {@link NioFrontEnd}
+ *
+ * The selector thread has the connection's {@link ProtocolHandler} split the
+ * input into requests and queues them; a worker thread takes the queue and
+ * has the handler serve the requests in order, so at most one worker serves a
+ * connection at a time. Output is written straight to the socket by the
+ * worker when it can be, and otherwise queued for the selector thread.
+ * Reading stops while too much input is queued, and a worker waits while too
+ * much output is, so a client that sends faster than it reads cannot make
+ * the server buffer without bound.
+ *
+ * Clients may pipeline: requests sent without waiting for responses are
+ * served in order, and while more of them are queued, responses collect in
+ * the output chunk instead of being flushed one by one, so a burst of small
+ * statements costs a few socket writes rather than one per statement.
+ */
+final class NioConnection {
+    
+    private static final int MAX_QUEUED_INPUT = 1024 * 1024;
+    private static final int MAX_QUEUED_OUTPUT = 1024 * 1024;
+    private static final int OUTPUT_CHUNK_BYTES = 32 * 1024;
+    
+    private final NioFrontEnd frontEnd;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ChannelOutputStream out;
+    private final ProtocolHandler handler;
+    
+    // Guarded by this
+    private final ArrayDeque<byte[]> requests;
+    private int queuedInput;
+    private final ArrayDeque<ByteBuffer> output;
+    private int queuedOutput;
+    private boolean busy;
+    private boolean inputEnded;
+    private boolean closed;
+    
+    NioConnection(NioFrontEnd frontEnd, SocketChannel channel, SelectionKey key, Protocol protocol) {
+        this.frontEnd = frontEnd;
+        this.channel = channel;
+        this.key = key;
+        this.out = new ChannelOutputStream();
+        this.handler = frontEnd.newHandler(protocol, out);
+        this.requests = new ArrayDeque<>();
+        this.output = new ArrayDeque<>();
+    }
+    
+    /**
+     * Send the greeting; called on the selector thread once registered
+     */
+    void start() {
+        synchronized (this) {
+            busy = true;
+        }
+        frontEnd.submit(() -> {
+            try {
+                handler.greet();
+                out.flush();
+            } catch (IOException | UncheckedIOException e) {
+                // Closed; process() below cleans up
+            }
+            process();
+        });
+    }
+    
+    // ---- selector thread ----
+    
+    /**
+     * Read what the client has sent and queue its complete requests
+     */
+    void readInput(ByteBuffer buffer) {
+        int read;
+        List<byte[]> received = new ArrayList<>();
+        try {
+            buffer.clear();
+            read = channel.read(buffer);
+            if (read > 0) {
+                buffer.flip();
+                handler.frame(buffer, received);
+            }
+        } catch (ProtocolException e) {
+            System.err.println("Closing client connection: " + e.getMessage());
+            close();
+            return;
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (read < 0) {
+            synchronized (this) {
+                inputEnded = true;
+            }
+            updateInterest();
+        } else if (!received.isEmpty()) {
+            enqueue(received);
+        }
+    }
+    
+    private void enqueue(List<byte[]> received) {
+        boolean dispatch;
+        synchronized (this) {
+            if (inputEnded || closed) {
+                return;
+            }
+            for (byte[] request : received) {
+                requests.add(request);
+                queuedInput += request.length;
+            }
+            dispatch = !busy;
+            busy = true;
+        }
+        if (dispatch) {
+            frontEnd.submit(this::process);
+        }
+        updateInterest();
+    }
+    
+    /**
+     * Write queued output until the socket would block
+     */
+    void writeOutput() {
+        try {
+            synchronized (this) {
+                drain();
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        updateInterest();
+    }
+    
+    /**
+     * Set what the selector watches for, or close the connection once the
+     * client is done and all its requests have been answered
+     */
+    void updateInterest() {
+        int ops = 0;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (inputEnded && !busy && requests.isEmpty() && output.isEmpty()) {
+                close();
+                return;
+            }
+            if (!inputEnded && queuedInput < MAX_QUEUED_INPUT) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!output.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+        try {
+            key.interestOps(ops);
+        } catch (CancelledKeyException e) {
+            close();
+        }
+    }
+    
+    /**
+     * Close the socket; the session is closed now if idle, or else by the
+     * worker serving it when it notices
+     */
+    void close() {
+        boolean idle;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            idle = !busy;
+            requests.clear();
+            output.clear();
+            notifyAll();
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        frontEnd.closed();
+        if (idle) {
+            handler.close();
+        }
+    }
+    
+    // ---- worker thread ----
+    
+    /**
+     * Serve queued requests until there are none left
+     */
+    private void process() {
+        boolean quit = false;
+        while (true) {
+            byte[] request;
+            boolean resumeReading;
+            boolean pipelined;
+            synchronized (this) {
+                request = closed || quit ? null : requests.poll();
+                if (request == null) {
+                    busy = false;
+                    if (quit) {
+                        inputEnded = true;
+                        requests.clear();
+                    }
+                    if (closed) {
+                        break;
+                    }
+                    frontEnd.execute(this::updateInterest);
+                    return;
+                }
+                resumeReading = queuedInput >= MAX_QUEUED_INPUT && queuedInput - request.length < MAX_QUEUED_INPUT;
+                queuedInput -= request.length;
+                pipelined = !requests.isEmpty();
+            }
+            if (resumeReading) {
+                frontEnd.execute(this::updateInterest);
+            }
+            try {
+                out.holdFlushes = pipelined;
+                quit = !handler.handle(request);
+                synchronized (this) {
+                    out.holdFlushes = !quit && !requests.isEmpty();
+                }
+                out.flush();
+            } catch (IOException | UncheckedIOException e) {
+                // The connection was closed under the request
+            }
+        }
+        handler.close();
+    }
+    
+    /**
+     * Queue bytes for the client, writing what the socket takes right away,
+     * and wait while too much is queued
+     */
+    private synchronized void send(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length));
+        boolean wasEmpty = output.isEmpty();
+        output.add(buffer);
+        queuedOutput += length;
+        if (wasEmpty) {
+            try {
+                drain();
+            } catch (IOException e) {
+                frontEnd.execute(this::close);
+                throw e;
+            }
+            if (!output.isEmpty()) {
+                frontEnd.execute(this::updateInterest);
+            }
+        }
+        while (queuedOutput > MAX_QUEUED_OUTPUT && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending");
+            }
+        }
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+    }
+    
+    /**
+     * Write queued buffers until the socket would block; caller holds the lock
+     */
+    private void drain() throws IOException {
+        while (!output.isEmpty()) {
+            ByteBuffer buffer = output.peek();
+            int written = channel.write(buffer);
+            queuedOutput -= written;
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            output.poll();
+        }
+        notifyAll();
+    }
+    
+    /**
+     * Collects what the handler writes into chunks for {@link #send}; a full
+     * chunk is always sent, a partial one on flush unless flushes are held
+     */
+    private final class ChannelOutputStream extends OutputStream {
+        private final byte[] chunk = new byte[OUTPUT_CHUNK_BYTES];
+        private int length;
+        private boolean holdFlushes;
+        
+        @Override
+        public void write(int b) {
+            if (length == chunk.length) {
+                sendChunk();
+            }
+            chunk[length++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int count) {
+            while (count > 0) {
+                if (length == chunk.length) {
+                    sendChunk();
+                }
+                int n = Math.min(count, chunk.length - length);
+                System.arraycopy(bytes, offset, chunk, length, n);
+                length += n;
+                offset += n;
+                count -= n;
+            }
+        }
+        
+        @Override
+        public void flush() {
+            if (!holdFlushes) {
+                sendChunk();
+            }
+        }
+        
+        private void sendChunk() {
+            if (length > 0) {
+                try {
+                    send(chunk, 0, length);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    length = 0;
+                }
+            }
+        }
+    }
+}
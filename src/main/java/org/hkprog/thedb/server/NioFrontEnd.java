@@ -0,0 +1,208 @@
+package org.hkprog.thedb.server;
+
+import org.hkprog.thedb.planner.StatementCache;
+import org.hkprog.thedb.storage.StorageEngine;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NIO Front End - serves all client connections from one selector thread
+ *
+ * The selector thread only accepts, reads and writes. Complete request lines
+ * are handed to a fixed pool of worker threads, so an idle connection costs a
+ * socket and a few small buffers rather than a thread, and the number of
+ * connections is bounded by {@link ServerConfig#getMaxConnections()} alone.
+ */
+final class NioFrontEnd {
+    
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    
+    private final ServerConfig config;
+    private final StorageEngine storageEngine;
+    private final StatementCache statementCache;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final ByteBuffer readBuffer;
+    private final CountDownLatch stopped;
+    private Selector selector;
+    private final List<ServerSocketChannel> serverChannels;
+    private ExecutorService workers;
+    private int connectionCount;
+    private volatile boolean running;
+    
+    NioFrontEnd(ServerConfig config, StorageEngine storageEngine, StatementCache statementCache) {
+        this.config = config;
+        this.storageEngine = storageEngine;
+        this.statementCache = statementCache;
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        this.stopped = new CountDownLatch(1);
+        this.serverChannels = new ArrayList<>();
+    }
+    
+    /**
+     * Open the listening sockets, one per configured protocol
+     */
+    void bind() throws IOException {
+        selector = Selector.open();
+        for (Map.Entry<Protocol, Integer> listener : config.getListeners().entrySet()) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannels.add(serverChannel);
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(listener.getValue()), config.getAcceptBacklog());
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT, listener.getKey());
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(config.getWorkerThreads(), task -> {
+            Thread thread = new Thread(task, "thedb-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+    }
+    
+    /**
+     * Run the event loop until {@link #stop()} is called
+     */
+    void run() throws IOException {
+        try {
+            while (running) {
+                selector.select();
+                for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel(), (Protocol) key.attachment());
+                            continue;
+                        }
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isWritable()) {
+                            connection.writeOutput();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.readInput(readBuffer);
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Closed by another event in this round
+                    }
+                }
+            }
+        } finally {
+            try {
+                shutdown();
+            } finally {
+                stopped.countDown();
+            }
+        }
+    }
+    
+    private void accept(ServerSocketChannel serverChannel, Protocol protocol) {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Error accepting client connection: " + e.getMessage());
+            }
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (connectionCount >= config.getMaxConnections()) {
+                System.err.println("Refusing client " + channel.getRemoteAddress() + ": too many connections");
+                channel.write(ByteBuffer.wrap(protocol.errorMessage("Too many connections")));
+                channel.close();
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            System.out.println("Client connected: " + channel.getRemoteAddress());
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            NioConnection connection = new NioConnection(this, channel, key, protocol);
+            key.attach(connection);
+            connectionCount++;
+            connection.start();
+        } catch (IOException e) {
+            System.err.println("Error setting up client connection: " + e.getMessage());
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+        }
+    }
+    
+    ProtocolHandler newHandler(Protocol protocol, OutputStream out) {
+        return protocol.newHandler(storageEngine, statementCache, out);
+    }
+    
+    /**
+     * Run a task on the selector thread
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+    
+    /**
+     * Run a task on a worker thread
+     */
+    void submit(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+    
+    /**
+     * Called on the selector thread when a connection has been closed
+     */
+    void closed() {
+        connectionCount--;
+    }
+    
+    /**
+     * Stop accepting and close all connections; returns once the event loop
+     * and the statements still running have finished
+     */
+    void stop() {
+        running = false;
+        if (selector == null) {
+            return;
+        }
+        selector.wakeup();
+        try {
+            stopped.await(10, TimeUnit.SECONDS);
+            workers.shutdown();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void shutdown() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection) {
+                ((NioConnection) key.attachment()).close();
+            }
+        }
+        for (ServerSocketChannel serverChannel : serverChannels) {
+            serverChannel.close();
+        }
+        selector.close();
+    }
+}
@@ -0,0 +1,61 @@
+package org.hkprog.thedb.server;
+
+import org.hkprog.thedb.planner.StatementCache;
+import org.hkprog.thedb.storage.StorageEngine;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocol - the wire protocols the server can listen for
+ */
+public enum Protocol {
+    /** SQL lines in, formatted text out */
+    TEXT {
+        @Override
+        ProtocolHandler newHandler(StorageEngine storageEngine, StatementCache cache, OutputStream out) {
+            return new TextProtocolHandler(new ClientSession(storageEngine, cache), out);
+        }
+        
+        @Override
+        byte[] errorMessage(String text) {
+            return ("ERROR: " + text + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+    },
+    /** Length-prefixed frames with binary rows; see {@link BinaryProtocolHandler} */
+    BINARY {
+        @Override
+        ProtocolHandler newHandler(StorageEngine storageEngine, StatementCache cache, OutputStream out) {
+            return new BinaryProtocolHandler(new ClientSession(storageEngine, cache), out);
+        }
+        
+        @Override
+        byte[] errorMessage(String text) {
+            return BinaryProtocolHandler.errorFrame(text);
+        }
+    },
+    /** The MySQL client/server protocol; see {@link MySqlProtocolHandler} */
+    MYSQL {
+        @Override
+        ProtocolHandler newHandler(StorageEngine storageEngine, StatementCache cache, OutputStream out) {
+            return new MySqlProtocolHandler(new ClientSession(storageEngine, cache), storageEngine, out);
+        }
+        
+        @Override
+        byte[] errorMessage(String text) {
+            return MySqlProtocolHandler.errorPacket(1040, "08004", text);
+        }
+    };
+    
+    /**
+     * A handler for a new connection, with a session of its own
+     *
+     * @param cache the server's statement cache, or null for none
+     */
+    abstract ProtocolHandler newHandler(StorageEngine storageEngine, StatementCache cache, OutputStream out);
+    
+    /**
+     * An error message on its own, as sent to a client that is refused
+     */
+    abstract byte[] errorMessage(String text);
+}
@@ -0,0 +1,44 @@
+package org.hkprog.thedb.server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Protocol Handler - the wire protocol side of one client connection
+ *
+ * The front end passes received bytes to {@link #frame} as they arrive, then
+ * hands each complete request to {@link #handle}, one at a time and in order,
+ * possibly on another thread. Responses are written to the output stream the
+ * handler was created with. While more pipelined requests are waiting, the
+ * front end may hold back the flushes of that stream so that their responses
+ * are sent together.
+ */
+interface ProtocolHandler {
+    
+    /**
+     * Write whatever the server sends when a client connects
+     */
+    void greet() throws IOException;
+    
+    /**
+     * Add the complete requests in the received bytes to {@code requests},
+     * keeping any incomplete one for the next call
+     *
+     * @throws ProtocolException if the input cannot be framed; the connection is closed
+     */
+    void frame(ByteBuffer input, List<byte[]> requests) throws ProtocolException;
+    
+    /**
+     * Serve one request and flush its response
+     *
+     * @return false if the connection should be closed
+     */
+    boolean handle(byte[] request) throws IOException;
+    
+    /**
+     * End the session, rolling back any open transaction
+     */
+    void close();
+}
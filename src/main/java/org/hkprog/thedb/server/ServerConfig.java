@@ -0,0 +1,99 @@
+package org.hkprog.thedb.server;
+
+import java.util.*;
+
+/**
+ * Server Config - network options for the TCP/IP server
+ */
+public class ServerConfig {
+    
+    /**
+     * How client connections are served
+     */
+    public enum IoMode {
+        /** One selector thread for all connections; statements run on a worker pool */
+        NIO,
+        /** A virtual thread per connection (Java 21 or later) */
+        VIRTUAL;
+        
+        public static IoMode parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown I/O mode: " + value + " (expected nio or virtual)");
+            }
+        }
+    }
+    
+    private final int port;
+    private int binaryPort;
+    private int mysqlPort;
+    private IoMode ioMode = IoMode.NIO;
+    private int maxConnections = 10000;
+    private int acceptBacklog = 1024;
+    private int workerThreads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private int statementCacheSize = 1024;
+    
+    public ServerConfig(int port) {
+        this.port = port;
+    }
+    
+    /**
+     * Port for the text protocol
+     */
+    public int getPort() { return port; }
+    
+    /**
+     * Port for the binary protocol, or 0 if it is not served
+     */
+    public int getBinaryPort() { return binaryPort; }
+    public void setBinaryPort(int binaryPort) { this.binaryPort = binaryPort; }
+    
+    /**
+     * Port for the MySQL protocol, or 0 if it is not served
+     */
+    public int getMysqlPort() { return mysqlPort; }
+    public void setMysqlPort(int mysqlPort) { this.mysqlPort = mysqlPort; }
+    
+    /**
+     * The protocols to listen for and their ports
+     */
+    public Map<Protocol, Integer> getListeners() {
+        Map<Protocol, Integer> listeners = new EnumMap<>(Protocol.class);
+        listeners.put(Protocol.TEXT, port);
+        if (binaryPort > 0) {
+            listeners.put(Protocol.BINARY, binaryPort);
+        }
+        if (mysqlPort > 0) {
+            listeners.put(Protocol.MYSQL, mysqlPort);
+        }
+        return listeners;
+    }
+    
+    public IoMode getIoMode() { return ioMode; }
+    public void setIoMode(IoMode ioMode) { this.ioMode = ioMode; }
+    
+    /**
+     * Most client connections open at once; further clients are refused
+     */
+    public int getMaxConnections() { return maxConnections; }
+    public void setMaxConnections(int maxConnections) { this.maxConnections = maxConnections; }
+    
+    /**
+     * Length of the operating system's queue of connections not yet accepted
+     */
+    public int getAcceptBacklog() { return acceptBacklog; }
+    public void setAcceptBacklog(int acceptBacklog) { this.acceptBacklog = acceptBacklog; }
+    
+    /**
+     * Threads that run statements in NIO mode
+     */
+    public int getWorkerThreads() { return workerThreads; }
+    public void setWorkerThreads(int workerThreads) { this.workerThreads = workerThreads; }
+    
+    /**
+     * Most parsed and planned statements kept for reuse by all sessions; 0 turns the cache off
+     */
+    public int getStatementCacheSize() { return statementCacheSize; }
+    public void setStatementCacheSize(int statementCacheSize) { this.statementCacheSize = statementCacheSize; }
+}
@@ -0,0 +1,96 @@
+package org.hkprog.thedb.server;
+
+import org.hkprog.thedb.ast.ASTNode;
+import org.hkprog.thedb.executor.QueryExecutor;
+import org.hkprog.thedb.executor.ResultPrinter;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Text Protocol Handler - one or more SQL statements per line in, the rows
+ * or update count of each (or "ERROR: message") out as text
+ */
+final class TextProtocolHandler implements ProtocolHandler {
+    
+    private static final int MAX_LINE_BYTES = 16 * 1024 * 1024;
+    
+    private final ClientSession session;
+    private final PrintWriter out;
+    private byte[] partial;
+    private int partialLength;
+    
+    TextProtocolHandler(ClientSession session, OutputStream out) {
+        this.session = session;
+        this.out = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        this.partial = new byte[0];
+    }
+    
+    @Override
+    public void greet() {
+        out.println("TheDB Server v0.0.1");
+        out.println("Type SQL commands or 'quit' to exit");
+        out.flush();
+    }
+    
+    @Override
+    public void frame(ByteBuffer input, List<byte[]> requests) throws ProtocolException {
+        while (input.hasRemaining()) {
+            byte b = input.get();
+            if (b == '\n') {
+                int length = partialLength > 0 && partial[partialLength - 1] == '\r' ? partialLength - 1 : partialLength;
+                requests.add(Arrays.copyOf(partial, length));
+                partialLength = 0;
+            } else {
+                if (partialLength == partial.length) {
+                    if (partialLength >= MAX_LINE_BYTES) {
+                        throw new ProtocolException("Request line longer than " + MAX_LINE_BYTES + " bytes");
+                    }
+                    partial = Arrays.copyOf(partial, Math.max(256, partialLength * 2));
+                }
+                partial[partialLength++] = b;
+            }
+        }
+        if (partialLength == 0 && partial.length > 4096) {
+            partial = new byte[0];
+        }
+    }
+    
+    @Override
+    public boolean handle(byte[] request) {
+        String line = new String(request, StandardCharsets.UTF_8);
+        String sql = line.trim();
+        if ("quit".equalsIgnoreCase(sql)) {
+            return false;
+        }
+        if (!sql.isEmpty()) {
+            execute(line);
+        }
+        out.flush();
+        return !out.checkError();
+    }
+    
+    /**
+     * Execute the statements of one line, stopping at the first error
+     */
+    private void execute(String sql) {
+        try {
+            for (ASTNode ast : session.parse(sql)) {
+                long start = System.nanoTime();
+                try (QueryExecutor.ResultSet result = session.execute(ast)) {
+                    ResultPrinter.print(result, out, start);
+                }
+            }
+        } catch (Exception e) {
+            out.println("ERROR: " + e.getMessage());
+        }
+    }
+    
+    @Override
+    public void close() {
+        session.close();
+    }
+}
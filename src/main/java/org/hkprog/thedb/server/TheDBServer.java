@@ -1,42 +1,113 @@
 package org.hkprog.thedb.server;
 
+import org.hkprog.thedb.planner.StatementCache;
+import org.hkprog.thedb.storage.StorageConfig;
+import org.hkprog.thedb.storage.StorageEngine;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TheDB TCP/IP Server
+ *
+ * Clients of the text protocol send one or more SQL statements per line and
+ * get back the rows or update count of each, or "ERROR: message"; the binary
+ * protocol, on its own port, does the same with framed messages. Each
+ * connection is a session with its own executor, so BEGIN ... COMMIT spans
+ * requests of that connection. Clients may pipeline requests; they are
+ * served in order.
+ *
+ * Connections are served by a selector-based {@link NioFrontEnd} by default,
+ * or by a virtual thread each when running on Java 21 or later.
  */
 public class TheDBServer {
     
-    private final int port;
-    private final String dataDirectory;
-    private ServerSocket serverSocket;
+    private final ServerConfig config;
+    private final StorageConfig storageConfig;
+    private final AtomicInteger connectionCount;
+    private final List<ServerSocket> serverSockets;
     private ExecutorService threadPool;
+    private NioFrontEnd frontEnd;
+    private StorageEngine storageEngine;
+    private StatementCache statementCache;
     private volatile boolean running;
     
     public TheDBServer(int port, String dataDirectory) {
-        this.port = port;
-        this.dataDirectory = dataDirectory;
-        this.threadPool = Executors.newFixedThreadPool(10);
+        this(port, new StorageConfig(dataDirectory));
+    }
+    
+    public TheDBServer(int port, StorageConfig storageConfig) {
+        this(new ServerConfig(port), storageConfig);
+    }
+    
+    public TheDBServer(ServerConfig config, StorageConfig storageConfig) {
+        this.config = config;
+        this.storageConfig = storageConfig;
+        this.connectionCount = new AtomicInteger();
+        this.serverSockets = new CopyOnWriteArrayList<>();
     }
     
     /**
      * Start the database server
      */
     public void start() throws IOException {
-        serverSocket = new ServerSocket(port);
+        if (config.getIoMode() == ServerConfig.IoMode.VIRTUAL) {
+            threadPool = newVirtualThreadExecutor();
+        }
+        storageEngine = new StorageEngine(storageConfig);
+        if (config.getStatementCacheSize() > 0) {
+            statementCache = new StatementCache(config.getStatementCacheSize());
+        }
+        if (threadPool == null) {
+            frontEnd = new NioFrontEnd(config, storageEngine, statementCache);
+            frontEnd.bind();
+        } else {
+            for (int port : config.getListeners().values()) {
+                serverSockets.add(new ServerSocket(port, config.getAcceptBacklog()));
+            }
+        }
         running = true;
         
-        System.out.println("TheDB Server started on port " + port);
-        System.out.println("Data directory: " + dataDirectory);
+        System.out.println("TheDB Server started on port " + config.getPort()
+                + (config.getBinaryPort() > 0 ? " (binary protocol on port " + config.getBinaryPort() + ")" : "")
+                + (config.getMysqlPort() > 0 ? " (MySQL protocol on port " + config.getMysqlPort() + ")" : ""));
+        System.out.println("Data directory: " + storageConfig.getDataDirectory());
+        System.out.println("Buffer pool: " + storageConfig.getBufferPoolPages() + " pages, "
+                + storageConfig.getEvictionPolicy() + " eviction");
+        System.out.println("Connections: " + config.getIoMode().name().toLowerCase(Locale.ROOT) + " I/O, up to "
+                + config.getMaxConnections() + " (backlog " + config.getAcceptBacklog() + ")"
+                + (frontEnd != null ? ", " + config.getWorkerThreads() + " worker threads" : ""));
         System.out.println("Waiting for client connections...");
         
+        if (frontEnd != null) {
+            frontEnd.run();
+            return;
+        }
+        List<Protocol> protocols = new ArrayList<>(config.getListeners().keySet());
+        for (int i = 1; i < protocols.size(); i++) {
+            ServerSocket serverSocket = serverSockets.get(i);
+            Protocol protocol = protocols.get(i);
+            threadPool.execute(() -> acceptLoop(serverSocket, protocol));
+        }
+        acceptLoop(serverSockets.get(0), protocols.get(0));
+    }
+    
+    private void acceptLoop(ServerSocket serverSocket, Protocol protocol) {
         while (running) {
             try {
                 Socket clientSocket = serverSocket.accept();
+                if (connectionCount.incrementAndGet() > config.getMaxConnections()) {
+                    connectionCount.decrementAndGet();
+                    refuse(clientSocket, protocol);
+                    continue;
+                }
+                clientSocket.setTcpNoDelay(true);
                 System.out.println("Client connected: " + clientSocket.getInetAddress());
-                threadPool.execute(new ClientHandler(clientSocket));
+                threadPool.execute(new ClientHandler(clientSocket, protocol, storageEngine, statementCache, connectionCount));
             } catch (IOException e) {
                 if (running) {
                     System.err.println("Error accepting client connection: " + e.getMessage());
@@ -45,53 +116,120 @@ public class TheDBServer {
         }
     }
     
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), looked up at run time so
+     * that the server still builds for and runs on Java 17
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual thread I/O needs Java 21 or later (running "
+                    + System.getProperty("java.version") + ")");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual thread executor: " + e.getMessage(), e);
+        }
+    }
+    
+    private static void refuse(Socket socket, Protocol protocol) {
+        System.err.println("Refusing client " + socket.getInetAddress() + ": too many connections");
+        try (socket) {
+            socket.getOutputStream().write(protocol.errorMessage("Too many connections"));
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+    
     /**
      * Stop the server
      */
-    public void stop() {
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
         running = false;
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
+        if (frontEnd != null) {
+            frontEnd.stop();
+        }
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
                 serverSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing server socket: " + e.getMessage());
+            }
+        }
+        if (threadPool != null) {
+            threadPool.shutdown();
+        }
+        if (statementCache != null) {
+            System.out.println("Statement cache statistics: " + statementCache);
+        }
+        try {
+            if (storageEngine != null) {
+                storageEngine.close();
+                storageEngine = null;
             }
         } catch (IOException e) {
-            System.err.println("Error closing server socket: " + e.getMessage());
+            System.err.println("Error closing storage engine: " + e.getMessage());
         }
-        threadPool.shutdown();
     }
     
     /**
-     * Client connection handler
+     * Client connection handler for thread-per-connection I/O
      */
     private static class ClientHandler implements Runnable {
         private final Socket socket;
+        private final Protocol protocol;
+        private final StorageEngine storageEngine;
+        private final StatementCache statementCache;
+        private final AtomicInteger connectionCount;
         
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, Protocol protocol, StorageEngine storageEngine,
+                             StatementCache statementCache, AtomicInteger connectionCount) {
             this.socket = socket;
+            this.protocol = protocol;
+            this.storageEngine = storageEngine;
+            this.statementCache = statementCache;
+            this.connectionCount = connectionCount;
         }
         
         @Override
         public void run() {
+            ProtocolHandler handler = null;
             try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
+                InputStream in = socket.getInputStream();
+                PipelinedOutputStream out = new PipelinedOutputStream(socket.getOutputStream())
             ) {
-                out.println("TheDB Server v0.0.1");
-                out.println("Type SQL commands or 'quit' to exit");
+                handler = protocol.newHandler(storageEngine, statementCache, out);
+                handler.greet();
+                out.flush();
                 
-                String line;
-                while ((line = in.readLine()) != null) {
-                    if ("quit".equalsIgnoreCase(line.trim())) {
-                        break;
+                byte[] buffer = new byte[64 * 1024];
+                List<byte[]> requests = new ArrayList<>();
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    requests.clear();
+                    handler.frame(ByteBuffer.wrap(buffer, 0, read), requests);
+                    for (int i = 0; i < requests.size(); i++) {
+                        // Responses to pipelined requests go out together
+                        out.holdFlushes = i < requests.size() - 1 || in.available() > 0;
+                        if (!handler.handle(requests.get(i))) {
+                            out.holdFlushes = false;
+                            return;
+                        }
+                    }
+                    if (in.available() == 0) {
+                        out.holdFlushes = false;
+                        out.flush();
                     }
-                    
-                    // Process SQL command
-                    System.out.println("Received SQL: " + line);
-                    out.println("OK - Query executed (stub)");
                 }
             } catch (IOException e) {
                 System.err.println("Client handler error: " + e.getMessage());
             } finally {
+                if (handler != null) {
+                    handler.close();
+                }
+                connectionCount.decrementAndGet();
                 try {
                     socket.close();
                 } catch (IOException e) {
@@ -100,4 +238,23 @@ public class TheDBServer {
             }
         }
     }
+    
+    /**
+     * Buffered socket output whose flushes can be held back while more
+     * pipelined requests are waiting to be served
+     */
+    private static final class PipelinedOutputStream extends BufferedOutputStream {
+        boolean holdFlushes;
+        
+        PipelinedOutputStream(OutputStream out) {
+            super(out, 32 * 1024);
+        }
+        
+        @Override
+        public synchronized void flush() throws IOException {
+            if (!holdFlushes) {
+                super.flush();
+            }
+        }
+    }
 }
@@ -0,0 +1,945 @@
+package org.hkprog.thedb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * B+ Tree - page-based ordered index from encoded keys to row ids
+ *
+ * Entries are (key, row id) pairs ordered by key bytes and then by row id,
+ * so duplicate keys are allowed and every entry is unique. Leaves are linked
+ * left to right for range scans. Page 0 of the file is a meta page holding
+ * the root page number.
+ *
+ * Node layout:
+ * <pre>
+ * long lsn (always 0) | byte type | short count | int link | short dataStart | short[count] cell offsets ... cells
+ * </pre>
+ * In a leaf, link is the next leaf (-1 for the last one) and a cell is
+ * {@code short keyLength | key | long rowId}. In an internal node, link is the
+ * leftmost child and a cell is {@code short keyLength | key | long rowId | int child},
+ * where child holds the entries greater than or equal to the cell's entry.
+ *
+ * Deleted entries are removed from their leaf but nodes are never merged;
+ * empty leaves stay in the chain and are skipped by scans.
+ *
+ * Index pages are not logged. After a crash the indexes are rebuilt from the
+ * table data instead, which makes restart time grow with the size of the
+ * indexed tables.
+ */
+public class BPlusTree {
+    
+    private static final int MAGIC = 0x54444249; // "TDBI"
+    private static final int META_MAGIC_OFFSET = 8;
+    private static final int META_ROOT_OFFSET = 12;
+    
+    private static final int TYPE_OFFSET = 8;
+    private static final int COUNT_OFFSET = 9;
+    private static final int LINK_OFFSET = 11;
+    private static final int DATA_START_OFFSET = 15;
+    private static final int NODE_HEADER_SIZE = 17;
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    
+    /**
+     * Largest encoded key; keeps at least three entries in every node
+     */
+    public static final int MAX_KEY_SIZE = 1024;
+    
+    /**
+     * Fill factor for pages written by bulk loading
+     */
+    private static final int BULK_FILL = Page.PAGE_SIZE * 9 / 10;
+    
+    /**
+     * Entries returned by a scan per visit to the tree
+     */
+    private static final int SCAN_BATCH = 256;
+    
+    private final int fileId;
+    private final BufferPool bufferPool;
+    private int rootPageNo;
+    
+    public BPlusTree(int fileId, BufferPool bufferPool) throws IOException {
+        this.fileId = fileId;
+        this.bufferPool = bufferPool;
+        if (bufferPool.getDiskManager().getPageCount(fileId) == 0) {
+            Page meta = bufferPool.newPage(fileId);
+            Page root = bufferPool.newPage(fileId);
+            try {
+                synchronized (root) {
+                    writeNode(root, LEAF, -1, Collections.emptyList());
+                }
+                rootPageNo = root.getPageId().getPageNo();
+                synchronized (meta) {
+                    ByteBuffer buffer = ByteBuffer.wrap(meta.getData());
+                    buffer.putInt(META_MAGIC_OFFSET, MAGIC);
+                    buffer.putInt(META_ROOT_OFFSET, rootPageNo);
+                }
+            } finally {
+                bufferPool.unpinPage(root.getPageId(), true);
+                bufferPool.unpinPage(meta.getPageId(), true);
+            }
+        } else {
+            Page meta = fetch(0);
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(meta.getData());
+                if (buffer.getInt(META_MAGIC_OFFSET) != MAGIC) {
+                    throw new IOException("Not a TheDB index file (file id " + fileId + ")");
+                }
+                rootPageNo = buffer.getInt(META_ROOT_OFFSET);
+            } finally {
+                bufferPool.unpinPage(meta.getPageId(), false);
+            }
+        }
+    }
+    
+    public int getFileId() { return fileId; }
+    
+    private Page fetch(int pageNo) throws IOException {
+        return bufferPool.fetchPage(new PageId(fileId, pageNo));
+    }
+    
+    // ---- node access ----
+    
+    private static ByteBuffer buffer(Page page) {
+        return ByteBuffer.wrap(page.getData());
+    }
+    
+    private static byte type(Page page) {
+        return page.getData()[TYPE_OFFSET];
+    }
+    
+    private static int count(Page page) {
+        return buffer(page).getShort(COUNT_OFFSET) & 0xFFFF;
+    }
+    
+    private static int link(Page page) {
+        return buffer(page).getInt(LINK_OFFSET);
+    }
+    
+    private static int cellOffset(Page page, int i) {
+        return buffer(page).getShort(NODE_HEADER_SIZE + 2 * i) & 0xFFFF;
+    }
+    
+    private static int keyLength(Page page, int i) {
+        return buffer(page).getShort(cellOffset(page, i)) & 0xFFFF;
+    }
+    
+    private static byte[] key(Page page, int i) {
+        int offset = cellOffset(page, i);
+        int length = buffer(page).getShort(offset) & 0xFFFF;
+        return Arrays.copyOfRange(page.getData(), offset + 2, offset + 2 + length);
+    }
+    
+    private static long rowId(Page page, int i) {
+        int offset = cellOffset(page, i);
+        return buffer(page).getLong(offset + 2 + keyLength(page, i));
+    }
+    
+    private static int child(Page page, int i) {
+        int offset = cellOffset(page, i);
+        return buffer(page).getInt(offset + 2 + keyLength(page, i) + 8);
+    }
+    
+    private static int cellSize(Page page, int i) {
+        return 2 + keyLength(page, i) + 8 + (type(page) == INTERNAL ? 4 : 0);
+    }
+    
+    private static byte[] cell(Page page, int i) {
+        int offset = cellOffset(page, i);
+        return Arrays.copyOfRange(page.getData(), offset, offset + cellSize(page, i));
+    }
+    
+    private static byte[] makeCell(byte[] key, long rowId, int child, boolean internal) {
+        ByteBuffer cell = ByteBuffer.allocate(2 + key.length + 8 + (internal ? 4 : 0));
+        cell.putShort((short) key.length).put(key).putLong(rowId);
+        if (internal) {
+            cell.putInt(child);
+        }
+        return cell.array();
+    }
+    
+    /**
+     * Compare the entry in cell i with (key, rowId)
+     */
+    private static int compareEntry(Page page, int i, byte[] key, long rowId) {
+        int offset = cellOffset(page, i);
+        int length = buffer(page).getShort(offset) & 0xFFFF;
+        int c = Arrays.compareUnsigned(page.getData(), offset + 2, offset + 2 + length, key, 0, key.length);
+        if (c != 0) {
+            return c;
+        }
+        return Long.compare(buffer(page).getLong(offset + 2 + length), rowId);
+    }
+    
+    /**
+     * First cell whose entry is greater than (key, rowId)
+     */
+    private static int upperBound(Page page, byte[] key, long rowId) {
+        int low = 0;
+        int high = count(page);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareEntry(page, mid, key, rowId) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * First cell whose entry is greater than or equal to (key, rowId)
+     */
+    private static int lowerBound(Page page, byte[] key, long rowId) {
+        int low = 0;
+        int high = count(page);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareEntry(page, mid, key, rowId) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Child of an internal node that covers (key, rowId)
+     */
+    private static int childFor(Page page, byte[] key, long rowId) {
+        int i = upperBound(page, key, rowId) - 1;
+        return i < 0 ? link(page) : child(page, i);
+    }
+    
+    private static void writeNode(Page page, byte type, int link, List<byte[]> cells) {
+        byte[] data = page.getData();
+        Arrays.fill(data, 0, Page.PAGE_SIZE, (byte) 0);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.put(TYPE_OFFSET, type);
+        buffer.putShort(COUNT_OFFSET, (short) cells.size());
+        buffer.putInt(LINK_OFFSET, link);
+        int dataStart = Page.PAGE_SIZE;
+        for (int i = 0; i < cells.size(); i++) {
+            byte[] cell = cells.get(i);
+            dataStart -= cell.length;
+            System.arraycopy(cell, 0, data, dataStart, cell.length);
+            buffer.putShort(NODE_HEADER_SIZE + 2 * i, (short) dataStart);
+        }
+        buffer.putShort(DATA_START_OFFSET, (short) (dataStart == Page.PAGE_SIZE ? 0 : dataStart));
+    }
+    
+    private static int dataStart(Page page) {
+        int start = buffer(page).getShort(DATA_START_OFFSET) & 0xFFFF;
+        return start == 0 ? Page.PAGE_SIZE : start;
+    }
+    
+    private static List<byte[]> cells(Page page) {
+        int count = count(page);
+        List<byte[]> cells = new ArrayList<>(count + 1);
+        for (int i = 0; i < count; i++) {
+            cells.add(cell(page, i));
+        }
+        return cells;
+    }
+    
+    private static int usedBytes(List<byte[]> cells) {
+        int used = NODE_HEADER_SIZE;
+        for (byte[] cell : cells) {
+            used += cell.length + 2;
+        }
+        return used;
+    }
+    
+    /**
+     * Insert a cell at a position, returning false if the node is full
+     */
+    private static boolean insertCell(Page page, int pos, byte[] cell) {
+        int count = count(page);
+        int slotsEnd = NODE_HEADER_SIZE + 2 * count;
+        if (dataStart(page) - slotsEnd < cell.length + 2) {
+            List<byte[]> cells = cells(page);
+            if (Page.PAGE_SIZE - usedBytes(cells) < cell.length + 2) {
+                return false;
+            }
+            writeNode(page, type(page), link(page), cells);
+        }
+        byte[] data = page.getData();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int start = dataStart(page) - cell.length;
+        System.arraycopy(cell, 0, data, start, cell.length);
+        int slot = NODE_HEADER_SIZE + 2 * pos;
+        System.arraycopy(data, slot, data, slot + 2, 2 * (count - pos));
+        buffer.putShort(slot, (short) start);
+        buffer.putShort(COUNT_OFFSET, (short) (count + 1));
+        buffer.putShort(DATA_START_OFFSET, (short) start);
+        return true;
+    }
+    
+    private static void removeCell(Page page, int pos) {
+        int count = count(page);
+        byte[] data = page.getData();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int offset = cellOffset(page, pos);
+        if (offset == dataStart(page)) {
+            int end = offset + cellSize(page, pos);
+            buffer.putShort(DATA_START_OFFSET, (short) (end == Page.PAGE_SIZE ? 0 : end));
+        }
+        int slot = NODE_HEADER_SIZE + 2 * pos;
+        System.arraycopy(data, slot + 2, data, slot, 2 * (count - pos - 1));
+        buffer.putShort(COUNT_OFFSET, (short) (count - 1));
+    }
+    
+    // ---- operations ----
+    
+    /**
+     * Insert an entry. If unique is set and the key is already present, nothing
+     * is inserted and false is returned.
+     */
+    public synchronized boolean insert(byte[] key, RowId rowId, boolean unique) throws IOException {
+        if (key.length > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Index key too long: " + key.length + " bytes (maximum " + MAX_KEY_SIZE + ")");
+        }
+        if (unique && containsKey(key)) {
+            return false;
+        }
+        long rid = rowId.toLong();
+        Deque<Integer> path = new ArrayDeque<>();
+        int pageNo = rootPageNo;
+        while (true) {
+            Page page = fetch(pageNo);
+            try {
+                if (type(page) == LEAF) {
+                    break;
+                }
+                path.push(pageNo);
+                pageNo = childFor(page, key, rid);
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), false);
+            }
+        }
+        insertIntoLeaf(path, pageNo, key, rid);
+        return true;
+    }
+    
+    /**
+     * Insert entries sorted by (key, row id). Consecutive entries that belong
+     * to the same leaf are added in one visit to it instead of one descent
+     * from the root each. unique[i] is as for insert; at a duplicate the
+     * entries before it stay inserted and its position is returned, otherwise -1.
+     */
+    public synchronized int insertSorted(List<byte[]> keys, List<RowId> rowIds, boolean[] unique) throws IOException {
+        int i = 0;
+        while (i < keys.size()) {
+            byte[] key = keys.get(i);
+            long rid = rowIds.get(i).toLong();
+            // Descend to the leaf of entry i, keeping the lowest separator
+            // above it: entries from there on belong to later leaves
+            Deque<Integer> path = new ArrayDeque<>();
+            byte[] boundKey = null;
+            long boundRid = 0;
+            int pageNo = rootPageNo;
+            while (true) {
+                Page page = fetch(pageNo);
+                try {
+                    if (type(page) == LEAF) {
+                        break;
+                    }
+                    path.push(pageNo);
+                    int pos = upperBound(page, key, rid);
+                    if (pos < count(page)) {
+                        boundKey = key(page, pos);
+                        boundRid = rowId(page, pos);
+                    }
+                    pageNo = pos == 0 ? link(page) : child(page, pos - 1);
+                } finally {
+                    bufferPool.unpinPage(page.getPageId(), false);
+                }
+            }
+            boolean full = false;
+            Page leaf = fetch(pageNo);
+            try {
+                synchronized (leaf) {
+                    while (i < keys.size()) {
+                        key = keys.get(i);
+                        rid = rowIds.get(i).toLong();
+                        if (boundKey != null && compare(key, rid, boundKey, boundRid) >= 0) {
+                            break;
+                        }
+                        if (key.length > MAX_KEY_SIZE) {
+                            throw new IllegalArgumentException("Index key too long: " + key.length
+                                    + " bytes (maximum " + MAX_KEY_SIZE + ")");
+                        }
+                        if (unique[i] && containsKey(leaf, key)) {
+                            return i;
+                        }
+                        if (!insertCell(leaf, lowerBound(leaf, key, rid), makeCell(key, rid, 0, false))) {
+                            full = true;
+                            break;
+                        }
+                        i++;
+                    }
+                }
+            } finally {
+                bufferPool.unpinPage(leaf.getPageId(), true);
+            }
+            if (full) {
+                insertIntoLeaf(path, pageNo, key, rid);
+                i++;
+            }
+        }
+        return -1;
+    }
+    
+    private static int compare(byte[] key, long rowId, byte[] otherKey, long otherRowId) {
+        int c = Arrays.compareUnsigned(key, otherKey);
+        return c != 0 ? c : Long.compare(rowId, otherRowId);
+    }
+    
+    /**
+     * Whether any entry has exactly this key, answered from the leaf the key
+     * would go to unless it would go first in it, or last with leaves after it
+     */
+    private boolean containsKey(Page leaf, byte[] key) throws IOException {
+        int count = count(leaf);
+        int pos = lowerBound(leaf, key, Long.MIN_VALUE);
+        if (pos < count && Arrays.equals(key(leaf, pos), key)) {
+            return true;
+        }
+        if (pos > 0 && (pos < count || link(leaf) == -1)) {
+            return false;
+        }
+        return containsKey(key);
+    }
+    
+    /**
+     * Insert into the leaf at the end of path, splitting nodes up the path as needed
+     */
+    private void insertIntoLeaf(Deque<Integer> path, int pageNo, byte[] key, long rid) throws IOException {
+        byte[] separator = insertIntoLeaf(pageNo, key, rid);
+        while (separator != null) {
+            if (path.isEmpty()) {
+                growRoot(separator);
+                break;
+            }
+            separator = insertIntoInternal(path.pop(), separator);
+        }
+    }
+    
+    /**
+     * Insert into a leaf, returning the separator cell for the parent if the leaf was split
+     */
+    private byte[] insertIntoLeaf(int pageNo, byte[] key, long rid) throws IOException {
+        Page page = fetch(pageNo);
+        try {
+            synchronized (page) {
+                int pos = lowerBound(page, key, rid);
+                byte[] cell = makeCell(key, rid, 0, false);
+                if (insertCell(page, pos, cell)) {
+                    return null;
+                }
+                List<byte[]> cells = cells(page);
+                boolean append = pos == cells.size() && link(page) == -1;
+                cells.add(pos, cell);
+                // Appending to the last leaf (ascending keys): keep the left page full
+                int split = append ? cells.size() - 1 : splitPoint(cells);
+                Page right = bufferPool.newPage(fileId);
+                try {
+                    synchronized (right) {
+                        writeNode(right, LEAF, link(page), cells.subList(split, cells.size()));
+                    }
+                    writeNode(page, LEAF, right.getPageId().getPageNo(), cells.subList(0, split));
+                    return separatorFor(right, right.getPageId().getPageNo());
+                } finally {
+                    bufferPool.unpinPage(right.getPageId(), true);
+                }
+            }
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), true);
+        }
+    }
+    
+    private static byte[] separatorFor(Page right, int rightPageNo) {
+        return makeCell(key(right, 0), rowId(right, 0), rightPageNo, true);
+    }
+    
+    private byte[] insertIntoInternal(int pageNo, byte[] separator) throws IOException {
+        Page page = fetch(pageNo);
+        try {
+            synchronized (page) {
+                ByteBuffer sep = ByteBuffer.wrap(separator);
+                int keyLength = sep.getShort(0) & 0xFFFF;
+                byte[] key = Arrays.copyOfRange(separator, 2, 2 + keyLength);
+                long rid = sep.getLong(2 + keyLength);
+                int pos = upperBound(page, key, rid);
+                if (insertCell(page, pos, separator)) {
+                    return null;
+                }
+                List<byte[]> cells = cells(page);
+                cells.add(pos, separator);
+                int middle = splitPoint(cells);
+                byte[] promoted = cells.get(middle);
+                ByteBuffer promotedBuffer = ByteBuffer.wrap(promoted);
+                int promotedKeyLength = promotedBuffer.getShort(0) & 0xFFFF;
+                int promotedChild = promotedBuffer.getInt(2 + promotedKeyLength + 8);
+                Page right = bufferPool.newPage(fileId);
+                try {
+                    int rightPageNo = right.getPageId().getPageNo();
+                    synchronized (right) {
+                        writeNode(right, INTERNAL, promotedChild, cells.subList(middle + 1, cells.size()));
+                    }
+                    writeNode(page, INTERNAL, link(page), cells.subList(0, middle));
+                    byte[] up = promoted.clone();
+                    ByteBuffer.wrap(up).putInt(2 + promotedKeyLength + 8, rightPageNo);
+                    return up;
+                } finally {
+                    bufferPool.unpinPage(right.getPageId(), true);
+                }
+            }
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), true);
+        }
+    }
+    
+    /**
+     * Index that splits the cells into two halves of about the same size
+     */
+    private static int splitPoint(List<byte[]> cells) {
+        int total = 0;
+        for (byte[] cell : cells) {
+            total += cell.length + 2;
+        }
+        int half = 0;
+        for (int i = 0; i < cells.size(); i++) {
+            half += cells.get(i).length + 2;
+            if (half >= total / 2) {
+                return Math.max(1, Math.min(i + 1, cells.size() - 1));
+            }
+        }
+        return cells.size() / 2;
+    }
+    
+    private void growRoot(byte[] separator) throws IOException {
+        Page root = bufferPool.newPage(fileId);
+        try {
+            synchronized (root) {
+                writeNode(root, INTERNAL, rootPageNo, Collections.singletonList(separator));
+            }
+            setRoot(root.getPageId().getPageNo());
+        } finally {
+            bufferPool.unpinPage(root.getPageId(), true);
+        }
+    }
+    
+    private void setRoot(int pageNo) throws IOException {
+        Page meta = fetch(0);
+        try {
+            synchronized (meta) {
+                ByteBuffer.wrap(meta.getData()).putInt(META_ROOT_OFFSET, pageNo);
+            }
+            rootPageNo = pageNo;
+        } finally {
+            bufferPool.unpinPage(meta.getPageId(), true);
+        }
+    }
+    
+    private int findLeaf(byte[] key, long rid) throws IOException {
+        int pageNo = rootPageNo;
+        while (true) {
+            Page page = fetch(pageNo);
+            try {
+                if (type(page) == LEAF) {
+                    return pageNo;
+                }
+                pageNo = childFor(page, key, rid);
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), false);
+            }
+        }
+    }
+    
+    /**
+     * Remove an entry, returning false if it was not present
+     */
+    public synchronized boolean delete(byte[] key, RowId rowId) throws IOException {
+        long rid = rowId.toLong();
+        Page page = fetch(findLeaf(key, rid));
+        boolean removed = false;
+        try {
+            synchronized (page) {
+                int pos = lowerBound(page, key, rid);
+                if (pos < count(page) && compareEntry(page, pos, key, rid) == 0) {
+                    removeCell(page, pos);
+                    removed = true;
+                }
+            }
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), removed);
+        }
+        return removed;
+    }
+    
+    /**
+     * Whether the tree is a single empty leaf, so it can be bulk loaded
+     */
+    public synchronized boolean isEmpty() throws IOException {
+        Page root = fetch(rootPageNo);
+        try {
+            return type(root) == LEAF && count(root) == 0;
+        } finally {
+            bufferPool.unpinPage(root.getPageId(), false);
+        }
+    }
+    
+    /**
+     * Check whether any entry has exactly this key
+     */
+    public synchronized boolean containsKey(byte[] key) throws IOException {
+        int pageNo = findLeaf(key, Long.MIN_VALUE);
+        while (pageNo >= 0) {
+            Page page = fetch(pageNo);
+            try {
+                int pos = lowerBound(page, key, Long.MIN_VALUE);
+                if (pos < count(page)) {
+                    return Arrays.equals(key(page, pos), key);
+                }
+                pageNo = link(page);
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), false);
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Row ids of all entries whose key starts with the given prefix
+     */
+    public List<RowId> search(byte[] prefix) throws IOException {
+        List<RowId> rowIds = new ArrayList<>();
+        scan(prefix, true, prefix, true).forEachRemaining(rowIds::add);
+        return rowIds;
+    }
+    
+    /**
+     * Iterate over row ids in key order between two bounds; a null bound is
+     * open. Bounds may be key prefixes: with an inclusive bound every key that
+     * starts with it is included.
+     */
+    public Iterator<RowId> scan(byte[] low, boolean lowInclusive, byte[] high, boolean highInclusive) {
+        return new Iterator<RowId>() {
+            private final long[] batch = new long[SCAN_BATCH];
+            private int size;
+            private int position;
+            private byte[] lastKey;
+            private long lastRowId;
+            private boolean done;
+            
+            @Override
+            public boolean hasNext() {
+                if (position < size) {
+                    return true;
+                }
+                if (done) {
+                    return false;
+                }
+                try {
+                    fill();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return position < size;
+            }
+            
+            @Override
+            public RowId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return RowId.fromLong(batch[position++]);
+            }
+            
+            /**
+             * Collect the next batch. Each batch re-seeks from the last entry
+             * returned, so concurrent splits cannot make the scan skip entries.
+             */
+            private void fill() throws IOException {
+                synchronized (BPlusTree.this) {
+                    size = 0;
+                    position = 0;
+                    byte[] seekKey = lastKey != null ? lastKey : (low != null ? low : new byte[0]);
+                    long seekRowId = lastKey != null ? lastRowId : Long.MIN_VALUE;
+                    int pageNo = findLeaf(seekKey, seekRowId);
+                    boolean first = true;
+                    while (pageNo >= 0 && size < SCAN_BATCH) {
+                        Page page = fetch(pageNo);
+                        try {
+                            int count = count(page);
+                            int i = first ? (lastKey != null ? upperBound(page, seekKey, seekRowId)
+                                    : lowerBound(page, seekKey, seekRowId)) : 0;
+                            first = false;
+                            for (; i < count && size < SCAN_BATCH; i++) {
+                                byte[] key = key(page, i);
+                                if (lastKey == null && low != null && !lowInclusive
+                                        && KeyEncoder.compareWithPrefix(key, low) == 0) {
+                                    continue;
+                                }
+                                if (high != null) {
+                                    int c = KeyEncoder.compareWithPrefix(key, high);
+                                    if (c > 0 || (c == 0 && !highInclusive)) {
+                                        done = true;
+                                        return;
+                                    }
+                                }
+                                batch[size++] = rowId(page, i);
+                                lastKey = key;
+                                lastRowId = batch[size - 1];
+                            }
+                            if (i < count) {
+                                return;
+                            }
+                            pageNo = link(page);
+                        } finally {
+                            bufferPool.unpinPage(page.getPageId(), false);
+                        }
+                    }
+                    if (pageNo < 0) {
+                        done = true;
+                    }
+                }
+            }
+        };
+    }
+    
+    /**
+     * Iterate over row ids in descending key order between two bounds, with
+     * the same bounds as {@link #scan}
+     *
+     * Leaves are only linked left to right, so each step to the left
+     * descends from the root again: every leaf's entries are at least the
+     * separator that led to it, and the entries before the leaf are the ones
+     * less than that separator.
+     */
+    public Iterator<RowId> scanDescending(byte[] low, boolean lowInclusive, byte[] high, boolean highInclusive) {
+        // Start below (high, MIN) when exclusive, below (the first key past every key starting with high) when inclusive
+        byte[] start = high == null ? null : highInclusive ? prefixSuccessor(high) : high;
+        return new Iterator<RowId>() {
+            private final long[] batch = new long[SCAN_BATCH];
+            private int size;
+            private int position;
+            private byte[] lastKey;
+            private long lastRowId;
+            private boolean done;
+            
+            @Override
+            public boolean hasNext() {
+                if (position < size) {
+                    return true;
+                }
+                if (done) {
+                    return false;
+                }
+                try {
+                    fill();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return position < size;
+            }
+            
+            @Override
+            public RowId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return RowId.fromLong(batch[position++]);
+            }
+            
+            /**
+             * Collect the next batch of entries less than the last one returned
+             */
+            private void fill() throws IOException {
+                synchronized (BPlusTree.this) {
+                    size = 0;
+                    position = 0;
+                    byte[] targetKey = lastKey != null ? lastKey : start;
+                    long targetRowId = lastKey != null ? lastRowId : Long.MIN_VALUE;
+                    while (size < SCAN_BATCH) {
+                        // Descend to the leaf holding the greatest entry below the target
+                        byte[] fenceKey = null;
+                        long fenceRowId = 0;
+                        int pageNo = rootPageNo;
+                        Page page = fetch(pageNo);
+                        while (type(page) != LEAF) {
+                            try {
+                                int i = targetKey == null ? count(page) - 1 : lowerBound(page, targetKey, targetRowId) - 1;
+                                if (i >= 0) {
+                                    fenceKey = key(page, i);
+                                    fenceRowId = rowId(page, i);
+                                    pageNo = child(page, i);
+                                } else {
+                                    pageNo = link(page);
+                                }
+                            } finally {
+                                bufferPool.unpinPage(page.getPageId(), false);
+                            }
+                            page = fetch(pageNo);
+                        }
+                        try {
+                            int i = targetKey == null ? count(page) - 1 : lowerBound(page, targetKey, targetRowId) - 1;
+                            for (; i >= 0 && size < SCAN_BATCH; i--) {
+                                byte[] key = key(page, i);
+                                if (low != null) {
+                                    int c = KeyEncoder.compareWithPrefix(key, low);
+                                    if (c < 0 || (c == 0 && !lowInclusive)) {
+                                        done = true;
+                                        return;
+                                    }
+                                }
+                                batch[size++] = rowId(page, i);
+                                lastKey = key;
+                                lastRowId = batch[size - 1];
+                            }
+                            if (i >= 0) {
+                                return;
+                            }
+                        } finally {
+                            bufferPool.unpinPage(page.getPageId(), false);
+                        }
+                        if (fenceKey == null) {
+                            done = true;
+                            return;
+                        }
+                        targetKey = fenceKey;
+                        targetRowId = fenceRowId;
+                    }
+                }
+            }
+        };
+    }
+    
+    /**
+     * Shortest key greater than every key starting with the prefix, or null if there is none
+     */
+    private static byte[] prefixSuccessor(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] successor = Arrays.copyOf(prefix, i + 1);
+                successor[i]++;
+                return successor;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Fill an empty tree from entries already sorted by (key, row id),
+     * packing pages instead of splitting them
+     */
+    public synchronized void bulkLoad(List<byte[]> keys, List<RowId> rowIds) throws IOException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (!isEmpty()) {
+            throw new IllegalStateException("Bulk load requires an empty index");
+        }
+        // Leaf level: the existing empty root becomes the first leaf
+        List<byte[]> separators = new ArrayList<>();
+        List<Integer> children = new ArrayList<>();
+        List<byte[]> cells = new ArrayList<>();
+        int used = NODE_HEADER_SIZE;
+        int pageNo = rootPageNo;
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i).length > MAX_KEY_SIZE) {
+                throw new IllegalArgumentException("Index key too long: " + keys.get(i).length + " bytes");
+            }
+            byte[] cell = makeCell(keys.get(i), rowIds.get(i).toLong(), 0, false);
+            if (used + cell.length + 2 > BULK_FILL && !cells.isEmpty()) {
+                int next = allocate();
+                writePage(pageNo, LEAF, next, cells);
+                children.add(pageNo);
+                pageNo = next;
+                cells = new ArrayList<>();
+                used = NODE_HEADER_SIZE;
+            }
+            if (cells.isEmpty() && !children.isEmpty()) {
+                separators.add(makeCell(keys.get(i), rowIds.get(i).toLong(), 0, true));
+            }
+            cells.add(cell);
+            used += cell.length + 2;
+        }
+        writePage(pageNo, LEAF, -1, cells);
+        children.add(pageNo);
+        // Internal levels
+        while (children.size() > 1) {
+            List<byte[]> upSeparators = new ArrayList<>();
+            List<Integer> upChildren = new ArrayList<>();
+            int leftmost = children.get(0);
+            cells = new ArrayList<>();
+            used = NODE_HEADER_SIZE;
+            for (int i = 1; i < children.size(); i++) {
+                byte[] separator = separators.get(i - 1);
+                ByteBuffer.wrap(separator).putInt(separator.length - 4, children.get(i));
+                if (used + separator.length + 2 > BULK_FILL && !cells.isEmpty()) {
+                    int node = allocate();
+                    writePage(node, INTERNAL, leftmost, cells);
+                    upChildren.add(node);
+                    // This separator moves up; its child starts the next node
+                    upSeparators.add(separator.clone());
+                    leftmost = children.get(i);
+                    cells = new ArrayList<>();
+                    used = NODE_HEADER_SIZE;
+                    continue;
+                }
+                cells.add(separator);
+                used += separator.length + 2;
+            }
+            int node = allocate();
+            writePage(node, INTERNAL, leftmost, cells);
+            upChildren.add(node);
+            separators = upSeparators;
+            children = upChildren;
+        }
+        setRoot(children.get(0));
+    }
+    
+    private int allocate() throws IOException {
+        Page page = bufferPool.newPage(fileId);
+        bufferPool.unpinPage(page.getPageId(), true);
+        return page.getPageId().getPageNo();
+    }
+    
+    private void writePage(int pageNo, byte type, int link, List<byte[]> cells) throws IOException {
+        Page page = fetch(pageNo);
+        try {
+            synchronized (page) {
+                writeNode(page, type, link, cells);
+            }
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), true);
+        }
+    }
+    
+    /**
+     * Number of levels from the root to the leaves
+     */
+    public synchronized int getHeight() throws IOException {
+        int height = 1;
+        int pageNo = rootPageNo;
+        while (true) {
+            Page page = fetch(pageNo);
+            try {
+                if (type(page) == LEAF) {
+                    return height;
+                }
+                pageNo = link(page);
+                height++;
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), false);
+            }
+        }
+    }
+}
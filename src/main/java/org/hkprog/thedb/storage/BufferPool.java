@@ -0,0 +1,513 @@
+package org.hkprog.thedb.storage;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffer Pool - bounded in-memory cache of disk pages
+ *
+ * Callers pin a page with {@link #fetchPage} or {@link #newPage} and must
+ * release it with {@link #unpinPage}, telling the pool whether they modified
+ * it. Only unpinned pages can be evicted; dirty victims are written back
+ * before their frame is reused. A background thread periodically writes dirty
+ * pages so that evictions rarely have to wait for I/O.
+ *
+ * The pool lock only guards the page table and frame state; no disk or log
+ * I/O happens while it is held. A frame being read or written is marked as
+ * such under the lock, the I/O is done without it, and threads that need
+ * that frame wait on the frame's own condition until the I/O completes. A
+ * page being written can still be pinned and changed, because the write
+ * works on a copy.
+ *
+ * Code that changes page contents must hold the page's monitor
+ * ({@code synchronized (page)}) so the writer never copies a half-modified page.
+ *
+ * For checkpoints each frame tracks a recovery LSN: no log record older than
+ * it can be missing from the page on disk.
+ */
+public class BufferPool implements Closeable {
+    
+    private final DiskManager diskManager;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Frame[] frames;
+    private final Map<PageId, Integer> pageTable;
+    private final Deque<Integer> freeFrames;
+    private final EvictionPolicy evictionPolicy;
+    private volatile WriteAheadLog wal;
+    private final Thread flusher;
+    private volatile boolean running;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong pageWrites = new AtomicLong();
+    
+    private static class Frame {
+        private final Page page = new Page();
+        private final Condition ioDone;
+        private PageId pageId;
+        private int pinCount;
+        private boolean dirty;
+        
+        /**
+         * The page is being read from disk; its contents are not valid yet
+         */
+        private boolean reading;
+        
+        /**
+         * A copy of the page is being written to disk
+         */
+        private boolean writing;
+        
+        /**
+         * Log end when the page was first pinned since it was last clean, or -1
+         */
+        private long recLsn = -1;
+        
+        Frame(Condition ioDone) {
+            this.ioDone = ioDone;
+        }
+    }
+    
+    public BufferPool(DiskManager diskManager, int frameCount, EvictionPolicy evictionPolicy, long flushIntervalMillis) {
+        if (frameCount < 1) {
+            throw new IllegalArgumentException("Buffer pool needs at least one frame");
+        }
+        this.diskManager = diskManager;
+        this.frames = new Frame[frameCount];
+        this.pageTable = new HashMap<>();
+        this.freeFrames = new ArrayDeque<>();
+        for (int i = 0; i < frameCount; i++) {
+            frames[i] = new Frame(lock.newCondition());
+            freeFrames.add(i);
+        }
+        this.evictionPolicy = evictionPolicy;
+        this.running = true;
+        this.flusher = new Thread(() -> runFlusher(flushIntervalMillis), "thedb-page-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+    
+    public DiskManager getDiskManager() {
+        return diskManager;
+    }
+    
+    /**
+     * Enforce the WAL rule: the log is flushed up to a page's LSN before the page is written
+     */
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+    
+    public int getFrameCount() {
+        return frames.length;
+    }
+    
+    /**
+     * Pin a page, reading it from disk if it is not cached
+     */
+    public Page fetchPage(PageId pageId) throws IOException {
+        lock.lock();
+        try {
+            while (true) {
+                Integer frameId = pageTable.get(pageId);
+                if (frameId != null) {
+                    Frame frame = frames[frameId];
+                    if (frame.reading) {
+                        // Another thread is reading the page; look again once it is done, as the read may fail
+                        frame.ioDone.awaitUninterruptibly();
+                        continue;
+                    }
+                    hits.incrementAndGet();
+                    pin(frameId);
+                    return frame.page;
+                }
+                frameId = allocateFrame();
+                if (pageTable.containsKey(pageId)) {
+                    // Read by another thread while a victim was being written
+                    freeFrames.add(frameId);
+                    continue;
+                }
+                misses.incrementAndGet();
+                readFrame(frameId, pageId);
+                return frames[frameId].page;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Read a page into a frame taken from {@link #allocateFrame}, leaving it
+     * pinned; called and returns with the lock held, but reads without it
+     */
+    private void readFrame(int frameId, PageId pageId) throws IOException {
+        Frame frame = frames[frameId];
+        install(frameId, pageId);
+        frame.reading = true;
+        boolean read = false;
+        lock.unlock();
+        try {
+            diskManager.readPage(pageId, frame.page.getData());
+            read = true;
+        } finally {
+            lock.lock();
+            frame.reading = false;
+            if (!read) {
+                pageTable.remove(pageId);
+                evictionPolicy.remove(frameId);
+                frame.pageId = null;
+                frame.pinCount = 0;
+                frame.recLsn = -1;
+                freeFrames.add(frameId);
+            }
+            frame.ioDone.signalAll();
+        }
+    }
+    
+    /**
+     * Allocate a new empty page at the end of a file and pin it
+     */
+    public Page newPage(int fileId) throws IOException {
+        lock.lock();
+        try {
+            int frameId = allocateFrame();
+            PageId pageId = new PageId(fileId, diskManager.allocatePage(fileId));
+            Frame frame = frames[frameId];
+            frame.page.init();
+            install(frameId, pageId);
+            frame.dirty = true;
+            return frame.page;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void install(int frameId, PageId pageId) {
+        Frame frame = frames[frameId];
+        frame.pageId = pageId;
+        frame.page.setPageId(pageId);
+        frame.dirty = false;
+        frame.pinCount = 0;
+        frame.recLsn = -1;
+        pageTable.put(pageId, frameId);
+        pin(frameId);
+    }
+    
+    private void pin(int frameId) {
+        Frame frame = frames[frameId];
+        if (frame.recLsn < 0) {
+            // Any change made under this pin is logged at or after this LSN
+            frame.recLsn = wal == null ? 0 : wal.getEndLsn();
+        }
+        frame.pinCount++;
+        evictionPolicy.recordAccess(frameId);
+        evictionPolicy.setEvictable(frameId, false);
+    }
+    
+    /**
+     * Release a pinned page; pass dirty = true if it was modified
+     */
+    public void unpinPage(PageId pageId, boolean dirty) {
+        lock.lock();
+        try {
+            Integer frameId = pageTable.get(pageId);
+            if (frameId == null) {
+                throw new IllegalStateException("Page not in buffer pool: " + pageId);
+            }
+            Frame frame = frames[frameId];
+            if (frame.pinCount <= 0) {
+                throw new IllegalStateException("Page is not pinned: " + pageId);
+            }
+            frame.dirty |= dirty;
+            if (--frame.pinCount == 0) {
+                if (!frame.writing) {
+                    evictionPolicy.setEvictable(frameId, true);
+                }
+                if (!frame.dirty && !frame.writing) {
+                    frame.recLsn = -1;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Find a frame for a new page: a free one, or an evicted victim. Called
+     * with the lock held; a dirty victim is written without it.
+     */
+    private int allocateFrame() throws IOException {
+        while (true) {
+            Integer free = freeFrames.poll();
+            if (free != null) {
+                return free;
+            }
+            int victim = evictionPolicy.evict();
+            if (victim < 0) {
+                Frame busy = unpinnedFrameInIo();
+                if (busy == null) {
+                    throw new IllegalStateException("Buffer pool exhausted: all " + frames.length + " pages are pinned");
+                }
+                busy.ioDone.awaitUninterruptibly();
+                continue;
+            }
+            Frame frame = frames[victim];
+            if (frame.dirty) {
+                try {
+                    writeFrame(victim);
+                } catch (IOException e) {
+                    if (frame.pinCount == 0) {
+                        evictionPolicy.recordAccess(victim);
+                    }
+                    throw e;
+                }
+                if (frame.pinCount > 0 || frame.dirty) {
+                    // Pinned or changed again while it was being written
+                    continue;
+                }
+                evictionPolicy.remove(victim);
+            }
+            pageTable.remove(frame.pageId);
+            frame.pageId = null;
+            frame.recLsn = -1;
+            evictions.incrementAndGet();
+            return victim;
+        }
+    }
+    
+    /**
+     * An unpinned frame that is not evictable only because of I/O in progress, or null
+     */
+    private Frame unpinnedFrameInIo() {
+        for (Frame frame : frames) {
+            if (frame.pageId != null && frame.pinCount == 0 && (frame.writing || frame.reading)) {
+                return frame;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Write a dirty frame's page. Called and returns with the lock held, but
+     * flushes the log and writes the page without it; the frame stays in the
+     * page table, cannot be evicted meanwhile, and is marked dirty again if
+     * the write fails.
+     */
+    private void writeFrame(int frameId) throws IOException {
+        Frame frame = frames[frameId];
+        PageId pageId = frame.pageId;
+        frame.writing = true;
+        // Changes made after the copy below mark the frame dirty again when they are unpinned
+        frame.dirty = false;
+        evictionPolicy.setEvictable(frameId, false);
+        long pageLsn = -1;
+        boolean written = false;
+        lock.unlock();
+        try {
+            byte[] copy;
+            synchronized (frame.page) {
+                copy = frame.page.getData().clone();
+                pageLsn = frame.page.getLsn();
+            }
+            if (wal != null) {
+                wal.flush(pageLsn);
+            }
+            diskManager.writePage(pageId, copy);
+            written = true;
+        } finally {
+            lock.lock();
+            frame.writing = false;
+            if (written) {
+                // A page pinned or dirtied again may have changes logged after the copy was taken
+                frame.recLsn = frame.dirty || frame.pinCount > 0 ? pageLsn : -1;
+                pageWrites.incrementAndGet();
+            } else {
+                frame.dirty = true;
+            }
+            if (frame.pinCount == 0) {
+                evictionPolicy.setEvictable(frameId, true);
+            }
+            frame.ioDone.signalAll();
+        }
+    }
+    
+    /**
+     * Write a frame if it is dirty, after any write of it already in progress;
+     * called with the lock held
+     */
+    private void flushFrame(int frameId, PageId pageId) throws IOException {
+        Frame frame = frames[frameId];
+        while (frame.writing || frame.reading) {
+            frame.ioDone.awaitUninterruptibly();
+        }
+        if (pageId.equals(frame.pageId) && frame.dirty) {
+            writeFrame(frameId);
+        }
+    }
+    
+    /**
+     * Write a single page to disk if it is dirty
+     */
+    public void flushPage(PageId pageId) throws IOException {
+        lock.lock();
+        try {
+            Integer frameId = pageTable.get(pageId);
+            if (frameId != null) {
+                flushFrame(frameId, pageId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Write every dirty page of one file, or of all files if fileId is negative
+     */
+    public void flushAll(int fileId) throws IOException {
+        for (int frameId = 0; frameId < frames.length; frameId++) {
+            // Lock per frame so that page requests can proceed between writes
+            lock.lock();
+            try {
+                Frame frame = frames[frameId];
+                if (frame.pageId != null && (frame.dirty || frame.writing)
+                        && (fileId < 0 || frame.pageId.getFileId() == fileId)) {
+                    flushFrame(frameId, frame.pageId);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Write every dirty page of every file
+     */
+    public void flushAll() throws IOException {
+        flushAll(-1);
+    }
+    
+    /**
+     * Discard all cached pages of a file without writing them (used when a file is deleted)
+     */
+    public void discardFile(int fileId) {
+        lock.lock();
+        try {
+            for (int frameId = 0; frameId < frames.length; frameId++) {
+                Frame frame = frames[frameId];
+                if (frame.pageId != null && frame.pageId.getFileId() == fileId) {
+                    if (frame.pinCount > 0) {
+                        throw new IllegalStateException("Cannot discard pinned page " + frame.pageId);
+                    }
+                    if (frame.writing) {
+                        // Let the write finish before the frame is reused, then look at it again
+                        frame.ioDone.awaitUninterruptibly();
+                        frameId--;
+                        continue;
+                    }
+                    pageTable.remove(frame.pageId);
+                    evictionPolicy.remove(frameId);
+                    frame.pageId = null;
+                    frame.dirty = false;
+                    frame.recLsn = -1;
+                    freeFrames.add(frameId);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void runFlusher(long intervalMillis) {
+        while (running) {
+            try {
+                synchronized (flusher) {
+                    if (running) {
+                        flusher.wait(intervalMillis);
+                    }
+                }
+                flushAll();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Background page flush failed: " + e.getMessage());
+            }
+        }
+    }
+    
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getEvictions() { return evictions.get(); }
+    public long getPageWrites() { return pageWrites.get(); }
+    
+    /**
+     * Fraction of page requests served from memory
+     */
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+    
+    /**
+     * Number of frames currently holding a modified page
+     */
+    public int getDirtyPageCount() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (Frame frame : frames) {
+                if (frame.pageId != null && (frame.dirty || frame.writing)) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Recovery LSN of every page that is dirty, being written or being modified, for a checkpoint
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        lock.lock();
+        try {
+            Map<PageId, Long> table = new HashMap<>();
+            for (Frame frame : frames) {
+                if (frame.pageId != null && frame.recLsn >= 0 && (frame.dirty || frame.writing || frame.pinCount > 0)) {
+                    table.put(frame.pageId, frame.recLsn);
+                }
+            }
+            return table;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("BufferPool{frames=%d, hits=%d, misses=%d, hitRatio=%.2f%%, evictions=%d, pageWrites=%d}",
+                frames.length, getHits(), getMisses(), getHitRatio() * 100, getEvictions(), getPageWrites());
+    }
+    
+    /**
+     * Stop the flusher and write all dirty pages
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        // Wake the flusher instead of interrupting it, which would close a file channel mid-write
+        synchronized (flusher) {
+            flusher.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+}
@@ -0,0 +1,56 @@
+package org.hkprog.thedb.storage;
+
+/**
+ * CLOCK eviction - approximates LRU with one reference bit per frame
+ *
+ * The clock hand sweeps the frames; a frame with its reference bit set gets
+ * a second chance (the bit is cleared), the first evictable frame with a
+ * clear bit is the victim.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+    
+    private final boolean[] referenced;
+    private final boolean[] evictable;
+    private int hand;
+    
+    public ClockEvictionPolicy(int frameCount) {
+        this.referenced = new boolean[frameCount];
+        this.evictable = new boolean[frameCount];
+        this.hand = 0;
+    }
+    
+    @Override
+    public void recordAccess(int frameId) {
+        referenced[frameId] = true;
+    }
+    
+    @Override
+    public void setEvictable(int frameId, boolean evictable) {
+        this.evictable[frameId] = evictable;
+    }
+    
+    @Override
+    public int evict() {
+        // Two full sweeps are enough: the first clears reference bits
+        for (int i = 0; i < 2 * evictable.length; i++) {
+            int frameId = hand;
+            hand = (hand + 1) % evictable.length;
+            if (!evictable[frameId]) {
+                continue;
+            }
+            if (referenced[frameId]) {
+                referenced[frameId] = false;
+                continue;
+            }
+            evictable[frameId] = false;
+            return frameId;
+        }
+        return -1;
+    }
+    
+    @Override
+    public void remove(int frameId) {
+        referenced[frameId] = false;
+        evictable[frameId] = false;
+    }
+}
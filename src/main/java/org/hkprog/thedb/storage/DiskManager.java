@@ -0,0 +1,156 @@
+package org.hkprog.thedb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Disk Manager - reads and writes fixed-size pages of the open data files
+ *
+ * Files are registered under a numeric file id so that pages can be
+ * identified by a {@link PageId} independent of file names.
+ */
+public class DiskManager implements Closeable {
+    
+    private final Map<Integer, FileChannel> files;
+    private final Map<Integer, Integer> pageCounts;
+    
+    public DiskManager() {
+        this.files = new HashMap<>();
+        this.pageCounts = new HashMap<>();
+    }
+    
+    /**
+     * Open (or create) a data file under the given file id
+     */
+    public synchronized void openFile(int fileId, Path path) throws IOException {
+        if (files.containsKey(fileId)) {
+            throw new IllegalStateException("File id already in use: " + fileId);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size % Page.PAGE_SIZE != 0) {
+            // A torn append: drop the partial page at the end
+            size -= size % Page.PAGE_SIZE;
+            channel.truncate(size);
+        }
+        files.put(fileId, channel);
+        pageCounts.put(fileId, (int) (size / Page.PAGE_SIZE));
+    }
+    
+    /**
+     * Close a data file
+     */
+    public synchronized void closeFile(int fileId) throws IOException {
+        FileChannel channel = files.remove(fileId);
+        pageCounts.remove(fileId);
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+    
+    public synchronized boolean isOpen(int fileId) {
+        return files.containsKey(fileId);
+    }
+    
+    private synchronized FileChannel channel(int fileId) {
+        FileChannel channel = files.get(fileId);
+        if (channel == null) {
+            throw new IllegalStateException("File not open: " + fileId);
+        }
+        return channel;
+    }
+    
+    /**
+     * Number of pages allocated in a file
+     */
+    public synchronized int getPageCount(int fileId) {
+        Integer count = pageCounts.get(fileId);
+        if (count == null) {
+            throw new IllegalStateException("File not open: " + fileId);
+        }
+        return count;
+    }
+    
+    /**
+     * Reserve a new page number at the end of a file. The page reaches the
+     * disk the first time it is written.
+     */
+    public synchronized int allocatePage(int fileId) {
+        int pageNo = getPageCount(fileId);
+        pageCounts.put(fileId, pageNo + 1);
+        return pageNo;
+    }
+    
+    /**
+     * Make sure a file has at least the given number of pages, e.g. when
+     * recovery replays changes to pages that were allocated but never written
+     */
+    public synchronized void ensurePageCount(int fileId, int pageCount) {
+        if (getPageCount(fileId) < pageCount) {
+            pageCounts.put(fileId, pageCount);
+        }
+    }
+    
+    /**
+     * Read a page into the given buffer. Pages that were allocated but never
+     * written read as zeros.
+     */
+    public void readPage(PageId pageId, byte[] data) throws IOException {
+        FileChannel channel = channel(pageId.getFileId());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = (long) pageId.getPageNo() * Page.PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                Arrays.fill(data, buffer.position(), data.length, (byte) 0);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Write a page from the given buffer
+     */
+    public void writePage(PageId pageId, byte[] data) throws IOException {
+        FileChannel channel = channel(pageId.getFileId());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = (long) pageId.getPageNo() * Page.PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+    
+    /**
+     * Force a file's written pages to disk
+     */
+    public void sync(int fileId) throws IOException {
+        channel(fileId).force(false);
+    }
+    
+    /**
+     * Force all files to disk
+     */
+    public void syncAll() throws IOException {
+        List<FileChannel> channels;
+        synchronized (this) {
+            channels = new ArrayList<>(files.values());
+        }
+        for (FileChannel channel : channels) {
+            channel.force(false);
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel channel : files.values()) {
+            channel.force(false);
+            channel.close();
+        }
+        files.clear();
+        pageCounts.clear();
+    }
+}
@@ -0,0 +1,20 @@
+package org.hkprog.thedb.storage;
+
+/**
+ * Thrown when a change would store the same key twice in a unique index
+ */
+public class DuplicateKeyException extends RuntimeException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final String indexName;
+    
+    public DuplicateKeyException(String indexName, String key) {
+        super("Duplicate entry '" + key + "' for key '" + indexName + "'");
+        this.indexName = indexName;
+    }
+    
+    public String getIndexName() {
+        return indexName;
+    }
+}
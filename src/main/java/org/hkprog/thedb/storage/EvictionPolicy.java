@@ -0,0 +1,50 @@
+package org.hkprog.thedb.storage;
+
+/**
+ * Eviction Policy - chooses which buffer pool frame to reuse when the pool is full
+ *
+ * Only frames marked evictable (i.e. not pinned) may be chosen.
+ */
+public interface EvictionPolicy {
+    
+    /**
+     * Record that a frame was accessed
+     */
+    void recordAccess(int frameId);
+    
+    /**
+     * Mark a frame as evictable or not
+     */
+    void setEvictable(int frameId, boolean evictable);
+    
+    /**
+     * Pick a victim frame and stop tracking it, or return -1 if no frame is evictable
+     */
+    int evict();
+    
+    /**
+     * Stop tracking a frame whose page has been discarded
+     */
+    void remove(int frameId);
+    
+    /**
+     * Create a policy by name: "clock", "lru-k" (K = 2) or "lru-N"
+     */
+    static EvictionPolicy create(String name, int frameCount) {
+        String policy = name.toLowerCase();
+        if (policy.equals("clock")) {
+            return new ClockEvictionPolicy(frameCount);
+        }
+        if (policy.equals("lru-k")) {
+            return new LruKEvictionPolicy(frameCount, 2);
+        }
+        if (policy.startsWith("lru-")) {
+            try {
+                return new LruKEvictionPolicy(frameCount, Integer.parseInt(policy.substring(4)));
+            } catch (NumberFormatException e) {
+                // fall through to the error below
+            }
+        }
+        throw new IllegalArgumentException("Unknown eviction policy: " + name + " (expected clock, lru-k or lru-N)");
+    }
+}
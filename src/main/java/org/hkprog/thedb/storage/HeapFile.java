@@ -0,0 +1,482 @@
+package org.hkprog.thedb.storage;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Heap File - unordered collection of records stored in slotted pages
+ *
+ * Records are addressed by {@link RowId}. A record keeps its row id for its
+ * whole life; updates that no longer fit in the page are the caller's
+ * responsibility to relocate. All page access goes through the buffer pool.
+ *
+ * Every change is logged to the write-ahead log on behalf of a transaction
+ * while the page is latched, and the page LSN is advanced to the new record.
+ * Pages filled by a bulk load are logged once each, as a whole page image.
+ *
+ * Space freed by a transaction is not reused before it commits, so that a
+ * rollback can always put the old records back under their row ids. A
+ * deleted record leaves a tombstone in its slot, and the bytes given up by
+ * an update that shrinks a record are reserved for its page; both are
+ * released by {@link #release} at commit.
+ */
+public class HeapFile {
+    
+    private final int fileId;
+    private final BufferPool bufferPool;
+    private final TransactionManager txnManager;
+    private volatile UndoListener undoListener;
+    
+    /**
+     * Notified after a rollback reverses a change, so that structures derived
+     * from the records (indexes) can follow. removed and restored are the
+     * record images taken out of and put back into the slot; either may be null.
+     */
+    public interface UndoListener {
+        void undone(RowId rowId, byte[] removed, byte[] restored);
+    }
+    
+    /**
+     * Pages with enough free space to be worth trying before appending a new page
+     */
+    private final TreeSet<Integer> pagesWithSpace;
+    
+    /**
+     * Minimum free space for a page to be tracked in pagesWithSpace
+     */
+    private static final int REUSE_THRESHOLD = Page.PAGE_SIZE / 8;
+    
+    /**
+     * Bytes inserts and updates must leave free in a page, by page number,
+     * for rolling back updates that made records shorter
+     */
+    private final Map<Integer, Integer> reservedBytes = new HashMap<>();
+    
+    public HeapFile(int fileId, BufferPool bufferPool, TransactionManager txnManager) throws IOException {
+        this.fileId = fileId;
+        this.bufferPool = bufferPool;
+        this.txnManager = txnManager;
+        this.pagesWithSpace = new TreeSet<>();
+        int pageCount = getPageCount();
+        for (int pageNo = 0; pageNo < pageCount; pageNo++) {
+            Page page = bufferPool.fetchPage(new PageId(fileId, pageNo));
+            try {
+                updateFreeSpace(pageNo, page);
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), false);
+            }
+        }
+    }
+    
+    public int getFileId() { return fileId; }
+    
+    public void setUndoListener(UndoListener undoListener) {
+        this.undoListener = undoListener;
+    }
+    
+    public int getPageCount() {
+        return bufferPool.getDiskManager().getPageCount(fileId);
+    }
+    
+    private int reserved(int pageNo) {
+        return reservedBytes.getOrDefault(pageNo, 0);
+    }
+    
+    private void reserve(int pageNo, int bytes) {
+        reservedBytes.merge(pageNo, bytes, Integer::sum);
+    }
+    
+    private void unreserve(int pageNo, int bytes) {
+        Integer left = reservedBytes.get(pageNo);
+        if (left != null) {
+            if (left > bytes) {
+                reservedBytes.put(pageNo, left - bytes);
+            } else {
+                reservedBytes.remove(pageNo);
+            }
+        }
+    }
+    
+    /**
+     * Bytes an update gave up that its rollback needs back
+     */
+    private static int shrinkage(LogRecord record) {
+        if (record.getType() != LogRecord.Type.UPDATE || record.getBefore() == null || record.getAfter() == null) {
+            return 0;
+        }
+        return Math.max(0, record.getBefore().length - record.getAfter().length);
+    }
+    
+    private void updateFreeSpace(int pageNo, Page page) {
+        if (page.getFreeSpace() - reserved(pageNo) >= REUSE_THRESHOLD) {
+            pagesWithSpace.add(pageNo);
+        } else {
+            pagesWithSpace.remove(pageNo);
+        }
+    }
+    
+    /**
+     * Insert a record and return its row id
+     */
+    public synchronized RowId insert(Transaction txn, byte[] record) throws IOException {
+        if (record.length > Page.MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Row too large: " + record.length
+                    + " bytes (maximum " + Page.MAX_RECORD_SIZE + ")");
+        }
+        for (Integer pageNo : pagesWithSpace) {
+            Page page = bufferPool.fetchPage(new PageId(fileId, pageNo));
+            int slot = -1;
+            try {
+                slot = insertIntoPage(txn, page, record);
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), slot >= 0);
+            }
+            if (slot >= 0) {
+                return new RowId(pageNo, slot);
+            }
+        }
+        Page page = bufferPool.newPage(fileId);
+        try {
+            return new RowId(page.getPageId().getPageNo(), insertIntoPage(txn, page, record));
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), true);
+        }
+    }
+    
+    private int insertIntoPage(Transaction txn, Page page, byte[] record) {
+        int pageNo = page.getPageId().getPageNo();
+        synchronized (page) {
+            int slot = page.insertRecord(record, reserved(pageNo));
+            if (slot >= 0) {
+                page.setLsn(txnManager.log(txn, LogRecord.Type.INSERT, fileId, pageNo, slot, null, record));
+            }
+            updateFreeSpace(pageNo, page);
+            return slot;
+        }
+    }
+    
+    /**
+     * Insert records and return their row ids, in order. Each page is
+     * fetched and latched once for all the records it takes, and their log
+     * records are appended together.
+     */
+    public synchronized RowId[] insertAll(Transaction txn, List<byte[]> records) throws IOException {
+        for (byte[] record : records) {
+            if (record.length > Page.MAX_RECORD_SIZE) {
+                throw new IllegalArgumentException("Row too large: " + record.length
+                        + " bytes (maximum " + Page.MAX_RECORD_SIZE + ")");
+            }
+        }
+        RowId[] rowIds = new RowId[records.size()];
+        int next = 0;
+        for (Integer pageNo : new ArrayList<>(pagesWithSpace)) {
+            if (next == records.size()) {
+                break;
+            }
+            Page page = bufferPool.fetchPage(new PageId(fileId, pageNo));
+            int inserted = 0;
+            try {
+                inserted = insertIntoPage(txn, page, records, next, rowIds, false);
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), inserted > 0);
+            }
+            next += inserted;
+        }
+        while (next < records.size()) {
+            Page page = bufferPool.newPage(fileId);
+            try {
+                next += insertIntoPage(txn, page, records, next, rowIds, true);
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), true);
+            }
+        }
+        return rowIds;
+    }
+    
+    /**
+     * Insert records from position from on while they fit into the page,
+     * returning how many did. A new page is filled by appending.
+     */
+    private int insertIntoPage(Transaction txn, Page page, List<byte[]> records, int from, RowId[] rowIds,
+                               boolean newPage) {
+        int pageNo = page.getPageId().getPageNo();
+        synchronized (page) {
+            int next = from;
+            while (next < records.size()) {
+                byte[] record = records.get(next);
+                int slot = newPage ? page.appendRecord(record) : page.insertRecord(record, reserved(pageNo));
+                if (slot < 0) {
+                    break;
+                }
+                rowIds[next++] = new RowId(pageNo, slot);
+            }
+            if (next > from) {
+                page.setLsn(txnManager.logInserts(txn, fileId, pageNo, rowIds, records, from, next));
+            }
+            updateFreeSpace(pageNo, page);
+            return next - from;
+        }
+    }
+    
+    /**
+     * Read a record, or null if the row id does not point to a live record
+     */
+    public synchronized byte[] read(RowId rowId) throws IOException {
+        if (rowId.getPageNo() < 0 || rowId.getPageNo() >= getPageCount()) {
+            return null;
+        }
+        Page page = bufferPool.fetchPage(new PageId(fileId, rowId.getPageNo()));
+        try {
+            return page.getRecord(rowId.getSlot());
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), false);
+        }
+    }
+    
+    /**
+     * Delete a record, keeping its slot and space reserved until the transaction ends
+     */
+    public synchronized void delete(Transaction txn, RowId rowId) throws IOException {
+        checkPage(rowId);
+        Page page = bufferPool.fetchPage(new PageId(fileId, rowId.getPageNo()));
+        boolean modified = false;
+        try {
+            synchronized (page) {
+                byte[] before = page.getRecord(rowId.getSlot());
+                page.tombstoneRecord(rowId.getSlot());
+                modified = true;
+                page.setLsn(txnManager.log(txn, LogRecord.Type.DELETE, fileId, rowId.getPageNo(), rowId.getSlot(), before, null));
+                updateFreeSpace(rowId.getPageNo(), page);
+            }
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), modified);
+        }
+    }
+    
+    /**
+     * Replace a record in place, returning false if it no longer fits in its page
+     */
+    public synchronized boolean update(Transaction txn, RowId rowId, byte[] record) throws IOException {
+        checkPage(rowId);
+        Page page = bufferPool.fetchPage(new PageId(fileId, rowId.getPageNo()));
+        boolean updated = false;
+        try {
+            synchronized (page) {
+                byte[] before = page.getRecord(rowId.getSlot());
+                updated = page.updateRecord(rowId.getSlot(), record, reserved(rowId.getPageNo()));
+                if (updated) {
+                    page.setLsn(txnManager.log(txn, LogRecord.Type.UPDATE, fileId, rowId.getPageNo(), rowId.getSlot(), before, record));
+                    if (record.length < before.length) {
+                        reserve(rowId.getPageNo(), before.length - record.length);
+                    }
+                }
+                updateFreeSpace(rowId.getPageNo(), page);
+            }
+            return updated;
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), updated);
+        }
+    }
+    
+    /**
+     * Append records in order on new pages, logging each page once as a whole
+     * instead of each record, and return their row ids. Used by bulk loading;
+     * pages that already exist are not filled up.
+     */
+    public synchronized RowId[] appendPages(Transaction txn, List<byte[]> records) throws IOException {
+        for (byte[] record : records) {
+            if (record.length > Page.MAX_RECORD_SIZE) {
+                throw new IllegalArgumentException("Row too large: " + record.length
+                        + " bytes (maximum " + Page.MAX_RECORD_SIZE + ")");
+            }
+        }
+        RowId[] rowIds = new RowId[records.size()];
+        int next = 0;
+        while (next < records.size()) {
+            Page page = bufferPool.newPage(fileId);
+            int pageNo = page.getPageId().getPageNo();
+            try {
+                synchronized (page) {
+                    int slot;
+                    while (next < records.size() && (slot = page.appendRecord(records.get(next))) >= 0) {
+                        rowIds[next++] = new RowId(pageNo, slot);
+                    }
+                    page.setLsn(txnManager.log(txn, LogRecord.Type.PAGE_IMAGE, fileId, pageNo, -1, null,
+                            page.getData().clone()));
+                    updateFreeSpace(pageNo, page);
+                }
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), true);
+            }
+        }
+        return rowIds;
+    }
+    
+    /**
+     * Reverse a logged change during rollback, logging a compensation record
+     */
+    public synchronized void undo(Transaction txn, LogRecord record) throws IOException {
+        Page page = fetchLoggedPage(record.getPageNo());
+        SortedMap<Integer, byte[]> removed = new TreeMap<>();
+        try {
+            synchronized (page) {
+                if (record.isWholePage()) {
+                    for (int slot = 0; slot < page.getSlotCount(); slot++) {
+                        if (page.isSlotUsed(slot)) {
+                            removed.put(slot, page.getRecord(slot));
+                        }
+                    }
+                } else if (record.getAfter() != null) {
+                    removed.put(record.getSlot(), record.getAfter());
+                } else if (page.isSlotUsed(record.getSlot())) {
+                    // Only the tombstone left by the delete may be restored into
+                    throw new IllegalStateException("Cannot undo delete of " + new RowId(record.getPageNo(), record.getSlot())
+                            + " in file " + fileId + ": the slot has been reused");
+                }
+                apply(page, record.getSlot(), record.getBefore());
+                unreserve(record.getPageNo(), shrinkage(record));
+                page.setLsn(txnManager.logCompensation(txn, fileId, record.getPageNo(), record.getSlot(),
+                        record.getBefore(), record.getPrevLsn()));
+                updateFreeSpace(record.getPageNo(), page);
+            }
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), true);
+        }
+        UndoListener listener = undoListener;
+        if (listener == null) {
+            return;
+        }
+        if (record.isWholePage()) {
+            // Only new pages are logged whole, so there is nothing to restore
+            for (Map.Entry<Integer, byte[]> entry : removed.entrySet()) {
+                listener.undone(new RowId(record.getPageNo(), entry.getKey()), entry.getValue(), null);
+            }
+        } else {
+            listener.undone(new RowId(record.getPageNo(), record.getSlot()), removed.get(record.getSlot()),
+                    record.getBefore());
+        }
+    }
+    
+    /**
+     * Give up the space a committed change kept for its rollback: the
+     * tombstone of a delete, or the bytes an update made its record shorter by
+     */
+    synchronized void release(LogRecord record) throws IOException {
+        if (record.getType() == LogRecord.Type.UPDATE) {
+            unreserve(record.getPageNo(), shrinkage(record));
+            return;
+        }
+        if (record.getType() != LogRecord.Type.DELETE || record.isWholePage() || record.getPageNo() >= getPageCount()) {
+            return;
+        }
+        Page page = bufferPool.fetchPage(new PageId(fileId, record.getPageNo()));
+        boolean released = false;
+        try {
+            synchronized (page) {
+                if (page.isTombstone(record.getSlot())) {
+                    page.releaseTombstone(record.getSlot());
+                    released = true;
+                    updateFreeSpace(record.getPageNo(), page);
+                }
+            }
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), released);
+        }
+    }
+    
+    /**
+     * Release every tombstone and reservation. Only called once recovery
+     * has finished every transaction, when none of them is needed any more.
+     */
+    public synchronized void releaseAll() throws IOException {
+        reservedBytes.clear();
+        int pageCount = getPageCount();
+        for (int pageNo = 0; pageNo < pageCount; pageNo++) {
+            Page page = bufferPool.fetchPage(new PageId(fileId, pageNo));
+            boolean released = false;
+            try {
+                synchronized (page) {
+                    for (int slot = page.getSlotCount() - 1; slot >= 0; slot--) {
+                        if (page.isTombstone(slot)) {
+                            page.releaseTombstone(slot);
+                            released = true;
+                        }
+                    }
+                    updateFreeSpace(pageNo, page);
+                }
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), released);
+            }
+        }
+    }
+    
+    /**
+     * Reapply a logged change during crash recovery unless the page already
+     * contains it. Returns true if the page was changed.
+     */
+    public synchronized boolean redo(LogRecord record) throws IOException {
+        Page page = fetchLoggedPage(record.getPageNo());
+        boolean applied = false;
+        try {
+            synchronized (page) {
+                if (page.getLsn() < record.getLsn()) {
+                    apply(page, record.getSlot(), record.getAfter());
+                    page.setLsn(record.getLsn());
+                    applied = true;
+                    updateFreeSpace(record.getPageNo(), page);
+                }
+            }
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), applied);
+        }
+        return applied;
+    }
+    
+    /**
+     * Set one slot to a logged record image, or with slot -1 the whole page
+     * to a logged page image; null empties the slot or page
+     */
+    private static void apply(Page page, int slot, byte[] image) {
+        if (slot >= 0) {
+            page.putRecord(slot, image);
+        } else if (image == null) {
+            page.init();
+        } else {
+            System.arraycopy(image, 0, page.getData(), 0, Page.PAGE_SIZE);
+        }
+    }
+    
+    private Page fetchLoggedPage(int pageNo) throws IOException {
+        // The page may have been allocated and logged but never written before a crash
+        bufferPool.getDiskManager().ensurePageCount(fileId, pageNo + 1);
+        return bufferPool.fetchPage(new PageId(fileId, pageNo));
+    }
+    
+    private void checkPage(RowId rowId) {
+        if (rowId.getPageNo() < 0 || rowId.getPageNo() >= getPageCount()) {
+            throw new IllegalArgumentException("Invalid row id: " + rowId);
+        }
+    }
+    
+    /**
+     * Read all live records of one page, keyed by slot number
+     */
+    public synchronized SortedMap<Integer, byte[]> readPageRecords(int pageNo) throws IOException {
+        SortedMap<Integer, byte[]> records = new TreeMap<>();
+        if (pageNo >= getPageCount()) {
+            return records;
+        }
+        Page page = bufferPool.fetchPage(new PageId(fileId, pageNo));
+        try {
+            for (int slot = 0; slot < page.getSlotCount(); slot++) {
+                byte[] record = page.getRecord(slot);
+                if (record != null) {
+                    records.put(slot, record);
+                }
+            }
+        } finally {
+            bufferPool.unpinPage(page.getPageId(), false);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,130 @@
+package org.hkprog.thedb.storage;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Index - secondary B+ tree index on one or more columns of a table
+ *
+ * Keys are the column values encoded with {@link KeyEncoder}, so lookups on
+ * the leading columns of a composite index are prefix searches. A unique
+ * index rejects a second row with the same key unless one of its key
+ * columns is NULL.
+ */
+public class Index {
+    
+    private final String name;
+    private final List<String> columns;
+    private final boolean unique;
+    private final BPlusTree tree;
+    private volatile int[] positions;
+    
+    public Index(String name, List<String> columns, boolean unique, BPlusTree tree) {
+        this.name = name;
+        this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+        this.unique = unique;
+        this.tree = tree;
+    }
+    
+    public String getName() { return name; }
+    public List<String> getColumns() { return columns; }
+    public boolean isUnique() { return unique; }
+    public int getFileId() { return tree.getFileId(); }
+    
+    BPlusTree getTree() {
+        return tree;
+    }
+    
+    /**
+     * Values of the key columns of a row, in index order
+     */
+    public List<Object> keyValues(StorageEngine.Row row) {
+        int[] positions = this.positions;
+        if (positions == null) {
+            positions = new int[columns.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = row.getSchema().indexOf(columns.get(i));
+            }
+            this.positions = positions;
+        }
+        List<Object> values = new ArrayList<>(positions.length);
+        for (int position : positions) {
+            values.add(position < 0 ? null : row.getValue(position));
+        }
+        return values;
+    }
+    
+    byte[] keyOf(StorageEngine.Row row) {
+        return KeyEncoder.encode(keyValues(row));
+    }
+    
+    /**
+     * Add a row's entry, enforcing uniqueness
+     */
+    void insert(StorageEngine.Row row, RowId rowId) throws IOException {
+        List<Object> values = keyValues(row);
+        boolean checkUnique = unique && !KeyEncoder.hasNull(values);
+        if (!tree.insert(KeyEncoder.encode(values), rowId, checkUnique)) {
+            throw duplicate(values);
+        }
+    }
+    
+    /**
+     * Fail if another row already has the key that this row would store
+     */
+    void checkUnique(StorageEngine.Row row) throws IOException {
+        List<Object> values = keyValues(row);
+        if (unique && !KeyEncoder.hasNull(values) && tree.containsKey(KeyEncoder.encode(values))) {
+            throw duplicate(values);
+        }
+    }
+    
+    DuplicateKeyException duplicate(List<Object> values) {
+        StringJoiner key = new StringJoiner("-");
+        for (Object value : values) {
+            key.add(String.valueOf(value));
+        }
+        return new DuplicateKeyException(name, key.toString());
+    }
+    
+    void delete(StorageEngine.Row row, RowId rowId) throws IOException {
+        tree.delete(keyOf(row), rowId);
+    }
+    
+    /**
+     * Row ids of the rows whose leading key columns equal the given values
+     */
+    public List<RowId> lookup(List<?> values) {
+        if (values.size() > columns.size()) {
+            throw new IllegalArgumentException("Too many key values for index " + name);
+        }
+        try {
+            return tree.search(KeyEncoder.encode(values));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Index lookup failed on " + name, e);
+        }
+    }
+    
+    /**
+     * Row ids in key order between two bounds on the leading key columns;
+     * a null bound is open
+     */
+    public Iterator<RowId> range(List<?> low, boolean lowInclusive, List<?> high, boolean highInclusive) {
+        return tree.scan(low == null ? null : KeyEncoder.encode(low), lowInclusive,
+                high == null ? null : KeyEncoder.encode(high), highInclusive);
+    }
+    
+    /**
+     * Row ids in descending key order between two bounds on the leading key
+     * columns; a null bound is open
+     */
+    public Iterator<RowId> rangeDescending(List<?> low, boolean lowInclusive, List<?> high, boolean highInclusive) {
+        return tree.scanDescending(low == null ? null : KeyEncoder.encode(low), lowInclusive,
+                high == null ? null : KeyEncoder.encode(high), highInclusive);
+    }
+    
+    @Override
+    public String toString() {
+        return (unique ? "UNIQUE " : "") + "INDEX " + name + " (" + String.join(", ", columns) + ")";
+    }
+}
@@ -0,0 +1,125 @@
+package org.hkprog.thedb.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Key Encoder - encodes values into byte strings whose unsigned byte order
+ * matches the SQL order of the values
+ *
+ * Index keys are compared with a plain byte comparison, without decoding.
+ * Each value starts with a type tag (NULL sorts first); integers are stored
+ * big-endian with the sign bit flipped, doubles with the usual sign/exponent
+ * flip, and strings as UTF-8 with 0x00 escaped and a 0x00 0x01 terminator.
+ * No encoded value is a prefix of another, so the encoding of the leading
+ * columns of a composite key is a prefix of the full key.
+ */
+public final class KeyEncoder {
+    
+    private static final int TAG_NULL = 0x00;
+    private static final int TAG_FALSE = 0x08;
+    private static final int TAG_TRUE = 0x09;
+    private static final int TAG_INTEGER = 0x10;
+    private static final int TAG_DOUBLE = 0x20;
+    private static final int TAG_STRING = 0x30;
+    
+    private KeyEncoder() {
+    }
+    
+    /**
+     * Encode a list of values as one key
+     */
+    public static byte[] encode(List<?> values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * values.size());
+        for (Object value : values) {
+            encodeValue(out, value);
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Encode a single value as a key
+     */
+    public static byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+        encodeValue(out, value);
+        return out.toByteArray();
+    }
+    
+    /**
+     * Append the encoding of one value
+     */
+    public static void encodeValue(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.write(TAG_INTEGER);
+            writeLong(out, ((Number) value).longValue() ^ Long.MIN_VALUE);
+        } else if (value instanceof Number) {
+            double d = value instanceof BigDecimal ? ((BigDecimal) value).doubleValue() : ((Number) value).doubleValue();
+            long bits = Double.doubleToLongBits(d == 0.0 ? 0.0 : d);
+            // Positive doubles: flip the sign bit; negative doubles: flip all bits
+            bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+            out.write(TAG_DOUBLE);
+            writeLong(out, bits);
+        } else {
+            out.write(TAG_STRING);
+            byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+            int start = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == 0) {
+                    out.write(bytes, start, i + 1 - start);
+                    out.write(0xFF);
+                    start = i + 1;
+                }
+            }
+            out.write(bytes, start, bytes.length - start);
+            out.write(0x00);
+            out.write(0x01);
+        }
+    }
+    
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (value >>> (56 - 8 * i));
+        }
+        out.write(bytes, 0, 8);
+    }
+    
+    /**
+     * Check whether any value of the list is null
+     */
+    public static boolean hasNull(List<?> values) {
+        for (Object value : values) {
+            if (value == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Compare two keys in unsigned byte order
+     */
+    public static int compare(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+    
+    /**
+     * Compare a key with a bound that may be a prefix of it; a key that starts
+     * with the bound compares equal
+     */
+    public static int compareWithPrefix(byte[] key, byte[] bound) {
+        int length = Math.min(key.length, bound.length);
+        int c = Arrays.compareUnsigned(key, 0, length, bound, 0, length);
+        if (c != 0) {
+            return c;
+        }
+        return key.length >= bound.length ? 0 : -1;
+    }
+}
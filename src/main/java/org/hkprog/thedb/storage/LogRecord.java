@@ -0,0 +1,217 @@
+package org.hkprog.thedb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Log Record - one entry of the write-ahead log
+ *
+ * Data records describe a change to one slot of one page and carry the
+ * before and/or after image of the record, so they can be both redone and
+ * undone. Records of the same transaction are chained through prevLsn.
+ *
+ * A compensation log record (CLR) is written for every change undone by a
+ * rollback. It carries the slot contents after the undo and the LSN of the
+ * next record to undo, so a rollback interrupted by a crash resumes where it
+ * stopped and never undoes the same change twice.
+ *
+ * A PAGE_IMAGE record describes a whole page built at once by bulk loading:
+ * its slot is -1, the before image is null (the page was new and empty)
+ * and the after image is the complete page. A CLR with slot -1 carries a
+ * whole page in the same way, null meaning an empty page.
+ *
+ * On-disk format:
+ * <pre>
+ * int length | byte type | long txnId | long prevLsn | long undoNextLsn | int fileId | int pageNo
+ * | int slot | int beforeLength | before | int afterLength | after | int crc32
+ * </pre>
+ */
+public class LogRecord {
+    
+    public enum Type {
+        BEGIN, COMMIT, ABORT, INSERT, DELETE, UPDATE, CLR, CHECKPOINT_BEGIN, CHECKPOINT_END, PAGE_IMAGE
+    }
+    
+    private static final int FIXED_SIZE = 4 + 1 + 8 + 8 + 8 + 4 + 4 + 4 + 4 + 4 + 4;
+    
+    private final Type type;
+    private final long txnId;
+    private final long prevLsn;
+    private final long undoNextLsn;
+    private final int fileId;
+    private final int pageNo;
+    private final int slot;
+    private final byte[] before;
+    private final byte[] after;
+    private long lsn = -1;
+    
+    public LogRecord(Type type, long txnId, long prevLsn, int fileId, int pageNo, int slot,
+                     byte[] before, byte[] after) {
+        this(type, txnId, prevLsn, -1, fileId, pageNo, slot, before, after);
+    }
+    
+    private LogRecord(Type type, long txnId, long prevLsn, long undoNextLsn, int fileId, int pageNo, int slot,
+                      byte[] before, byte[] after) {
+        this.type = type;
+        this.txnId = txnId;
+        this.prevLsn = prevLsn;
+        this.undoNextLsn = undoNextLsn;
+        this.fileId = fileId;
+        this.pageNo = pageNo;
+        this.slot = slot;
+        this.before = before;
+        this.after = after;
+    }
+    
+    /**
+     * Create a transaction control record (BEGIN, COMMIT, ABORT)
+     */
+    public static LogRecord control(Type type, long txnId, long prevLsn) {
+        return new LogRecord(type, txnId, prevLsn, -1, -1, -1, null, null);
+    }
+    
+    /**
+     * Create a compensation record: the slot now holds image (null if empty),
+     * and undo continues with the record at undoNextLsn
+     */
+    public static LogRecord compensation(long txnId, long prevLsn, int fileId, int pageNo, int slot,
+                                         byte[] image, long undoNextLsn) {
+        return new LogRecord(Type.CLR, txnId, prevLsn, undoNextLsn, fileId, pageNo, slot, null, image);
+    }
+    
+    /**
+     * Create the record that closes a checkpoint, carrying its snapshot tables
+     */
+    public static LogRecord checkpointEnd(byte[] tables) {
+        return new LogRecord(Type.CHECKPOINT_END, 0, -1, -1, -1, -1, null, tables);
+    }
+    
+    public Type getType() { return type; }
+    public long getTxnId() { return txnId; }
+    public long getPrevLsn() { return prevLsn; }
+    public long getUndoNextLsn() { return undoNextLsn; }
+    public int getFileId() { return fileId; }
+    public int getPageNo() { return pageNo; }
+    public int getSlot() { return slot; }
+    public byte[] getBefore() { return before; }
+    public byte[] getAfter() { return after; }
+    public long getLsn() { return lsn; }
+    
+    void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+    
+    public PageId getPageId() {
+        return new PageId(fileId, pageNo);
+    }
+    
+    /**
+     * Whether this record changes a page and has to be considered by redo
+     */
+    public boolean isPageChange() {
+        return type == Type.INSERT || type == Type.DELETE || type == Type.UPDATE || type == Type.CLR
+                || type == Type.PAGE_IMAGE;
+    }
+    
+    /**
+     * Whether the images of this record are of a whole page rather than one slot
+     */
+    public boolean isWholePage() {
+        return slot < 0;
+    }
+    
+    /**
+     * This record without its after image, which undo does not need
+     */
+    LogRecord withoutAfterImage() {
+        LogRecord record = new LogRecord(type, txnId, prevLsn, undoNextLsn, fileId, pageNo, slot, before, null);
+        record.setLsn(lsn);
+        return record;
+    }
+    
+    /**
+     * Serialized size in bytes
+     */
+    public int size() {
+        return FIXED_SIZE + length(before) + length(after);
+    }
+    
+    private static int length(byte[] data) {
+        return data == null ? 0 : data.length;
+    }
+    
+    /**
+     * Encode this record into a byte array
+     */
+    public byte[] serialize() {
+        int size = size();
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(size);
+        buffer.put((byte) type.ordinal());
+        buffer.putLong(txnId);
+        buffer.putLong(prevLsn);
+        buffer.putLong(undoNextLsn);
+        buffer.putInt(fileId);
+        buffer.putInt(pageNo);
+        buffer.putInt(slot);
+        putBytes(buffer, before);
+        putBytes(buffer, after);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, size - 4);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+    
+    private static void putBytes(ByteBuffer buffer, byte[] data) {
+        if (data == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(data.length);
+            buffer.put(data);
+        }
+    }
+    
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+    
+    /**
+     * Decode a record from its serialized bytes, or return null if the bytes
+     * are incomplete or fail the checksum (a torn write at the end of the log)
+     */
+    public static LogRecord deserialize(byte[] data, long lsn) {
+        if (data.length < FIXED_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int size = buffer.getInt();
+        if (size != data.length) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, size - 4);
+        if ((int) crc.getValue() != buffer.getInt(size - 4)) {
+            return null;
+        }
+        int typeOrdinal = buffer.get();
+        if (typeOrdinal < 0 || typeOrdinal >= Type.values().length) {
+            return null;
+        }
+        LogRecord record = new LogRecord(Type.values()[typeOrdinal], buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                buffer.getInt(), buffer.getInt(), buffer.getInt(), getBytes(buffer), getBytes(buffer));
+        record.setLsn(lsn);
+        return record;
+    }
+    
+    @Override
+    public String toString() {
+        return "LogRecord{lsn=" + lsn + ", " + type + ", txn=" + txnId
+                + (fileId >= 0 ? ", page=" + fileId + ":" + pageNo + ", slot=" + slot : "") + "}";
+    }
+}
@@ -0,0 +1,74 @@
+package org.hkprog.thedb.storage;
+
+import java.util.Arrays;
+
+/**
+ * LRU-K eviction - evicts the frame whose K-th most recent access is oldest
+ *
+ * Frames with fewer than K recorded accesses have an infinite backward
+ * K-distance and are evicted first, in order of their oldest access. This
+ * keeps a single sequential scan from flushing out frequently used pages.
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+    
+    private final int k;
+    private final long[][] history;
+    private final int[] accessCount;
+    private final boolean[] evictable;
+    private long clock;
+    
+    public LruKEvictionPolicy(int frameCount, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("LRU-K requires K >= 1");
+        }
+        this.k = k;
+        this.history = new long[frameCount][k];
+        this.accessCount = new int[frameCount];
+        this.evictable = new boolean[frameCount];
+        this.clock = 0;
+    }
+    
+    @Override
+    public void recordAccess(int frameId) {
+        // history[frameId] is a ring buffer of the last K access timestamps
+        history[frameId][accessCount[frameId] % k] = ++clock;
+        accessCount[frameId]++;
+    }
+    
+    @Override
+    public void setEvictable(int frameId, boolean evictable) {
+        this.evictable[frameId] = evictable;
+    }
+    
+    @Override
+    public int evict() {
+        int victim = -1;
+        boolean victimHasK = true;
+        long victimTime = Long.MAX_VALUE;
+        for (int frameId = 0; frameId < evictable.length; frameId++) {
+            if (!evictable[frameId]) {
+                continue;
+            }
+            int count = accessCount[frameId];
+            boolean hasK = count >= k;
+            // Oldest retained access: the K-th most recent one, or the first one if fewer than K
+            long time = count == 0 ? 0 : history[frameId][hasK ? count % k : 0];
+            if (victim < 0 || (victimHasK && !hasK) || (victimHasK == hasK && time < victimTime)) {
+                victim = frameId;
+                victimHasK = hasK;
+                victimTime = time;
+            }
+        }
+        if (victim >= 0) {
+            remove(victim);
+        }
+        return victim;
+    }
+    
+    @Override
+    public void remove(int frameId) {
+        evictable[frameId] = false;
+        accessCount[frameId] = 0;
+        Arrays.fill(history[frameId], 0);
+    }
+}
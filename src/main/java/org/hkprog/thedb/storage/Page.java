@@ -0,0 +1,386 @@
+package org.hkprog.thedb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Slotted page - fixed-size page holding variable-length records
+ *
+ * Layout:
+ * <pre>
+ * +--------+----------------+---------------+----------------------+
+ * | header | slot directory | free space -> | &lt;- record data       |
+ * +--------+----------------+---------------+----------------------+
+ * </pre>
+ * The header holds the LSN of the last log record applied to the page,
+ * the slot count and the start of the record data. The slot directory grows
+ * forward from the header and record data grows backward from the end of the page. Each slot stores the offset and length
+ * of its record; an offset of 0 marks an empty slot that can be reused.
+ *
+ * An empty slot that keeps a length is a tombstone: its record was deleted
+ * by a transaction that has not finished yet. The slot number and the
+ * record's bytes stay reserved until the tombstone is released, so a
+ * rollback can put the record back under its row id.
+ */
+public class Page {
+    
+    public static final int PAGE_SIZE = 4096;
+    
+    private static final int PAGE_LSN_OFFSET = 0;
+    private static final int SLOT_COUNT_OFFSET = 8;
+    private static final int FREE_SPACE_END_OFFSET = 10;
+    static final int HEADER_SIZE = 12;
+    private static final int SLOT_SIZE = 4;
+    
+    /**
+     * Largest record that fits into an empty page
+     */
+    public static final int MAX_RECORD_SIZE = PAGE_SIZE - HEADER_SIZE - SLOT_SIZE;
+    
+    private final byte[] data;
+    private final ByteBuffer buffer;
+    private PageId pageId;
+    
+    public Page() {
+        this(new byte[PAGE_SIZE]);
+        init();
+    }
+    
+    public Page(byte[] data) {
+        if (data.length != PAGE_SIZE) {
+            throw new IllegalArgumentException("Invalid page size: " + data.length);
+        }
+        this.data = data;
+        this.buffer = ByteBuffer.wrap(data);
+    }
+    
+    /**
+     * Format this page as an empty slotted page
+     */
+    public void init() {
+        Arrays.fill(data, (byte) 0);
+        setSlotCount(0);
+        setFreeSpaceEnd(PAGE_SIZE);
+    }
+    
+    public byte[] getData() { return data; }
+    
+    /**
+     * The page currently held in this buffer, set by the buffer pool
+     */
+    public PageId getPageId() { return pageId; }
+    
+    void setPageId(PageId pageId) {
+        this.pageId = pageId;
+    }
+    
+    /**
+     * LSN of the last logged change applied to this page
+     */
+    public long getLsn() {
+        return buffer.getLong(PAGE_LSN_OFFSET);
+    }
+    
+    public void setLsn(long lsn) {
+        buffer.putLong(PAGE_LSN_OFFSET, lsn);
+    }
+    
+    public int getSlotCount() {
+        return buffer.getShort(SLOT_COUNT_OFFSET) & 0xFFFF;
+    }
+    
+    private void setSlotCount(int count) {
+        buffer.putShort(SLOT_COUNT_OFFSET, (short) count);
+    }
+    
+    private int getFreeSpaceEnd() {
+        int end = buffer.getShort(FREE_SPACE_END_OFFSET) & 0xFFFF;
+        // An all-zero page was allocated but never written: treat it as empty
+        return end == 0 ? PAGE_SIZE : end;
+    }
+    
+    private void setFreeSpaceEnd(int end) {
+        buffer.putShort(FREE_SPACE_END_OFFSET, (short) end);
+    }
+    
+    private int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+    
+    private int getSlotOffset(int slot) {
+        return buffer.getShort(slotPosition(slot)) & 0xFFFF;
+    }
+    
+    private int getSlotLength(int slot) {
+        return buffer.getShort(slotPosition(slot) + 2) & 0xFFFF;
+    }
+    
+    private void setSlot(int slot, int offset, int length) {
+        buffer.putShort(slotPosition(slot), (short) offset);
+        buffer.putShort(slotPosition(slot) + 2, (short) length);
+    }
+    
+    /**
+     * Check whether a slot holds a live record
+     */
+    public boolean isSlotUsed(int slot) {
+        return slot >= 0 && slot < getSlotCount() && getSlotOffset(slot) != 0;
+    }
+    
+    /**
+     * Check whether a slot is a tombstone reserved by {@link #tombstoneRecord}
+     */
+    public boolean isTombstone(int slot) {
+        return slot >= 0 && slot < getSlotCount() && getSlotOffset(slot) == 0 && getSlotLength(slot) != 0;
+    }
+    
+    /**
+     * Contiguous free bytes between the slot directory and the record data
+     */
+    private int getContiguousFreeSpace() {
+        return getFreeSpaceEnd() - slotPosition(getSlotCount());
+    }
+    
+    /**
+     * Total free bytes in the page, including space left by deleted records
+     * but not the space reserved by tombstones
+     */
+    public int getFreeSpace() {
+        int used = 0;
+        int slotCount = getSlotCount();
+        for (int i = 0; i < slotCount; i++) {
+            // Empty slots have length 0; tombstones keep their record's length
+            used += getSlotLength(i);
+        }
+        return PAGE_SIZE - slotPosition(slotCount) - used;
+    }
+    
+    /**
+     * Check whether a record of the given length can be inserted
+     */
+    public boolean canInsert(int length) {
+        int needed = length + (findEmptySlot() < 0 ? SLOT_SIZE : 0);
+        return getFreeSpace() >= needed;
+    }
+    
+    private int findEmptySlot() {
+        int slotCount = getSlotCount();
+        for (int i = 0; i < slotCount; i++) {
+            if (getSlotOffset(i) == 0 && getSlotLength(i) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Insert a record, returning its slot number or -1 if the page is full
+     */
+    public int insertRecord(byte[] record) {
+        return insertRecord(record, 0);
+    }
+    
+    /**
+     * Insert a record leaving at least reserved bytes free, returning its
+     * slot number or -1 if the page is full
+     */
+    public int insertRecord(byte[] record, int reserved) {
+        if (record.length > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Record too large for page: " + record.length + " bytes");
+        }
+        int slot = findEmptySlot();
+        int needed = record.length + (slot < 0 ? SLOT_SIZE : 0);
+        if (getFreeSpace() - reserved < needed) {
+            return -1;
+        }
+        if (getContiguousFreeSpace() < needed) {
+            compact();
+        }
+        if (slot < 0) {
+            slot = getSlotCount();
+            setSlotCount(slot + 1);
+        }
+        writeRecord(slot, record);
+        return slot;
+    }
+    
+    /**
+     * Add a record in a new slot at the end of the directory, returning its
+     * slot number or -1 if it does not fit into the contiguous free space.
+     * Unlike insertRecord it neither looks for an empty slot nor compacts,
+     * which makes filling a new page linear.
+     */
+    public int appendRecord(byte[] record) {
+        int slot = getSlotCount();
+        if (getContiguousFreeSpace() < record.length + SLOT_SIZE) {
+            return -1;
+        }
+        setSlotCount(slot + 1);
+        writeRecord(slot, record);
+        return slot;
+    }
+    
+    /**
+     * Place a record into a specific slot, growing the slot directory if needed.
+     * Used when a row must keep its row id (redo, undo of a delete).
+     */
+    public void insertRecordAt(int slot, byte[] record) {
+        if (isTombstone(slot)) {
+            setSlot(slot, 0, 0);
+        }
+        int slotCount = getSlotCount();
+        int needed = record.length + Math.max(0, slot + 1 - slotCount) * SLOT_SIZE;
+        if (getFreeSpace() < needed) {
+            throw new IllegalStateException("No room for record in slot " + slot);
+        }
+        if (getContiguousFreeSpace() < needed) {
+            compact();
+        }
+        for (int i = slotCount; i <= slot; i++) {
+            setSlot(i, 0, 0);
+        }
+        if (slot >= slotCount) {
+            setSlotCount(slot + 1);
+        }
+        writeRecord(slot, record);
+    }
+    
+    private void writeRecord(int slot, byte[] record) {
+        int offset = getFreeSpaceEnd() - record.length;
+        System.arraycopy(record, 0, data, offset, record.length);
+        setFreeSpaceEnd(offset);
+        setSlot(slot, offset, record.length);
+    }
+    
+    /**
+     * Read the record stored in a slot, or null if the slot is empty
+     */
+    public byte[] getRecord(int slot) {
+        if (!isSlotUsed(slot)) {
+            return null;
+        }
+        int offset = getSlotOffset(slot);
+        int length = getSlotLength(slot);
+        byte[] record = new byte[length];
+        System.arraycopy(data, offset, record, 0, length);
+        return record;
+    }
+    
+    /**
+     * Delete the record in a slot; the slot stays in the directory for reuse
+     */
+    public void deleteRecord(int slot) {
+        if (!isSlotUsed(slot)) {
+            throw new IllegalArgumentException("Slot is empty: " + slot);
+        }
+        setSlot(slot, 0, 0);
+        trimSlots();
+    }
+    
+    /**
+     * Delete the record in a slot but keep the slot and the record's space
+     * reserved, until {@link #releaseTombstone} or a put into the slot
+     */
+    public void tombstoneRecord(int slot) {
+        if (!isSlotUsed(slot)) {
+            throw new IllegalArgumentException("Slot is empty: " + slot);
+        }
+        setSlot(slot, 0, getSlotLength(slot));
+    }
+    
+    /**
+     * Make a tombstoned slot and its space free for reuse; other slots are left alone
+     */
+    public void releaseTombstone(int slot) {
+        if (isTombstone(slot)) {
+            setSlot(slot, 0, 0);
+            trimSlots();
+        }
+    }
+    
+    /**
+     * Trim trailing empty slots so the directory does not grow forever
+     */
+    private void trimSlots() {
+        int slotCount = getSlotCount();
+        while (slotCount > 0 && getSlotOffset(slotCount - 1) == 0 && getSlotLength(slotCount - 1) == 0) {
+            slotCount--;
+        }
+        setSlotCount(slotCount);
+    }
+    
+    /**
+     * Set the contents of a slot whatever it held before; null empties the slot,
+     * releasing a tombstone. Used to reapply logged changes during recovery and rollback.
+     */
+    public void putRecord(int slot, byte[] record) {
+        if (record == null) {
+            if (isSlotUsed(slot)) {
+                deleteRecord(slot);
+            } else {
+                releaseTombstone(slot);
+            }
+            return;
+        }
+        if (isSlotUsed(slot)) {
+            if (updateRecord(slot, record)) {
+                return;
+            }
+            deleteRecord(slot);
+        }
+        insertRecordAt(slot, record);
+    }
+    
+    /**
+     * Replace the record in a slot, returning false if the new record does not fit
+     */
+    public boolean updateRecord(int slot, byte[] record) {
+        return updateRecord(slot, record, 0);
+    }
+    
+    /**
+     * Replace the record in a slot leaving at least reserved bytes free,
+     * returning false if the new record does not fit
+     */
+    public boolean updateRecord(int slot, byte[] record, int reserved) {
+        if (!isSlotUsed(slot)) {
+            throw new IllegalArgumentException("Slot is empty: " + slot);
+        }
+        int oldLength = getSlotLength(slot);
+        if (record.length <= oldLength) {
+            int offset = getSlotOffset(slot);
+            System.arraycopy(record, 0, data, offset, record.length);
+            setSlot(slot, offset, record.length);
+            return true;
+        }
+        if (getFreeSpace() - reserved + oldLength < record.length) {
+            return false;
+        }
+        setSlot(slot, 0, 0);
+        if (getContiguousFreeSpace() < record.length) {
+            compact();
+        }
+        writeRecord(slot, record);
+        return true;
+    }
+    
+    /**
+     * Move all live records to the end of the page, removing holes
+     */
+    private void compact() {
+        int slotCount = getSlotCount();
+        byte[] copy = data.clone();
+        int end = PAGE_SIZE;
+        for (int i = 0; i < slotCount; i++) {
+            int offset = getSlotOffset(i);
+            if (offset == 0) {
+                continue;
+            }
+            int length = getSlotLength(i);
+            end -= length;
+            System.arraycopy(copy, offset, data, end, length);
+            setSlot(i, end, length);
+        }
+        setFreeSpaceEnd(end);
+    }
+}
@@ -0,0 +1,36 @@
+package org.hkprog.thedb.storage;
+
+/**
+ * Identifies a page on disk: (file id, page number)
+ */
+public final class PageId {
+    
+    private final int fileId;
+    private final int pageNo;
+    
+    public PageId(int fileId, int pageNo) {
+        this.fileId = fileId;
+        this.pageNo = pageNo;
+    }
+    
+    public int getFileId() { return fileId; }
+    public int getPageNo() { return pageNo; }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PageId)) return false;
+        PageId other = (PageId) o;
+        return fileId == other.fileId && pageNo == other.pageNo;
+    }
+    
+    @Override
+    public int hashCode() {
+        return 31 * fileId + pageNo;
+    }
+    
+    @Override
+    public String toString() {
+        return fileId + ":" + pageNo;
+    }
+}
@@ -0,0 +1,296 @@
+package org.hkprog.thedb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.IntFunction;
+
+/**
+ * Recovery Manager - ARIES-style crash recovery and fuzzy checkpoints
+ *
+ * Recovery runs in three passes over the write-ahead log:
+ * <ol>
+ * <li>Analysis - starting at the last checkpoint, rebuild the table of
+ *     unfinished transactions and the table of pages that may be dirty.</li>
+ * <li>Redo - from the oldest recovery LSN in the dirty page table, reapply
+ *     every change whose page LSN shows it is missing from the page.</li>
+ * <li>Undo - roll back the unfinished transactions, logging a CLR for each
+ *     undone change so that a crash during recovery never repeats work.</li>
+ * </ol>
+ *
+ * A checkpoint does not stop writers: it logs a snapshot of the active
+ * transactions and the buffer pool's dirty pages between CHECKPOINT_BEGIN and
+ * CHECKPOINT_END records. Dirty pages are written by the buffer pool's own
+ * flusher, so each checkpoint moves the redo starting point forward and the
+ * log before it can be dropped. This bounds the time spent replaying the
+ * log by the checkpoint interval rather than by server uptime.
+ *
+ * Only heap pages are recovered here. Index pages are not logged, so after a
+ * crash the storage engine rebuilds every index from its table once
+ * recovery is done, and that part of a restart grows with the indexed data.
+ */
+public class RecoveryManager implements Closeable {
+    
+    private final WriteAheadLog wal;
+    private final BufferPool bufferPool;
+    private final TransactionManager txnManager;
+    private final IntFunction<HeapFile> heapFiles;
+    
+    private Thread checkpointer;
+    private volatile boolean running;
+    private long lastCheckpointEndLsn;
+    
+    private long checkpointCount;
+    private long recoveryMillis;
+    private long bytesReplayed;
+    private long recordsRedone;
+    private int transactionsRolledBack;
+    
+    /**
+     * The log is only truncated when it frees at least this many bytes
+     */
+    private static final long MIN_TRUNCATE_BYTES = 1024 * 1024;
+    
+    public RecoveryManager(WriteAheadLog wal, BufferPool bufferPool, TransactionManager txnManager,
+                           IntFunction<HeapFile> heapFiles) {
+        this.wal = wal;
+        this.bufferPool = bufferPool;
+        this.txnManager = txnManager;
+        this.heapFiles = heapFiles;
+    }
+    
+    /**
+     * Bring all open heap files to a consistent state after a crash, then take a checkpoint
+     */
+    public synchronized void recover() throws IOException {
+        long start = System.nanoTime();
+        long endLsn = wal.getEndLsn();
+        
+        // Analysis
+        Map<Long, Long> activeTxns = new HashMap<>();
+        Map<PageId, Long> dirtyPages = new HashMap<>();
+        Set<Long> finishedTxns = new HashSet<>();
+        long scanLsn = wal.getCheckpointLsn() >= 0 ? wal.getCheckpointLsn() : wal.getStartLsn();
+        boolean checkpointLoaded = false;
+        for (LogRecord record = wal.read(scanLsn); record != null; record = wal.read(record.getLsn() + record.size())) {
+            switch (record.getType()) {
+                case COMMIT:
+                case ABORT:
+                    activeTxns.remove(record.getTxnId());
+                    finishedTxns.add(record.getTxnId());
+                    break;
+                case CHECKPOINT_BEGIN:
+                    break;
+                case CHECKPOINT_END:
+                    if (!checkpointLoaded) {
+                        checkpointLoaded = true;
+                        loadCheckpoint(record.getAfter(), activeTxns, dirtyPages, finishedTxns);
+                    }
+                    break;
+                default:
+                    activeTxns.put(record.getTxnId(), record.getLsn());
+                    if (record.isPageChange()) {
+                        dirtyPages.putIfAbsent(record.getPageId(), record.getLsn());
+                    }
+            }
+        }
+        
+        // Redo
+        long redoLsn = dirtyPages.isEmpty() ? endLsn : Collections.min(dirtyPages.values());
+        for (LogRecord record = redoLsn < endLsn ? wal.read(redoLsn) : null; record != null;
+             record = wal.read(record.getLsn() + record.size())) {
+            if (!record.isPageChange()) {
+                continue;
+            }
+            Long recLsn = dirtyPages.get(record.getPageId());
+            HeapFile heapFile = heapFiles.apply(record.getFileId());
+            if (recLsn == null || record.getLsn() < recLsn || heapFile == null) {
+                continue;
+            }
+            if (heapFile.redo(record)) {
+                recordsRedone++;
+            }
+        }
+        bytesReplayed = endLsn - redoLsn;
+        
+        // Undo
+        undo(activeTxns);
+        transactionsRolledBack = activeTxns.size();
+        
+        wal.flushAll();
+        bufferPool.flushAll();
+        checkpoint();
+        recoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Recovery completed in " + recoveryMillis + " ms: replayed " + bytesReplayed
+                + " bytes of log (" + recordsRedone + " changes redone, "
+                + transactionsRolledBack + " transactions rolled back)");
+    }
+    
+    /**
+     * Roll back the losers together, always undoing the most recent change first
+     */
+    private void undo(Map<Long, Long> losers) throws IOException {
+        PriorityQueue<long[]> toUndo = new PriorityQueue<>((a, b) -> Long.compare(b[1], a[1]));
+        Map<Long, Transaction> txns = new HashMap<>();
+        for (Map.Entry<Long, Long> loser : losers.entrySet()) {
+            txns.put(loser.getKey(), txnManager.resume(loser.getKey(), loser.getValue()));
+            toUndo.add(new long[] {loser.getKey(), loser.getValue()});
+        }
+        while (!toUndo.isEmpty()) {
+            long[] next = toUndo.poll();
+            Transaction txn = txns.get(next[0]);
+            LogRecord record = wal.read(next[1]);
+            if (record == null) {
+                throw new IllegalStateException("Missing log record " + next[1] + " of transaction " + next[0]);
+            }
+            long undoNextLsn;
+            if (record.getType() == LogRecord.Type.CLR) {
+                undoNextLsn = record.getUndoNextLsn();
+            } else {
+                if (record.isPageChange()) {
+                    HeapFile heapFile = heapFiles.apply(record.getFileId());
+                    if (heapFile != null) {
+                        heapFile.undo(txn, record);
+                    }
+                }
+                undoNextLsn = record.getPrevLsn();
+            }
+            if (undoNextLsn < 0) {
+                txnManager.endRollback(txn);
+            } else {
+                toUndo.add(new long[] {next[0], undoNextLsn});
+            }
+        }
+    }
+    
+    private static void loadCheckpoint(byte[] tables, Map<Long, Long> activeTxns, Map<PageId, Long> dirtyPages,
+                                       Set<Long> finishedTxns) {
+        ByteBuffer buffer = ByteBuffer.wrap(tables);
+        int txnCount = buffer.getInt();
+        for (int i = 0; i < txnCount; i++) {
+            long txnId = buffer.getLong();
+            long lastLsn = buffer.getLong();
+            // Records after CHECKPOINT_BEGIN were already seen and are newer than the snapshot
+            if (!finishedTxns.contains(txnId)) {
+                activeTxns.merge(txnId, lastLsn, Math::max);
+            }
+        }
+        int pageCount = buffer.getInt();
+        for (int i = 0; i < pageCount; i++) {
+            PageId pageId = new PageId(buffer.getInt(), buffer.getInt());
+            dirtyPages.merge(pageId, buffer.getLong(), Math::min);
+        }
+    }
+    
+    private static byte[] encodeCheckpoint(Map<Long, Long> activeTxns, Map<PageId, Long> dirtyPages) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + activeTxns.size() * 16 + dirtyPages.size() * 16);
+        buffer.putInt(activeTxns.size());
+        for (Map.Entry<Long, Long> txn : activeTxns.entrySet()) {
+            buffer.putLong(txn.getKey()).putLong(txn.getValue());
+        }
+        buffer.putInt(dirtyPages.size());
+        for (Map.Entry<PageId, Long> page : dirtyPages.entrySet()) {
+            buffer.putInt(page.getKey().getFileId()).putInt(page.getKey().getPageNo()).putLong(page.getValue());
+        }
+        return buffer.array();
+    }
+    
+    /**
+     * Take a fuzzy checkpoint and drop log records that recovery no longer needs
+     */
+    public synchronized void checkpoint() throws IOException {
+        long beginLsn = wal.append(LogRecord.control(LogRecord.Type.CHECKPOINT_BEGIN, 0, -1));
+        Map<Long, Long> activeTxns = txnManager.snapshotActiveTransactions();
+        Map<PageId, Long> dirtyPages = bufferPool.getDirtyPageTable();
+        long endLsn = wal.append(LogRecord.checkpointEnd(encodeCheckpoint(activeTxns, dirtyPages)));
+        wal.flush(endLsn);
+        wal.setCheckpointLsn(beginLsn);
+        lastCheckpointEndLsn = endLsn;
+        checkpointCount++;
+        
+        long keepFrom = Math.min(beginLsn, txnManager.getOldestActiveLsn());
+        for (long recLsn : dirtyPages.values()) {
+            keepFrom = Math.min(keepFrom, recLsn);
+        }
+        long reclaimable = keepFrom - wal.getStartLsn();
+        // Copying the tail costs about as much as the space it frees; only do it when that pays off
+        if (reclaimable >= MIN_TRUNCATE_BYTES && reclaimable >= wal.getEndLsn() - keepFrom) {
+            wal.truncateBefore(keepFrom);
+        }
+    }
+    
+    /**
+     * Start taking checkpoints in the background, every intervalSeconds or
+     * whenever logBytes of log were written since the last one
+     */
+    public synchronized void startCheckpointer(long intervalSeconds, long logBytes) {
+        if (checkpointer != null) {
+            return;
+        }
+        running = true;
+        checkpointer = new Thread(() -> runCheckpointer(intervalSeconds * 1000, logBytes), "thedb-checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+    
+    private void runCheckpointer(long intervalMillis, long logBytes) {
+        long lastCheckpoint = System.currentTimeMillis();
+        while (running) {
+            try {
+                long sinceLast;
+                synchronized (this) {
+                    wait(Math.min(1000, intervalMillis));
+                    if (!running) {
+                        return;
+                    }
+                    sinceLast = wal.getEndLsn() - lastCheckpointEndLsn;
+                }
+                if (System.currentTimeMillis() - lastCheckpoint >= intervalMillis || sinceLast >= logBytes) {
+                    checkpoint();
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Checkpoint failed: " + e.getMessage());
+            }
+        }
+    }
+    
+    public synchronized long getCheckpointCount() { return checkpointCount; }
+    
+    /**
+     * Duration of the last recovery
+     */
+    public synchronized long getRecoveryMillis() { return recoveryMillis; }
+    
+    /**
+     * Bytes of log scanned by the redo pass of the last recovery
+     */
+    public synchronized long getBytesReplayed() { return bytesReplayed; }
+    
+    public synchronized long getRecordsRedone() { return recordsRedone; }
+    
+    public synchronized int getTransactionsRolledBack() { return transactionsRolledBack; }
+    
+    /**
+     * Stop the background checkpointer, letting a running checkpoint finish
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = checkpointer;
+            checkpointer = null;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
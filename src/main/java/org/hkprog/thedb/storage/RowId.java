@@ -0,0 +1,53 @@
+package org.hkprog.thedb.storage;
+
+/**
+ * Stable address of a row in a heap file: (page number, slot number)
+ */
+public final class RowId implements Comparable<RowId> {
+    
+    private final int pageNo;
+    private final int slot;
+    
+    public RowId(int pageNo, int slot) {
+        this.pageNo = pageNo;
+        this.slot = slot;
+    }
+    
+    public int getPageNo() { return pageNo; }
+    public int getSlot() { return slot; }
+    
+    /**
+     * Pack this row id into a single long
+     */
+    public long toLong() {
+        return ((long) pageNo << 32) | (slot & 0xFFFFFFFFL);
+    }
+    
+    public static RowId fromLong(long value) {
+        return new RowId((int) (value >>> 32), (int) value);
+    }
+    
+    @Override
+    public int compareTo(RowId other) {
+        int cmp = Integer.compare(pageNo, other.pageNo);
+        return cmp != 0 ? cmp : Integer.compare(slot, other.slot);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RowId)) return false;
+        RowId other = (RowId) o;
+        return pageNo == other.pageNo && slot == other.slot;
+    }
+    
+    @Override
+    public int hashCode() {
+        return 31 * pageNo + slot;
+    }
+    
+    @Override
+    public String toString() {
+        return "(" + pageNo + "," + slot + ")";
+    }
+}
@@ -0,0 +1,218 @@
+package org.hkprog.thedb.storage;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Row Serializer - converts rows to and from their on-page byte format
+ *
+ * Values are written in the column order of the table schema, each prefixed
+ * with a one-byte type tag. A decoded {@link StorageEngine.Row} keeps the
+ * record as its text buffer: strings and decimals are referred to by offset
+ * and only turned into objects when they are read.
+ */
+public class RowSerializer {
+    
+    static final byte TAG_NULL = 0;
+    static final byte TAG_INT = 1;
+    static final byte TAG_LONG = 2;
+    static final byte TAG_DOUBLE = 3;
+    static final byte TAG_STRING = 4;
+    static final byte TAG_BOOLEAN = 5;
+    static final byte TAG_DECIMAL = 6;
+    /** In memory only: a decimal kept as its plain text in the row buffer; written as TAG_DECIMAL */
+    static final byte TAG_DECIMAL_TEXT = 7;
+    
+    private static final int DECIMAL_SCALE_BITS = 8;
+    
+    private final StorageEngine.TableSchema schema;
+    
+    /**
+     * Receives the values of a decoded row column by column, without boxing
+     */
+    public interface ValueConsumer {
+        void putNull(int column);
+        void putInt(int column, int value);
+        void putLong(int column, long value);
+        void putDouble(int column, double value);
+        void putBoolean(int column, boolean value);
+        void putDecimal(int column, BigDecimal value);
+        void putString(int column, String value);
+    }
+    
+    public RowSerializer(StorageEngine.TableSchema schema) {
+        this.schema = schema;
+    }
+    
+    // ---- slot layout ----
+    
+    /**
+     * Whether a decimal fits a slot: an unscaled value of up to 56 bits and a scale of 0 to 255
+     */
+    static boolean fitsSlot(BigDecimal value) {
+        return value.scale() >= 0 && value.scale() < (1 << DECIMAL_SCALE_BITS)
+                && value.unscaledValue().bitLength() < Long.SIZE - DECIMAL_SCALE_BITS;
+    }
+    
+    static long decimalSlot(BigDecimal value) {
+        return value.unscaledValue().longValue() << DECIMAL_SCALE_BITS | value.scale();
+    }
+    
+    static BigDecimal decimalOf(long slot) {
+        return BigDecimal.valueOf(slot >> DECIMAL_SCALE_BITS, (int) (slot & ((1 << DECIMAL_SCALE_BITS) - 1)));
+    }
+    
+    static long textSlot(int offset, int length) {
+        return (long) offset << 32 | length;
+    }
+    
+    static int textOffset(long slot) {
+        return (int) (slot >>> 32);
+    }
+    
+    static int textLength(long slot) {
+        return (int) slot;
+    }
+    
+    // ---- encoding ----
+    
+    /**
+     * Encode a row into bytes
+     */
+    public byte[] serialize(StorageEngine.Row row) {
+        int columnCount = schema.getColumns().size();
+        String[] decimals = null;
+        int size = columnCount;
+        for (int i = 0; i < columnCount; i++) {
+            switch (row.getType(i)) {
+                case TAG_INT: size += 4; break;
+                case TAG_LONG:
+                case TAG_DOUBLE: size += 8; break;
+                case TAG_BOOLEAN: size += 1; break;
+                case TAG_STRING: size += 4 + textLength(row.getSlot(i)); break;
+                case TAG_DECIMAL_TEXT: size += 2 + textLength(row.getSlot(i)); break;
+                case TAG_DECIMAL:
+                    if (decimals == null) {
+                        decimals = new String[columnCount];
+                    }
+                    decimals[i] = decimalOf(row.getSlot(i)).toPlainString();
+                    size += 2 + decimals[i].length();
+                    break;
+                default:
+                    break;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        byte[] buffer = row.getBuffer();
+        for (int i = 0; i < columnCount; i++) {
+            byte type = row.getType(i);
+            long slot = row.getSlot(i);
+            out.put(type == TAG_DECIMAL_TEXT ? TAG_DECIMAL : type);
+            switch (type) {
+                case TAG_INT: out.putInt((int) slot); break;
+                case TAG_LONG:
+                case TAG_DOUBLE: out.putLong(slot); break;
+                case TAG_BOOLEAN: out.put((byte) slot); break;
+                case TAG_STRING:
+                    out.putInt(textLength(slot));
+                    out.put(buffer, textOffset(slot), textLength(slot));
+                    break;
+                case TAG_DECIMAL_TEXT:
+                    out.putShort((short) textLength(slot));
+                    out.put(buffer, textOffset(slot), textLength(slot));
+                    break;
+                case TAG_DECIMAL:
+                    out.putShort((short) decimals[i].length());
+                    out.put(decimals[i].getBytes(StandardCharsets.US_ASCII));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return out.array();
+    }
+    
+    // ---- decoding ----
+    
+    /**
+     * Decode a row from bytes. The row refers to the array, which must not be changed afterwards.
+     */
+    public StorageEngine.Row deserialize(byte[] data) {
+        int columnCount = schema.getColumns().size();
+        byte[] types = new byte[columnCount];
+        long[] slots = new long[columnCount];
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            for (int i = 0; i < columnCount; i++) {
+                byte tag = in.get();
+                types[i] = tag;
+                switch (tag) {
+                    case TAG_NULL: break;
+                    case TAG_INT: slots[i] = in.getInt(); break;
+                    case TAG_LONG:
+                    case TAG_DOUBLE: slots[i] = in.getLong(); break;
+                    case TAG_BOOLEAN: slots[i] = in.get() != 0 ? 1 : 0; break;
+                    case TAG_STRING: slots[i] = skipText(in, in.getInt()); break;
+                    case TAG_DECIMAL:
+                        types[i] = TAG_DECIMAL_TEXT;
+                        slots[i] = skipText(in, in.getShort() & 0xFFFF);
+                        break;
+                    default:
+                        throw corrupt("unknown type tag " + tag);
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw corrupt("record is truncated");
+        }
+        return new StorageEngine.Row(schema, types, slots, data);
+    }
+    
+    private static long skipText(ByteBuffer in, int length) {
+        int offset = in.position();
+        in.position(offset + length);
+        return textSlot(offset, length);
+    }
+    
+    private static UncheckedIOException corrupt(String message) {
+        return new UncheckedIOException(new IOException("Corrupt row data: " + message));
+    }
+    
+    /**
+     * Decode a row straight into a consumer, in schema column order
+     */
+    public void decode(byte[] data, ValueConsumer consumer) {
+        int columnCount = schema.getColumns().size();
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            for (int column = 0; column < columnCount; column++) {
+                byte tag = in.get();
+                switch (tag) {
+                    case TAG_NULL: consumer.putNull(column); break;
+                    case TAG_INT: consumer.putInt(column, in.getInt()); break;
+                    case TAG_LONG: consumer.putLong(column, in.getLong()); break;
+                    case TAG_DOUBLE: consumer.putDouble(column, in.getDouble()); break;
+                    case TAG_BOOLEAN: consumer.putBoolean(column, in.get() != 0); break;
+                    case TAG_DECIMAL: {
+                        int length = in.getShort() & 0xFFFF;
+                        consumer.putDecimal(column, new BigDecimal(new String(data, in.position(), length, StandardCharsets.US_ASCII)));
+                        in.position(in.position() + length);
+                        break;
+                    }
+                    case TAG_STRING: {
+                        int length = in.getInt();
+                        consumer.putString(column, new String(data, in.position(), length, StandardCharsets.UTF_8));
+                        in.position(in.position() + length);
+                        break;
+                    }
+                    default:
+                        throw corrupt("unknown type tag " + tag);
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw corrupt("record is truncated");
+        }
+    }
+}
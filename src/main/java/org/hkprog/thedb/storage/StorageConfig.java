@@ -0,0 +1,88 @@
+package org.hkprog.thedb.storage;
+
+/**
+ * Storage Config - tuning options for the storage engine
+ */
+public class StorageConfig {
+    
+    private final String dataDirectory;
+    private int bufferPoolPages = 8192;
+    private String evictionPolicy = "clock";
+    private long flushIntervalMillis = 1000;
+    private WriteAheadLog.SyncMode walSyncMode = WriteAheadLog.SyncMode.GROUP;
+    private long groupCommitDelayMicros = 1000;
+    private int groupCommitMaxBatch = 64;
+    private long checkpointIntervalSeconds = 60;
+    private long checkpointLogBytes = 64L * 1024 * 1024;
+    private long workMemoryBytes = 64L * 1024 * 1024;
+    private String secureFileDirectory = "";
+    
+    public StorageConfig(String dataDirectory) {
+        this.dataDirectory = dataDirectory;
+    }
+    
+    public String getDataDirectory() { return dataDirectory; }
+    
+    /**
+     * Number of pages the buffer pool can hold
+     */
+    public int getBufferPoolPages() { return bufferPoolPages; }
+    public void setBufferPoolPages(int bufferPoolPages) { this.bufferPoolPages = bufferPoolPages; }
+    
+    /**
+     * Buffer pool eviction policy: "clock", "lru-k" or "lru-N"
+     */
+    public String getEvictionPolicy() { return evictionPolicy; }
+    public void setEvictionPolicy(String evictionPolicy) { this.evictionPolicy = evictionPolicy; }
+    
+    /**
+     * How often the background flusher writes dirty pages
+     */
+    public long getFlushIntervalMillis() { return flushIntervalMillis; }
+    public void setFlushIntervalMillis(long flushIntervalMillis) { this.flushIntervalMillis = flushIntervalMillis; }
+    
+    /**
+     * How commits are made durable: per-commit, group or async
+     */
+    public WriteAheadLog.SyncMode getWalSyncMode() { return walSyncMode; }
+    public void setWalSyncMode(WriteAheadLog.SyncMode walSyncMode) { this.walSyncMode = walSyncMode; }
+    
+    /**
+     * Longest time a commit waits for others to share its log sync (group mode),
+     * or the log sync interval (async mode)
+     */
+    public long getGroupCommitDelayMicros() { return groupCommitDelayMicros; }
+    public void setGroupCommitDelayMicros(long groupCommitDelayMicros) { this.groupCommitDelayMicros = groupCommitDelayMicros; }
+    
+    /**
+     * Number of waiting commits that triggers a log sync without waiting for the delay
+     */
+    public int getGroupCommitMaxBatch() { return groupCommitMaxBatch; }
+    public void setGroupCommitMaxBatch(int groupCommitMaxBatch) { this.groupCommitMaxBatch = groupCommitMaxBatch; }
+    
+    /**
+     * Longest time between checkpoints
+     */
+    public long getCheckpointIntervalSeconds() { return checkpointIntervalSeconds; }
+    public void setCheckpointIntervalSeconds(long checkpointIntervalSeconds) { this.checkpointIntervalSeconds = checkpointIntervalSeconds; }
+    
+    /**
+     * Amount of log written that triggers a checkpoint before the interval is up
+     */
+    public long getCheckpointLogBytes() { return checkpointLogBytes; }
+    public void setCheckpointLogBytes(long checkpointLogBytes) { this.checkpointLogBytes = checkpointLogBytes; }
+    
+    /**
+     * Memory one query operator (such as a hash join, a sort or a GROUP BY) may use before it
+     * spills to temporary files
+     */
+    public long getWorkMemoryBytes() { return workMemoryBytes; }
+    public void setWorkMemoryBytes(long workMemoryBytes) { this.workMemoryBytes = workMemoryBytes; }
+    
+    /**
+     * Directory LOAD DATA INFILE may read from, like MySQL's secure_file_priv: null disables
+     * LOAD DATA INFILE, an empty string allows any file the process can read
+     */
+    public String getSecureFileDirectory() { return secureFileDirectory; }
+    public void setSecureFileDirectory(String secureFileDirectory) { this.secureFileDirectory = secureFileDirectory; }
+}
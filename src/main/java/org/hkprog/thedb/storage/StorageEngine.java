@@ -1,78 +1,1170 @@
 package org.hkprog.thedb.storage;
 
 import java.io.*;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
 
 /**
  * Storage Engine - manages persistent data storage
+ *
+ * Every table is stored in its own heap file ({@code <table>.tbl}) inside the
+ * data directory. Table definitions are kept in a catalog file so that tables
+ * survive a restart. All page access goes through a shared buffer pool, and
+ * every row change is recorded in the write-ahead log ({@code wal.log}) as
+ * part of a transaction. On startup the log is replayed to repair the
+ * tables after a crash, and checkpoints are taken in the background.
+ *
+ * Secondary indexes are B+ trees in their own files
+ * ({@code <table>.<index>.idx}). They are not logged; if the server did not
+ * shut down cleanly they are rebuilt from the tables after recovery.
  */
-public class StorageEngine {
+public class StorageEngine implements Closeable {
+    
+    private static final String CATALOG_FILE = "catalog.dat";
+    private static final String TABLE_FILE_SUFFIX = ".tbl";
+    private static final String INDEX_FILE_SUFFIX = ".idx";
+    private static final String WAL_FILE = "wal.log";
+    private static final String CLEAN_SHUTDOWN_FILE = "clean-shutdown";
+    private static final String TEMP_DIRECTORY = "tmp";
+    private static final int CATALOG_VERSION = 5;
     
     private final String dataDirectory;
+    private final long workMemoryBytes;
+    private final String secureFileDirectory;
     private final Map<String, Table> tables;
+    private final DiskManager diskManager;
+    private final BufferPool bufferPool;
+    private final WriteAheadLog wal;
+    private final TransactionManager txnManager;
+    private final RecoveryManager recoveryManager;
+    private final Map<Integer, Table> tablesByFileId;
+    private int nextFileId;
+    private final Map<String, Long> tableVersions = new ConcurrentHashMap<>();
+    private long catalogVersion;
     
     public StorageEngine(String dataDirectory) {
-        this.dataDirectory = dataDirectory;
-        this.tables = new HashMap<>();
+        this(new StorageConfig(dataDirectory));
+    }
+    
+    public StorageEngine(StorageConfig config) {
+        this.dataDirectory = config.getDataDirectory();
+        this.workMemoryBytes = config.getWorkMemoryBytes();
+        this.secureFileDirectory = config.getSecureFileDirectory();
+        this.tables = new LinkedHashMap<>();
+        this.tablesByFileId = new HashMap<>();
+        this.diskManager = new DiskManager();
+        this.bufferPool = new BufferPool(diskManager, config.getBufferPoolPages(),
+                EvictionPolicy.create(config.getEvictionPolicy(), config.getBufferPoolPages()),
+                config.getFlushIntervalMillis());
+        this.nextFileId = 1;
         initializeDataDirectory();
+        try {
+            this.wal = new WriteAheadLog(Paths.get(dataDirectory, WAL_FILE), config.getWalSyncMode(),
+                    config.getGroupCommitDelayMicros(), config.getGroupCommitMaxBatch());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open write-ahead log", e);
+        }
+        this.bufferPool.setWriteAheadLog(wal);
+        this.txnManager = new TransactionManager(wal, this::getHeapFile);
+        List<IndexDefinition> indexes = loadCatalog();
+        boolean cleanShutdown = consumeCleanShutdownMarker();
+        this.recoveryManager = new RecoveryManager(wal, bufferPool, txnManager, this::getHeapFile);
+        try {
+            recoveryManager.recover();
+            if (!cleanShutdown) {
+                // Tombstones of transactions that were running at the crash
+                for (Table table : tables.values()) {
+                    table.heapFile.releaseAll();
+                }
+            }
+            openIndexes(indexes, !cleanShutdown);
+        } catch (IOException e) {
+            throw new RuntimeException("Crash recovery failed", e);
+        }
+        recoveryManager.startCheckpointer(config.getCheckpointIntervalSeconds(), config.getCheckpointLogBytes());
     }
     
     private void initializeDataDirectory() {
         try {
             Files.createDirectories(Paths.get(dataDirectory));
+            // Spill files left behind by queries that were running when the server stopped
+            Path tempDirectory = getTempDirectory();
+            if (Files.isDirectory(tempDirectory)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(tempDirectory)) {
+                    for (Path file : files) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+            Files.createDirectories(tempDirectory);
         } catch (IOException e) {
             throw new RuntimeException("Failed to initialize data directory", e);
         }
     }
     
+    public String getDataDirectory() {
+        return dataDirectory;
+    }
+    
+    /**
+     * Directory for the temporary files of queries that exceed their memory budget
+     */
+    public Path getTempDirectory() {
+        return Paths.get(dataDirectory, TEMP_DIRECTORY);
+    }
+    
+    /**
+     * Memory one query operator may use before it spills to temporary files
+     */
+    public long getWorkMemoryBytes() {
+        return workMemoryBytes;
+    }
+    
+    /**
+     * The file a LOAD DATA INFILE statement names, checked against the secure file directory.
+     * A relative name is resolved in that directory, and the check is made on the real path,
+     * so neither {@code ..} nor a symbolic link leads out of it.
+     */
+    public Path resolveLoadFile(String fileName) throws IOException {
+        if (secureFileDirectory == null) {
+            throw new RuntimeException("LOAD DATA INFILE is disabled on this server");
+        }
+        if (secureFileDirectory.isEmpty()) {
+            return Paths.get(fileName);
+        }
+        Path directory = Paths.get(secureFileDirectory).toRealPath();
+        Path file = directory.resolve(fileName).toRealPath();
+        if (!file.startsWith(directory)) {
+            throw new RuntimeException("File '" + fileName + "' is outside the secure file directory");
+        }
+        return file;
+    }
+    
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+    
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+    
+    public RecoveryManager getRecoveryManager() {
+        return recoveryManager;
+    }
+    
+    private synchronized HeapFile getHeapFile(int fileId) {
+        Table table = tablesByFileId.get(fileId);
+        return table == null ? null : table.heapFile;
+    }
+    
+    /**
+     * Start a transaction
+     */
+    public Transaction beginTransaction() {
+        return txnManager.begin();
+    }
+    
+    /**
+     * Commit a transaction, waiting until it is durable
+     */
+    public void commit(Transaction txn) {
+        try {
+            txnManager.commit(txn);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Commit failed for transaction " + txn.getTxnId(), e);
+        }
+    }
+    
+    /**
+     * Roll back a transaction
+     */
+    public void rollback(Transaction txn) {
+        try {
+            txnManager.rollback(txn);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Rollback failed for transaction " + txn.getTxnId(), e);
+        }
+    }
+    
+    /**
+     * Position in a transaction's changes that {@link #rollbackTo} can return to
+     */
+    public int savepoint(Transaction txn) {
+        return txnManager.savepoint(txn);
+    }
+    
+    /**
+     * Undo the changes a transaction made after a savepoint, keeping it open
+     */
+    public void rollbackTo(Transaction txn, int savepoint) {
+        try {
+            txnManager.rollbackTo(txn, savepoint);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Rollback failed for transaction " + txn.getTxnId(), e);
+        }
+    }
+    
+    private Path tableFile(String tableName) {
+        return Paths.get(dataDirectory, tableName + TABLE_FILE_SUFFIX);
+    }
+    
+    private Path indexFile(String tableName, String indexName) {
+        return Paths.get(dataDirectory, tableName + "." + indexName + INDEX_FILE_SUFFIX);
+    }
+    
+    /**
+     * Index as recorded in the catalog, opened once recovery has finished
+     */
+    private static class IndexDefinition {
+        private final String tableName;
+        private final String name;
+        private final int fileId;
+        private final boolean unique;
+        private final List<String> columns;
+        
+        IndexDefinition(String tableName, String name, int fileId, boolean unique, List<String> columns) {
+            this.tableName = tableName;
+            this.name = name;
+            this.fileId = fileId;
+            this.unique = unique;
+            this.columns = columns;
+        }
+    }
+    
+    /**
+     * Remove the marker left by a clean shutdown, returning whether it was there.
+     * From now on index files may be ahead of or behind the tables until the next clean shutdown.
+     */
+    private boolean consumeCleanShutdownMarker() {
+        try {
+            boolean clean = Files.deleteIfExists(Paths.get(dataDirectory, CLEAN_SHUTDOWN_FILE));
+            if (clean) {
+                syncDataDirectory();
+            }
+            return clean;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to update shutdown marker", e);
+        }
+    }
+    
+    private void syncDataDirectory() throws IOException {
+        try (FileChannel dir = FileChannel.open(Paths.get(dataDirectory), StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+    }
+    
+    /**
+     * Open the indexes of the catalog, rebuilding them from the tables if they may be stale
+     */
+    private void openIndexes(List<IndexDefinition> definitions, boolean rebuild) throws IOException {
+        if (definitions.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        for (IndexDefinition definition : definitions) {
+            Table table = tables.get(definition.tableName);
+            Path file = indexFile(definition.tableName, definition.name);
+            if (rebuild) {
+                Files.deleteIfExists(file);
+            }
+            diskManager.openFile(definition.fileId, file);
+            Index index = new Index(definition.name, definition.columns, definition.unique,
+                    new BPlusTree(definition.fileId, bufferPool));
+            if (rebuild) {
+                table.buildIndex(index);
+            }
+            table.addIndex(index);
+        }
+        if (rebuild) {
+            System.out.println("Rebuilt " + definitions.size() + " indexes after unclean shutdown in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+    }
+    
+    /**
+     * Load table definitions from the catalog and open their heap files.
+     * Returns the index definitions, which are opened after recovery.
+     */
+    private List<IndexDefinition> loadCatalog() {
+        List<IndexDefinition> indexes = new ArrayList<>();
+        Path catalog = Paths.get(dataDirectory, CATALOG_FILE);
+        if (!Files.exists(catalog)) {
+            return indexes;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(catalog)))) {
+            int version = in.readInt();
+            if (version != CATALOG_VERSION && version != 4) {
+                throw new IOException("Unsupported catalog version: " + version);
+            }
+            nextFileId = in.readInt();
+            int tableCount = in.readInt();
+            for (int i = 0; i < tableCount; i++) {
+                String tableName = in.readUTF();
+                int fileId = in.readInt();
+                int columnCount = in.readInt();
+                List<TableSchema.Column> columns = new ArrayList<>();
+                for (int c = 0; c < columnCount; c++) {
+                    String name = in.readUTF();
+                    String type = in.readUTF();
+                    boolean nullable = in.readBoolean();
+                    // Version 4 catalogs have no defaults or auto-increment columns
+                    String defaultValue = null;
+                    boolean autoIncrement = false;
+                    if (version >= 5) {
+                        defaultValue = in.readBoolean() ? in.readUTF() : null;
+                        autoIncrement = in.readBoolean();
+                    }
+                    columns.add(new TableSchema.Column(name, type, nullable, defaultValue, autoIncrement));
+                }
+                TableSchema schema = new TableSchema(columns);
+                openTable(tableName, fileId, schema);
+                int indexCount = in.readInt();
+                for (int x = 0; x < indexCount; x++) {
+                    String indexName = in.readUTF();
+                    int indexFileId = in.readInt();
+                    boolean unique = in.readBoolean();
+                    int keyCount = in.readInt();
+                    List<String> keyColumns = new ArrayList<>();
+                    for (int k = 0; k < keyCount; k++) {
+                        keyColumns.add(in.readUTF());
+                    }
+                    indexes.add(new IndexDefinition(tableName, indexName, indexFileId, unique, keyColumns));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load catalog", e);
+        }
+        return indexes;
+    }
+    
+    /**
+     * A number that changes whenever the table, or an index on it, is created
+     * or dropped, so that cached plans can tell they may be stale
+     */
+    public long getTableVersion(String tableName) {
+        return tableVersions.getOrDefault(tableName, 0L);
+    }
+    
+    private void tableChanged(String tableName) {
+        tableVersions.put(tableName, ++catalogVersion);
+    }
+    
+    /**
+     * Write all table definitions to the catalog, replacing it atomically
+     */
+    private void saveCatalog() {
+        Path catalog = Paths.get(dataDirectory, CATALOG_FILE);
+        Path temp = Paths.get(dataDirectory, CATALOG_FILE + ".tmp");
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(temp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+                out.writeInt(CATALOG_VERSION);
+                out.writeInt(nextFileId);
+                out.writeInt(tables.size());
+                for (Table table : tables.values()) {
+                    out.writeUTF(table.getName());
+                    out.writeInt(table.getFileId());
+                    List<TableSchema.Column> columns = table.getSchema().getColumns();
+                    out.writeInt(columns.size());
+                    for (TableSchema.Column column : columns) {
+                        out.writeUTF(column.getName());
+                        out.writeUTF(column.getType());
+                        out.writeBoolean(column.isNullable());
+                        out.writeBoolean(column.getDefaultValue() != null);
+                        if (column.getDefaultValue() != null) {
+                            out.writeUTF(column.getDefaultValue());
+                        }
+                        out.writeBoolean(column.isAutoIncrement());
+                    }
+                    List<Index> indexes = table.getIndexes();
+                    out.writeInt(indexes.size());
+                    for (Index index : indexes) {
+                        out.writeUTF(index.getName());
+                        out.writeInt(index.getFileId());
+                        out.writeBoolean(index.isUnique());
+                        out.writeInt(index.getColumns().size());
+                        for (String column : index.getColumns()) {
+                            out.writeUTF(column);
+                        }
+                    }
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            Files.move(temp, catalog, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save catalog", e);
+        }
+    }
+    
+    private Table openTable(String tableName, int fileId, TableSchema schema) throws IOException {
+        diskManager.openFile(fileId, tableFile(tableName));
+        Table table = new Table(tableName, schema, new HeapFile(fileId, bufferPool, txnManager), txnManager);
+        tables.put(tableName, table);
+        tablesByFileId.put(fileId, table);
+        return table;
+    }
+    
     /**
      * Create a new table
      */
-    public void createTable(String tableName, TableSchema schema) {
+    public synchronized void createTable(String tableName, TableSchema schema) {
         if (tables.containsKey(tableName)) {
             throw new RuntimeException("Table already exists: " + tableName);
         }
-        Table table = new Table(tableName, schema);
-        tables.put(tableName, table);
+        try {
+            Files.deleteIfExists(tableFile(tableName));
+            openTable(tableName, nextFileId++, schema);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create table file for " + tableName, e);
+        }
+        tableChanged(tableName);
+        saveCatalog();
         System.out.println("Created table: " + tableName);
     }
     
     /**
      * Drop a table
      */
-    public void dropTable(String tableName) {
-        tables.remove(tableName);
+    public synchronized void dropTable(String tableName) {
+        Table table = tables.remove(tableName);
+        if (table == null) {
+            return;
+        }
+        tablesByFileId.remove(table.getFileId());
+        tableChanged(tableName);
+        saveCatalog();
+        try {
+            for (Index index : table.getIndexes()) {
+                closeIndexFile(index);
+                Files.deleteIfExists(indexFile(tableName, index.getName()));
+            }
+            bufferPool.discardFile(table.getFileId());
+            diskManager.closeFile(table.getFileId());
+            Files.deleteIfExists(tableFile(tableName));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete table file for " + tableName, e);
+        }
         System.out.println("Dropped table: " + tableName);
     }
     
+    /**
+     * Create a B+ tree index on one or more columns of a table and fill it from the existing rows
+     */
+    public synchronized void createIndex(String indexName, String tableName, List<String> columns, boolean unique) {
+        Table table = tables.get(tableName);
+        if (table == null) {
+            throw new RuntimeException("Table not found: " + tableName);
+        }
+        if (table.getIndex(indexName) != null) {
+            throw new RuntimeException("Index already exists: " + indexName + " on " + tableName);
+        }
+        List<String> keyColumns = new ArrayList<>();
+        for (String column : columns) {
+            keyColumns.add(table.getSchema().resolveColumn(column));
+        }
+        int fileId = nextFileId++;
+        Path file = indexFile(tableName, indexName);
+        Index index;
+        try {
+            Files.deleteIfExists(file);
+            diskManager.openFile(fileId, file);
+            index = new Index(indexName, keyColumns, unique, new BPlusTree(fileId, bufferPool));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create index file for " + indexName, e);
+        }
+        try {
+            synchronized (table) {
+                table.buildIndex(index);
+                table.addIndex(index);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                closeIndexFile(index);
+                Files.deleteIfExists(file);
+            } catch (IOException cleanupError) {
+                e.addSuppressed(cleanupError);
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new RuntimeException("Failed to build index " + indexName, e);
+        }
+        tableChanged(tableName);
+        saveCatalog();
+        System.out.println("Created " + (unique ? "unique " : "") + "index: " + indexName + " on " + tableName);
+    }
+    
+    /**
+     * Drop an index
+     */
+    public synchronized void dropIndex(String indexName, String tableName) {
+        Table table = tables.get(tableName);
+        Index index = table == null ? null : table.getIndex(indexName);
+        if (index == null) {
+            throw new RuntimeException("Index not found: " + indexName + " on " + tableName);
+        }
+        table.removeIndex(index);
+        tableChanged(tableName);
+        saveCatalog();
+        try {
+            closeIndexFile(index);
+            Files.deleteIfExists(indexFile(tableName, indexName));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete index file for " + indexName, e);
+        }
+        System.out.println("Dropped index: " + indexName);
+    }
+    
+    private void closeIndexFile(Index index) throws IOException {
+        bufferPool.discardFile(index.getFileId());
+        diskManager.closeFile(index.getFileId());
+    }
+    
     /**
      * Get a table
      */
-    public Table getTable(String tableName) {
+    public synchronized Table getTable(String tableName) {
         return tables.get(tableName);
     }
     
+    /**
+     * Get the names of all tables
+     */
+    public synchronized List<String> getTableNames() {
+        return new ArrayList<>(tables.keySet());
+    }
+    
+    /**
+     * Flush all dirty pages and close all table files
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        recoveryManager.close();
+        bufferPool.close();
+        // Nothing is dirty any more, so the next startup has nothing to redo
+        recoveryManager.checkpoint();
+        diskManager.close();
+        wal.close();
+        // Indexes are consistent with the tables: no rebuild on the next start
+        Files.createFile(Paths.get(dataDirectory, CLEAN_SHUTDOWN_FILE));
+        syncDataDirectory();
+        System.out.println("Buffer pool statistics: " + bufferPool);
+        System.out.println("WAL statistics: " + wal);
+    }
+    
     /**
      * Table representation
      */
     public static class Table {
         private final String name;
         private final TableSchema schema;
-        private final List<Row> rows;
+        private final HeapFile heapFile;
+        private final RowSerializer serializer;
+        private final TransactionManager txnManager;
+        private final List<Index> indexes;
+        private long autoIncrement = -1;
+        
+        /**
+         * Rows a bulk load serializes and writes to pages at a time
+         */
+        private static final int LOAD_BATCH_ROWS = 8192;
         
-        public Table(String name, TableSchema schema) {
+        public Table(String name, TableSchema schema, HeapFile heapFile, TransactionManager txnManager) {
             this.name = name;
             this.schema = schema;
-            this.rows = new ArrayList<>();
+            this.heapFile = heapFile;
+            this.serializer = new RowSerializer(schema);
+            this.txnManager = txnManager;
+            this.indexes = new CopyOnWriteArrayList<>();
+            heapFile.setUndoListener(this::undone);
         }
         
         public String getName() { return name; }
         public TableSchema getSchema() { return schema; }
-        public List<Row> getRows() { return rows; }
+        public int getFileId() { return heapFile.getFileId(); }
+        
+        /**
+         * Number of pages of the heap file, as a measure of the table's size
+         */
+        public int getPageCount() {
+            return heapFile.getPageCount();
+        }
+        
+        public List<Index> getIndexes() {
+            return Collections.unmodifiableList(indexes);
+        }
+        
+        /**
+         * Get an index by name (case-insensitive), or null
+         */
+        public Index getIndex(String indexName) {
+            for (Index index : indexes) {
+                if (index.getName().equalsIgnoreCase(indexName)) {
+                    return index;
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Find the index that can answer equality conditions on the given
+         * columns with the longest key prefix, or null if none can
+         */
+        public Index findIndex(Collection<String> equalityColumns) {
+            Index best = null;
+            int bestPrefix = 0;
+            for (Index index : indexes) {
+                int prefix = 0;
+                while (prefix < index.getColumns().size()
+                        && containsIgnoreCase(equalityColumns, index.getColumns().get(prefix))) {
+                    prefix++;
+                }
+                boolean better = prefix > bestPrefix
+                        || (prefix == bestPrefix && prefix > 0 && index.isUnique() && !best.isUnique());
+                if (better) {
+                    best = index;
+                    bestPrefix = prefix;
+                }
+            }
+            return best;
+        }
+        
+        private static boolean containsIgnoreCase(Collection<String> names, String name) {
+            for (String candidate : names) {
+                if (candidate.equalsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * Next value for the AUTO_INCREMENT column. The counter starts after the
+         * largest value in the table when it is first used.
+         */
+        public synchronized long nextAutoIncrement() {
+            loadAutoIncrement();
+            return ++autoIncrement;
+        }
+        
+        /**
+         * Make sure values generated later are larger than one given explicitly
+         */
+        public synchronized void observeAutoIncrement(long value) {
+            loadAutoIncrement();
+            autoIncrement = Math.max(autoIncrement, value);
+        }
+        
+        private void loadAutoIncrement() {
+            if (autoIncrement >= 0) {
+                return;
+            }
+            int column = -1;
+            for (int i = 0; i < schema.getColumns().size(); i++) {
+                if (schema.getColumns().get(i).isAutoIncrement()) {
+                    column = i;
+                }
+            }
+            long max = 0;
+            if (column >= 0) {
+                Iterator<Row> rows = scan();
+                while (rows.hasNext()) {
+                    Object value = rows.next().getValue(column);
+                    if (value instanceof Number) {
+                        max = Math.max(max, ((Number) value).longValue());
+                    }
+                }
+            }
+            autoIncrement = max;
+        }
+        
+        /**
+         * Fetch the rows whose leading index columns equal the given values
+         */
+        public List<Row> lookup(Index index, List<?> keyValues) {
+            List<Row> rows = new ArrayList<>();
+            for (RowId rowId : index.lookup(keyValues)) {
+                Row row = getRow(rowId);
+                if (row != null) {
+                    rows.add(row);
+                }
+            }
+            return rows;
+        }
+        
+        void addIndex(Index index) {
+            indexes.add(index);
+        }
+        
+        void removeIndex(Index index) {
+            indexes.remove(index);
+        }
+        
+        /**
+         * Fill an empty index from the rows of this table
+         */
+        void buildIndex(Index index) throws IOException {
+            IndexEntries entries = new IndexEntries(index);
+            Iterator<Row> rows = scan();
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                entries.add(row, row.getRowId());
+            }
+            entries.bulkLoad();
+        }
+        
+        /**
+         * Add many rows in one go and return how many were added
+         *
+         * The rows are packed in batches onto new pages, each logged once as a
+         * whole page. Each batch's index entries are sorted and added in key
+         * order, except for indexes that are empty when the load starts: those
+         * are bulk loaded with all entries at the end, as CREATE INDEX does.
+         * A duplicate key or a bad row fails the load part way, so txn must
+         * hold nothing else and be rolled back on failure.
+         */
+        public synchronized long load(Transaction txn, Iterator<Row> rows) {
+            try {
+                List<IndexEntries> bulkLoaded = new ArrayList<>();
+                List<IndexEntries> merged = new ArrayList<>();
+                for (Index index : indexes) {
+                    (index.getTree().isEmpty() ? bulkLoaded : merged).add(new IndexEntries(index));
+                }
+                List<Row> batch = new ArrayList<>(LOAD_BATCH_ROWS);
+                List<byte[]> records = new ArrayList<>(LOAD_BATCH_ROWS);
+                long count = 0;
+                while (rows.hasNext()) {
+                    Row row = rows.next();
+                    batch.add(row);
+                    records.add(serializer.serialize(row));
+                    if (batch.size() < LOAD_BATCH_ROWS && rows.hasNext()) {
+                        continue;
+                    }
+                    RowId[] rowIds = heapFile.appendPages(txn, records);
+                    for (int i = 0; i < rowIds.length; i++) {
+                        for (IndexEntries entries : bulkLoaded) {
+                            entries.add(batch.get(i), rowIds[i]);
+                        }
+                        for (IndexEntries entries : merged) {
+                            entries.add(batch.get(i), rowIds[i]);
+                        }
+                    }
+                    for (IndexEntries entries : merged) {
+                        entries.insertSorted();
+                        entries.clear();
+                    }
+                    count += batch.size();
+                    batch.clear();
+                    records.clear();
+                }
+                for (IndexEntries entries : bulkLoaded) {
+                    entries.bulkLoad();
+                }
+                return count;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load rows into " + name, e);
+            }
+        }
+        
+        /**
+         * Index entries collected for one index, added to its tree in
+         * (key, row id) order
+         */
+        private final class IndexEntries {
+            private final Index index;
+            private final List<IndexEntry> entries = new ArrayList<>();
+            
+            IndexEntries(Index index) {
+                this.index = index;
+            }
+            
+            void add(Row row, RowId rowId) {
+                List<Object> values = index.keyValues(row);
+                byte[] key = KeyEncoder.encode(values);
+                if (key.length > BPlusTree.MAX_KEY_SIZE) {
+                    throw new IllegalArgumentException("Index key too long: " + key.length
+                            + " bytes (maximum " + BPlusTree.MAX_KEY_SIZE + ")");
+                }
+                entries.add(new IndexEntry(key, rowId, KeyEncoder.hasNull(values)));
+            }
+            
+            private void sort() {
+                entries.sort((a, b) -> {
+                    int c = KeyEncoder.compare(a.key, b.key);
+                    return c != 0 ? c : a.rowId.compareTo(b.rowId);
+                });
+            }
+            
+            private DuplicateKeyException duplicate(IndexEntry entry) {
+                return index.duplicate(index.keyValues(getRow(entry.rowId)));
+            }
+            
+            /**
+             * Fill the empty tree with all entries
+             */
+            void bulkLoad() throws IOException {
+                sort();
+                List<byte[]> keys = new ArrayList<>(entries.size());
+                List<RowId> rowIds = new ArrayList<>(entries.size());
+                for (IndexEntry entry : entries) {
+                    if (index.isUnique() && !keys.isEmpty() && !entry.nullKey
+                            && Arrays.equals(entry.key, keys.get(keys.size() - 1))) {
+                        throw duplicate(entry);
+                    }
+                    keys.add(entry.key);
+                    rowIds.add(entry.rowId);
+                }
+                entries.clear();
+                index.getTree().bulkLoad(keys, rowIds);
+            }
+            
+            /**
+             * Insert the entries collected so far into the tree in key order.
+             * At a duplicate, the entries already inserted are taken out again.
+             */
+            void insertSorted() throws IOException {
+                sort();
+                List<byte[]> keys = new ArrayList<>(entries.size());
+                List<RowId> rowIds = new ArrayList<>(entries.size());
+                boolean[] unique = new boolean[entries.size()];
+                for (IndexEntry entry : entries) {
+                    unique[keys.size()] = index.isUnique() && !entry.nullKey;
+                    keys.add(entry.key);
+                    rowIds.add(entry.rowId);
+                }
+                int duplicate = index.getTree().insertSorted(keys, rowIds, unique);
+                if (duplicate >= 0) {
+                    for (int i = 0; i < duplicate; i++) {
+                        index.getTree().delete(keys.get(i), rowIds.get(i));
+                    }
+                    throw duplicate(entries.get(duplicate));
+                }
+            }
+            
+            /**
+             * Take the entries inserted by {@link #insertSorted} out of the tree again
+             */
+            void delete() throws IOException {
+                for (IndexEntry entry : entries) {
+                    index.getTree().delete(entry.key, entry.rowId);
+                }
+            }
+            
+            void clear() {
+                entries.clear();
+            }
+        }
+        
+        private static final class IndexEntry {
+            final byte[] key;
+            final RowId rowId;
+            // A key with a NULL column never violates uniqueness
+            final boolean nullKey;
+            
+            IndexEntry(byte[] key, RowId rowId, boolean nullKey) {
+                this.key = key;
+                this.rowId = rowId;
+                this.nullKey = nullKey;
+            }
+        }
+        
+        /**
+         * Keep the indexes in step with a change reversed by rollback
+         */
+        private void undone(RowId rowId, byte[] removed, byte[] restored) {
+            try {
+                for (Index index : indexes) {
+                    if (removed != null) {
+                        index.delete(serializer.deserialize(removed), rowId);
+                    }
+                    if (restored != null) {
+                        index.getTree().insert(index.keyOf(serializer.deserialize(restored)), rowId, false);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to undo index change on " + name, e);
+            }
+        }
+        
+        /**
+         * Read all rows of the table into memory
+         */
+        public List<Row> getRows() {
+            List<Row> rows = new ArrayList<>();
+            scan().forEachRemaining(rows::add);
+            return rows;
+        }
+        
+        /**
+         * Iterate over all rows page by page
+         */
+        public Iterator<Row> scan() {
+            return new Iterator<Row>() {
+                private int pageNo = 0;
+                private Iterator<Map.Entry<Integer, byte[]>> pageRecords = Collections.emptyIterator();
+                private int currentPage = -1;
+                
+                @Override
+                public boolean hasNext() {
+                    while (!pageRecords.hasNext()) {
+                        if (pageNo >= heapFile.getPageCount()) {
+                            return false;
+                        }
+                        try {
+                            currentPage = pageNo;
+                            pageRecords = heapFile.readPageRecords(pageNo++).entrySet().iterator();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    return true;
+                }
+                
+                @Override
+                public Row next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<Integer, byte[]> entry = pageRecords.next();
+                    Row row = serializer.deserialize(entry.getValue());
+                    row.setRowId(new RowId(currentPage, entry.getKey()));
+                    return row;
+                }
+            };
+        }
+        
+        /**
+         * Iterate over the encoded records of all rows page by page, for
+         * readers that decode them with {@link #decode}
+         */
+        public Iterator<byte[]> scanRecords() {
+            return new Iterator<byte[]>() {
+                private int pageNo = 0;
+                private Iterator<byte[]> pageRecords = Collections.emptyIterator();
+                
+                @Override
+                public boolean hasNext() {
+                    while (!pageRecords.hasNext()) {
+                        if (pageNo >= heapFile.getPageCount()) {
+                            return false;
+                        }
+                        try {
+                            pageRecords = heapFile.readPageRecords(pageNo++).values().iterator();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    return true;
+                }
+                
+                @Override
+                public byte[] next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return pageRecords.next();
+                }
+            };
+        }
+        
+        /**
+         * Decode a record returned by {@link #scanRecords} column by column
+         */
+        public void decode(byte[] record, RowSerializer.ValueConsumer consumer) {
+            serializer.decode(record, consumer);
+        }
+        
+        /**
+         * Run a single change in its own transaction
+         */
+        private <T> T autoCommit(Function<Transaction, T> change) {
+            Transaction txn = txnManager.begin();
+            T result;
+            try {
+                result = change.apply(txn);
+            } catch (RuntimeException e) {
+                try {
+                    txnManager.rollback(txn);
+                } catch (IOException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+                throw e;
+            }
+            try {
+                txnManager.commit(txn);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Commit failed for " + name, e);
+            }
+            return result;
+        }
+        
+        public RowId insertRow(Row row) {
+            return autoCommit(txn -> insertRow(txn, row));
+        }
+        
+        public synchronized RowId insertRow(Transaction txn, Row row) {
+            try {
+                for (Index index : indexes) {
+                    index.checkUnique(row);
+                }
+                RowId rowId = heapFile.insert(txn, serializer.serialize(row));
+                row.setRowId(rowId);
+                insertIndexEntries(txn, row, rowId);
+                return rowId;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to insert row into " + name, e);
+            }
+        }
+        
+        /**
+         * Insert several rows as one batch and return their row ids, in order
+         *
+         * The records are placed page by page and each index gets the batch's
+         * entries in key order, so consecutive entries share a visit to their
+         * leaf. If a key is a duplicate, none of the rows stay inserted.
+         */
+        public synchronized RowId[] insertRows(Transaction txn, List<Row> rows) {
+            try {
+                List<byte[]> records = new ArrayList<>(rows.size());
+                for (Row row : rows) {
+                    records.add(serializer.serialize(row));
+                }
+                RowId[] rowIds = heapFile.insertAll(txn, records);
+                List<IndexEntries> allEntries = new ArrayList<>(indexes.size());
+                for (Index index : indexes) {
+                    allEntries.add(new IndexEntries(index));
+                }
+                int added = 0;
+                try {
+                    for (int i = 0; i < rowIds.length; i++) {
+                        Row row = rows.get(i);
+                        row.setRowId(rowIds[i]);
+                        for (IndexEntries entries : allEntries) {
+                            entries.add(row, rowIds[i]);
+                        }
+                    }
+                    for (IndexEntries entries : allEntries) {
+                        entries.insertSorted();
+                        added++;
+                    }
+                } catch (RuntimeException e) {
+                    for (int i = 0; i < added; i++) {
+                        allEntries.get(i).delete();
+                    }
+                    for (RowId rowId : rowIds) {
+                        heapFile.delete(txn, rowId);
+                    }
+                    throw e;
+                }
+                return rowIds;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to insert rows into " + name, e);
+            }
+        }
         
-        public void insertRow(Row row) {
-            rows.add(row);
+        /**
+         * Add a new row to every index; if one rejects it, take the row out again
+         */
+        private void insertIndexEntries(Transaction txn, Row row, RowId rowId) throws IOException {
+            int added = 0;
+            try {
+                for (Index index : indexes) {
+                    index.insert(row, rowId);
+                    added++;
+                }
+            } catch (DuplicateKeyException e) {
+                for (int i = 0; i < added; i++) {
+                    indexes.get(i).delete(row, rowId);
+                }
+                heapFile.delete(txn, rowId);
+                throw e;
+            }
+        }
+        
+        /**
+         * Fetch a single row by its row id, or null if it does not exist
+         */
+        public Row getRow(RowId rowId) {
+            try {
+                byte[] data = heapFile.read(rowId);
+                if (data == null) {
+                    return null;
+                }
+                Row row = serializer.deserialize(data);
+                row.setRowId(rowId);
+                return row;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read row from " + name, e);
+            }
+        }
+        
+        /**
+         * Replace a row. The row keeps its row id if it still fits in its page,
+         * otherwise it is moved and the new row id is returned.
+         */
+        public RowId updateRow(RowId rowId, Row row) {
+            return autoCommit(txn -> updateRow(txn, rowId, row));
+        }
+        
+        public synchronized RowId updateRow(Transaction txn, RowId rowId, Row row) {
+            try {
+                Row oldRow = indexes.isEmpty() ? null : getRow(rowId);
+                if (oldRow != null) {
+                    for (Index index : indexes) {
+                        if (!index.keyValues(oldRow).equals(index.keyValues(row))) {
+                            index.checkUnique(row);
+                        }
+                    }
+                }
+                byte[] data = serializer.serialize(row);
+                RowId newRowId = rowId;
+                if (!heapFile.update(txn, rowId, data)) {
+                    heapFile.delete(txn, rowId);
+                    newRowId = heapFile.insert(txn, data);
+                }
+                row.setRowId(newRowId);
+                if (oldRow != null) {
+                    for (Index index : indexes) {
+                        byte[] oldKey = index.keyOf(oldRow);
+                        byte[] newKey = index.keyOf(row);
+                        if (!Arrays.equals(oldKey, newKey) || !newRowId.equals(rowId)) {
+                            index.getTree().delete(oldKey, rowId);
+                            index.getTree().insert(newKey, newRowId, false);
+                        }
+                    }
+                }
+                return newRowId;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to update row in " + name, e);
+            }
+        }
+        
+        public void deleteRow(RowId rowId) {
+            autoCommit(txn -> {
+                deleteRow(txn, rowId);
+                return null;
+            });
+        }
+        
+        public synchronized void deleteRow(Transaction txn, RowId rowId) {
+            try {
+                Row oldRow = indexes.isEmpty() ? null : getRow(rowId);
+                heapFile.delete(txn, rowId);
+                if (oldRow != null) {
+                    for (Index index : indexes) {
+                        index.delete(oldRow, rowId);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to delete row from " + name, e);
+            }
         }
     }
     
@@ -82,45 +1174,257 @@ public class StorageEngine {
     public static class TableSchema {
         private final List<Column> columns;
         
+        private final Map<String, Integer> positions;
+        
         public TableSchema(List<Column> columns) {
             this.columns = columns;
+            this.positions = new HashMap<>();
+            for (int i = 0; i < columns.size(); i++) {
+                positions.put(columns.get(i).getName(), i);
+            }
         }
         
         public List<Column> getColumns() { return columns; }
         
+        /**
+         * Position of a column by its declared name, or -1
+         */
+        public int indexOf(String name) {
+            Integer position = positions.get(name);
+            return position != null ? position : -1;
+        }
+        
+        /**
+         * Find a column by name, ignoring case, and return its declared name
+         */
+        public String resolveColumn(String name) {
+            for (Column column : columns) {
+                if (column.getName().equalsIgnoreCase(name)) {
+                    return column.getName();
+                }
+            }
+            throw new RuntimeException("Unknown column: " + name);
+        }
+        
         public static class Column {
             private final String name;
             private final String type;
             private final boolean nullable;
+            private final String defaultValue;
+            private final boolean autoIncrement;
             
             public Column(String name, String type, boolean nullable) {
+                this(name, type, nullable, null, false);
+            }
+            
+            public Column(String name, String type, boolean nullable, String defaultValue, boolean autoIncrement) {
                 this.name = name;
                 this.type = type;
                 this.nullable = nullable;
+                this.defaultValue = defaultValue;
+                this.autoIncrement = autoIncrement;
             }
             
             public String getName() { return name; }
             public String getType() { return type; }
             public boolean isNullable() { return nullable; }
+            
+            /**
+             * Default value as written in the column definition (a literal or
+             * CURRENT_TIMESTAMP), or null if there is none
+             */
+            public String getDefaultValue() { return defaultValue; }
+            public boolean isAutoIncrement() { return autoIncrement; }
         }
     }
     
     /**
-     * Row of data
+     * Row of data, laid out by the column positions of its table schema
+     *
+     * Integers, booleans, doubles and decimals that fit are kept in one
+     * primitive slot per column, strings as UTF-8 in a byte buffer shared by
+     * the whole row (for rows read from a page, the record itself), and a type
+     * tag per column marks the NULLs. Values are only boxed or decoded when
+     * they are read with {@link #getValue(int)}.
      */
-    public static class Row {
-        private final Map<String, Object> values;
+    public static final class Row {
+        private final TableSchema schema;
+        private final byte[] types;
+        private final long[] slots;
+        private final byte[] buffer;
+        private RowId rowId;
+        
+        /**
+         * A row with the given values, in schema column order
+         */
+        public Row(TableSchema schema, Object[] values) {
+            if (values.length != schema.getColumns().size()) {
+                throw new IllegalArgumentException("Expected " + schema.getColumns().size() + " values, got " + values.length);
+            }
+            this.schema = schema;
+            this.types = new byte[values.length];
+            this.slots = new long[values.length];
+            byte[][] text = null;
+            int textLength = 0;
+            for (int i = 0; i < values.length; i++) {
+                Object value = values[i];
+                if (value == null) {
+                    types[i] = RowSerializer.TAG_NULL;
+                } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                    types[i] = RowSerializer.TAG_INT;
+                    slots[i] = ((Number) value).intValue();
+                } else if (value instanceof Long) {
+                    types[i] = RowSerializer.TAG_LONG;
+                    slots[i] = (Long) value;
+                } else if (value instanceof Double || value instanceof Float) {
+                    types[i] = RowSerializer.TAG_DOUBLE;
+                    slots[i] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+                } else if (value instanceof Boolean) {
+                    types[i] = RowSerializer.TAG_BOOLEAN;
+                    slots[i] = (Boolean) value ? 1 : 0;
+                } else if (value instanceof BigDecimal && RowSerializer.fitsSlot((BigDecimal) value)) {
+                    types[i] = RowSerializer.TAG_DECIMAL;
+                    slots[i] = RowSerializer.decimalSlot((BigDecimal) value);
+                } else {
+                    // Strings, and decimals too large for a slot as their plain text
+                    types[i] = value instanceof BigDecimal ? RowSerializer.TAG_DECIMAL_TEXT : RowSerializer.TAG_STRING;
+                    String string = value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : value.toString();
+                    if (text == null) {
+                        text = new byte[values.length][];
+                    }
+                    text[i] = string.getBytes(StandardCharsets.UTF_8);
+                    textLength += text[i].length;
+                }
+            }
+            this.buffer = new byte[textLength];
+            if (text != null) {
+                int offset = 0;
+                for (int i = 0; i < text.length; i++) {
+                    if (text[i] != null) {
+                        System.arraycopy(text[i], 0, buffer, offset, text[i].length);
+                        slots[i] = RowSerializer.textSlot(offset, text[i].length);
+                        offset += text[i].length;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * A row over decoded slots; text values refer to ranges of the buffer
+         */
+        Row(TableSchema schema, byte[] types, long[] slots, byte[] buffer) {
+            this.schema = schema;
+            this.types = types;
+            this.slots = slots;
+            this.buffer = buffer;
+        }
+        
+        public TableSchema getSchema() {
+            return schema;
+        }
+        
+        /**
+         * Number of columns
+         */
+        public int size() {
+            return types.length;
+        }
+        
+        public boolean isNull(int column) {
+            return types[column] == RowSerializer.TAG_NULL;
+        }
+        
+        /**
+         * Whether the column holds an INT or BIGINT value, readable with {@link #getLong}
+         */
+        public boolean isIntegral(int column) {
+            byte type = types[column];
+            return type == RowSerializer.TAG_INT || type == RowSerializer.TAG_LONG;
+        }
+        
+        /**
+         * Value of an integral column, unboxed
+         */
+        public long getLong(int column) {
+            return slots[column];
+        }
+        
+        /**
+         * Whether the column holds a DOUBLE value, readable with {@link #getDouble}
+         */
+        public boolean isDouble(int column) {
+            return types[column] == RowSerializer.TAG_DOUBLE;
+        }
+        
+        /**
+         * Value of a DOUBLE column, unboxed
+         */
+        public double getDouble(int column) {
+            return Double.longBitsToDouble(slots[column]);
+        }
         
-        public Row(Map<String, Object> values) {
-            this.values = values;
+        /**
+         * Value of the column at a schema position, boxed
+         */
+        public Object getValue(int column) {
+            long slot = slots[column];
+            switch (types[column]) {
+                case RowSerializer.TAG_NULL: return null;
+                case RowSerializer.TAG_INT: return (int) slot;
+                case RowSerializer.TAG_LONG: return slot;
+                case RowSerializer.TAG_DOUBLE: return Double.longBitsToDouble(slot);
+                case RowSerializer.TAG_BOOLEAN: return slot != 0;
+                case RowSerializer.TAG_DECIMAL: return RowSerializer.decimalOf(slot);
+                case RowSerializer.TAG_DECIMAL_TEXT: return new BigDecimal(text(column));
+                default: return text(column);
+            }
         }
         
+        /**
+         * Value of a column by its declared name, or null if there is no such column
+         */
         public Object getValue(String column) {
-            return values.get(column);
+            int position = schema.indexOf(column);
+            return position < 0 ? null : getValue(position);
         }
         
-        public Map<String, Object> getValues() {
+        /**
+         * All values in schema column order, boxed
+         */
+        public Object[] getValues() {
+            Object[] values = new Object[types.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = getValue(i);
+            }
             return values;
         }
+        
+        private String text(int column) {
+            long slot = slots[column];
+            return new String(buffer, RowSerializer.textOffset(slot), RowSerializer.textLength(slot), StandardCharsets.UTF_8);
+        }
+        
+        byte getType(int column) {
+            return types[column];
+        }
+        
+        long getSlot(int column) {
+            return slots[column];
+        }
+        
+        byte[] getBuffer() {
+            return buffer;
+        }
+        
+        /**
+         * Location of this row in its table, or null if it has not been stored
+         */
+        public RowId getRowId() {
+            return rowId;
+        }
+        
+        void setRowId(RowId rowId) {
+            this.rowId = rowId;
+        }
     }
 }
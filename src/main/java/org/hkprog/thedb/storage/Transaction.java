@@ -0,0 +1,77 @@
+package org.hkprog.thedb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transaction - a unit of work whose changes are committed or rolled back together
+ */
+public class Transaction {
+    
+    public enum State {
+        ACTIVE, COMMITTED, ABORTED
+    }
+    
+    private final long txnId;
+    private State state;
+    private long firstLsn;
+    private long lastLsn;
+    private final List<LogRecord> undoLog;
+    
+    Transaction(long txnId, long beginLsn) {
+        this.txnId = txnId;
+        this.state = State.ACTIVE;
+        this.firstLsn = beginLsn;
+        this.lastLsn = beginLsn;
+        this.undoLog = new ArrayList<>();
+    }
+    
+    public long getTxnId() { return txnId; }
+    public State getState() { return state; }
+    public boolean isActive() { return state == State.ACTIVE; }
+    
+    /**
+     * LSN of the most recent log record written by this transaction
+     */
+    public long getLastLsn() { return lastLsn; }
+    
+    /**
+     * LSN of this transaction's BEGIN record, or -1 if it has not logged anything
+     */
+    public long getFirstLsn() { return firstLsn; }
+    
+    void setState(State state) {
+        this.state = state;
+    }
+    
+    /**
+     * Remember a data change so it can be undone on rollback
+     */
+    void logged(LogRecord record) {
+        lastLsn = record.getLsn();
+        // A page image can be as large as the page; undoing it only empties the page
+        undoLog.add(record.getType() == LogRecord.Type.PAGE_IMAGE ? record.withoutAfterImage() : record);
+    }
+    
+    void setLastLsn(long lsn) {
+        if (firstLsn < 0) {
+            firstLsn = lsn;
+        }
+        this.lastLsn = lsn;
+    }
+    
+    List<LogRecord> getUndoLog() {
+        return undoLog;
+    }
+    
+    void checkActive() {
+        if (state != State.ACTIVE) {
+            throw new IllegalStateException("Transaction " + txnId + " is " + state);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "Transaction{" + txnId + ", " + state + "}";
+    }
+}
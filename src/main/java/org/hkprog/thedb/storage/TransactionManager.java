@@ -0,0 +1,219 @@
+package org.hkprog.thedb.storage;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Transaction Manager - starts, commits and rolls back transactions
+ *
+ * A transaction writes its BEGIN record lazily with its first change, so
+ * read-only transactions never touch the log. Commit appends a COMMIT record
+ * and waits for it to become durable according to the WAL sync mode.
+ *
+ * Log appends and state changes of a transaction happen while holding its
+ * monitor, so a checkpoint always sees a consistent last LSN and state.
+ *
+ * Space the transaction freed in heap pages stays reserved for its rollback
+ * until it commits; see {@link HeapFile#release}.
+ */
+public class TransactionManager {
+    
+    private final WriteAheadLog wal;
+    private final IntFunction<HeapFile> heapFiles;
+    private final AtomicLong nextTxnId;
+    private final Map<Long, Transaction> activeTransactions;
+    
+    public TransactionManager(WriteAheadLog wal, IntFunction<HeapFile> heapFiles) {
+        this.wal = wal;
+        this.heapFiles = heapFiles;
+        this.nextTxnId = new AtomicLong(wal.getMaxTxnId() + 1);
+        this.activeTransactions = new ConcurrentHashMap<>();
+    }
+    
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+    
+    /**
+     * Start a new transaction
+     */
+    public Transaction begin() {
+        Transaction txn = new Transaction(nextTxnId.getAndIncrement(), -1);
+        activeTransactions.put(txn.getTxnId(), txn);
+        return txn;
+    }
+    
+    /**
+     * Log a change to one slot of a page on behalf of a transaction and return its LSN
+     */
+    long log(Transaction txn, LogRecord.Type type, int fileId, int pageNo, int slot, byte[] before, byte[] after) {
+        synchronized (txn) {
+            txn.checkActive();
+            if (txn.getLastLsn() < 0) {
+                txn.setLastLsn(wal.append(LogRecord.control(LogRecord.Type.BEGIN, txn.getTxnId(), -1)));
+            }
+            LogRecord record = new LogRecord(type, txn.getTxnId(), txn.getLastLsn(), fileId, pageNo, slot, before, after);
+            wal.append(record);
+            txn.logged(record);
+            return record.getLsn();
+        }
+    }
+    
+    /**
+     * Log the inserts of records[from, to) into the slots given by rowIds,
+     * all on one page, and return the LSN of the last
+     */
+    long logInserts(Transaction txn, int fileId, int pageNo, RowId[] rowIds, List<byte[]> records, int from, int to) {
+        synchronized (txn) {
+            txn.checkActive();
+            if (txn.getLastLsn() < 0) {
+                txn.setLastLsn(wal.append(LogRecord.control(LogRecord.Type.BEGIN, txn.getTxnId(), -1)));
+            }
+            for (int i = from; i < to; i++) {
+                LogRecord record = new LogRecord(LogRecord.Type.INSERT, txn.getTxnId(), txn.getLastLsn(), fileId,
+                        pageNo, rowIds[i].getSlot(), null, records.get(i));
+                wal.append(record);
+                txn.logged(record);
+            }
+            return txn.getLastLsn();
+        }
+    }
+    
+    /**
+     * Log the undo of a change (a CLR) and return its LSN
+     */
+    long logCompensation(Transaction txn, int fileId, int pageNo, int slot, byte[] image, long undoNextLsn) {
+        synchronized (txn) {
+            txn.checkActive();
+            long lsn = wal.append(LogRecord.compensation(txn.getTxnId(), txn.getLastLsn(), fileId, pageNo, slot,
+                    image, undoNextLsn));
+            txn.setLastLsn(lsn);
+            return lsn;
+        }
+    }
+    
+    /**
+     * Commit a transaction; returns once the commit is durable (unless the WAL is asynchronous)
+     */
+    public void commit(Transaction txn) throws IOException {
+        long commitLsn;
+        synchronized (txn) {
+            txn.checkActive();
+            activeTransactions.remove(txn.getTxnId());
+            txn.setState(Transaction.State.COMMITTED);
+            if (txn.getLastLsn() < 0) {
+                return;
+            }
+            commitLsn = wal.append(LogRecord.control(LogRecord.Type.COMMIT, txn.getTxnId(), txn.getLastLsn()));
+            txn.setLastLsn(commitLsn);
+        }
+        // A change reusing the space is logged after the COMMIT record, so it never survives a crash without it
+        for (LogRecord record : txn.getUndoLog()) {
+            if (record.getType() == LogRecord.Type.DELETE || record.getType() == LogRecord.Type.UPDATE) {
+                HeapFile heapFile = heapFiles.apply(record.getFileId());
+                if (heapFile != null) {
+                    heapFile.release(record);
+                }
+            }
+        }
+        wal.commit(commitLsn);
+    }
+    
+    /**
+     * Roll back a transaction by undoing its changes in reverse order
+     */
+    public void rollback(Transaction txn) throws IOException {
+        rollbackTo(txn, 0);
+        endRollback(txn);
+    }
+    
+    /**
+     * Position in a transaction's changes that {@link #rollbackTo} can return to
+     */
+    public int savepoint(Transaction txn) {
+        synchronized (txn) {
+            return txn.getUndoLog().size();
+        }
+    }
+    
+    /**
+     * Undo the changes a transaction made after a savepoint, newest first, and
+     * leave it active. Each undo is logged as a CLR pointing past the change, so
+     * recovery does not undo it again.
+     */
+    public void rollbackTo(Transaction txn, int savepoint) throws IOException {
+        txn.checkActive();
+        List<LogRecord> undoLog = txn.getUndoLog();
+        for (int i = undoLog.size() - 1; i >= savepoint; i--) {
+            LogRecord record = undoLog.get(i);
+            HeapFile heapFile = heapFiles.apply(record.getFileId());
+            if (heapFile != null) {
+                heapFile.undo(txn, record);
+            }
+            undoLog.remove(i);
+        }
+    }
+    
+    /**
+     * Mark a transaction whose changes have all been undone as aborted
+     */
+    void endRollback(Transaction txn) {
+        synchronized (txn) {
+            activeTransactions.remove(txn.getTxnId());
+            if (txn.getLastLsn() >= 0) {
+                txn.setLastLsn(wal.append(LogRecord.control(LogRecord.Type.ABORT, txn.getTxnId(), txn.getLastLsn())));
+            }
+            txn.setState(Transaction.State.ABORTED);
+        }
+    }
+    
+    /**
+     * Re-create a transaction found unfinished in the log during recovery, so it can be rolled back
+     */
+    Transaction resume(long txnId, long lastLsn) {
+        Transaction txn = new Transaction(txnId, lastLsn);
+        activeTransactions.put(txnId, txn);
+        nextTxnId.accumulateAndGet(txnId + 1, Math::max);
+        return txn;
+    }
+    
+    /**
+     * Last LSN of every active transaction that has written to the log, for a checkpoint
+     */
+    Map<Long, Long> snapshotActiveTransactions() {
+        Map<Long, Long> table = new HashMap<>();
+        for (Transaction txn : activeTransactions.values()) {
+            synchronized (txn) {
+                if (txn.isActive() && txn.getLastLsn() >= 0) {
+                    table.put(txn.getTxnId(), txn.getLastLsn());
+                }
+            }
+        }
+        return table;
+    }
+    
+    /**
+     * Oldest log record an active transaction may still need for rollback, or Long.MAX_VALUE
+     */
+    long getOldestActiveLsn() {
+        long oldest = Long.MAX_VALUE;
+        for (Transaction txn : activeTransactions.values()) {
+            synchronized (txn) {
+                if (txn.isActive() && txn.getFirstLsn() >= 0) {
+                    oldest = Math.min(oldest, txn.getFirstLsn());
+                }
+            }
+        }
+        return oldest;
+    }
+    
+    /**
+     * Transactions that have started but not yet finished
+     */
+    public Collection<Transaction> getActiveTransactions() {
+        return Collections.unmodifiableCollection(activeTransactions.values());
+    }
+}
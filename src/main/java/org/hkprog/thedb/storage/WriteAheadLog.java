@@ -0,0 +1,477 @@
+package org.hkprog.thedb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-Ahead Log - append-only log of all changes to table pages
+ *
+ * Every record is identified by its log sequence number (LSN), which is its
+ * byte position in the log. Appends only go to an in-memory buffer; the
+ * buffer is written and forced to disk when a transaction commits or when a
+ * dirty page with a newer LSN is about to be written (the WAL rule).
+ *
+ * Commits are made durable according to the {@link SyncMode}:
+ * <ul>
+ * <li>PER_COMMIT - the committing thread forces the log itself. Commits that
+ *     arrive while a force is running still share the next one.</li>
+ * <li>GROUP - committing threads wait while a sync thread collects commits for
+ *     up to the group commit delay (or until a batch is full) and then forces
+ *     the log once for the whole group.</li>
+ * <li>ASYNC - commits return immediately and the log is forced every group
+ *     commit delay. A crash can lose the most recent commits.</li>
+ * </ul>
+ *
+ * The file header records the LSN of its first byte and the LSN of the last
+ * complete checkpoint, where crash recovery starts. Once a checkpoint no
+ * longer needs the start of the log, {@link #truncateBefore} drops it by
+ * copying the rest into a new file.
+ */
+public class WriteAheadLog implements Closeable {
+    
+    public enum SyncMode {
+        PER_COMMIT, GROUP, ASYNC;
+        
+        /**
+         * Parse a sync mode name such as "per-commit", "group" or "async"
+         */
+        public static SyncMode parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown WAL sync mode: " + name + " (expected per-commit, group or async)");
+            }
+        }
+    }
+    
+    private static final int MAGIC = 0x54444257; // "TDBW"
+    private static final int VERSION = 2;
+    static final int HEADER_SIZE = 24;
+    private static final int CHECKPOINT_LSN_OFFSET = 16;
+    
+    private final Path path;
+    private FileChannel channel;
+    private final SyncMode syncMode;
+    private final long groupCommitDelayNanos;
+    private final int groupCommitMaxBatch;
+    
+    /**
+     * LSN of the first byte of the file; changes when the log is truncated
+     */
+    private volatile long baseLsn;
+    private volatile long checkpointLsn;
+    
+    // Guarded by this: records appended but not yet written
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+    private long nextLsn;
+    
+    // Guarded by flushLock: the write/force path
+    private final Object flushLock = new Object();
+    private volatile long durableLsn;
+    
+    // Guarded by groupLock: commit requests waiting for the sync thread
+    private final Object groupLock = new Object();
+    private long requestedLsn = -1;
+    private int batchSize;
+    private IOException syncError;
+    
+    private final Thread syncThread;
+    private volatile boolean running;
+    private long maxTxnId;
+    
+    private long commitCount;
+    private long syncCount;
+    private long bytesWritten;
+    
+    public WriteAheadLog(Path path, SyncMode syncMode, long groupCommitDelayMicros, int groupCommitMaxBatch) throws IOException {
+        this.path = path;
+        this.syncMode = syncMode;
+        this.groupCommitDelayNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitDelayMicros);
+        this.groupCommitMaxBatch = Math.max(1, groupCommitMaxBatch);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) {
+            writeHeader(channel, 0, -1);
+        }
+        readHeader();
+        this.nextLsn = scanToEnd();
+        this.durableLsn = nextLsn;
+        this.running = true;
+        if (syncMode == SyncMode.PER_COMMIT) {
+            this.syncThread = null;
+        } else {
+            this.syncThread = new Thread(this::runSyncThread, "thedb-wal-sync");
+            this.syncThread.setDaemon(true);
+            this.syncThread.start();
+        }
+    }
+    
+    private static void writeHeader(FileChannel channel, long base, long checkpoint) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(base).putLong(checkpoint).flip();
+        channel.truncate(0);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(true);
+    }
+    
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Truncated WAL header: " + path);
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a TheDB write-ahead log: " + path);
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported write-ahead log version " + version + ": " + path);
+        }
+        baseLsn = header.getLong();
+        checkpointLsn = header.getLong();
+    }
+    
+    private long positionOf(long lsn) {
+        return lsn - baseLsn;
+    }
+    
+    /**
+     * Walk all records to find the end of the log, truncating a torn tail
+     */
+    private long scanToEnd() throws IOException {
+        long position = HEADER_SIZE;
+        long size = channel.size();
+        while (position + 4 <= size) {
+            LogRecord record = readAt(position, size);
+            if (record == null) {
+                break;
+            }
+            maxTxnId = Math.max(maxTxnId, record.getTxnId());
+            position += record.size();
+        }
+        if (position < size) {
+            System.out.println("Truncating incomplete WAL tail: " + (size - position) + " bytes");
+            channel.truncate(position);
+            channel.force(true);
+        }
+        return baseLsn + position;
+    }
+    
+    private LogRecord readAt(long position, long size) throws IOException {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        if (channel.read(lengthBuffer, position) < 4) {
+            return null;
+        }
+        int length = lengthBuffer.getInt(0);
+        if (length <= 0 || position + length > size) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) {
+                return null;
+            }
+        }
+        return LogRecord.deserialize(data.array(), baseLsn + position);
+    }
+    
+    /**
+     * Read the durable record at the given LSN, or null at the end of the log
+     */
+    public LogRecord read(long lsn) throws IOException {
+        synchronized (flushLock) {
+            if (lsn < getStartLsn()) {
+                throw new IllegalArgumentException("LSN " + lsn + " is before the start of the log (" + getStartLsn() + ")");
+            }
+            if (lsn >= durableLsn) {
+                return null;
+            }
+            return readAt(positionOf(lsn), positionOf(durableLsn));
+        }
+    }
+    
+    /**
+     * LSN of the oldest record still in the log
+     */
+    public long getStartLsn() {
+        return baseLsn + HEADER_SIZE;
+    }
+    
+    /**
+     * LSN of the CHECKPOINT_BEGIN record of the last complete checkpoint, or -1 if none
+     */
+    public long getCheckpointLsn() {
+        return checkpointLsn;
+    }
+    
+    /**
+     * Record a completed checkpoint in the file header. The checkpoint
+     * records must already be durable.
+     */
+    public void setCheckpointLsn(long lsn) throws IOException {
+        synchronized (flushLock) {
+            ByteBuffer value = ByteBuffer.allocate(8);
+            value.putLong(lsn).flip();
+            while (value.hasRemaining()) {
+                channel.write(value, CHECKPOINT_LSN_OFFSET + value.position());
+            }
+            channel.force(false);
+            checkpointLsn = lsn;
+        }
+    }
+    
+    /**
+     * Drop all records before the given LSN by copying the rest of the log
+     * into a new file that replaces the old one
+     */
+    public void truncateBefore(long lsn) throws IOException {
+        synchronized (flushLock) {
+            flushAll();
+            if (lsn <= getStartLsn()) {
+                return;
+            }
+            long end = durableLsn;
+            if (lsn > end) {
+                throw new IllegalArgumentException("Cannot truncate beyond the end of the log: " + lsn);
+            }
+            long newBase = lsn - HEADER_SIZE;
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                writeHeader(out, newBase, checkpointLsn);
+                out.position(HEADER_SIZE);
+                long position = positionOf(lsn);
+                long remaining = end - lsn;
+                while (remaining > 0) {
+                    long copied = channel.transferTo(position, remaining, out);
+                    position += copied;
+                    remaining -= copied;
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            baseLsn = newBase;
+        }
+    }
+    
+    /**
+     * Size of the log file in bytes
+     */
+    public long getFileSize() {
+        return durableLsn - baseLsn;
+    }
+    
+    /**
+     * Append a record to the log buffer and return its LSN
+     */
+    public synchronized long append(LogRecord record) {
+        long lsn = nextLsn;
+        record.setLsn(lsn);
+        byte[] bytes = record.serialize();
+        pending.write(bytes, 0, bytes.length);
+        nextLsn += bytes.length;
+        return lsn;
+    }
+    
+    /**
+     * Make every record up to and including the one at lsn durable
+     */
+    public void flush(long lsn) throws IOException {
+        if (durableLsn > lsn) {
+            return;
+        }
+        synchronized (flushLock) {
+            if (durableLsn > lsn) {
+                return;
+            }
+            byte[] bytes;
+            long end;
+            synchronized (this) {
+                bytes = pending.toByteArray();
+                pending.reset();
+                end = nextLsn;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = positionOf(end - bytes.length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+            channel.force(false);
+            bytesWritten += bytes.length;
+            syncCount++;
+            durableLsn = end;
+        }
+        // Wake group commit waiters whose records were covered by this flush
+        synchronized (groupLock) {
+            groupLock.notifyAll();
+        }
+    }
+    
+    /**
+     * Make everything appended so far durable
+     */
+    public void flushAll() throws IOException {
+        flush(getEndLsn() - 1);
+    }
+    
+    /**
+     * Wait until a commit record is durable, as required by the sync mode
+     */
+    public void commit(long commitLsn) throws IOException {
+        synchronized (groupLock) {
+            commitCount++;
+        }
+        switch (syncMode) {
+            case PER_COMMIT:
+                flush(commitLsn);
+                break;
+            case GROUP:
+                waitForGroupCommit(commitLsn);
+                break;
+            case ASYNC:
+                break;
+        }
+    }
+    
+    private void waitForGroupCommit(long commitLsn) throws IOException {
+        synchronized (groupLock) {
+            requestedLsn = Math.max(requestedLsn, commitLsn);
+            batchSize++;
+            groupLock.notifyAll();
+            while (durableLsn <= commitLsn) {
+                if (syncError != null) {
+                    throw new IOException("WAL sync failed", syncError);
+                }
+                if (!running) {
+                    throw new IOException("Write-ahead log is closed");
+                }
+                try {
+                    groupLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for commit");
+                }
+            }
+        }
+    }
+    
+    private void runSyncThread() {
+        while (running) {
+            try {
+                if (syncMode == SyncMode.GROUP) {
+                    synchronized (groupLock) {
+                        while (running && requestedLsn < durableLsn) {
+                            groupLock.wait();
+                        }
+                        // Give other sessions up to the group commit delay to join this batch
+                        long deadline = System.nanoTime() + groupCommitDelayNanos;
+                        while (running && batchSize < groupCommitMaxBatch) {
+                            long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) {
+                                break;
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(groupLock, remaining);
+                        }
+                        batchSize = 0;
+                    }
+                } else {
+                    synchronized (groupLock) {
+                        if (running) {
+                            TimeUnit.NANOSECONDS.timedWait(groupLock, groupCommitDelayNanos);
+                        }
+                    }
+                }
+                flushAll();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                synchronized (groupLock) {
+                    syncError = e;
+                }
+                System.err.println("WAL sync failed: " + e.getMessage());
+            }
+            synchronized (groupLock) {
+                groupLock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * LSN that the next appended record will get
+     */
+    public synchronized long getEndLsn() {
+        return nextLsn;
+    }
+    
+    /**
+     * All records with an LSN below this value are on disk
+     */
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+    
+    /**
+     * Highest transaction id found in the log when it was opened
+     */
+    public long getMaxTxnId() {
+        return maxTxnId;
+    }
+    
+    public SyncMode getSyncMode() { return syncMode; }
+    
+    public long getCommitCount() {
+        synchronized (groupLock) {
+            return commitCount;
+        }
+    }
+    
+    /**
+     * Number of times the log was forced to disk
+     */
+    public long getSyncCount() {
+        synchronized (flushLock) {
+            return syncCount;
+        }
+    }
+    
+    public long getBytesWritten() {
+        synchronized (flushLock) {
+            return bytesWritten;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        long commits = getCommitCount();
+        long syncs = getSyncCount();
+        return String.format("WriteAheadLog{mode=%s, commits=%d, syncs=%d, commitsPerSync=%.1f, bytes=%d}",
+                syncMode, commits, syncs, syncs == 0 ? 0.0 : (double) commits / syncs, getBytesWritten());
+    }
+    
+    @Override
+    public void close() throws IOException {
+        running = false;
+        synchronized (groupLock) {
+            groupLock.notifyAll();
+        }
+        if (syncThread != null) {
+            // Not interrupted: that would close the channel under a running force
+            try {
+                syncThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushAll();
+        channel.close();
+    }
+}